@@ -6,10 +6,12 @@ import android.view.ViewGroup;
 
 import androidx.annotation.LayoutRes;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.kabouzeid.gramophone.adapter.base.MediaEntryViewHolder;
+import com.kabouzeid.gramophone.helper.SectionIndex;
 import com.kabouzeid.gramophone.model.Genre;
 import com.kabouzeid.gramophone.util.MusicUtil;
 import com.kabouzeid.gramophone.util.NavigationUtil;
@@ -23,11 +25,14 @@ public class GenreAdapter extends RecyclerView.Adapter<GenreAdapter.ViewHolder>
     private final AppCompatActivity activity;
     private List<Genre> dataSet;
     private final int itemLayoutRes;
+    @Nullable
+    private SectionIndex sectionIndex;
 
     public GenreAdapter(@NonNull AppCompatActivity activity, List<Genre> dataSet, @LayoutRes int itemLayoutRes) {
         this.activity = activity;
         this.dataSet = dataSet;
         this.itemLayoutRes = itemLayoutRes;
+        updateSectionIndex();
     }
 
     public List<Genre> getDataSet() {
@@ -36,6 +41,7 @@ public class GenreAdapter extends RecyclerView.Adapter<GenreAdapter.ViewHolder>
 
     public void swapDataSet(List<Genre> dataSet) {
         this.dataSet = dataSet;
+        updateSectionIndex();
         notifyDataSetChanged();
     }
 
@@ -86,6 +92,19 @@ public class GenreAdapter extends RecyclerView.Adapter<GenreAdapter.ViewHolder>
     @NonNull
     @Override
     public String getSectionName(int position) {
+        return updateSectionIndex().getSectionName(position);
+    }
+
+    @NonNull
+    private SectionIndex updateSectionIndex() {
+        if (sectionIndex == null || !sectionIndex.isFor(dataSet, null)) {
+            sectionIndex = SectionIndex.build(dataSet, null, this::computeSectionName);
+        }
+        return sectionIndex;
+    }
+
+    @NonNull
+    private String computeSectionName(int position) {
         final Genre genre = dataSet.get(position);
         return genre.id == -1 ? "" : MusicUtil.getSectionName(dataSet.get(position).name);
     }
@@ -19,6 +19,7 @@ import com.kabouzeid.appthemehelper.util.ATHUtil;
 import com.kabouzeid.gramophone.adapter.base.AbsMultiSelectAdapter;
 import com.kabouzeid.gramophone.adapter.base.MediaEntryViewHolder;
 import com.kabouzeid.gramophone.glide.audiocover.AudioFileCover;
+import com.kabouzeid.gramophone.helper.SectionIndex;
 import com.kabouzeid.gramophone.interfaces.CabHolder;
 import com.kabouzeid.gramophone.util.ImageUtil;
 import com.simplecityapps.recyclerview_fastscroll.views.FastScrollRecyclerView;
@@ -39,6 +40,8 @@ public class SongFileAdapter extends AbsMultiSelectAdapter<SongFileAdapter.ViewH
     private final int itemLayoutRes;
     @Nullable
     private final Callbacks callbacks;
+    @Nullable
+    private SectionIndex sectionIndex;
 
     public SongFileAdapter(@NonNull AppCompatActivity activity, @NonNull List<File> songFiles, @LayoutRes int itemLayoutRes, @Nullable Callbacks callback, @Nullable CabHolder cabHolder) {
         super(activity, cabHolder, R.menu.menu_media_selection);
@@ -46,6 +49,7 @@ public class SongFileAdapter extends AbsMultiSelectAdapter<SongFileAdapter.ViewH
         this.dataSet = songFiles;
         this.itemLayoutRes = itemLayoutRes;
         this.callbacks = callback;
+        updateSectionIndex();
         setHasStableIds(true);
     }
 
@@ -61,6 +65,7 @@ public class SongFileAdapter extends AbsMultiSelectAdapter<SongFileAdapter.ViewH
 
     public void swapDataSet(@NonNull List<File> songFiles) {
         this.dataSet = songFiles;
+        updateSectionIndex();
         notifyDataSetChanged();
     }
 
@@ -160,6 +165,19 @@ public class SongFileAdapter extends AbsMultiSelectAdapter<SongFileAdapter.ViewH
     @NonNull
     @Override
     public String getSectionName(int position) {
+        return updateSectionIndex().getSectionName(position);
+    }
+
+    @NonNull
+    private SectionIndex updateSectionIndex() {
+        if (sectionIndex == null || !sectionIndex.isFor(dataSet, null)) {
+            sectionIndex = SectionIndex.build(dataSet, null, this::computeSectionName);
+        }
+        return sectionIndex;
+    }
+
+    @NonNull
+    private String computeSectionName(int position) {
         return String.valueOf(dataSet.get(position).getName().charAt(0)).toUpperCase();
     }
 
@@ -19,6 +19,7 @@ import com.kabouzeid.gramophone.adapter.base.AbsMultiSelectAdapter;
 import com.kabouzeid.gramophone.adapter.base.MediaEntryViewHolder;
 import com.kabouzeid.gramophone.glide.PhonographColoredTarget;
 import com.kabouzeid.gramophone.glide.SongGlideRequest;
+import com.kabouzeid.gramophone.helper.SectionIndex;
 import com.kabouzeid.gramophone.helper.SortOrder;
 import com.kabouzeid.gramophone.helper.menu.SongsMenuHelper;
 import com.kabouzeid.gramophone.interfaces.CabHolder;
@@ -45,6 +46,8 @@ public class AlbumAdapter extends AbsMultiSelectAdapter<AlbumAdapter.ViewHolder,
     protected int itemLayoutRes;
 
     protected boolean usePalette = false;
+    @Nullable
+    private SectionIndex sectionIndex;
 
     public AlbumAdapter(@NonNull AppCompatActivity activity, List<Album> dataSet, @LayoutRes int itemLayoutRes, boolean usePalette, @Nullable CabHolder cabHolder) {
         super(activity, cabHolder, R.menu.menu_media_selection);
@@ -52,6 +55,7 @@ public class AlbumAdapter extends AbsMultiSelectAdapter<AlbumAdapter.ViewHolder,
         this.dataSet = dataSet;
         this.itemLayoutRes = itemLayoutRes;
         this.usePalette = usePalette;
+        updateSectionIndex();
 
         setHasStableIds(true);
     }
@@ -63,6 +67,7 @@ public class AlbumAdapter extends AbsMultiSelectAdapter<AlbumAdapter.ViewHolder,
 
     public void swapDataSet(List<Album> dataSet) {
         this.dataSet = dataSet;
+        updateSectionIndex();
         notifyDataSetChanged();
     }
 
@@ -191,8 +196,22 @@ public class AlbumAdapter extends AbsMultiSelectAdapter<AlbumAdapter.ViewHolder,
     @NonNull
     @Override
     public String getSectionName(int position) {
+        return updateSectionIndex().getSectionName(position);
+    }
+
+    @NonNull
+    private SectionIndex updateSectionIndex() {
+        final String sortOrder = PreferenceUtil.getInstance(activity).getAlbumSortOrder();
+        if (sectionIndex == null || !sectionIndex.isFor(dataSet, sortOrder)) {
+            sectionIndex = SectionIndex.build(dataSet, sortOrder, p -> computeSectionName(p, sortOrder));
+        }
+        return sectionIndex;
+    }
+
+    @NonNull
+    private String computeSectionName(int position, String sortOrder) {
         @Nullable String sectionName = null;
-        switch (PreferenceUtil.getInstance(activity).getAlbumSortOrder()) {
+        switch (sortOrder) {
             case SortOrder.AlbumSortOrder.ALBUM_A_Z:
             case SortOrder.AlbumSortOrder.ALBUM_Z_A:
                 sectionName = dataSet.get(position).getTitle();
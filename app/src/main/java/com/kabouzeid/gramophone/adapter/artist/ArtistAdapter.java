@@ -19,6 +19,7 @@ import com.kabouzeid.gramophone.adapter.base.AbsMultiSelectAdapter;
 import com.kabouzeid.gramophone.adapter.base.MediaEntryViewHolder;
 import com.kabouzeid.gramophone.glide.ArtistGlideRequest;
 import com.kabouzeid.gramophone.glide.PhonographColoredTarget;
+import com.kabouzeid.gramophone.helper.SectionIndex;
 import com.kabouzeid.gramophone.helper.SortOrder;
 import com.kabouzeid.gramophone.helper.menu.SongsMenuHelper;
 import com.kabouzeid.gramophone.interfaces.CabHolder;
@@ -45,6 +46,8 @@ public class ArtistAdapter extends AbsMultiSelectAdapter<ArtistAdapter.ViewHolde
     protected int itemLayoutRes;
 
     protected boolean usePalette = false;
+    @Nullable
+    private SectionIndex sectionIndex;
 
     public ArtistAdapter(@NonNull AppCompatActivity activity, List<Artist> dataSet, @LayoutRes int itemLayoutRes, boolean usePalette, @Nullable CabHolder cabHolder) {
         super(activity, cabHolder, R.menu.menu_media_selection);
@@ -52,11 +55,13 @@ public class ArtistAdapter extends AbsMultiSelectAdapter<ArtistAdapter.ViewHolde
         this.dataSet = dataSet;
         this.itemLayoutRes = itemLayoutRes;
         this.usePalette = usePalette;
+        updateSectionIndex();
         setHasStableIds(true);
     }
 
     public void swapDataSet(List<Artist> dataSet) {
         this.dataSet = dataSet;
+        updateSectionIndex();
         notifyDataSetChanged();
     }
 
@@ -178,8 +183,22 @@ public class ArtistAdapter extends AbsMultiSelectAdapter<ArtistAdapter.ViewHolde
     @NonNull
     @Override
     public String getSectionName(int position) {
+        return updateSectionIndex().getSectionName(position);
+    }
+
+    @NonNull
+    private SectionIndex updateSectionIndex() {
+        final String sortOrder = PreferenceUtil.getInstance(activity).getArtistSortOrder();
+        if (sectionIndex == null || !sectionIndex.isFor(dataSet, sortOrder)) {
+            sectionIndex = SectionIndex.build(dataSet, sortOrder, p -> computeSectionName(p, sortOrder));
+        }
+        return sectionIndex;
+    }
+
+    @NonNull
+    private String computeSectionName(int position, String sortOrder) {
         @Nullable String sectionName = null;
-        switch (PreferenceUtil.getInstance(activity).getArtistSortOrder()) {
+        switch (sortOrder) {
             case SortOrder.ArtistSortOrder.ARTIST_A_Z:
             case SortOrder.ArtistSortOrder.ARTIST_Z_A:
                 sectionName = dataSet.get(position).getName();
@@ -48,6 +48,11 @@ public abstract class AbsOffsetSongAdapter extends SongAdapter {
         return new AbsOffsetSongAdapter.ViewHolder(view);
     }
 
+    @Override
+    protected int getItemPositionOffset() {
+        return 1;
+    }
+
     @Override
     public long getItemId(int position) {
         position--;
@@ -72,6 +72,9 @@ public class PlayingQueueAdapter extends SongAdapter implements DraggableItemAda
     public void swapDataSet(List<Song> dataSet, int position) {
         this.dataSet = dataSet;
         current = position;
+        // the queue is moved around in place, the list alone doesn't tell whether the order changed. It changes far
+        // more often than it is fast scrolled, so the sections are only looked up again when they are needed
+        invalidateSectionIndex();
         notifyDataSetChanged();
     }
 
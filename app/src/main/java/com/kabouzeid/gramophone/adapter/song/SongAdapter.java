@@ -20,11 +20,14 @@ import com.kabouzeid.gramophone.adapter.base.AbsMultiSelectAdapter;
 import com.kabouzeid.gramophone.adapter.base.MediaEntryViewHolder;
 import com.kabouzeid.gramophone.glide.PhonographColoredTarget;
 import com.kabouzeid.gramophone.glide.SongGlideRequest;
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
 import com.kabouzeid.gramophone.helper.MusicPlayerRemote;
+import com.kabouzeid.gramophone.helper.SectionIndex;
 import com.kabouzeid.gramophone.helper.SortOrder;
 import com.kabouzeid.gramophone.helper.menu.SongMenuHelper;
 import com.kabouzeid.gramophone.helper.menu.SongsMenuHelper;
 import com.kabouzeid.gramophone.interfaces.CabHolder;
+import com.kabouzeid.gramophone.loader.LibraryChangeSet;
 import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.util.MusicUtil;
 import com.kabouzeid.gramophone.util.NavigationUtil;
@@ -40,6 +43,9 @@ import java.util.List;
  */
 public class SongAdapter extends AbsMultiSelectAdapter<SongAdapter.ViewHolder, Song> implements MaterialCab.Callback, FastScrollRecyclerView.SectionedAdapter {
 
+    // beyond this many changes a full rebind is cheaper than animating each one
+    private static final int MAX_ANIMATED_CHANGES = 100;
+
     protected final AppCompatActivity activity;
     protected List<Song> dataSet;
 
@@ -47,6 +53,8 @@ public class SongAdapter extends AbsMultiSelectAdapter<SongAdapter.ViewHolder, S
 
     protected boolean usePalette = false;
     protected boolean showSectionName = true;
+    @Nullable
+    private SectionIndex sectionIndex;
 
     public SongAdapter(AppCompatActivity activity, List<Song> dataSet, @LayoutRes int itemLayoutRes, boolean usePalette, @Nullable CabHolder cabHolder) {
         this(activity, dataSet, itemLayoutRes, usePalette, cabHolder, true);
@@ -59,14 +67,52 @@ public class SongAdapter extends AbsMultiSelectAdapter<SongAdapter.ViewHolder, S
         this.itemLayoutRes = itemLayoutRes;
         this.usePalette = usePalette;
         this.showSectionName = showSectionName;
+        updateSectionIndex();
         setHasStableIds(true);
     }
 
     public void swapDataSet(List<Song> dataSet) {
         this.dataSet = dataSet;
+        updateSectionIndex();
         notifyDataSetChanged();
     }
 
+    /**
+     * Swaps in the data set of the next library generation and only animates the songs in {@code changes}.
+     * The data set has to be sorted the same way as the current one.
+     */
+    public void swapDataSet(List<Song> dataSet, @Nullable LibraryChangeSet changes) {
+        if (changes == null || this.dataSet.isEmpty() || dataSet.isEmpty() || changes.size() > MAX_ANIMATED_CHANGES) {
+            swapDataSet(dataSet);
+            return;
+        }
+        final LongIntHashMap outgoingIds = changes.getOutgoingIds();
+        final LongIntHashMap incomingIds = changes.getIncomingIds();
+        final List<Song> oldDataSet = this.dataSet;
+        this.dataSet = dataSet;
+        updateSectionIndex();
+
+        // all other songs keep their relative order, so removing back to front and then inserting front to back is exact
+        final int offset = getItemPositionOffset();
+        for (int i = oldDataSet.size() - 1; i >= 0; i--) {
+            if (outgoingIds.containsKey(oldDataSet.get(i).id)) {
+                notifyItemRemoved(offset + i);
+            }
+        }
+        for (int i = 0; i < dataSet.size(); i++) {
+            if (incomingIds.containsKey(dataSet.get(i).id)) {
+                notifyItemInserted(offset + i);
+            }
+        }
+    }
+
+    /**
+     * @return the adapter position of the first song of the data set
+     */
+    protected int getItemPositionOffset() {
+        return 0;
+    }
+
     public void usePalette(boolean usePalette) {
         this.usePalette = usePalette;
         notifyDataSetChanged();
@@ -189,9 +235,36 @@ public class SongAdapter extends AbsMultiSelectAdapter<SongAdapter.ViewHolder, S
         if (!showSectionName) {
             return "";
         }
+        //noinspection ConstantConditions
+        return updateSectionIndex().getSectionName(position);
+    }
 
+    /**
+     * Builds the section index when the data set is swapped, so the first fast scroll drag doesn't have to.
+     * Getting the section names checks again, in case the sort order changed meanwhile.
+     */
+    @Nullable
+    private SectionIndex updateSectionIndex() {
+        if (!showSectionName) return null;
+        final String sortOrder = PreferenceUtil.getInstance(activity).getSongSortOrder();
+        if (sectionIndex == null || !sectionIndex.isFor(dataSet, sortOrder)) {
+            sectionIndex = SectionIndex.build(dataSet, sortOrder, p -> computeSectionName(p, sortOrder));
+        }
+        return sectionIndex;
+    }
+
+    /**
+     * Call when the data set was changed in place, e.g. songs were moved within the same list. The index is only built
+     * again once a section name is asked for.
+     */
+    protected void invalidateSectionIndex() {
+        sectionIndex = null;
+    }
+
+    @NonNull
+    private String computeSectionName(int position, String sortOrder) {
         @Nullable String sectionName = null;
-        switch (PreferenceUtil.getInstance(activity).getSongSortOrder()) {
+        switch (sortOrder) {
             case SortOrder.SongSortOrder.SONG_A_Z:
             case SortOrder.SongSortOrder.SONG_Z_A:
                 sectionName = dataSet.get(position).title;
@@ -0,0 +1,89 @@
+package com.kabouzeid.gramophone.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.util.MusicUtil;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Locale aware collation keys of titles and names, computed once per distinct string.
+ * Keys are built from {@link MusicUtil#getSortableText(String)}, so sorting by them agrees with the section names
+ * shown by the fast scroller. The keys are kept as byte arrays, comparing two of them is a plain byte comparison,
+ * which keeps re-sorting large lists cheap.
+ * Safe to use from multiple threads, e.g. while sorting in parallel.
+ */
+public final class CollationKeyCache {
+    @Nullable
+    private static volatile CollationKeyCache sInstance;
+
+    @NonNull
+    private final Locale locale;
+    @NonNull
+    private final Collator collator;
+    private final ConcurrentHashMap<String, byte[]> keys = new ConcurrentHashMap<>();
+
+    private CollationKeyCache(@NonNull Locale locale) {
+        this.locale = locale;
+        this.collator = Collator.getInstance(locale);
+        // ignore case, but not accents
+        collator.setStrength(Collator.SECONDARY);
+    }
+
+    /**
+     * @return the cache for the current default locale, a new one if the locale changed
+     */
+    @NonNull
+    public static CollationKeyCache getInstance() {
+        final Locale locale = Locale.getDefault();
+        CollationKeyCache instance = sInstance;
+        if (instance == null || !instance.locale.equals(locale)) {
+            instance = new CollationKeyCache(locale);
+            sInstance = instance;
+        }
+        return instance;
+    }
+
+    /**
+     * Drops all cached keys, e.g. after the library was loaded from scratch and the old strings are gone.
+     */
+    public static void reset() {
+        sInstance = null;
+    }
+
+    /**
+     * @return the collation key of {@code text} as bytes, compare them with {@link #compare(byte[], byte[])}
+     */
+    @NonNull
+    public byte[] get(@NonNull String text) {
+        byte[] key = keys.get(text);
+        if (key == null) {
+            synchronized (collator) {
+                key = collator.getCollationKey(MusicUtil.getSortableText(text)).toByteArray();
+            }
+            byte[] existing = keys.putIfAbsent(text, key);
+            if (existing != null) {
+                key = existing;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Same order as {@link CollationKey#compareTo(CollationKey)}, but without going through the collator again.
+     */
+    public static int compare(@NonNull byte[] k1, @NonNull byte[] k2) {
+        if (k1 == k2) return 0;
+        final int length = Math.min(k1.length, k2.length);
+        for (int i = 0; i < length; i++) {
+            if (k1[i] != k2[i]) {
+                return (k1[i] & 0xFF) - (k2[i] & 0xFF);
+            }
+        }
+        return k1.length - k2.length;
+    }
+}
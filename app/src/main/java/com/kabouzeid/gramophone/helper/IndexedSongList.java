@@ -0,0 +1,320 @@
+package com.kabouzeid.gramophone.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.model.Song;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * List of songs for the playing queues, backed by a treap ordered by position instead of an array.
+ * Inserting, removing and accessing a song at a position costs O(log n), so editing a queue of many thousand songs
+ * doesn't shift the whole queue every time.
+ * <p/>
+ * The songs are also indexed by their id, so finding the positions of a song costs O(k log n) for its k occurrences
+ * instead of a scan over the whole queue. Null songs are not permitted. Not thread safe.
+ */
+public class IndexedSongList extends AbstractList<Song> {
+    private final Random random = new Random();
+    // the first node of every song id, the others are linked from there
+    private final HashMap<Long, Node> firstNodeById = new HashMap<>();
+    @Nullable
+    private Node root;
+
+    // the results of split(), to avoid allocating a pair each time
+    private Node splitLeft;
+    private Node splitRight;
+
+    public IndexedSongList() {
+    }
+
+    public IndexedSongList(@NonNull Collection<? extends Song> songs) {
+        root = build(songs);
+    }
+
+    @Override
+    public int size() {
+        return size(root);
+    }
+
+    @Override
+    public Song get(int index) {
+        checkIndex(index, size());
+        return nodeAt(index).song;
+    }
+
+    @Override
+    public Song set(int index, @NonNull Song song) {
+        checkIndex(index, size());
+        final Node node = nodeAt(index);
+        final Song previous = node.song;
+        unlink(node);
+        node.song = song;
+        link(node);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, @NonNull Song song) {
+        checkIndex(index, size() + 1);
+        final Node node = new Node(song, random.nextInt());
+        link(node);
+        split(root, index);
+        final Node right = splitRight;
+        setRoot(merge(merge(splitLeft, node), right));
+        modCount++;
+    }
+
+    @Override
+    public boolean addAll(@NonNull Collection<? extends Song> songs) {
+        return addAll(size(), songs);
+    }
+
+    @Override
+    public boolean addAll(int index, @NonNull Collection<? extends Song> songs) {
+        checkIndex(index, size() + 1);
+        if (songs.isEmpty()) return false;
+        final Node added = build(songs);
+        split(root, index);
+        final Node right = splitRight;
+        setRoot(merge(merge(splitLeft, added), right));
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public Song remove(int index) {
+        checkIndex(index, size());
+        split(root, index);
+        final Node left = splitLeft;
+        split(splitRight, 1);
+        final Node removed = splitLeft;
+        setRoot(merge(left, splitRight));
+        unlink(removed);
+        modCount++;
+        return removed.song;
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+        firstNodeById.clear();
+        modCount++;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) != -1;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof Song)) return -1;
+        int index = -1;
+        for (Node node = firstNodeById.get(((Song) o).id); node != null; node = node.nextWithSameId) {
+            if (node.song.equals(o)) {
+                final int position = positionOf(node);
+                if (index == -1 || position < index) index = position;
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        if (!(o instanceof Song)) return -1;
+        int index = -1;
+        for (Node node = firstNodeById.get(((Song) o).id); node != null; node = node.nextWithSameId) {
+            if (node.song.equals(o)) {
+                index = Math.max(index, positionOf(node));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the positions of all songs with this id, ascending
+     */
+    @NonNull
+    public int[] indexesOf(long songId) {
+        int count = 0;
+        for (Node node = firstNodeById.get(songId); node != null; node = node.nextWithSameId) {
+            count++;
+        }
+        final int[] indexes = new int[count];
+        int i = 0;
+        for (Node node = firstNodeById.get(songId); node != null; node = node.nextWithSameId) {
+            indexes[i++] = positionOf(node);
+        }
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    private static void checkIndex(int index, int bound) {
+        if (index < 0 || index >= bound) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Bound: " + bound);
+        }
+    }
+
+    @NonNull
+    private Node nodeAt(int index) {
+        Node node = root;
+        while (true) {
+            //noinspection ConstantConditions
+            final int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                node = node.right;
+            } else {
+                return node;
+            }
+        }
+    }
+
+    private static int positionOf(@NonNull Node node) {
+        int position = size(node.left);
+        for (Node child = node; child.parent != null; child = child.parent) {
+            if (child == child.parent.right) {
+                position += size(child.parent.left) + 1;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Builds a treap of the songs in O(n), as a cartesian tree of random priorities over their order.
+     */
+    @Nullable
+    private Node build(@NonNull Collection<? extends Song> songs) {
+        // the right spine of the tree so far, from the top down
+        final Node[] spine = new Node[songs.size()];
+        int depth = 0;
+        for (Song song : songs) {
+            final Node node = new Node(song, random.nextInt());
+            link(node);
+            Node below = null;
+            while (depth > 0 && spine[depth - 1].priority < node.priority) {
+                below = spine[--depth];
+                update(below);
+            }
+            node.left = below;
+            if (depth > 0) spine[depth - 1].right = node;
+            spine[depth++] = node;
+        }
+        if (depth == 0) return null;
+        while (depth > 0) {
+            update(spine[--depth]);
+        }
+        spine[0].parent = null;
+        return spine[0];
+    }
+
+    /**
+     * Splits the tree of {@code node} into {@link #splitLeft} with its first {@code count} songs and
+     * {@link #splitRight} with the rest.
+     */
+    private void split(@Nullable Node node, int count) {
+        if (node == null) {
+            splitLeft = null;
+            splitRight = null;
+        } else if (size(node.left) < count) {
+            split(node.right, count - size(node.left) - 1);
+            node.right = splitLeft;
+            update(node);
+            splitLeft = node;
+        } else {
+            split(node.left, count);
+            node.left = splitRight;
+            update(node);
+            splitRight = node;
+        }
+    }
+
+    /**
+     * @return the tree of all songs of {@code left} followed by all songs of {@code right}
+     */
+    @Nullable
+    private static Node merge(@Nullable Node left, @Nullable Node right) {
+        if (left == null) return right;
+        if (right == null) return left;
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        } else {
+            right.left = merge(left, right.left);
+            update(right);
+            return right;
+        }
+    }
+
+    /**
+     * @return the number of nodes on the longest path from the root, what finding a song or a position costs at most
+     */
+    int height() {
+        return height(root);
+    }
+
+    private static int height(@Nullable Node node) {
+        return node == null ? 0 : 1 + Math.max(height(node.left), height(node.right));
+    }
+
+    private void setRoot(@Nullable Node node) {
+        root = node;
+        if (node != null) node.parent = null;
+    }
+
+    private static void update(@NonNull Node node) {
+        node.size = 1 + size(node.left) + size(node.right);
+        if (node.left != null) node.left.parent = node;
+        if (node.right != null) node.right.parent = node;
+    }
+
+    private static int size(@Nullable Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private void link(@NonNull Node node) {
+        final Node first = firstNodeById.put(node.song.id, node);
+        node.nextWithSameId = first;
+        if (first != null) first.previousWithSameId = node;
+    }
+
+    private void unlink(@NonNull Node node) {
+        if (node.previousWithSameId != null) {
+            node.previousWithSameId.nextWithSameId = node.nextWithSameId;
+        } else if (node.nextWithSameId != null) {
+            firstNodeById.put(node.song.id, node.nextWithSameId);
+        } else {
+            firstNodeById.remove(node.song.id);
+        }
+        if (node.nextWithSameId != null) {
+            node.nextWithSameId.previousWithSameId = node.previousWithSameId;
+        }
+        node.previousWithSameId = null;
+        node.nextWithSameId = null;
+    }
+
+    private static final class Node {
+        Song song;
+        final int priority;
+        int size = 1;
+        Node left;
+        Node right;
+        Node parent;
+        Node previousWithSameId;
+        Node nextWithSameId;
+
+        Node(@NonNull Song song, int priority) {
+            this.song = song;
+            this.priority = priority;
+        }
+    }
+}
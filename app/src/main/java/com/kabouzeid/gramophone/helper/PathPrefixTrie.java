@@ -0,0 +1,108 @@
+package com.kabouzeid.gramophone.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable character trie over a set of path prefixes.
+ * A lookup walks the path once, so checking a path costs O(path length) no matter how many prefixes there are.
+ * <p>
+ * Like {@code _data LIKE 'prefix%'} in SQLite, matching ignores the case of ASCII letters.
+ */
+public final class PathPrefixTrie {
+    public static final PathPrefixTrie EMPTY = new PathPrefixTrie(new String[0]);
+
+    private final Node root = new Node();
+    private final int size;
+
+    public PathPrefixTrie(@NonNull Collection<String> prefixes) {
+        this(prefixes.toArray(new String[0]));
+    }
+
+    private PathPrefixTrie(@NonNull String[] prefixes) {
+        int size = 0;
+        for (String prefix : prefixes) {
+            if (prefix != null && add(prefix)) size++;
+        }
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return true if one of the prefixes is a prefix of {@code path}
+     */
+    public boolean matchesPrefixOf(@Nullable String path) {
+        if (path == null || size == 0) return false;
+        Node node = root;
+        for (int i = 0; i < path.length(); i++) {
+            if (node.terminal) return true;
+            node = node.child(fold(path.charAt(i)));
+            if (node == null) return false;
+        }
+        return node.terminal;
+    }
+
+    /**
+     * @return true if {@code path} is one of the prefixes itself
+     */
+    public boolean contains(@Nullable String path) {
+        if (path == null || size == 0) return false;
+        Node node = root;
+        for (int i = 0; i < path.length() && node != null; i++) {
+            node = node.child(fold(path.charAt(i)));
+        }
+        return node != null && node.terminal;
+    }
+
+    private boolean add(@NonNull String prefix) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.getOrAddChild(fold(prefix.charAt(i)));
+        }
+        if (node.terminal) return false;
+        node.terminal = true;
+        return true;
+    }
+
+    private static char fold(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static final class Node {
+        // paths have few distinct characters per level, a linear scan beats hashing here
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private boolean terminal;
+
+        @Nullable
+        Node child(char key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) return children[i];
+            }
+            return null;
+        }
+
+        @NonNull
+        Node getOrAddChild(char key) {
+            Node child = child(key);
+            if (child == null) {
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = key;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+}
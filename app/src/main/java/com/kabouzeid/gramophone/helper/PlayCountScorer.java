@@ -0,0 +1,71 @@
+package com.kabouzeid.gramophone.helper;
+
+/**
+ * Exponentially decayed play count scores.
+ * <p>
+ * A play is worth 1 at the moment it happens and loses half of its value every {@link #HALF_LIFE_MILLIS}. Instead of
+ * decaying every stored score over time, scores are stored relative to a fixed epoch: a play at time t adds
+ * {@link #getPlayWeight(long) 2^((t - epoch) / half life)}. All stored scores would decay by the same factor, so
+ * ordering by the stored value is ordering by the current score, a play is a single addition, and the current score
+ * only has to be computed when it is actually shown.
+ * <p>
+ * Doubles have enough range for several thousand half lives on either side of the epoch.
+ */
+public final class PlayCountScorer {
+    public static final long ONE_WEEK_MILLIS = 1000L * 60 * 60 * 24 * 7;
+
+    /**
+     * A play from about a year ago still counts a third, roughly the weighting of the former weekly counters.
+     */
+    public static final long HALF_LIFE_MILLIS = 32 * ONE_WEEK_MILLIS;
+
+    /**
+     * Songs whose current score dropped below this are forgotten, a single play about a year and a half ago.
+     */
+    public static final double MIN_SCORE = 0.2;
+
+    // 2020-01-01T00:00:00Z
+    private static final long EPOCH_MILLIS = 1577836800000L;
+
+    private PlayCountScorer() {
+    }
+
+    /**
+     * @return what a play at {@code timeMillis} adds to a stored score
+     */
+    public static double getPlayWeight(final long timeMillis) {
+        return Math.pow(2, (timeMillis - EPOCH_MILLIS) / (double) HALF_LIFE_MILLIS);
+    }
+
+    /**
+     * @return the current score, as in the number of plays weighted by their age, of a stored score
+     */
+    public static double getScore(final double storedScore, final long nowMillis) {
+        return storedScore / getPlayWeight(nowMillis);
+    }
+
+    /**
+     * @return the stored score that corresponds to {@code score} at {@code nowMillis}, e.g. to compare against in queries
+     */
+    public static double toStoredScore(final double score, final long nowMillis) {
+        return score * getPlayWeight(nowMillis);
+    }
+
+    /**
+     * Converts the former per-week play counters.
+     *
+     * @param playCounts      where playCounts[N] is the number of plays N weeks before {@code lastUpdatedWeek}
+     * @param lastUpdatedWeek the week since epoch time the counters were last shifted in
+     * @return the stored score of these plays, each one assumed to have happened in the middle of its week
+     */
+    public static double fromWeeklyPlayCounts(final int[] playCounts, final int lastUpdatedWeek) {
+        double storedScore = 0;
+        for (int week = 0; week < playCounts.length; week++) {
+            if (playCounts[week] > 0) {
+                long timeMillis = (lastUpdatedWeek - week) * ONE_WEEK_MILLIS + ONE_WEEK_MILLIS / 2;
+                storedScore += playCounts[week] * getPlayWeight(timeMillis);
+            }
+        }
+        return storedScore;
+    }
+}
@@ -6,89 +6,113 @@ import android.os.Bundle;
 import android.provider.MediaStore;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import com.kabouzeid.gramophone.loader.LibrarySnapshot;
 import com.kabouzeid.gramophone.loader.SongLoader;
 import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.util.PreferenceUtil;
 
 import java.util.ArrayList;
 import java.util.List;
 
 /**
+ * Resolves the extras of a {@link MediaStore#INTENT_ACTION_MEDIA_PLAY_FROM_SEARCH} intent to songs.
+ * <p>
+ * The more of the given artist, album and title a song matches, the better; if nothing matches them the raw query is
+ * tried as artist, album, title and finally as part of a title. All of these are checked in one pass over the library,
+ * only the songs of the best matching tier are returned, in the song sort order.
+ *
  * @author Karim Abou Zeid (kabouzeid)
  */
 public class SearchQueryHelper {
-    private static final String TITLE_SELECTION = "lower(" + MediaStore.Audio.AudioColumns.TITLE + ") = ?";
-    private static final String ALBUM_SELECTION = "lower(" + MediaStore.Audio.AudioColumns.ALBUM + ") = ?";
-    private static final String ARTIST_SELECTION = "lower(" + MediaStore.Audio.AudioColumns.ARTIST + ") = ?";
-    private static final String AND = " AND ";
+    private static final int ARTIST = 1;
+    private static final int ALBUM = 1 << 1;
+    private static final int TITLE = 1 << 2;
+    private static final int QUERY_ARTIST = 1 << 3;
+    private static final int QUERY_ALBUM = 1 << 4;
+    private static final int QUERY_TITLE = 1 << 5;
+    private static final int QUERY_IN_TITLE = 1 << 6;
+
+    // best first, a song is in the first tier whose matches it has all
+    private static final int[] TIERS = {
+            ARTIST | ALBUM | TITLE,
+            ARTIST | TITLE,
+            ALBUM | TITLE,
+            ARTIST,
+            ALBUM,
+            TITLE,
+            QUERY_ARTIST,
+            QUERY_ALBUM,
+            QUERY_TITLE,
+            QUERY_IN_TITLE,
+    };
 
     @NonNull
     public static List<Song> getSongs(@NonNull final Context context, @NonNull final Bundle extras) {
-        final String query = extras.getString(SearchManager.QUERY, null);
-        final String artistName = extras.getString(MediaStore.EXTRA_MEDIA_ARTIST, null);
-        final String albumName = extras.getString(MediaStore.EXTRA_MEDIA_ALBUM, null);
-        final String titleName = extras.getString(MediaStore.EXTRA_MEDIA_TITLE, null);
-
-        List<Song> songs = new ArrayList<>();
-
-        if (artistName != null && albumName != null && titleName != null) {
-            songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ARTIST_SELECTION + AND + ALBUM_SELECTION + AND + TITLE_SELECTION, new String[]{artistName.toLowerCase().trim(), albumName.toLowerCase().trim(), titleName.toLowerCase().trim()}));
-        }
-        if (!songs.isEmpty()) {
-            return songs;
-        }
-
-        if (artistName != null && titleName != null) {
-            songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ARTIST_SELECTION + AND + TITLE_SELECTION, new String[]{artistName.toLowerCase().trim(), titleName.toLowerCase().trim()}));
-        }
-        if (!songs.isEmpty()) {
-            return songs;
-        }
-
-        if (albumName != null && titleName != null) {
-            songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ALBUM_SELECTION + AND + TITLE_SELECTION, new String[]{albumName.toLowerCase().trim(), titleName.toLowerCase().trim()}));
-        }
-        if (!songs.isEmpty()) {
-            return songs;
-        }
-
-        if (artistName != null) {
-            songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ARTIST_SELECTION, new String[]{artistName.toLowerCase().trim()}));
-        }
-        if (!songs.isEmpty()) {
-            return songs;
-        }
-
-        if (albumName != null) {
-            songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ALBUM_SELECTION, new String[]{albumName.toLowerCase().trim()}));
-        }
-        if (!songs.isEmpty()) {
-            return songs;
-        }
-
-        if (titleName != null) {
-            songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, TITLE_SELECTION, new String[]{titleName.toLowerCase().trim()}));
-        }
-        if (!songs.isEmpty()) {
-            return songs;
-        }
+        final String query = normalize(extras.getString(SearchManager.QUERY, null));
+        final String artistName = normalize(extras.getString(MediaStore.EXTRA_MEDIA_ARTIST, null));
+        final String albumName = normalize(extras.getString(MediaStore.EXTRA_MEDIA_ALBUM, null));
+        final String titleName = normalize(extras.getString(MediaStore.EXTRA_MEDIA_TITLE, null));
 
+        final List<Song> library = LibrarySnapshot.getInstance(context).getSongs(PreferenceUtil.getInstance(context).getSongSortOrder());
+        return getSongs(library, query, artistName, albumName, titleName);
+    }
 
-        songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ARTIST_SELECTION, new String[]{query.toLowerCase().trim()}));
-        if (!songs.isEmpty()) {
-            return songs;
+    @NonNull
+    static List<Song> getSongs(@NonNull final List<Song> library, @Nullable final String query,
+                               @Nullable final String artistName, @Nullable final String albumName, @Nullable final String titleName) {
+        List<Song> songs = new ArrayList<>();
+        int bestTier = TIERS.length;
+        for (Song song : library) {
+            final int matches = getMatches(song, query, artistName, albumName, titleName);
+            if (matches == 0) continue;
+
+            // tiers worse than the best one so far don't matter anymore
+            final int lastTier = Math.min(bestTier, TIERS.length - 1);
+            int tier = 0;
+            while (tier <= lastTier && (matches & TIERS[tier]) != TIERS[tier]) {
+                tier++;
+            }
+            if (tier > lastTier) continue;
+            if (tier < bestTier) {
+                bestTier = tier;
+                songs.clear();
+            }
+            if (tier == bestTier) {
+                songs.add(song);
+            }
         }
+        return songs;
+    }
 
-        songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, ALBUM_SELECTION, new String[]{query.toLowerCase().trim()}));
-        if (!songs.isEmpty()) {
-            return songs;
+    private static int getMatches(@NonNull final Song song, @Nullable final String query,
+                                  @Nullable final String artistName, @Nullable final String albumName, @Nullable final String titleName) {
+        int matches = 0;
+        if (artistName != null && equalsIgnoreCase(song.artistName, artistName)) matches |= ARTIST;
+        if (albumName != null && equalsIgnoreCase(song.albumName, albumName)) matches |= ALBUM;
+        if (titleName != null && equalsIgnoreCase(song.title, titleName)) matches |= TITLE;
+        if (query != null) {
+            if (equalsIgnoreCase(song.artistName, query)) matches |= QUERY_ARTIST;
+            if (equalsIgnoreCase(song.albumName, query)) matches |= QUERY_ALBUM;
+            if (equalsIgnoreCase(song.title, query)) {
+                matches |= QUERY_TITLE | QUERY_IN_TITLE;
+            } else if (SongLoader.containsIgnoreCase(song.title, query)) {
+                matches |= QUERY_IN_TITLE;
+            }
         }
+        return matches;
+    }
 
-        songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, TITLE_SELECTION, new String[]{query.toLowerCase().trim()}));
-        if (!songs.isEmpty()) {
-            return songs;
-        }
+    /**
+     * In-memory equivalent of {@code lower(column) = ?}.
+     */
+    private static boolean equalsIgnoreCase(@Nullable final String text, @NonNull final String value) {
+        return text != null && text.equalsIgnoreCase(value);
+    }
 
-        return SongLoader.getSongs(context, query);
+    @Nullable
+    private static String normalize(@Nullable final String value) {
+        return value == null ? null : value.trim();
     }
 }
@@ -0,0 +1,82 @@
+package com.kabouzeid.gramophone.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fast scroll section names of a data set, computed once instead of on every drag event.
+ * Consecutive positions with the same label share one section, so the table is one label per section
+ * plus one section number per position. Looking up a position is O(1) and doesn't allocate.
+ */
+public final class SectionIndex {
+    public interface LabelProvider {
+        @NonNull
+        String getLabel(int position);
+    }
+
+    private static final String[] NO_LABELS = new String[0];
+
+    // what the index was built for
+    @NonNull
+    private final List<?> dataSet;
+    private final int size;
+    @Nullable
+    private final String sortOrder;
+
+    @NonNull
+    private final String[] labels;
+    @NonNull
+    private final int[] sections;
+
+    private SectionIndex(@NonNull List<?> dataSet, @Nullable String sortOrder, @NonNull String[] labels, @NonNull int[] sections) {
+        this.dataSet = dataSet;
+        this.size = dataSet.size();
+        this.sortOrder = sortOrder;
+        this.labels = labels;
+        this.sections = sections;
+    }
+
+    /**
+     * @param sortOrder the sort order the labels depend on, if any
+     */
+    @NonNull
+    public static SectionIndex build(@NonNull List<?> dataSet, @Nullable String sortOrder, @NonNull LabelProvider provider) {
+        final int size = dataSet.size();
+        String[] labels = size == 0 ? NO_LABELS : new String[Math.min(size, 64)];
+        int[] sections = new int[size];
+        int sectionCount = 0;
+        for (int i = 0; i < size; i++) {
+            String label = provider.getLabel(i);
+            if (sectionCount == 0 || !labels[sectionCount - 1].equals(label)) {
+                if (sectionCount == labels.length) {
+                    labels = Arrays.copyOf(labels, labels.length * 2);
+                }
+                labels[sectionCount++] = label;
+            }
+            sections[i] = sectionCount - 1;
+        }
+        return new SectionIndex(dataSet, sortOrder, sectionCount == labels.length ? labels : Arrays.copyOf(labels, sectionCount), sections);
+    }
+
+    /**
+     * @return true if this index still describes {@code dataSet} sorted by {@code sortOrder}.
+     * Adapters swap in new lists instead of changing them, so the identity and size of the list are enough to tell.
+     */
+    public boolean isFor(@NonNull List<?> dataSet, @Nullable String sortOrder) {
+        return this.dataSet == dataSet && size == dataSet.size()
+                && (this.sortOrder == null ? sortOrder == null : this.sortOrder.equals(sortOrder));
+    }
+
+    @NonNull
+    public String getSectionName(int position) {
+        if (position < 0 || position >= sections.length) return "";
+        return labels[sections[position]];
+    }
+
+    public int getSectionCount() {
+        return labels.length;
+    }
+}
@@ -6,6 +6,7 @@ import com.kabouzeid.gramophone.model.Song;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 /**
  * @author Karim Abou Zeid (kabouzeid)
@@ -13,13 +14,20 @@ import java.util.List;
 public class ShuffleHelper {
 
     public static void makeShuffleList(@NonNull List<Song> listToShuffle, final int current) {
+        makeShuffleList(listToShuffle, current, new Random());
+    }
+
+    /**
+     * Shuffles the list and moves the song at {@code current} to the top, the same random yields the same order.
+     */
+    public static void makeShuffleList(@NonNull List<Song> listToShuffle, final int current, @NonNull Random random) {
         if (listToShuffle.isEmpty()) return;
         if (current >= 0) {
             Song song = listToShuffle.remove(current);
-            Collections.shuffle(listToShuffle);
+            Collections.shuffle(listToShuffle, random);
             listToShuffle.add(0, song);
         } else {
-            Collections.shuffle(listToShuffle);
+            Collections.shuffle(listToShuffle, random);
         }
     }
 }
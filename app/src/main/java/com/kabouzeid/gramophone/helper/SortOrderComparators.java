@@ -0,0 +1,255 @@
+package com.kabouzeid.gramophone.helper;
+
+import android.os.Build;
+import android.provider.MediaStore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.model.Album;
+import com.kabouzeid.gramophone.model.Artist;
+import com.kabouzeid.gramophone.model.Genre;
+import com.kabouzeid.gramophone.model.Song;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Applies the MediaStore {@code ORDER BY} clauses from {@link SortOrder} to lists that are already in memory,
+ * so they end up in the order the provider would return them in.
+ * Columns that have no in-memory equivalent are ignored and keep the existing (stable) order.
+ * <p>
+ * Titles and names are compared by their {@link CollationKeyCache} keys, so they are sorted locale aware and without
+ * leading articles. The keys are looked up once per item before sorting, the comparisons themselves don't allocate or hash.
+ */
+public final class SortOrderComparators {
+    // below this size sorting on one thread is faster than splitting the work
+    private static final int MIN_PARALLEL_SORT_SIZE = 8192;
+
+    private SortOrderComparators() {
+    }
+
+    public static void sortSongs(@NonNull List<Song> songs, @Nullable String sortOrder) {
+        List<Column<Song>> columns = new ArrayList<>();
+        for (String term : splitTerms(sortOrder)) {
+            Column<Song> column = songColumn(columnOf(term), isDescending(term));
+            if (column != null) {
+                columns.add(column);
+            }
+        }
+        sort(songs, columns);
+    }
+
+    public static void sortAlbums(@NonNull List<Album> albums, @Nullable String sortOrder) {
+        List<Column<Album>> columns = new ArrayList<>();
+        for (String term : splitTerms(sortOrder)) {
+            Column<Album> column = albumColumn(columnOf(term), isDescending(term));
+            if (column != null) {
+                columns.add(column);
+            }
+        }
+        sort(albums, columns);
+    }
+
+    public static void sortArtists(@NonNull List<Artist> artists, @Nullable String sortOrder) {
+        List<Column<Artist>> columns = new ArrayList<>();
+        for (String term : splitTerms(sortOrder)) {
+            Column<Artist> column = artistColumn(columnOf(term), isDescending(term));
+            if (column != null) {
+                columns.add(column);
+            }
+        }
+        sort(artists, columns);
+    }
+
+    public static void sortGenres(@NonNull List<Genre> genres, @Nullable String sortOrder) {
+        List<Column<Genre>> columns = new ArrayList<>();
+        for (String term : splitTerms(sortOrder)) {
+            if (MediaStore.Audio.Genres.DEFAULT_SORT_ORDER.equals(columnOf(term))) {
+                columns.add(Column.text(genre -> genre.name, isDescending(term)));
+            }
+        }
+        sort(genres, columns);
+    }
+
+    @Nullable
+    private static Column<Song> songColumn(@NonNull String column, boolean descending) {
+        switch (column) {
+            case MediaStore.Audio.Media.DEFAULT_SORT_ORDER:
+            case MediaStore.Audio.Media.TITLE:
+                return Column.text(song -> song.title, descending);
+            case MediaStore.Audio.Albums.DEFAULT_SORT_ORDER:
+            case MediaStore.Audio.Media.ALBUM:
+                return Column.text(song -> song.albumName, descending);
+            case MediaStore.Audio.Artists.DEFAULT_SORT_ORDER:
+            case MediaStore.Audio.Media.ARTIST:
+                return Column.text(song -> song.artistName, descending);
+            case MediaStore.Audio.Media.TRACK:
+                return Column.number((o1, o2) -> Integer.compare(o1.trackNumber, o2.trackNumber), descending);
+            case MediaStore.Audio.Media.YEAR:
+                return Column.number((o1, o2) -> Integer.compare(o1.year, o2.year), descending);
+            case MediaStore.Audio.Media.DURATION:
+                return Column.number((o1, o2) -> Long.compare(o1.duration, o2.duration), descending);
+            case MediaStore.Audio.Media.DATE_MODIFIED:
+                return Column.number((o1, o2) -> Long.compare(o1.dateModified, o2.dateModified), descending);
+            default:
+                // e.g. date_added, which songs don't carry; the library is loaded in that order already
+                return null;
+        }
+    }
+
+    @Nullable
+    private static Column<Album> albumColumn(@NonNull String column, boolean descending) {
+        switch (column) {
+            case MediaStore.Audio.Albums.DEFAULT_SORT_ORDER:
+            case MediaStore.Audio.Albums.ALBUM:
+                return Column.text(Album::getTitle, descending);
+            case MediaStore.Audio.Artists.DEFAULT_SORT_ORDER:
+            case MediaStore.Audio.Albums.ARTIST:
+                return Column.text(Album::getArtistName, descending);
+            case MediaStore.Audio.Albums.NUMBER_OF_SONGS:
+                return Column.number((o1, o2) -> Integer.compare(o1.getSongCount(), o2.getSongCount()), descending);
+            case MediaStore.Audio.Media.YEAR:
+                return Column.number((o1, o2) -> Integer.compare(o1.getYear(), o2.getYear()), descending);
+            case MediaStore.Audio.Media.DATE_MODIFIED:
+                return Column.number((o1, o2) -> Long.compare(o1.getDateModified(), o2.getDateModified()), descending);
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private static Column<Artist> artistColumn(@NonNull String column, boolean descending) {
+        switch (column) {
+            case MediaStore.Audio.Artists.DEFAULT_SORT_ORDER:
+            case MediaStore.Audio.Artists.ARTIST:
+                return Column.text(artist -> artist.safeGetFirstAlbum().getArtistName(), descending);
+            case MediaStore.Audio.Artists.NUMBER_OF_TRACKS:
+                return Column.number((o1, o2) -> Integer.compare(o1.getSongCount(), o2.getSongCount()), descending);
+            case MediaStore.Audio.Artists.NUMBER_OF_ALBUMS:
+                return Column.number((o1, o2) -> Integer.compare(o1.getAlbumCount(), o2.getAlbumCount()), descending);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Stable sort by the given columns. Large lists are sorted on all cores where {@link Arrays#parallelSort} is available.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> void sort(@NonNull final List<T> list, @NonNull final List<Column<T>> columns) {
+        if (columns.isEmpty() || list.size() < 2) return;
+
+        int textColumnCount = 0;
+        for (Column<T> column : columns) {
+            if (column.text != null) textColumnCount++;
+        }
+
+        // decorate every item with the collation keys of its text columns
+        final CollationKeyCache keyCache = CollationKeyCache.getInstance();
+        final Keyed<T>[] entries = new Keyed[list.size()];
+        for (int i = 0; i < entries.length; i++) {
+            T item = list.get(i);
+            byte[][] keys = new byte[textColumnCount][];
+            int k = 0;
+            for (Column<T> column : columns) {
+                if (column.text != null) {
+                    String text = column.text.get(item);
+                    keys[k++] = text == null ? null : keyCache.get(text);
+                }
+            }
+            entries[i] = new Keyed<>(item, keys);
+        }
+
+        final Comparator<Keyed<T>> comparator = (e1, e2) -> {
+            int k = 0;
+            for (int i = 0; i < columns.size(); i++) {
+                Column<T> column = columns.get(i);
+                int result;
+                if (column.text != null) {
+                    result = compareKeys(e1.keys[k], e2.keys[k]);
+                    k++;
+                } else {
+                    //noinspection ConstantConditions
+                    result = column.comparator.compare(e1.item, e2.item);
+                }
+                if (result != 0) return column.descending ? -result : result;
+            }
+            return 0;
+        };
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && entries.length >= MIN_PARALLEL_SORT_SIZE) {
+            Arrays.parallelSort(entries, comparator);
+        } else {
+            Arrays.sort(entries, comparator);
+        }
+        for (int i = 0; i < entries.length; i++) {
+            list.set(i, entries[i].item);
+        }
+    }
+
+    /**
+     * Null sorts first, like in SQLite.
+     */
+    private static int compareKeys(@Nullable byte[] k1, @Nullable byte[] k2) {
+        if (k1 == null) return k2 == null ? 0 : -1;
+        if (k2 == null) return 1;
+        return CollationKeyCache.compare(k1, k2);
+    }
+
+    @NonNull
+    private static String[] splitTerms(@Nullable String sortOrder) {
+        if (sortOrder == null || sortOrder.trim().isEmpty()) return new String[0];
+        return sortOrder.split(",");
+    }
+
+    @NonNull
+    private static String columnOf(@NonNull String term) {
+        term = term.trim();
+        int space = term.indexOf(' ');
+        return space < 0 ? term : term.substring(0, space);
+    }
+
+    private static boolean isDescending(@NonNull String term) {
+        return term.trim().toUpperCase().endsWith(" DESC");
+    }
+
+    private interface TextGetter<T> {
+        @Nullable
+        String get(@NonNull T item);
+    }
+
+    private static final class Column<T> {
+        @Nullable
+        final TextGetter<T> text;
+        @Nullable
+        final Comparator<T> comparator;
+        final boolean descending;
+
+        private Column(@Nullable TextGetter<T> text, @Nullable Comparator<T> comparator, boolean descending) {
+            this.text = text;
+            this.comparator = comparator;
+            this.descending = descending;
+        }
+
+        static <T> Column<T> text(@NonNull TextGetter<T> text, boolean descending) {
+            return new Column<>(text, null, descending);
+        }
+
+        static <T> Column<T> number(@NonNull Comparator<T> comparator, boolean descending) {
+            return new Column<>(null, comparator, descending);
+        }
+    }
+
+    private static final class Keyed<T> {
+        final T item;
+        final byte[][] keys;
+
+        Keyed(T item, byte[][] keys) {
+            this.item = item;
+            this.keys = keys;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.kabouzeid.gramophone.helper;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from {@code String} keys to primitive {@code int} values.
+ * Avoids the boxing and per-entry allocations of a {@code HashMap<String, Integer>}.
+ * Keys are compared by reference before falling back to {@code equals}, so lookups with the same (e.g. interned) instances are cheap.
+ * Null keys are not supported. Not thread safe.
+ */
+public class StringIntHashMap {
+    private static final float LOAD_FACTOR = 0.5f;
+    private static final int MIN_CAPACITY = 8;
+
+    // null marks a free slot
+    private String[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+    private int resizeThreshold;
+
+    public StringIntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize the number of entries the map should hold without rehashing
+     */
+    public StringIntHashMap(int expectedSize) {
+        allocate(tableSizeFor((int) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR)));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(@NonNull String key) {
+        return keys[indexOf(key)] != null;
+    }
+
+    /**
+     * @return the value mapped to {@code key}, or {@code defaultValue} if there is none
+     */
+    public int get(@NonNull String key, int defaultValue) {
+        int index = indexOf(key);
+        return keys[index] != null ? values[index] : defaultValue;
+    }
+
+    /**
+     * @return the previous value mapped to {@code key}, or {@code defaultValue} if there was none
+     */
+    public int put(@NonNull String key, int value, int defaultValue) {
+        int index = indexOf(key);
+        if (keys[index] != null) {
+            int previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size > resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+        return defaultValue;
+    }
+
+    public void put(@NonNull String key, int value) {
+        put(key, value, 0);
+    }
+
+    /**
+     * @return the value that was mapped to {@code key}, or {@code defaultValue} if there was none
+     */
+    public int remove(@NonNull String key, int defaultValue) {
+        int index = indexOf(key);
+        if (keys[index] == null) {
+            return defaultValue;
+        }
+        int removed = values[index];
+        keys[index] = null;
+        size--;
+
+        // backward shift deletion, keeps probe sequences intact without tombstones
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (keys[next] != null) {
+            int ideal = mix(keys[next]) & mask;
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                keys[next] = null;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return removed;
+    }
+
+    /**
+     * @return all keys, in no particular order
+     */
+    @NonNull
+    public String[] keys() {
+        String[] result = new String[size];
+        int count = 0;
+        for (String key : keys) {
+            if (key != null) {
+                result[count++] = key;
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+    }
+
+    private int indexOf(@NonNull String key) {
+        int index = mix(key) & mask;
+        String current;
+        while ((current = keys[index]) != null && current != key && !current.equals(key)) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void rehash(int newCapacity) {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int index = indexOf(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new String[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int mix(@NonNull String key) {
+        // String caches its hash code, spread it since paths share long prefixes
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int n) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < n) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,60 @@
+package com.kabouzeid.gramophone.helper;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Deduplicates equal strings, so values that repeat across many rows (album and artist names) are kept in memory once.
+ * Unlike {@link String#intern()} the pool is owned by the caller and goes away with it. Not thread safe.
+ */
+public class StringPool {
+    private static final float LOAD_FACTOR = 0.5f;
+    private static final int MIN_CAPACITY = 16;
+
+    // open addressing set, null marks a free slot
+    private String[] strings = new String[MIN_CAPACITY];
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the pooled instance equal to {@code string}, {@code string} itself if it wasn't pooled yet
+     */
+    @Nullable
+    public String intern(@Nullable String string) {
+        if (string == null) return null;
+        int mask = strings.length - 1;
+        int index = mix(string.hashCode()) & mask;
+        String current;
+        while ((current = strings[index]) != null) {
+            if (current.equals(string)) return current;
+            index = (index + 1) & mask;
+        }
+        strings[index] = string;
+        if (++size > strings.length * LOAD_FACTOR) {
+            rehash(strings.length << 1);
+        }
+        return string;
+    }
+
+    private void rehash(int newCapacity) {
+        String[] oldStrings = strings;
+        strings = new String[newCapacity];
+        int mask = newCapacity - 1;
+        for (String string : oldStrings) {
+            if (string != null) {
+                int index = mix(string.hashCode()) & mask;
+                while (strings[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                strings[index] = string;
+            }
+        }
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
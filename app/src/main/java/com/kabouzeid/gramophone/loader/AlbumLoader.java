@@ -1,11 +1,11 @@
 package com.kabouzeid.gramophone.loader;
 
 import android.content.Context;
-import android.provider.MediaStore.Audio.AudioColumns;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
 import com.kabouzeid.gramophone.model.Album;
 import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
@@ -19,46 +19,57 @@ import java.util.List;
  */
 public class AlbumLoader {
 
-    public static String getSongLoaderSortOrder(Context context) {
-        return PreferenceUtil.getInstance(context).getAlbumSortOrder() + ", " + PreferenceUtil.getInstance(context).getAlbumSongSortOrder();
-    }
-
     @NonNull
     public static List<Album> getAllAlbums(@NonNull final Context context) {
-        List<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(
-                context,
-                null,
-                null,
-                getSongLoaderSortOrder(context))
+        return new ArrayList<>(LibrarySnapshot.getInstance(context).getAlbums(
+                PreferenceUtil.getInstance(context).getAlbumSortOrder(),
+                PreferenceUtil.getInstance(context).getAlbumSongSortOrder())
         );
-        return splitIntoAlbums(songs);
     }
 
     @NonNull
     public static List<Album> getAlbums(@NonNull final Context context, String query) {
-        List<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(
-                context,
-                AudioColumns.ALBUM + " LIKE ?",
-                new String[]{"%" + query + "%"},
-                getSongLoaderSortOrder(context))
-        );
-        return splitIntoAlbums(songs);
+        List<Album> albums = new ArrayList<>();
+        for (Album album : LibrarySnapshot.getInstance(context).getAlbums(
+                PreferenceUtil.getInstance(context).getAlbumSortOrder(),
+                PreferenceUtil.getInstance(context).getAlbumSongSortOrder())) {
+            if (SongLoader.containsIgnoreCase(album.getTitle(), query)) {
+                albums.add(album);
+            }
+        }
+        return albums;
     }
 
     @NonNull
     public static Album getAlbum(@NonNull final Context context, long albumId) {
-        List<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(context, AudioColumns.ALBUM_ID + "=?", new String[]{String.valueOf(albumId)}, getSongLoaderSortOrder(context)));
-        Album album = new Album(songs);
-        sortSongsByTrackNumber(album);
-        return album;
+        Album album = LibrarySnapshot.getInstance(context).getAlbum(albumId, PreferenceUtil.getInstance(context).getAlbumSongSortOrder());
+        return album != null ? new Album(new ArrayList<>(album.songs)) : new Album();
     }
 
     @NonNull
     public static List<Album> splitIntoAlbums(@Nullable final List<Song> songs) {
         List<Album> albums = new ArrayList<>();
         if (songs != null) {
-            for (Song song : songs) {
-                getOrCreateAlbum(albums, song.albumId).songs.add(song);
+            // album id -> index into albums, keeps the order in which albums first appear in the cursor
+            LongIntHashMap albumIndex = new LongIntHashMap();
+            int[] indices = new int[songs.size()];
+            int[] sizes = new int[Math.max(songs.size(), 1)];
+            for (int i = 0; i < songs.size(); i++) {
+                long albumId = songs.get(i).albumId;
+                int index = albumIndex.get(albumId, -1);
+                if (index < 0) {
+                    index = albumIndex.size();
+                    albumIndex.put(albumId, index);
+                }
+                indices[i] = index;
+                sizes[index]++;
+            }
+            // size every song list exactly, most albums only have a handful of songs
+            for (int i = 0; i < albumIndex.size(); i++) {
+                albums.add(new Album(new ArrayList<>(sizes[i])));
+            }
+            for (int i = 0; i < songs.size(); i++) {
+                albums.get(indices[i]).songs.add(songs.get(i));
             }
         }
         for (Album album : albums) {
@@ -67,17 +78,6 @@ public class AlbumLoader {
         return albums;
     }
 
-    private static Album getOrCreateAlbum(List<Album> albums, long albumId) {
-        for (Album album : albums) {
-            if (!album.songs.isEmpty() && album.songs.get(0).albumId == albumId) {
-                return album;
-            }
-        }
-        Album album = new Album();
-        albums.add(album);
-        return album;
-    }
-
     private static void sortSongsByTrackNumber(Album album) {
         Collections.sort(album.songs, (o1, o2) -> o1.trackNumber - o2.trackNumber);
     }
@@ -1,14 +1,13 @@
 package com.kabouzeid.gramophone.loader;
 
 import android.content.Context;
-import android.provider.MediaStore.Audio.AudioColumns;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
 import com.kabouzeid.gramophone.model.Album;
 import com.kabouzeid.gramophone.model.Artist;
-import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
 
 import java.util.ArrayList;
@@ -18,62 +17,67 @@ import java.util.List;
  * @author Karim Abou Zeid (kabouzeid)
  */
 public class ArtistLoader {
-    public static String getSongLoaderSortOrder(Context context) {
-        return PreferenceUtil.getInstance(context).getArtistSortOrder() + ", " + PreferenceUtil.getInstance(context).getArtistAlbumSortOrder() + ", " + PreferenceUtil.getInstance(context).getAlbumSongSortOrder();
-    }
-
     @NonNull
     public static List<Artist> getAllArtists(@NonNull final Context context) {
-        List<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(
-                context,
-                null,
-                null,
-                getSongLoaderSortOrder(context))
-        );
-        return splitIntoArtists(AlbumLoader.splitIntoAlbums(songs));
+        return new ArrayList<>(getArtistsFromSnapshot(context));
     }
 
     @NonNull
     public static List<Artist> getArtists(@NonNull final Context context, String query) {
-        List<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(
-                context,
-                AudioColumns.ARTIST + " LIKE ?",
-                new String[]{"%" + query + "%"},
-                getSongLoaderSortOrder(context))
-        );
-        return splitIntoArtists(AlbumLoader.splitIntoAlbums(songs));
+        List<Artist> artists = new ArrayList<>();
+        for (Artist artist : getArtistsFromSnapshot(context)) {
+            if (SongLoader.containsIgnoreCase(artist.safeGetFirstAlbum().getArtistName(), query)) {
+                artists.add(artist);
+            }
+        }
+        return artists;
     }
 
     @NonNull
     public static Artist getArtist(@NonNull final Context context, long artistId) {
-        List<Song> songs = SongLoader.getSongs(SongLoader.makeSongCursor(
-                context,
-                AudioColumns.ARTIST_ID + "=?",
-                new String[]{String.valueOf(artistId)},
-                getSongLoaderSortOrder(context))
+        Artist artist = LibrarySnapshot.getInstance(context).getArtist(
+                artistId,
+                PreferenceUtil.getInstance(context).getArtistAlbumSortOrder(),
+                PreferenceUtil.getInstance(context).getAlbumSongSortOrder()
+        );
+        return artist != null ? new Artist(new ArrayList<>(artist.albums)) : new Artist();
+    }
+
+    @NonNull
+    private static List<Artist> getArtistsFromSnapshot(@NonNull final Context context) {
+        return LibrarySnapshot.getInstance(context).getArtists(
+                PreferenceUtil.getInstance(context).getArtistSortOrder(),
+                PreferenceUtil.getInstance(context).getArtistAlbumSortOrder(),
+                PreferenceUtil.getInstance(context).getAlbumSongSortOrder()
         );
-        return new Artist(AlbumLoader.splitIntoAlbums(songs));
     }
 
     @NonNull
     public static List<Artist> splitIntoArtists(@Nullable final List<Album> albums) {
         List<Artist> artists = new ArrayList<>();
         if (albums != null) {
-            for (Album album : albums) {
-                getOrCreateArtist(artists, album.getArtistId()).albums.add(album);
+            // artist id -> index into artists, keeps the order in which artists first appear
+            LongIntHashMap artistIndex = new LongIntHashMap();
+            int[] indices = new int[albums.size()];
+            int[] sizes = new int[Math.max(albums.size(), 1)];
+            for (int i = 0; i < albums.size(); i++) {
+                long artistId = albums.get(i).getArtistId();
+                int index = artistIndex.get(artistId, -1);
+                if (index < 0) {
+                    index = artistIndex.size();
+                    artistIndex.put(artistId, index);
+                }
+                indices[i] = index;
+                sizes[index]++;
             }
-        }
-        return artists;
-    }
-
-    private static Artist getOrCreateArtist(List<Artist> artists, long artistId) {
-        for (Artist artist : artists) {
-            if (!artist.albums.isEmpty() && !artist.albums.get(0).songs.isEmpty() && artist.albums.get(0).songs.get(0).artistId == artistId) {
-                return artist;
+            // size every album list exactly, most artists only have a handful of albums
+            for (int i = 0; i < artistIndex.size(); i++) {
+                artists.add(new Artist(new ArrayList<>(sizes[i])));
+            }
+            for (int i = 0; i < albums.size(); i++) {
+                artists.get(indices[i]).albums.add(albums.get(i));
             }
         }
-        Artist artist = new Artist();
-        artists.add(artist);
-        return artist;
+        return artists;
     }
 }
@@ -0,0 +1,103 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+
+import com.kabouzeid.gramophone.helper.PathPrefixTrie;
+
+import java.util.Arrays;
+
+/**
+ * Wraps a song cursor and hides all rows whose path starts with a blacklisted folder.
+ * The rows are checked once up front, afterwards moving the cursor just maps positions onto the wrapped cursor.
+ */
+public class BlacklistFilteredCursor extends AbstractCursor {
+    // cursor to wrap
+    private final Cursor mCursor;
+    // the positions of the visible rows in the wrapped cursor
+    private final int[] mPositions;
+
+    /**
+     * @param cursor          to wrap
+     * @param dataColumnIndex index of the column holding the file path
+     * @param blacklist       the blacklisted folders
+     */
+    public BlacklistFilteredCursor(@NonNull final Cursor cursor, final int dataColumnIndex, @NonNull final PathPrefixTrie blacklist) {
+        mCursor = cursor;
+
+        int[] positions = new int[cursor.getCount()];
+        int count = 0;
+        if (cursor.moveToFirst()) {
+            do {
+                if (!blacklist.matchesPrefixOf(cursor.getString(dataColumnIndex))) {
+                    positions[count++] = cursor.getPosition();
+                }
+            } while (cursor.moveToNext());
+        }
+        mPositions = count == positions.length ? positions : Arrays.copyOf(positions, count);
+    }
+
+    @Override
+    public void close() {
+        mCursor.close();
+
+        super.close();
+    }
+
+    @Override
+    public int getCount() {
+        return mPositions.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mCursor.getColumnNames();
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCursor.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCursor.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCursor.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCursor.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCursor.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCursor.getDouble(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCursor.isNull(column);
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        if (newPosition >= 0 && newPosition < getCount()) {
+            mCursor.moveToPosition(mPositions[newPosition]);
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,46 @@
+package com.kabouzeid.gramophone.loader;
+
+import androidx.annotation.NonNull;
+
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
+import com.kabouzeid.gramophone.model.Genre;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Genres of a {@link LibrarySnapshot} together with the ids of their songs, loaded with one batched membership query.
+ */
+final class GenreIndex {
+    private static final long[] NO_SONGS = new long[0];
+
+    /**
+     * Genres with at least one song of the snapshot, with their song counts, in name order.
+     */
+    @NonNull
+    final List<Genre> genres;
+
+    /**
+     * Genres without any member in the media store at all, these can be cleaned up.
+     */
+    @NonNull
+    final long[] emptyGenreIds;
+
+    @NonNull
+    private final LongIntHashMap positions;
+    @NonNull
+    private final long[][] songIds;
+
+    GenreIndex(@NonNull List<Genre> genres, @NonNull long[] emptyGenreIds, @NonNull LongIntHashMap positions, @NonNull long[][] songIds) {
+        this.genres = Collections.unmodifiableList(genres);
+        this.emptyGenreIds = emptyGenreIds;
+        this.positions = positions;
+        this.songIds = songIds;
+    }
+
+    @NonNull
+    long[] getSongIds(long genreId) {
+        int position = positions.get(genreId, -1);
+        return position < 0 ? NO_SONGS : songIds[position];
+    }
+}
@@ -2,70 +2,203 @@ package com.kabouzeid.gramophone.loader;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
 import android.provider.MediaStore.Audio.Genres;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
+import com.kabouzeid.gramophone.helper.SortOrderComparators;
 import com.kabouzeid.gramophone.model.Genre;
 import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class GenreLoader {
+    // audio_genres_map rows of all genres, supported by the media provider below API 30
+    private static final Uri ALL_GENRE_MEMBERS_URI = Uri.parse("content://media/external/audio/genres/all/members");
+
+    // genres we already tried to delete in this process, so a failing delete isn't retried on every load
+    private static final Set<Long> sCleanedUpGenreIds = new HashSet<>();
 
     @NonNull
     public static List<Genre> getAllGenres(@NonNull final Context context) {
-        return getGenresFromCursor(context, makeGenreCursor(context));
+        GenreIndex index = LibrarySnapshot.getInstance(context).getGenreIndex(context);
+        deleteEmptyGenresInBackground(context, index.emptyGenreIds);
+
+        List<Genre> genres = new ArrayList<>(index.genres);
+        SortOrderComparators.sortGenres(genres, PreferenceUtil.getInstance(context).getGenreSortOrder());
+        return genres;
     }
 
     @NonNull
     public static List<Song> getSongs(@NonNull final Context context, final long genreId) {
-        return SongLoader.getSongs(makeGenreSongCursor(context, genreId));
+        LibrarySnapshot snapshot = LibrarySnapshot.getInstance(context);
+        long[] songIds = snapshot.getGenreIndex(context).getSongIds(genreId);
+
+        LongIntHashMap members = new LongIntHashMap(songIds.length);
+        for (long songId : songIds) {
+            members.put(songId, 1);
+        }
+        List<Song> songs = new ArrayList<>(songIds.length);
+        for (Song song : snapshot.getSongs(PreferenceUtil.getInstance(context).getSongSortOrder())) {
+            if (members.containsKey(song.id)) {
+                songs.add(song);
+            }
+        }
+        return songs;
     }
 
+    /**
+     * Loads all genres and their members with one query each, and only counts the songs that are part of the snapshot.
+     */
     @NonNull
-    private static List<Genre> getGenresFromCursor(@NonNull final Context context, @Nullable final Cursor cursor) {
-        final List<Genre> genres = new ArrayList<>();
+    static GenreIndex loadGenreIndex(@NonNull final Context context, @NonNull final LibrarySnapshot snapshot) {
+        List<Long> genreIds = new ArrayList<>();
+        List<String> genreNames = new ArrayList<>();
+        Cursor cursor = makeGenreCursor(context);
         if (cursor != null) {
             if (cursor.moveToFirst()) {
                 do {
-                    Genre genre = getGenreFromCursor(context, cursor);
-                    if (genre.songCount > 0) {
-                        genres.add(genre);
-                    } else {
-                        // try to remove the empty genre from the media store
-                        try {
-                            context.getContentResolver().delete(Genres.EXTERNAL_CONTENT_URI, Genres._ID + " == " + genre.id, null);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            // nothing we can do then
-                        }
-                    }
+                    genreIds.add(cursor.getLong(0));
+                    genreNames.add(cursor.getString(1));
                 } while (cursor.moveToNext());
             }
             cursor.close();
         }
-        return genres;
+
+        final int genreCount = genreIds.size();
+        LongIntHashMap positions = new LongIntHashMap(genreCount);
+        for (int i = 0; i < genreCount; i++) {
+            positions.put(genreIds.get(i), i);
+        }
+        long[][] songIds = new long[genreCount][];
+        int[] songCounts = new int[genreCount];
+        boolean[] hasMembers = new boolean[genreCount];
+
+        if (!loadAllMembers(context, snapshot, positions, songIds, songCounts, hasMembers)) {
+            // the batched query isn't supported, fall back to one query per genre
+            for (int i = 0; i < genreCount; i++) {
+                loadMembers(context, snapshot, genreIds.get(i), i, songIds, songCounts, hasMembers);
+            }
+        }
+
+        List<Genre> genres = new ArrayList<>();
+        long[] emptyGenreIds = new long[genreCount];
+        int emptyGenreCount = 0;
+        for (int i = 0; i < genreCount; i++) {
+            songIds[i] = songIds[i] == null ? new long[0] : Arrays.copyOf(songIds[i], songCounts[i]);
+            if (songCounts[i] > 0) {
+                genres.add(new Genre(genreIds.get(i), genreNames.get(i), songCounts[i]));
+            } else if (!hasMembers[i]) {
+                emptyGenreIds[emptyGenreCount++] = genreIds.get(i);
+            }
+        }
+        return new GenreIndex(genres, Arrays.copyOf(emptyGenreIds, emptyGenreCount), positions, songIds);
     }
 
-    @NonNull
-    private static Genre getGenreFromCursor(@NonNull final Context context, @NonNull final Cursor cursor) {
-        final long id = cursor.getLong(0);
-        final String name = cursor.getString(1);
-        final int songs = getSongs(context, id).size();
-        return new Genre(id, name, songs);
+    private static boolean loadAllMembers(@NonNull final Context context, @NonNull final LibrarySnapshot snapshot, @NonNull final LongIntHashMap positions,
+                                          @NonNull final long[][] songIds, @NonNull final int[] songCounts, @NonNull final boolean[] hasMembers) {
+        Cursor cursor = makeAllGenreMembersCursor(context);
+        if (cursor == null) return false;
+        if (cursor.moveToFirst()) {
+            do {
+                int position = positions.get(cursor.getLong(1), -1);
+                if (position >= 0) {
+                    addMember(snapshot, cursor.getLong(0), position, songIds, songCounts, hasMembers);
+                }
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+        return true;
     }
 
-    @Nullable
-    private static Cursor makeGenreSongCursor(@NonNull final Context context, long genreId) {
+    private static void loadMembers(@NonNull final Context context, @NonNull final LibrarySnapshot snapshot, final long genreId, final int position,
+                                    @NonNull final long[][] songIds, @NonNull final int[] songCounts, @NonNull final boolean[] hasMembers) {
+        Cursor cursor;
         try {
-            return context.getContentResolver().query(
+            cursor = context.getContentResolver().query(
                     Genres.Members.getContentUri("external", genreId),
-                    SongLoader.BASE_PROJECTION, SongLoader.BASE_SELECTION, null, PreferenceUtil.getInstance(context).getSongSortOrder());
+                    new String[]{Genres.Members.AUDIO_ID}, null, null, null);
         } catch (SecurityException e) {
+            return;
+        }
+        if (cursor == null) return;
+        if (cursor.moveToFirst()) {
+            do {
+                addMember(snapshot, cursor.getLong(0), position, songIds, songCounts, hasMembers);
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+    }
+
+    private static void addMember(@NonNull final LibrarySnapshot snapshot, final long songId, final int position,
+                                  @NonNull final long[][] songIds, @NonNull final int[] songCounts, @NonNull final boolean[] hasMembers) {
+        hasMembers[position] = true;
+        // blacklisted songs and anything that isn't music don't count
+        if (snapshot.getSong(songId) == null) return;
+
+        long[] ids = songIds[position];
+        if (ids == null) {
+            ids = songIds[position] = new long[8];
+        } else if (songCounts[position] == ids.length) {
+            ids = songIds[position] = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[songCounts[position]++] = songId;
+    }
+
+    /**
+     * Removing genres writes to the media store, so it is kept off the loading path.
+     */
+    private static void deleteEmptyGenresInBackground(@NonNull final Context context, @NonNull final long[] genreIds) {
+        final List<Long> toDelete = new ArrayList<>();
+        synchronized (sCleanedUpGenreIds) {
+            for (long genreId : genreIds) {
+                if (sCleanedUpGenreIds.add(genreId)) {
+                    toDelete.add(genreId);
+                }
+            }
+        }
+        if (toDelete.isEmpty()) return;
+
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            for (long genreId : toDelete) {
+                // try to remove the empty genre from the media store
+                try {
+                    appContext.getContentResolver().delete(Genres.EXTERNAL_CONTENT_URI, Genres._ID + " == " + genreId, null);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    // nothing we can do then
+                }
+            }
+        });
+    }
+
+    @Nullable
+    private static Cursor makeAllGenreMembersCursor(@NonNull final Context context) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                return context.getContentResolver().query(
+                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                        new String[]{AudioColumns._ID, AudioColumns.GENRE_ID},
+                        AudioColumns.GENRE_ID + " IS NOT NULL", null, null);
+            }
+            return context.getContentResolver().query(
+                    ALL_GENRE_MEMBERS_URI,
+                    new String[]{Genres.Members.AUDIO_ID, Genres.Members.GENRE_ID}, null, null, null);
+        } catch (Exception e) {
+            // unsupported uri or no permission
             return null;
         }
     }
@@ -80,7 +213,7 @@ public class GenreLoader {
         try {
             return context.getContentResolver().query(
                     Genres.EXTERNAL_CONTENT_URI,
-                    projection, null, null, PreferenceUtil.getInstance(context).getGenreSortOrder());
+                    projection, null, null, Genres.DEFAULT_SORT_ORDER);
         } catch (SecurityException e) {
             return null;
         }
@@ -0,0 +1,77 @@
+package com.kabouzeid.gramophone.loader;
+
+import androidx.annotation.NonNull;
+
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
+
+/**
+ * Song ids that were inserted, updated or removed between two {@link LibrarySnapshot} generations.
+ */
+public final class LibraryChangeSet {
+    public final int fromGeneration;
+    public final int toGeneration;
+
+    @NonNull
+    public final long[] insertedIds;
+    @NonNull
+    public final long[] updatedIds;
+    @NonNull
+    public final long[] removedIds;
+
+    LibraryChangeSet(int fromGeneration, int toGeneration, @NonNull long[] insertedIds, @NonNull long[] updatedIds, @NonNull long[] removedIds) {
+        this.fromGeneration = fromGeneration;
+        this.toGeneration = toGeneration;
+        this.insertedIds = insertedIds;
+        this.updatedIds = updatedIds;
+        this.removedIds = removedIds;
+    }
+
+    /**
+     * @return a change set that leaves the given generation as it is
+     */
+    @NonNull
+    public static LibraryChangeSet none(int generation) {
+        return new LibraryChangeSet(generation, generation, new long[0], new long[0], new long[0]);
+    }
+
+    public int size() {
+        return insertedIds.length + updatedIds.length + removedIds.length;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the ids of all songs that are gone from, or changed in, the old generation
+     */
+    @NonNull
+    public LongIntHashMap getOutgoingIds() {
+        LongIntHashMap ids = new LongIntHashMap(removedIds.length + updatedIds.length);
+        for (long id : removedIds) ids.put(id, 1);
+        for (long id : updatedIds) ids.put(id, 1);
+        return ids;
+    }
+
+    /**
+     * @return the ids of all songs that are new in, or changed in, the new generation
+     */
+    @NonNull
+    public LongIntHashMap getIncomingIds() {
+        LongIntHashMap ids = new LongIntHashMap(insertedIds.length + updatedIds.length);
+        for (long id : insertedIds) ids.put(id, 1);
+        for (long id : updatedIds) ids.put(id, 1);
+        return ids;
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryChangeSet{" +
+                "fromGeneration=" + fromGeneration +
+                ", toGeneration=" + toGeneration +
+                ", inserted=" + insertedIds.length +
+                ", updated=" + updatedIds.length +
+                ", removed=" + removedIds.length +
+                '}';
+    }
+}
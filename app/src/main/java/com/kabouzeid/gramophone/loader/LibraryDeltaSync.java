@@ -0,0 +1,236 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
+import com.kabouzeid.gramophone.model.Song;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Computes the next {@link LibrarySnapshot} from the current one by only fetching the rows that changed.
+ * <p>
+ * Changes to single songs are resolved by id. Anything else is resolved by fetching the rows whose MediaStore generation
+ * (API 30+) or {@code date_added}/{@code date_modified} is newer than the current snapshot, plus a scan of the song ids
+ * to find deleted rows.
+ */
+final class LibraryDeltaSync {
+    // above this many song uris it's cheaper to do one generation/date based query
+    private static final int MAX_TARGETED_IDS = 200;
+
+    private LibraryDeltaSync() {
+    }
+
+    static long getMediaStoreGeneration(@NonNull final Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            try {
+                return MediaStore.getGeneration(context, MediaStore.VOLUME_EXTERNAL);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param changedUris the uris reported by the content observer, or null if they are unknown
+     * @return the next snapshot, or null if the changes couldn't be resolved and the library has to be reloaded completely
+     */
+    @Nullable
+    static LibrarySnapshot apply(@NonNull final Context context, @NonNull final LibrarySnapshot current, @Nullable final Collection<Uri> changedUris, final int generation) {
+        final long mediaStoreGeneration = getMediaStoreGeneration(context);
+        final long queryTimeSeconds = System.currentTimeMillis() / 1000;
+
+        final long[] targetedIds = getTargetedSongIds(changedUris);
+        final boolean genresChanged = haveGenresChanged(changedUris);
+
+        final List<Song> fetched;
+        final LongIntHashMap removedIds = new LongIntHashMap();
+        if (targetedIds != null) {
+            if (targetedIds.length == 0) {
+                // no song changed, e.g. only playlists or genres
+                return genresChanged ? withSameSongs(current, generation, mediaStoreGeneration, queryTimeSeconds) : current;
+            }
+            fetched = fetchByIds(context, current, targetedIds);
+            if (fetched == null) return null;
+            LongIntHashMap fetchedIds = new LongIntHashMap(fetched.size());
+            for (Song song : fetched) fetchedIds.put(song.id, 1);
+            for (long id : targetedIds) {
+                if (!fetchedIds.containsKey(id) && current.getSong(id) != null) {
+                    removedIds.put(id, 1);
+                }
+            }
+        } else {
+            fetched = fetchModifiedSince(context, current);
+            if (fetched == null) return null;
+            if (!collectRemovedIds(context, current, removedIds)) return null;
+        }
+
+        List<Song> inserted = new ArrayList<>();
+        LongIntHashMap updated = new LongIntHashMap();
+        for (int i = 0; i < fetched.size(); i++) {
+            Song song = fetched.get(i);
+            Song old = current.getSong(song.id);
+            if (old == null) {
+                inserted.add(song);
+            } else if (!old.equals(song)) {
+                updated.put(song.id, i);
+            }
+        }
+
+        if (inserted.isEmpty() && updated.isEmpty() && removedIds.isEmpty()) {
+            return genresChanged ? withSameSongs(current, generation, mediaStoreGeneration, queryTimeSeconds) : current;
+        }
+
+        // new rows have the newest date_added, so they go in front to keep the base order of the snapshot
+        List<Song> songs = new ArrayList<>(current.getSongs().size() + inserted.size());
+        songs.addAll(inserted);
+        long[] updatedIds = new long[updated.size()];
+        int updatedCount = 0;
+        long[] removed = new long[removedIds.size()];
+        int removedCount = 0;
+        for (Song song : current.getSongs()) {
+            if (removedIds.containsKey(song.id)) {
+                removed[removedCount++] = song.id;
+                continue;
+            }
+            int index = updated.get(song.id, -1);
+            if (index >= 0) {
+                updatedIds[updatedCount++] = song.id;
+                songs.add(fetched.get(index));
+            } else {
+                songs.add(song);
+            }
+        }
+
+        long[] insertedIds = new long[inserted.size()];
+        for (int i = 0; i < inserted.size(); i++) {
+            insertedIds[i] = inserted.get(i).id;
+        }
+
+        LibraryChangeSet changes = new LibraryChangeSet(current.generation, generation, insertedIds, updatedIds, removed);
+        return new LibrarySnapshot(generation, songs, current.stringPool, mediaStoreGeneration, queryTimeSeconds, changes);
+    }
+
+    /**
+     * A new generation with the same songs, so everything derived lazily (e.g. the genres) is loaded again.
+     */
+    @NonNull
+    private static LibrarySnapshot withSameSongs(@NonNull final LibrarySnapshot current, final int generation, final long mediaStoreGeneration, final long queryTimeSeconds) {
+        LibraryChangeSet changes = new LibraryChangeSet(current.generation, generation, new long[0], new long[0], new long[0]);
+        return new LibrarySnapshot(generation, current.getSongs(), current.stringPool, mediaStoreGeneration, queryTimeSeconds, changes);
+    }
+
+    private static boolean haveGenresChanged(@Nullable final Collection<Uri> changedUris) {
+        if (changedUris == null) return true;
+        for (Uri uri : changedUris) {
+            String path = uri.getPath();
+            // song changes can move songs between genres as well
+            if (path == null || !path.startsWith("/internal/") && (path.contains("/audio/genres") || path.contains("/audio/media"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the ids of all single song uris, an empty array if no uri concerns songs,
+     * or null if at least one uri can't be resolved to single songs
+     */
+    @Nullable
+    private static long[] getTargetedSongIds(@Nullable final Collection<Uri> changedUris) {
+        if (changedUris == null || changedUris.isEmpty()) return null;
+
+        LongIntHashMap ids = new LongIntHashMap();
+        long[] result = new long[changedUris.size()];
+        int count = 0;
+        for (Uri uri : changedUris) {
+            String path = uri.getPath();
+            if (path == null || !path.contains("/audio/")) {
+                // e.g. the files table, which can contain songs as well
+                return null;
+            }
+            if (path.startsWith("/internal/") || !path.contains("/audio/media")) {
+                // internal sounds aren't part of the library, albums, artists, genres and playlists don't change songs
+                continue;
+            }
+            String lastSegment = uri.getLastPathSegment();
+            if (lastSegment == null || !TextUtils.isDigitsOnly(lastSegment)) {
+                return null;
+            }
+            long id = Long.parseLong(lastSegment);
+            if (!ids.containsKey(id)) {
+                ids.put(id, 1);
+                result[count++] = id;
+                if (count > MAX_TARGETED_IDS) return null;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    @Nullable
+    private static List<Song> fetchByIds(@NonNull final Context context, @NonNull final LibrarySnapshot current, @NonNull final long[] ids) {
+        StringBuilder selection = new StringBuilder(AudioColumns._ID + " IN (");
+        String[] selectionValues = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionValues[i] = String.valueOf(ids[i]);
+        }
+        selection.append(")");
+        return fetch(context, current, selection.toString(), selectionValues);
+    }
+
+    @Nullable
+    private static List<Song> fetchModifiedSince(@NonNull final Context context, @NonNull final LibrarySnapshot current) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R && current.mediaStoreGeneration >= 0) {
+            String generation = String.valueOf(current.mediaStoreGeneration);
+            return fetch(context, current,
+                    "(" + MediaStore.MediaColumns.GENERATION_ADDED + ">? OR " + MediaStore.MediaColumns.GENERATION_MODIFIED + ">?)",
+                    new String[]{generation, generation});
+        }
+        // both columns have a resolution of seconds, so rows from the second of the last query are fetched again
+        String seconds = String.valueOf(current.queryTimeSeconds);
+        return fetch(context, current,
+                "(" + AudioColumns.DATE_ADDED + ">=? OR " + AudioColumns.DATE_MODIFIED + ">=?)",
+                new String[]{seconds, seconds});
+    }
+
+    @Nullable
+    private static List<Song> fetch(@NonNull final Context context, @NonNull final LibrarySnapshot current, @NonNull final String selection, @NonNull final String[] selectionValues) {
+        Cursor cursor = SongLoader.makeSongCursor(context, selection, selectionValues, AudioColumns.DATE_ADDED + " DESC");
+        if (cursor == null) return null;
+        return SongLoader.getSongs(cursor, current.stringPool);
+    }
+
+    private static boolean collectRemovedIds(@NonNull final Context context, @NonNull final LibrarySnapshot current, @NonNull final LongIntHashMap removedIds) {
+        Cursor cursor = SongLoader.makeSongIdCursor(context, null, null);
+        if (cursor == null) return false;
+
+        LongIntHashMap existingIds = new LongIntHashMap(cursor.getCount());
+        if (cursor.moveToFirst()) {
+            do {
+                existingIds.put(cursor.getLong(0), 1);
+            } while (cursor.moveToNext());
+        }
+        cursor.close();
+
+        for (Song song : current.getSongs()) {
+            if (!existingIds.containsKey(song.id)) {
+                removedIds.put(song.id, 1);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,296 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.Context;
+import android.provider.MediaStore;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.helper.StringIntHashMap;
+import com.kabouzeid.gramophone.helper.StringPool;
+import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.provider.BlacklistStore;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persists the songs of a {@link LibrarySnapshot} to a binary file, so the next cold start can show the library
+ * before the MediaStore answered.
+ * <p>
+ * Layout: a header of magic, format version, payload length and CRC32 of the payload, followed by the payload with the
+ * MediaStore version, a fingerprint of the blacklist, the delta sync watermarks, a table of the album and artist names
+ * and finally the song rows. Only the base order is stored, the sort orders are applied when reading from the snapshot
+ * as usual. Files that are truncated, fail the checksum, were written by another format version, for another MediaStore
+ * database or with another blacklist are deleted and ignored.
+ */
+final class LibraryIndexFile {
+    private static final String FILE_NAME = "library_index.bin";
+    private static final int MAGIC = 0x50484C49; // "PHLI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor();
+    // only the latest snapshot is worth writing, older pending ones are skipped
+    private static final AtomicReference<PendingWrite> sPendingWrite = new AtomicReference<>();
+
+    private LibraryIndexFile() {
+    }
+
+    /**
+     * @return the persisted snapshot as the given generation, or null if there is no usable file
+     */
+    @Nullable
+    static LibrarySnapshot read(@NonNull final Context context, final int generation) {
+        File file = getFile(context);
+        if (!file.exists()) return null;
+
+        try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            LibrarySnapshot snapshot = decode(buffer, generation, getMediaStoreVersion(context), getBlacklistFingerprint(context));
+            if (snapshot != null) return snapshot;
+        } catch (IOException | RuntimeException e) {
+            // corrupt or unreadable, falls through to deleting it
+            e.printStackTrace();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        return null;
+    }
+
+    /**
+     * Writes the snapshot on a background thread. The file is replaced atomically, readers never see a partial write.
+     */
+    static void writeInBackground(@NonNull final Context context, @NonNull final LibrarySnapshot snapshot) {
+        // taken now, the blacklist may change until the write happens
+        PendingWrite write = new PendingWrite(context.getApplicationContext(), snapshot,
+                getMediaStoreVersion(context), getBlacklistFingerprint(context));
+        if (sPendingWrite.getAndSet(write) == null) {
+            sWriter.execute(() -> {
+                PendingWrite pending = sPendingWrite.getAndSet(null);
+                if (pending != null) {
+                    write(pending);
+                }
+            });
+        }
+    }
+
+    private static void write(@NonNull final PendingWrite pending) {
+        File file = getFile(pending.context);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0);
+            out.seek(HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(out.getChannel())), crc);
+            DataOutputStream data = new DataOutputStream(checked);
+            encode(data, pending);
+            data.flush();
+
+            out.seek(0);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(data.size());
+            out.writeLong(crc.getValue());
+            out.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    private static void encode(@NonNull final DataOutputStream out, @NonNull final PendingWrite pending) throws IOException {
+        final LibrarySnapshot snapshot = pending.snapshot;
+        final List<Song> songs = snapshot.getSongs();
+
+        writeString(out, pending.mediaStoreVersion);
+        out.writeLong(pending.blacklistFingerprint);
+        out.writeLong(snapshot.mediaStoreGeneration);
+        out.writeLong(snapshot.queryTimeSeconds);
+
+        // album and artist names repeat a lot, they are stored once and referenced by index
+        StringIntHashMap names = new StringIntHashMap();
+        List<String> nameTable = new ArrayList<>();
+        for (Song song : songs) {
+            addName(names, nameTable, song.albumName);
+            addName(names, nameTable, song.artistName);
+        }
+        out.writeInt(nameTable.size());
+        for (String name : nameTable) {
+            writeString(out, name);
+        }
+
+        out.writeInt(songs.size());
+        for (Song song : songs) {
+            out.writeLong(song.id);
+            writeString(out, song.title);
+            out.writeInt(song.trackNumber);
+            out.writeInt(song.year);
+            out.writeLong(song.duration);
+            writeString(out, song.data);
+            out.writeLong(song.dateModified);
+            out.writeLong(song.albumId);
+            out.writeInt(song.albumName == null ? -1 : names.get(song.albumName, -1));
+            out.writeLong(song.artistId);
+            out.writeInt(song.artistName == null ? -1 : names.get(song.artistName, -1));
+        }
+    }
+
+    @Nullable
+    private static LibrarySnapshot decode(@NonNull final ByteBuffer buffer, final int generation, @Nullable final String mediaStoreVersion, final long blacklistFingerprint) {
+        try {
+            if (buffer.remaining() < HEADER_SIZE) return null;
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+            final long payloadLength = buffer.getLong();
+            final long checksum = buffer.getLong();
+            if (payloadLength != buffer.remaining()) return null;
+            if (checksum != checksum(buffer.duplicate())) return null;
+
+            // grown to the longest string read so far, held in an array so readString() can replace it
+            final byte[][] scratch = {new byte[256]};
+            String version = readString(buffer, scratch);
+            if (version == null ? mediaStoreVersion != null : !version.equals(mediaStoreVersion)) return null;
+            if (buffer.getLong() != blacklistFingerprint) return null;
+            final long mediaStoreGeneration = buffer.getLong();
+            final long queryTimeSeconds = buffer.getLong();
+
+            StringPool stringPool = new StringPool();
+            String[] names = new String[buffer.getInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = stringPool.intern(readString(buffer, scratch));
+            }
+
+            final int songCount = buffer.getInt();
+            List<Song> songs = new ArrayList<>(songCount);
+            for (int i = 0; i < songCount; i++) {
+                final long id = buffer.getLong();
+                final String title = readString(buffer, scratch);
+                final int trackNumber = buffer.getInt();
+                final int year = buffer.getInt();
+                final long duration = buffer.getLong();
+                final String data = readString(buffer, scratch);
+                final long dateModified = buffer.getLong();
+                final long albumId = buffer.getLong();
+                final String albumName = name(names, buffer.getInt());
+                final long artistId = buffer.getLong();
+                final String artistName = name(names, buffer.getInt());
+                songs.add(new Song(id, title, trackNumber, year, duration, data, dateModified, albumId, albumName, artistId, artistName));
+            }
+            if (buffer.hasRemaining()) return null;
+
+            return new LibrarySnapshot(generation, songs, stringPool, mediaStoreGeneration, queryTimeSeconds, null);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void addName(@NonNull final StringIntHashMap names, @NonNull final List<String> nameTable, @Nullable final String name) {
+        if (name != null && !names.containsKey(name)) {
+            names.put(name, nameTable.size());
+            nameTable.add(name);
+        }
+    }
+
+    @Nullable
+    private static String name(@NonNull final String[] names, final int index) {
+        return index < 0 ? null : names[index];
+    }
+
+    private static void writeString(@NonNull final DataOutputStream out, @Nullable final String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(@NonNull final ByteBuffer buffer, @NonNull final byte[][] scratch) {
+        final int length = buffer.getInt();
+        if (length < 0) return null;
+        if (length > buffer.remaining()) throw new BufferUnderflowException();
+        if (length > scratch[0].length) {
+            scratch[0] = new byte[Math.max(length, scratch[0].length * 2)];
+        }
+        buffer.get(scratch[0], 0, length);
+        return new String(scratch[0], 0, length, UTF_8);
+    }
+
+    private static long checksum(@NonNull final ByteBuffer buffer) {
+        // CRC32.update(ByteBuffer) needs API 26
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    @Nullable
+    private static String getMediaStoreVersion(@NonNull final Context context) {
+        try {
+            // changes whenever the MediaStore database is wiped, which invalidates all ids and generations
+            return MediaStore.getVersion(context);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static long getBlacklistFingerprint(@NonNull final Context context) {
+        List<String> paths = BlacklistStore.getInstance(context).getPaths();
+        Collections.sort(paths);
+        CRC32 crc = new CRC32();
+        for (String path : paths) {
+            crc.update(path.getBytes(UTF_8));
+            crc.update(0);
+        }
+        return ((long) paths.size() << 32) ^ crc.getValue();
+    }
+
+    @NonNull
+    private static File getFile(@NonNull final Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    private static final class PendingWrite {
+        final Context context;
+        final LibrarySnapshot snapshot;
+        final String mediaStoreVersion;
+        final long blacklistFingerprint;
+
+        PendingWrite(Context context, LibrarySnapshot snapshot, String mediaStoreVersion, long blacklistFingerprint) {
+            this.context = context;
+            this.snapshot = snapshot;
+            this.mediaStoreVersion = mediaStoreVersion;
+            this.blacklistFingerprint = blacklistFingerprint;
+        }
+    }
+}
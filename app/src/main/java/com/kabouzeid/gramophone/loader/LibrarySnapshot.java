@@ -0,0 +1,356 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.provider.MediaStore.Audio.AudioColumns;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.helper.CollationKeyCache;
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
+import com.kabouzeid.gramophone.helper.SortOrderComparators;
+import com.kabouzeid.gramophone.helper.StringPool;
+import com.kabouzeid.gramophone.model.Album;
+import com.kabouzeid.gramophone.model.Artist;
+import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.service.MusicService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable, process wide copy of the song table, read by all library tabs instead of each one querying the MediaStore.
+ * <p>
+ * A snapshot is built once per generation; {@link #invalidate()} starts a new generation and the next
+ * {@link #getInstance(Context)} call replaces the snapshot. {@link #sync(Context, Collection)} instead derives the next
+ * generation from the current one by only fetching the changed rows. Albums, artists and genres are derived lazily and cached.
+ * The first load of a process restores the last persisted snapshot if there is one and reconciles it in the background.
+ * Returned lists are unmodifiable and shared, callers have to copy them before making changes.
+ */
+public final class LibrarySnapshot {
+    // songs don't carry date_added, loading them in this order lets the "date added" sort orders keep the base order
+    private static final String BASE_SORT_ORDER = AudioColumns.DATE_ADDED + " DESC";
+
+    private static final Object LOCK = new Object();
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+    @Nullable
+    private static volatile LibrarySnapshot sInstance;
+    // the persisted snapshot is only of use for the first load of the process
+    private static boolean sRestoreAttempted;
+
+    public final int generation;
+    // watermarks for the next delta sync, taken right before the songs were queried
+    final long mediaStoreGeneration;
+    final long queryTimeSeconds;
+    // album and artist names of all songs, handed on to the next generation so synced songs share them as well
+    @NonNull
+    final StringPool stringPool;
+
+    @NonNull
+    private final List<Song> songs;
+    @Nullable
+    private final LibraryChangeSet changes;
+    @Nullable
+    private LongIntHashMap songIndex;
+
+    // loading the genres queries the provider, so it doesn't hold the lock of the snapshot
+    private final Object genreLock = new Object();
+    @Nullable
+    private GenreIndex genreIndex;
+
+    private final Map<String, List<Song>> sortedSongs = new HashMap<>();
+    private final Map<String, Grouping<Album>> albumGroupings = new HashMap<>();
+    private final Map<String, List<Album>> sortedAlbums = new HashMap<>();
+    private final Map<String, Grouping<Artist>> artistGroupings = new HashMap<>();
+    private final Map<String, List<Artist>> sortedArtists = new HashMap<>();
+    // only one set of sort orders is searched at a time, built without the lock so the library tabs don't wait for it
+    @Nullable
+    private volatile KeyedSearchIndex searchIndex;
+
+    LibrarySnapshot(int generation, @NonNull List<Song> songs, @NonNull StringPool stringPool, long mediaStoreGeneration, long queryTimeSeconds, @Nullable LibraryChangeSet changes) {
+        this.generation = generation;
+        this.songs = Collections.unmodifiableList(songs);
+        this.stringPool = stringPool;
+        this.mediaStoreGeneration = mediaStoreGeneration;
+        this.queryTimeSeconds = queryTimeSeconds;
+        this.changes = changes;
+    }
+
+    @NonNull
+    public static LibrarySnapshot getInstance(@NonNull final Context context) {
+        LibrarySnapshot snapshot = sInstance;
+        if (snapshot != null && snapshot.generation == sGeneration.get()) {
+            return snapshot;
+        }
+        synchronized (LOCK) {
+            final int generation = sGeneration.get();
+            snapshot = sInstance;
+            if (snapshot != null && snapshot.generation == generation) {
+                return snapshot;
+            }
+
+            if (snapshot == null && !sRestoreAttempted) {
+                sRestoreAttempted = true;
+                snapshot = LibraryIndexFile.read(context, generation);
+                if (snapshot != null) {
+                    sInstance = snapshot;
+                    reconcileInBackground(context);
+                    return snapshot;
+                }
+            }
+
+            final long mediaStoreGeneration = LibraryDeltaSync.getMediaStoreGeneration(context);
+            final long queryTimeSeconds = System.currentTimeMillis() / 1000;
+            Cursor cursor = SongLoader.makeSongCursor(context, null, null, BASE_SORT_ORDER);
+            boolean queried = cursor != null;
+            StringPool stringPool = new StringPool();
+            // keys of songs that are gone aren't needed anymore
+            CollationKeyCache.reset();
+            snapshot = new LibrarySnapshot(generation, SongLoader.getSongs(cursor, stringPool), stringPool, mediaStoreGeneration, queryTimeSeconds, null);
+            // don't keep the result of a failed query (e.g. no storage permission yet)
+            if (queried) {
+                sInstance = snapshot;
+                LibraryIndexFile.writeInBackground(context, snapshot);
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Discards the current snapshot. Call this whenever the result of the song query may have changed.
+     */
+    public static void invalidate() {
+        sGeneration.incrementAndGet();
+    }
+
+    /**
+     * Applies the changes behind {@code changedUris} to the current snapshot and makes the result the new current snapshot.
+     * Falls back to {@link #invalidate()} if the changes can't be resolved.
+     *
+     * @param changedUris the uris reported by the content observer, or null if they are unknown
+     * @return the applied changes, or null if there was no snapshot to update or it had to be invalidated
+     */
+    @Nullable
+    public static LibraryChangeSet sync(@NonNull final Context context, @Nullable final Collection<Uri> changedUris) {
+        synchronized (LOCK) {
+            final LibrarySnapshot current = sInstance;
+            final int generation = sGeneration.get();
+            if (current == null || current.generation != generation) {
+                // the next getInstance() call loads everything anyway
+                return null;
+            }
+
+            LibrarySnapshot next = LibraryDeltaSync.apply(context, current, changedUris, generation + 1);
+            if (next == null) {
+                invalidate();
+                return null;
+            }
+            if (next == current) {
+                return LibraryChangeSet.none(generation);
+            }
+            // if someone invalidated in the meantime the delta may be incomplete, leave it to the next full load
+            if (sGeneration.compareAndSet(generation, next.generation)) {
+                sInstance = next;
+                if (next.changes != null && !next.changes.isEmpty()) {
+                    LibraryIndexFile.writeInBackground(context, next);
+                }
+                return next.changes;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Brings a snapshot restored from {@link LibraryIndexFile} up to date with the MediaStore, and lets the UI reload if
+     * anything changed in between.
+     */
+    private static void reconcileInBackground(@NonNull final Context context) {
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            LibraryChangeSet changes = sync(appContext, null);
+            if (changes == null || !changes.isEmpty()) {
+                appContext.sendBroadcast(new Intent(MusicService.MEDIA_STORE_CHANGED));
+            }
+        });
+    }
+
+    /**
+     * @return the changes from the previous generation to this one, or null if this snapshot was loaded from scratch
+     */
+    @Nullable
+    public LibraryChangeSet getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return all songs in the base order of the snapshot
+     */
+    @NonNull
+    public List<Song> getSongs() {
+        return songs;
+    }
+
+    @Nullable
+    public synchronized Song getSong(final long songId) {
+        if (songIndex == null) {
+            songIndex = new LongIntHashMap(songs.size());
+            for (int i = 0; i < songs.size(); i++) {
+                songIndex.put(songs.get(i).id, i);
+            }
+        }
+        int position = songIndex.get(songId, -1);
+        return position < 0 ? null : songs.get(position);
+    }
+
+    @NonNull
+    public synchronized List<Song> getSongs(@Nullable final String sortOrder) {
+        final String key = String.valueOf(sortOrder);
+        List<Song> sorted = sortedSongs.get(key);
+        if (sorted == null) {
+            List<Song> list = new ArrayList<>(songs);
+            SortOrderComparators.sortSongs(list, sortOrder);
+            sorted = Collections.unmodifiableList(list);
+            sortedSongs.put(key, sorted);
+        }
+        return sorted;
+    }
+
+    @NonNull
+    public synchronized List<Album> getAlbums(@Nullable final String albumSortOrder, @Nullable final String albumSongSortOrder) {
+        final String key = albumSortOrder + "\n" + albumSongSortOrder;
+        List<Album> sorted = sortedAlbums.get(key);
+        if (sorted == null) {
+            List<Album> list = new ArrayList<>(getAlbumGrouping(albumSongSortOrder).items);
+            SortOrderComparators.sortAlbums(list, albumSortOrder);
+            sorted = Collections.unmodifiableList(list);
+            sortedAlbums.put(key, sorted);
+        }
+        return sorted;
+    }
+
+    @Nullable
+    public synchronized Album getAlbum(final long albumId, @Nullable final String albumSongSortOrder) {
+        return getAlbumGrouping(albumSongSortOrder).get(albumId);
+    }
+
+    @NonNull
+    public synchronized List<Artist> getArtists(@Nullable final String artistSortOrder, @Nullable final String artistAlbumSortOrder, @Nullable final String albumSongSortOrder) {
+        final String key = artistSortOrder + "\n" + artistAlbumSortOrder + "\n" + albumSongSortOrder;
+        List<Artist> sorted = sortedArtists.get(key);
+        if (sorted == null) {
+            List<Artist> list = new ArrayList<>(getArtistGrouping(artistAlbumSortOrder, albumSongSortOrder).items);
+            SortOrderComparators.sortArtists(list, artistSortOrder);
+            sorted = Collections.unmodifiableList(list);
+            sortedArtists.put(key, sorted);
+        }
+        return sorted;
+    }
+
+    @Nullable
+    public synchronized Artist getArtist(final long artistId, @Nullable final String artistAlbumSortOrder, @Nullable final String albumSongSortOrder) {
+        return getArtistGrouping(artistAlbumSortOrder, albumSongSortOrder).get(artistId);
+    }
+
+    /**
+     * @return the search index over the songs, albums and artists in the given sort orders
+     */
+    @NonNull
+    SearchIndex getSearchIndex(@Nullable final String songSortOrder, @Nullable final String albumSortOrder, @Nullable final String albumSongSortOrder,
+                               @Nullable final String artistSortOrder, @Nullable final String artistAlbumSortOrder) {
+        final String key = songSortOrder + "\n" + albumSortOrder + "\n" + albumSongSortOrder + "\n" + artistSortOrder + "\n" + artistAlbumSortOrder;
+        final KeyedSearchIndex cached = searchIndex;
+        if (cached != null && cached.key.equals(key)) {
+            return cached.index;
+        }
+        // the sorted lists are cached under the lock, the index over them is built outside of it.
+        // Two searches may build the same index at once, the last one wins, both results are the same.
+        final SearchIndex index = SearchIndex.build(
+                getSongs(songSortOrder),
+                getAlbums(albumSortOrder, albumSongSortOrder),
+                getArtists(artistSortOrder, artistAlbumSortOrder, albumSongSortOrder)
+        );
+        searchIndex = new KeyedSearchIndex(key, index);
+        return index;
+    }
+
+    @NonNull
+    GenreIndex getGenreIndex(@NonNull final Context context) {
+        synchronized (genreLock) {
+            if (genreIndex == null) {
+                genreIndex = GenreLoader.loadGenreIndex(context, this);
+            }
+            return genreIndex;
+        }
+    }
+
+    @NonNull
+    private Grouping<Album> getAlbumGrouping(@Nullable final String albumSongSortOrder) {
+        final String key = String.valueOf(albumSongSortOrder);
+        Grouping<Album> grouping = albumGroupings.get(key);
+        if (grouping == null) {
+            List<Album> albums = AlbumLoader.splitIntoAlbums(getSongs(albumSongSortOrder));
+            LongIntHashMap index = new LongIntHashMap(albums.size());
+            for (int i = 0; i < albums.size(); i++) {
+                index.put(albums.get(i).getId(), i);
+            }
+            grouping = new Grouping<>(albums, index);
+            albumGroupings.put(key, grouping);
+        }
+        return grouping;
+    }
+
+    @NonNull
+    private Grouping<Artist> getArtistGrouping(@Nullable final String artistAlbumSortOrder, @Nullable final String albumSongSortOrder) {
+        final String key = artistAlbumSortOrder + "\n" + albumSongSortOrder;
+        Grouping<Artist> grouping = artistGroupings.get(key);
+        if (grouping == null) {
+            List<Album> albums = new ArrayList<>(getAlbumGrouping(albumSongSortOrder).items);
+            SortOrderComparators.sortAlbums(albums, artistAlbumSortOrder);
+            List<Artist> artists = ArtistLoader.splitIntoArtists(albums);
+            LongIntHashMap index = new LongIntHashMap(artists.size());
+            for (int i = 0; i < artists.size(); i++) {
+                index.put(artists.get(i).getId(), i);
+            }
+            grouping = new Grouping<>(artists, index);
+            artistGroupings.put(key, grouping);
+        }
+        return grouping;
+    }
+
+    private static final class KeyedSearchIndex {
+        @NonNull
+        final String key;
+        @NonNull
+        final SearchIndex index;
+
+        KeyedSearchIndex(@NonNull String key, @NonNull SearchIndex index) {
+            this.key = key;
+            this.index = index;
+        }
+    }
+
+    private static class Grouping<T> {
+        final List<T> items;
+        final LongIntHashMap index;
+
+        Grouping(@NonNull List<T> items, @NonNull LongIntHashMap index) {
+            this.items = Collections.unmodifiableList(items);
+            this.index = index;
+        }
+
+        @Nullable
+        T get(long id) {
+            int position = index.get(id, -1);
+            return position < 0 ? null : items.get(position);
+        }
+    }
+}
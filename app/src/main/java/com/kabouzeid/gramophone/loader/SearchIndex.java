@@ -0,0 +1,391 @@
+package com.kabouzeid.gramophone.loader;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.helper.StringIntHashMap;
+import com.kabouzeid.gramophone.model.Album;
+import com.kabouzeid.gramophone.model.Artist;
+import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.util.PreferenceUtil;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory word index over the songs, albums and artists of a {@link LibrarySnapshot}, answers search queries without
+ * touching the provider.
+ * <p>
+ * Song titles, album names, artist names and the folder names of the songs are split into words, lower cased and
+ * stripped of accents. Every distinct word is kept once in a sorted dictionary with the list of items it occurs in,
+ * so all words starting with a query term are one binary search away. Words that only contain a term somewhere else
+ * are found by a substring scan of the dictionary, which keeps the old {@code LIKE '%query%'} behaviour, e.g. "ball"
+ * still finds "Football", but ranked below the words the term starts.
+ * <p>
+ * Every term of a query has to match for an item to be found. Results are ranked by where and how well the terms
+ * matched, ties keep the order of the lists the index was built from.
+ */
+public final class SearchIndex {
+    private static final int FIELD_TITLE = 0;
+    private static final int FIELD_ARTIST = 1;
+    private static final int FIELD_ALBUM = 2;
+    private static final int FIELD_FOLDER = 3;
+    private static final int FIELD_BITS = 2;
+
+    // per field, how much a matching word is worth
+    private static final int[] FIELD_WEIGHTS = {8, 2, 2, 1};
+    // only words of the primary fields make an item a result, a song isn't found for its album name alone
+    private static final int PRIMARY_MATCH = 1 << 31;
+    // the remaining bits of the match mask are one per query term
+    private static final int MAX_TERMS = 31;
+
+    private static final int[] NO_WORDS = new int[0];
+
+    @NonNull
+    private final List<Song> songs;
+    @NonNull
+    private final List<Album> albums;
+    @NonNull
+    private final List<Artist> artists;
+
+    // sorted dictionary, the postings of words[i] are postings[postingStarts[i]] until postings[postingStarts[i + 1]]
+    @NonNull
+    private final String[] words;
+    @NonNull
+    private final int[] postingStarts;
+    // item << FIELD_BITS | field; items are numbered songs first, then albums, then artists
+    @NonNull
+    private final int[] postings;
+
+    // per query scratch space, only touched under the lock of the index
+    private final int[] stamps;
+    private final int[] masks;
+    private final int[] scores;
+    private int[] touched;
+    private int stamp;
+
+    private SearchIndex(@NonNull List<Song> songs, @NonNull List<Album> albums, @NonNull List<Artist> artists,
+                        @NonNull String[] words, @NonNull int[] postingStarts, @NonNull int[] postings) {
+        this.songs = songs;
+        this.albums = albums;
+        this.artists = artists;
+        this.words = words;
+        this.postingStarts = postingStarts;
+        this.postings = postings;
+
+        final int itemCount = songs.size() + albums.size() + artists.size();
+        stamps = new int[itemCount];
+        masks = new int[itemCount];
+        scores = new int[itemCount];
+        touched = new int[Math.min(itemCount, 1024)];
+    }
+
+    public static final class Result {
+        @NonNull
+        public final List<Song> songs;
+        @NonNull
+        public final List<Album> albums;
+        @NonNull
+        public final List<Artist> artists;
+
+        Result(@NonNull List<Song> songs, @NonNull List<Album> albums, @NonNull List<Artist> artists) {
+            this.songs = songs;
+            this.albums = albums;
+            this.artists = artists;
+        }
+
+        public boolean isEmpty() {
+            return songs.isEmpty() && albums.isEmpty() && artists.isEmpty();
+        }
+    }
+
+    /**
+     * @return the index of the current library, in the sort orders of the library tabs. Built on first use.
+     */
+    @NonNull
+    public static SearchIndex getInstance(@NonNull final Context context) {
+        final PreferenceUtil preferences = PreferenceUtil.getInstance(context);
+        return LibrarySnapshot.getInstance(context).getSearchIndex(
+                preferences.getSongSortOrder(),
+                preferences.getAlbumSortOrder(),
+                preferences.getAlbumSongSortOrder(),
+                preferences.getArtistSortOrder(),
+                preferences.getArtistAlbumSortOrder()
+        );
+    }
+
+    @NonNull
+    static SearchIndex build(@NonNull List<Song> songs, @NonNull List<Album> albums, @NonNull List<Artist> artists) {
+        final Builder builder = new Builder();
+        int item = 0;
+        for (Song song : songs) {
+            builder.add(item, FIELD_TITLE, song.title);
+            builder.add(item, FIELD_ARTIST, song.artistName);
+            builder.add(item, FIELD_ALBUM, song.albumName);
+            builder.add(item, FIELD_FOLDER, getFolderName(song.data));
+            item++;
+        }
+        for (Album album : albums) {
+            builder.add(item, FIELD_ALBUM, album.getTitle());
+            builder.add(item, FIELD_ARTIST, album.getArtistName());
+            item++;
+        }
+        for (Artist artist : artists) {
+            builder.add(item, FIELD_ARTIST, artist.getName());
+            item++;
+        }
+        return builder.build(songs, albums, artists);
+    }
+
+    /**
+     * @return the ranked songs, albums and artists matching every word of {@code query}
+     */
+    @NonNull
+    public synchronized Result search(@Nullable String query) {
+        final List<String> terms = tokenize(normalize(query));
+        if (terms.isEmpty()) {
+            return new Result(Collections.<Song>emptyList(), Collections.<Album>emptyList(), Collections.<Artist>emptyList());
+        }
+        final int termCount = Math.min(terms.size(), MAX_TERMS);
+
+        if (++stamp == 0) {
+            // wrapped around, old stamps could be mistaken for the current one
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+        int touchedCount = 0;
+        for (int t = 0; t < termCount; t++) {
+            final String term = terms.get(t);
+            final int from = lowerBound(term);
+            final int to = lowerBound(term + Character.MAX_VALUE);
+            for (int w = from; w < to; w++) {
+                // a whole word is a better match than the start of one
+                touchedCount = collect(w, t, words[w].length() == term.length() ? 3 : 2, touchedCount);
+            }
+            // the words the term starts are sorted together, the ones it is inside of have to be looked for
+            for (int w = 0; w < words.length; w++) {
+                if ((w < from || w >= to) && words[w].contains(term)) {
+                    touchedCount = collect(w, t, 1, touchedCount);
+                }
+            }
+        }
+
+        final int allTerms = PRIMARY_MATCH | ((1 << termCount) - 1);
+        final int songCount = songs.size();
+        final int albumEnd = songCount + albums.size();
+        long[] songHits = new long[touchedCount];
+        long[] albumHits = new long[touchedCount];
+        long[] artistHits = new long[touchedCount];
+        int songHitCount = 0;
+        int albumHitCount = 0;
+        int artistHitCount = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            final int item = touched[i];
+            if (masks[item] != allTerms) continue;
+            // higher scores first, equal scores in list order
+            final long rank = ((long) (Integer.MAX_VALUE - scores[item]) << 32) | item;
+            if (item < songCount) {
+                songHits[songHitCount++] = rank;
+            } else if (item < albumEnd) {
+                albumHits[albumHitCount++] = rank;
+            } else {
+                artistHits[artistHitCount++] = rank;
+            }
+        }
+
+        return new Result(
+                resolve(songHits, songHitCount, songs, 0),
+                resolve(albumHits, albumHitCount, albums, songCount),
+                resolve(artistHits, artistHitCount, artists, albumEnd)
+        );
+    }
+
+    private int collect(final int word, final int term, final int quality, int touchedCount) {
+        final int termBit = 1 << term;
+        for (int p = postingStarts[word]; p < postingStarts[word + 1]; p++) {
+            final int item = postings[p] >>> FIELD_BITS;
+            final int field = postings[p] & ((1 << FIELD_BITS) - 1);
+            if (stamps[item] != stamp) {
+                stamps[item] = stamp;
+                masks[item] = 0;
+                scores[item] = 0;
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, Math.min(touched.length * 2, stamps.length));
+                }
+                touched[touchedCount++] = item;
+            }
+            masks[item] |= termBit;
+            if (isPrimary(item, field)) {
+                masks[item] |= PRIMARY_MATCH;
+            }
+            scores[item] += FIELD_WEIGHTS[field] * quality;
+        }
+        return touchedCount;
+    }
+
+    private boolean isPrimary(final int item, final int field) {
+        if (item < songs.size()) return field == FIELD_TITLE || field == FIELD_FOLDER;
+        if (item < songs.size() + albums.size()) return field == FIELD_ALBUM;
+        return field == FIELD_ARTIST;
+    }
+
+    @NonNull
+    private static <T> List<T> resolve(@NonNull long[] hits, final int count, @NonNull List<T> items, final int firstItem) {
+        Arrays.sort(hits, 0, count);
+        List<T> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(items.get((int) hits[i] - firstItem));
+        }
+        return result;
+    }
+
+    private int lowerBound(@NonNull String key) {
+        int low = 0;
+        int high = words.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (words[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Nullable
+    private static String getFolderName(@Nullable String path) {
+        if (path == null) return null;
+        final int end = path.lastIndexOf('/');
+        if (end <= 0) return null;
+        return path.substring(path.lastIndexOf('/', end - 1) + 1, end);
+    }
+
+    /**
+     * Lower case and without accents, so that e.g. "Beyoncé" is found by "beyonce".
+     */
+    @NonNull
+    static String normalize(@Nullable String text) {
+        if (text == null || text.isEmpty()) return "";
+        boolean ascii = true;
+        for (int i = 0; i < text.length() && ascii; i++) {
+            ascii = text.charAt(i) < 0x80;
+        }
+        if (!ascii) {
+            text = Normalizer.normalize(text, Normalizer.Form.NFD);
+        }
+        StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!ascii && Character.getType(c) == Character.NON_SPACING_MARK) continue;
+            // the dotless i has no decomposition, but is the same letter for searching
+            builder.append(c == 'ı' ? 'i' : Character.toLowerCase(c));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Splits normalized text into its words, everything but letters and digits separates them.
+     */
+    @NonNull
+    static List<String> tokenize(@NonNull String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static final class Builder {
+        private final StringIntHashMap wordIds = new StringIntHashMap();
+        private final List<String> wordList = new ArrayList<>();
+        // album, artist and folder names repeat for many songs, they are only split up once
+        private final Map<String, int[]> textWords = new HashMap<>();
+
+        private int[] entryWords = new int[1024];
+        private int[] entryPostings = new int[1024];
+        private int entryCount;
+
+        void add(final int item, final int field, @Nullable final String text) {
+            if (text == null || text.isEmpty()) return;
+            int[] ids = textWords.get(text);
+            if (ids == null) {
+                ids = toWordIds(text);
+                textWords.put(text, ids);
+            }
+            for (int id : ids) {
+                if (entryCount == entryWords.length) {
+                    entryWords = Arrays.copyOf(entryWords, entryCount * 2);
+                    entryPostings = Arrays.copyOf(entryPostings, entryCount * 2);
+                }
+                entryWords[entryCount] = id;
+                entryPostings[entryCount] = item << FIELD_BITS | field;
+                entryCount++;
+            }
+        }
+
+        @NonNull
+        private int[] toWordIds(@NonNull final String text) {
+            final List<String> tokens = tokenize(normalize(text));
+            if (tokens.isEmpty()) return NO_WORDS;
+            int[] ids = new int[tokens.size()];
+            int count = 0;
+            for (String token : tokens) {
+                int id = wordIds.get(token, -1);
+                if (id < 0) {
+                    id = wordList.size();
+                    wordIds.put(token, id);
+                    wordList.add(token);
+                }
+                // "la la land" is one match for "la", not two
+                boolean seen = false;
+                for (int i = 0; i < count && !seen; i++) {
+                    seen = ids[i] == id;
+                }
+                if (!seen) {
+                    ids[count++] = id;
+                }
+            }
+            return count == ids.length ? ids : Arrays.copyOf(ids, count);
+        }
+
+        @NonNull
+        SearchIndex build(@NonNull List<Song> songs, @NonNull List<Album> albums, @NonNull List<Artist> artists) {
+            final String[] words = wordList.toArray(new String[0]);
+            Arrays.sort(words);
+            final int[] rankOfId = new int[words.length];
+            for (int rank = 0; rank < words.length; rank++) {
+                rankOfId[wordIds.get(words[rank], -1)] = rank;
+            }
+
+            // counting sort of the entries by word, the items of each word stay in ascending order
+            final int[] postingStarts = new int[words.length + 1];
+            for (int i = 0; i < entryCount; i++) {
+                postingStarts[rankOfId[entryWords[i]] + 1]++;
+            }
+            for (int rank = 0; rank < words.length; rank++) {
+                postingStarts[rank + 1] += postingStarts[rank];
+            }
+            final int[] next = Arrays.copyOf(postingStarts, words.length);
+            final int[] postings = new int[entryCount];
+            for (int i = 0; i < entryCount; i++) {
+                postings[next[rankOfId[entryWords[i]]]++] = entryPostings[i];
+            }
+            return new SearchIndex(songs, albums, artists, words, postingStarts, postings);
+        }
+    }
+}
@@ -9,17 +9,22 @@ import android.provider.MediaStore.Audio.AudioColumns;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.kabouzeid.gramophone.helper.StringPool;
 import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.provider.BlacklistStore;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * @author Karim Abou Zeid (kabouzeid)
  */
 public class SongLoader {
+    // above this many blacklisted folders, filtering the rows in memory is cheaper than a chain of NOT LIKE clauses
+    private static final int MAX_BLACKLIST_SELECTION_PATHS = 5;
+
     protected static final String BASE_SELECTION = AudioColumns.IS_MUSIC + "=1" + " AND " + AudioColumns.TITLE + " != ''";
     protected static final String[] BASE_PROJECTION = new String[]{
             BaseColumns._ID,// 0
@@ -37,14 +42,18 @@ public class SongLoader {
 
     @NonNull
     public static List<Song> getAllSongs(@NonNull Context context) {
-        Cursor cursor = makeSongCursor(context, null, null);
-        return getSongs(cursor);
+        return new ArrayList<>(LibrarySnapshot.getInstance(context).getSongs(PreferenceUtil.getInstance(context).getSongSortOrder()));
     }
 
     @NonNull
     public static List<Song> getSongs(@NonNull final Context context, final String query) {
-        Cursor cursor = makeSongCursor(context, AudioColumns.TITLE + " LIKE ?", new String[]{"%" + query + "%"});
-        return getSongs(cursor);
+        List<Song> songs = new ArrayList<>();
+        for (Song song : LibrarySnapshot.getInstance(context).getSongs(PreferenceUtil.getInstance(context).getSongSortOrder())) {
+            if (containsIgnoreCase(song.title, query)) {
+                songs.add(song);
+            }
+        }
+        return songs;
     }
 
     @NonNull
@@ -55,10 +64,18 @@ public class SongLoader {
 
     @NonNull
     public static List<Song> getSongs(@Nullable final Cursor cursor) {
-        List<Song> songs = new ArrayList<>();
+        return getSongs(cursor, null);
+    }
+
+    /**
+     * @param stringPool shares the album and artist names between the songs, and with all songs read with the same pool before
+     */
+    @NonNull
+    static List<Song> getSongs(@Nullable final Cursor cursor, @Nullable final StringPool stringPool) {
+        List<Song> songs = new ArrayList<>(cursor != null ? cursor.getCount() : 0);
         if (cursor != null && cursor.moveToFirst()) {
             do {
-                songs.add(getSongFromCursorImpl(cursor));
+                songs.add(getSongFromCursorImpl(cursor, stringPool));
             } while (cursor.moveToNext());
         }
 
@@ -71,7 +88,7 @@ public class SongLoader {
     public static Song getSong(@Nullable Cursor cursor) {
         Song song;
         if (cursor != null && cursor.moveToFirst()) {
-            song = getSongFromCursorImpl(cursor);
+            song = getSongFromCursorImpl(cursor, null);
         } else {
             song = Song.EMPTY_SONG;
         }
@@ -82,7 +99,7 @@ public class SongLoader {
     }
 
     @NonNull
-    private static Song getSongFromCursorImpl(@NonNull Cursor cursor) {
+    private static Song getSongFromCursorImpl(@NonNull Cursor cursor, @Nullable StringPool stringPool) {
         final long id = cursor.getLong(0);
         final String title = cursor.getString(1);
         final int trackNumber = cursor.getInt(2);
@@ -91,9 +108,13 @@ public class SongLoader {
         final String data = cursor.getString(5);
         final long dateModified = cursor.getLong(6);
         final long albumId = cursor.getLong(7);
-        final String albumName = cursor.getString(8);
         final long artistId = cursor.getLong(9);
-        final String artistName = cursor.getString(10);
+        String albumName = cursor.getString(8);
+        String artistName = cursor.getString(10);
+        if (stringPool != null) {
+            albumName = stringPool.intern(albumName);
+            artistName = stringPool.intern(artistName);
+        }
 
         return new Song(id, title, trackNumber, year, duration, data, dateModified, albumId, albumName, artistId, artistName);
     }
@@ -105,6 +126,19 @@ public class SongLoader {
 
     @Nullable
     public static Cursor makeSongCursor(@NonNull final Context context, @Nullable String selection, String[] selectionValues, final String sortOrder) {
+        return makeCursor(context, BASE_PROJECTION, selection, selectionValues, sortOrder);
+    }
+
+    /**
+     * Same selection as {@link #makeSongCursor(Context, String, String[], String)}, but only projects the song id.
+     */
+    @Nullable
+    static Cursor makeSongIdCursor(@NonNull final Context context, @Nullable String selection, String[] selectionValues) {
+        return makeCursor(context, new String[]{BaseColumns._ID}, selection, selectionValues, null);
+    }
+
+    @Nullable
+    private static Cursor makeCursor(@NonNull final Context context, @NonNull String[] projection, @Nullable String selection, String[] selectionValues, final String sortOrder) {
         if (selection != null && !selection.trim().equals("")) {
             selection = BASE_SELECTION + " AND " + selection;
         } else {
@@ -112,18 +146,48 @@ public class SongLoader {
         }
 
         // Blacklist
-        List<String> paths = BlacklistStore.getInstance(context).getPaths();
-        if (!paths.isEmpty()) {
+        BlacklistStore blacklist = BlacklistStore.getInstance(context);
+        List<String> paths = blacklist.getPaths();
+        boolean filterInMemory = paths.size() > MAX_BLACKLIST_SELECTION_PATHS;
+        int dataColumnIndex = -1;
+        if (filterInMemory) {
+            dataColumnIndex = Arrays.asList(projection).indexOf(AudioColumns.DATA);
+            if (dataColumnIndex < 0) {
+                // append the path, readers only look at the columns they asked for
+                dataColumnIndex = projection.length;
+                projection = Arrays.copyOf(projection, projection.length + 1);
+                projection[dataColumnIndex] = AudioColumns.DATA;
+            }
+        } else if (!paths.isEmpty()) {
             selection = generateBlacklistSelection(selection, paths.size());
             selectionValues = addBlacklistSelectionValues(selectionValues, paths);
         }
 
+        Cursor cursor;
         try {
-            return context.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                    BASE_PROJECTION, selection, selectionValues, sortOrder);
+            cursor = context.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    projection, selection, selectionValues, sortOrder);
         } catch (SecurityException e) {
             return null;
         }
+        if (cursor != null && filterInMemory) {
+            return new BlacklistFilteredCursor(cursor, dataColumnIndex, blacklist.getPathTrie());
+        }
+        return cursor;
+    }
+
+    /**
+     * In-memory equivalent of {@code column LIKE '%query%'}.
+     */
+    public static boolean containsIgnoreCase(@Nullable String text, @Nullable String query) {
+        if (text == null || query == null) return false;
+        final int length = query.length();
+        for (int i = text.length() - length; i >= 0; i--) {
+            if (text.regionMatches(true, i, query, 0, length)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private static String generateBlacklistSelection(String selection, int pathCount) {
@@ -21,10 +21,9 @@ import android.database.Cursor;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
+import com.kabouzeid.gramophone.helper.StringIntHashMap;
+
+import java.util.Arrays;
 
 /**
  * This cursor basically wraps a song cursor and is given a list of the order of the ids of the
@@ -35,11 +34,11 @@ public class SortedCursor extends AbstractCursor {
     // cursor to wrap
     private final Cursor mCursor;
     // the map of external indices to internal indices
-    private List<Integer> mOrderedPositions;
+    private int[] mOrderedPositions;
     // this contains the ids that weren't found in the underlying cursor
-    private final List<String> mMissingValues;
+    private final String[] mMissingValues;
     // this contains the mapped cursor positions and afterwards the extra ids that weren't found
-    private HashMap<String, Integer> mMapCursorPositions;
+    private StringIntHashMap mMapCursorPositions;
 
     /**
      * @param cursor     to wrap
@@ -59,52 +58,60 @@ public class SortedCursor extends AbstractCursor {
      * @return returns the ids that aren't found in the underlying cursor
      */
     @NonNull
-    private List<String> buildCursorPositionMapping(@Nullable final String[] order, final String columnName) {
-        List<String> missingValues = new ArrayList<>();
+    private String[] buildCursorPositionMapping(@Nullable final String[] order, final String columnName) {
+        final int count = mCursor.getCount();
+        final int orderLength = order == null ? 0 : order.length;
+        String[] missingValues = new String[orderLength];
+        int missingCount = 0;
 
-        mOrderedPositions = new ArrayList<>(mCursor.getCount());
+        int[] orderedPositions = new int[Math.min(count, orderLength)];
+        int orderedCount = 0;
 
-        mMapCursorPositions = new HashMap<>(mCursor.getCount());
+        mMapCursorPositions = new StringIntHashMap(count);
         final int valueColumnIndex = mCursor.getColumnIndex(columnName);
 
         if (mCursor.moveToFirst()) {
             // first figure out where each of the ids are in the cursor
             do {
-                mMapCursorPositions.put(mCursor.getString(valueColumnIndex), mCursor.getPosition());
+                final String value = mCursor.getString(valueColumnIndex);
+                if (value != null) {
+                    mMapCursorPositions.put(value, mCursor.getPosition());
+                }
             } while (mCursor.moveToNext());
 
-            if (order != null) {
-                // now create the ordered positions to map to the internal cursor given the
-                // external sort order
-                for (final String value : order) {
-                    if (mMapCursorPositions.containsKey(value)) {
-                        mOrderedPositions.add(mMapCursorPositions.get(value));
-                        mMapCursorPositions.remove(value);
-                    } else {
-                        missingValues.add(value);
-                    }
+            // now create the ordered positions to map to the internal cursor given the
+            // external sort order
+            for (int i = 0; i < orderLength; i++) {
+                final String value = order[i];
+                final int position = value == null ? -1 : mMapCursorPositions.remove(value, -1);
+                if (position >= 0) {
+                    orderedPositions[orderedCount++] = position;
+                } else {
+                    missingValues[missingCount++] = value;
                 }
             }
 
             mCursor.moveToFirst();
         }
 
-        return missingValues;
+        mOrderedPositions = orderedCount == orderedPositions.length ? orderedPositions : Arrays.copyOf(orderedPositions, orderedCount);
+        return missingCount == missingValues.length ? missingValues : Arrays.copyOf(missingValues, missingCount);
     }
 
     /**
-     * @return the list of ids that weren't found in the underlying cursor
+     * @return the ids that weren't found in the underlying cursor
      */
-    public List<String> getMissingValues() {
+    @NonNull
+    public String[] getMissingValues() {
         return mMissingValues;
     }
 
     /**
-     * @return the list of ids that were in the underlying cursor but not part of the ordered list
+     * @return the ids that were in the underlying cursor but not part of the ordered list
      */
     @NonNull
-    public Collection<String> getExtraValues() {
-        return mMapCursorPositions.keySet();
+    public String[] getExtraValues() {
+        return mMapCursorPositions.keys();
     }
 
     @Override
@@ -116,7 +123,7 @@ public class SortedCursor extends AbstractCursor {
 
     @Override
     public int getCount() {
-        return mOrderedPositions.size();
+        return mOrderedPositions.length;
     }
 
     @Override
@@ -162,7 +169,7 @@ public class SortedCursor extends AbstractCursor {
     @Override
     public boolean onMove(int oldPosition, int newPosition) {
         if (newPosition >= 0 && newPosition < getCount()) {
-            mCursor.moveToPosition(mOrderedPositions.get(newPosition));
+            mCursor.moveToPosition(mOrderedPositions[newPosition]);
             return true;
         }
 
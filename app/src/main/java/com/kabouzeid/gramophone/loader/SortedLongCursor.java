@@ -21,10 +21,9 @@ import android.database.Cursor;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
+
+import java.util.Arrays;
 
 /**
  * This cursor basically wraps a song cursor and is given a list of the order of the ids of the
@@ -35,11 +34,11 @@ public class SortedLongCursor extends AbstractCursor {
     // cursor to wrap
     private final Cursor mCursor;
     // the map of external indices to internal indices
-    private List<Integer> mOrderedPositions;
+    private int[] mOrderedPositions;
     // this contains the ids that weren't found in the underlying cursor
-    private final List<Long> mMissingIds;
+    private final long[] mMissingIds;
     // this contains the mapped cursor positions and afterwards the extra ids that weren't found
-    private HashMap<Long, Integer> mMapCursorPositions;
+    private LongIntHashMap mMapCursorPositions;
 
     /**
      * @param cursor     to wrap
@@ -60,12 +59,16 @@ public class SortedLongCursor extends AbstractCursor {
      * @return returns the ids that aren't found in the underlying cursor
      */
     @NonNull
-    private List<Long> buildCursorPositionMapping(@Nullable final long[] order, final String columnName) {
-        List<Long> missingIds = new ArrayList<>();
+    private long[] buildCursorPositionMapping(@Nullable final long[] order, final String columnName) {
+        final int count = mCursor.getCount();
+        final int orderLength = order == null ? 0 : order.length;
+        long[] missingIds = new long[orderLength];
+        int missingCount = 0;
 
-        mOrderedPositions = new ArrayList<>(mCursor.getCount());
+        int[] orderedPositions = new int[Math.min(count, orderLength)];
+        int orderedCount = 0;
 
-        mMapCursorPositions = new HashMap<>(mCursor.getCount());
+        mMapCursorPositions = new LongIntHashMap(count);
         final int idPosition = mCursor.getColumnIndex(columnName);
 
         if (mCursor.moveToFirst()) {
@@ -76,35 +79,37 @@ public class SortedLongCursor extends AbstractCursor {
 
             // now create the ordered positions to map to the internal cursor given the
             // external sort order
-            for (int i = 0; order != null && i < order.length; i++) {
+            for (int i = 0; i < orderLength; i++) {
                 final long id = order[i];
-                if (mMapCursorPositions.containsKey(id)) {
-                    mOrderedPositions.add(mMapCursorPositions.get(id));
-                    mMapCursorPositions.remove(id);
+                final int position = mMapCursorPositions.remove(id, -1);
+                if (position >= 0) {
+                    orderedPositions[orderedCount++] = position;
                 } else {
-                    missingIds.add(id);
+                    missingIds[missingCount++] = id;
                 }
             }
 
             mCursor.moveToFirst();
         }
 
-        return missingIds;
+        mOrderedPositions = orderedCount == orderedPositions.length ? orderedPositions : Arrays.copyOf(orderedPositions, orderedCount);
+        return missingCount == missingIds.length ? missingIds : Arrays.copyOf(missingIds, missingCount);
     }
 
     /**
-     * @return the list of ids that weren't found in the underlying cursor
+     * @return the ids that weren't found in the underlying cursor
      */
-    public List<Long> getMissingIds() {
+    @NonNull
+    public long[] getMissingIds() {
         return mMissingIds;
     }
 
     /**
-     * @return the list of ids that were in the underlying cursor but not part of the ordered list
+     * @return the ids that were in the underlying cursor but not part of the ordered list
      */
     @NonNull
-    public Collection<Long> getExtraIds() {
-        return mMapCursorPositions.keySet();
+    public long[] getExtraIds() {
+        return mMapCursorPositions.keys();
     }
 
     @Override
@@ -116,7 +121,7 @@ public class SortedLongCursor extends AbstractCursor {
 
     @Override
     public int getCount() {
-        return mOrderedPositions.size();
+        return mOrderedPositions.length;
     }
 
     @Override
@@ -162,7 +167,7 @@ public class SortedLongCursor extends AbstractCursor {
     @Override
     public boolean onMove(int oldPosition, int newPosition) {
         if (newPosition >= 0 && newPosition < getCount()) {
-            mCursor.moveToPosition(mOrderedPositions.get(newPosition));
+            mCursor.moveToPosition(mOrderedPositions[newPosition]);
             return true;
         }
 
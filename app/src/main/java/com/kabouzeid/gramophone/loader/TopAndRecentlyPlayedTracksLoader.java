@@ -37,6 +37,15 @@ public class TopAndRecentlyPlayedTracksLoader {
         return SongLoader.getSongs(makeRecentTracksCursorAndClearUpDatabase(context));
     }
 
+    /**
+     * @return the next page of the songs last played at or after {@code fromMillis}, the most recent first
+     * @see HistoryStore#queryRecentIds(long, HistoryStore.Page, int)
+     */
+    @NonNull
+    public static List<Song> getRecentlyPlayedTracks(@NonNull Context context, long fromMillis, @NonNull HistoryStore.Page page, int limit) {
+        return SongLoader.getSongs(makeRecentTracksCursorAndClearUpDatabase(context, fromMillis, page, limit));
+    }
+
     @NonNull
     public static List<Song> getTopTracks(@NonNull Context context) {
         return SongLoader.getSongs(makeTopTracksCursorAndClearUpDatabase(context));
@@ -44,15 +53,22 @@ public class TopAndRecentlyPlayedTracksLoader {
 
     @Nullable
     public static Cursor makeRecentTracksCursorAndClearUpDatabase(@NonNull final Context context) {
-        SortedLongCursor retCursor = makeRecentTracksCursorImpl(context);
+        return cleanUpHistory(context, makeRecentTracksCursorImpl(context,
+                HistoryStore.getInstance(context).queryRecentIds()));
+    }
+
+    @Nullable
+    public static Cursor makeRecentTracksCursorAndClearUpDatabase(@NonNull final Context context, final long fromMillis, @NonNull final HistoryStore.Page page, final int limit) {
+        return cleanUpHistory(context, makeRecentTracksCursorImpl(context,
+                HistoryStore.getInstance(context).queryRecentIds(fromMillis, page, limit)));
+    }
 
+    @Nullable
+    private static Cursor cleanUpHistory(@NonNull final Context context, @Nullable final SortedLongCursor retCursor) {
         // clean up the databases with any ids not found
         if (retCursor != null) {
-            List<Long> missingIds = retCursor.getMissingIds();
-            if (missingIds != null && missingIds.size() > 0) {
-                for (long id : missingIds) {
-                    HistoryStore.getInstance(context).removeSongId(id);
-                }
+            for (long id : retCursor.getMissingIds()) {
+                HistoryStore.getInstance(context).removeSongId(id);
             }
         }
         return retCursor;
@@ -64,21 +80,15 @@ public class TopAndRecentlyPlayedTracksLoader {
 
         // clean up the databases with any ids not found
         if (retCursor != null) {
-            List<Long> missingIds = retCursor.getMissingIds();
-            if (missingIds != null && missingIds.size() > 0) {
-                for (long id : missingIds) {
-                    SongPlayCountStore.getInstance(context).removeItem(id);
-                }
+            for (long id : retCursor.getMissingIds()) {
+                SongPlayCountStore.getInstance(context).removeItem(id);
             }
         }
         return retCursor;
     }
 
     @Nullable
-    private static SortedLongCursor makeRecentTracksCursorImpl(@NonNull final Context context) {
-        // first get the top results ids from the internal database
-        Cursor songs = HistoryStore.getInstance(context).queryRecentIds();
-
+    private static SortedLongCursor makeRecentTracksCursorImpl(@NonNull final Context context, @Nullable final Cursor songs) {
         try {
             return makeSortedCursor(context, songs,
                     songs.getColumnIndex(HistoryStore.RecentStoreColumns.ID));
@@ -11,12 +11,15 @@ import com.kabouzeid.gramophone.provider.HistoryStore;
 
 import org.frknkrc44.frigraph.R;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * @author Karim Abou Zeid (kabouzeid)
  */
 public class HistoryPlaylist extends AbsSmartPlaylist {
+    // keeps the song queries short even if the history is large
+    private static final int PAGE_SIZE = 200;
 
     public HistoryPlaylist(@NonNull Context context) {
         super(context.getString(R.string.history), R.drawable.ic_access_time_white_24dp);
@@ -25,7 +28,28 @@ public class HistoryPlaylist extends AbsSmartPlaylist {
     @NonNull
     @Override
     public List<Song> getSongs(@NonNull Context context) {
-        return TopAndRecentlyPlayedTracksLoader.getRecentlyPlayedTracks(context);
+        final List<Song> songs = new ArrayList<>();
+        final HistoryStore.Page page = new HistoryStore.Page();
+        while (page.hasMore()) {
+            songs.addAll(getSongs(context, page));
+        }
+        return songs;
+    }
+
+    /**
+     * Loads the history page by page, the most recent songs first.
+     *
+     * @param page where the previous page ended, a new {@link HistoryStore.Page} for the first one
+     * @return the songs of the next page, only empty if there are no more
+     */
+    @NonNull
+    public List<Song> getSongs(@NonNull Context context, @NonNull HistoryStore.Page page) {
+        final List<Song> songs = new ArrayList<>();
+        // songs that don't exist anymore are left out, don't hand out an empty page while there are more
+        while (songs.isEmpty() && page.hasMore()) {
+            songs.addAll(TopAndRecentlyPlayedTracksLoader.getRecentlyPlayedTracks(context, 0, page, PAGE_SIZE));
+        }
+        return songs;
     }
 
     @Override
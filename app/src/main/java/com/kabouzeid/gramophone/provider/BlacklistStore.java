@@ -10,12 +10,15 @@ import android.os.Environment;
 
 import androidx.annotation.NonNull;
 
+import com.kabouzeid.gramophone.helper.PathPrefixTrie;
+import com.kabouzeid.gramophone.loader.LibrarySnapshot;
 import com.kabouzeid.gramophone.service.MusicService;
 import com.kabouzeid.gramophone.util.FileUtil;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class BlacklistStore extends SQLiteOpenHelper {
@@ -24,6 +27,11 @@ public class BlacklistStore extends SQLiteOpenHelper {
     private static final int VERSION = 1;
     private final Context context;
 
+    // in-memory copy of the table, rebuilt lazily after every change
+    private final Object cacheLock = new Object();
+    private List<String> cachedPaths;
+    private PathPrefixTrie cachedTrie;
+
     public BlacklistStore(final Context context) {
         super(context, DATABASE_NAME, null, VERSION);
         this.context = context;
@@ -87,26 +95,28 @@ public class BlacklistStore extends SQLiteOpenHelper {
         } finally {
             database.endTransaction();
         }
+        invalidateCache();
     }
 
     public boolean contains(File file) {
         if (file == null) {
             return false;
         }
-        String path = FileUtil.safeGetCanonicalPath(file);
+        return getCachedPaths().contains(FileUtil.safeGetCanonicalPath(file));
+    }
 
-        final SQLiteDatabase database = getReadableDatabase();
-        Cursor cursor = database.query(BlacklistStoreColumns.NAME,
-                new String[]{BlacklistStoreColumns.PATH},
-                BlacklistStoreColumns.PATH + "=?",
-                new String[]{path},
-                null, null, null, null);
+    /**
+     * @return true if the file lies in a blacklisted folder, or is blacklisted itself
+     */
+    public boolean isBlacklisted(File file) {
+        return file != null && isBlacklisted(FileUtil.safeGetCanonicalPath(file));
+    }
 
-        boolean containsPath = cursor != null && cursor.moveToFirst();
-        if (cursor != null) {
-            cursor.close();
-        }
-        return containsPath;
+    /**
+     * Same check as the {@code NOT LIKE 'path%'} selection used for the media store, in O(path length).
+     */
+    public boolean isBlacklisted(String path) {
+        return getPathTrie().matchesPrefixOf(path);
     }
 
     public void removePath(File file) {
@@ -116,6 +126,7 @@ public class BlacklistStore extends SQLiteOpenHelper {
         database.delete(BlacklistStoreColumns.NAME,
                 BlacklistStoreColumns.PATH + "=?",
                 new String[]{path});
+        invalidateCache();
 
         notifyMediaStoreChanged();
     }
@@ -123,16 +134,53 @@ public class BlacklistStore extends SQLiteOpenHelper {
     public void clear() {
         final SQLiteDatabase database = getWritableDatabase();
         database.delete(BlacklistStoreColumns.NAME, null, null);
+        invalidateCache();
 
         notifyMediaStoreChanged();
     }
 
     private void notifyMediaStoreChanged() {
+        LibrarySnapshot.invalidate();
         context.sendBroadcast(new Intent(MusicService.MEDIA_STORE_CHANGED));
     }
 
     @NonNull
     public List<String> getPaths() {
+        return new ArrayList<>(getCachedPaths());
+    }
+
+    /**
+     * @return the blacklisted paths compiled into a trie, shared until the blacklist changes
+     */
+    @NonNull
+    public PathPrefixTrie getPathTrie() {
+        synchronized (cacheLock) {
+            if (cachedTrie == null) {
+                cachedTrie = new PathPrefixTrie(getCachedPaths());
+            }
+            return cachedTrie;
+        }
+    }
+
+    @NonNull
+    private List<String> getCachedPaths() {
+        synchronized (cacheLock) {
+            if (cachedPaths == null) {
+                cachedPaths = Collections.unmodifiableList(queryPaths());
+            }
+            return cachedPaths;
+        }
+    }
+
+    private void invalidateCache() {
+        synchronized (cacheLock) {
+            cachedPaths = null;
+            cachedTrie = null;
+        }
+    }
+
+    @NonNull
+    private List<String> queryPaths() {
         Cursor cursor = getReadableDatabase().query(BlacklistStoreColumns.NAME,
                 new String[]{BlacklistStoreColumns.PATH},
                 null, null, null, null, null);
@@ -21,31 +21,61 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.provider.BaseColumns;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.kabouzeid.gramophone.util.PreferenceUtil;
+
+/**
+ * Keeps the time every song was last played.
+ * <p>
+ * Plays are appended with increasing row ids and every song only keeps its last play, so the songs beyond the most
+ * recent ones can be trimmed by a row id range found on the primary key instead of sorting the table. The play times are indexed for paging through the history by time, the index
+ * orders the plays of the same millisecond by their row id.
+ */
 public class HistoryStore extends SQLiteOpenHelper {
-    private static final int MAX_ITEMS_IN_DB = 100;
+    public static final int DEFAULT_MAX_ITEMS_IN_DB = 1000;
 
     public static final String DATABASE_NAME = "history.db";
-    private static final int VERSION = 1;
+    private static final int VERSION = 2;
     @Nullable
     private static HistoryStore sInstance = null;
 
+    private static final String OLD_TABLE_NAME = RecentStoreColumns.NAME + "_old";
+
+    private volatile int mMaxItems = DEFAULT_MAX_ITEMS_IN_DB;
+
     public HistoryStore(final Context context) {
         super(context, DATABASE_NAME, null, VERSION);
     }
 
     @Override
     public void onCreate(@NonNull final SQLiteDatabase db) {
+        // AUTOINCREMENT never reuses the ids of trimmed rows, newer plays always have higher ids
         db.execSQL("CREATE TABLE IF NOT EXISTS " + RecentStoreColumns.NAME + " ("
+                + RecentStoreColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
                 + RecentStoreColumns.ID + " LONG NOT NULL," + RecentStoreColumns.TIME_PLAYED
                 + " LONG NOT NULL);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + RecentStoreColumns.NAME + "_" + RecentStoreColumns.ID
+                + " ON " + RecentStoreColumns.NAME + "(" + RecentStoreColumns.ID + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + RecentStoreColumns.NAME + "_" + RecentStoreColumns.TIME_PLAYED
+                + " ON " + RecentStoreColumns.NAME + "(" + RecentStoreColumns.TIME_PLAYED + ")");
     }
 
     @Override
     public void onUpgrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion == 1) {
+            // same columns without the row id and indices, keep the history in the order it was played
+            db.execSQL("ALTER TABLE " + RecentStoreColumns.NAME + " RENAME TO " + OLD_TABLE_NAME);
+            onCreate(db);
+            db.execSQL("INSERT INTO " + RecentStoreColumns.NAME + " (" + RecentStoreColumns.ID + "," + RecentStoreColumns.TIME_PLAYED + ")"
+                    + " SELECT " + RecentStoreColumns.ID + "," + RecentStoreColumns.TIME_PLAYED + " FROM " + OLD_TABLE_NAME
+                    + " ORDER BY " + RecentStoreColumns.TIME_PLAYED + " ASC");
+            db.execSQL("DROP TABLE IF EXISTS " + OLD_TABLE_NAME);
+            return;
+        }
         db.execSQL("DROP TABLE IF EXISTS " + RecentStoreColumns.NAME);
         onCreate(db);
     }
@@ -60,51 +90,60 @@ public class HistoryStore extends SQLiteOpenHelper {
     public static synchronized HistoryStore getInstance(@NonNull final Context context) {
         if (sInstance == null) {
             sInstance = new HistoryStore(context.getApplicationContext());
+            sInstance.setMaxItems(PreferenceUtil.getInstance(context).getHistorySize());
         }
         return sInstance;
     }
 
+    /**
+     * Sets how many songs are kept, the songs played least recently beyond that many are dropped from the history
+     * with the next play.
+     *
+     * @see PreferenceUtil#getHistorySize()
+     */
+    public void setMaxItems(final int maxItems) {
+        mMaxItems = Math.max(1, maxItems);
+    }
+
     public void addSongId(final long songId) {
         if (songId == -1) {
             return;
         }
+        addSongIds(new long[]{songId}, new long[]{System.currentTimeMillis()}, 1);
+    }
 
+    /**
+     * Adds several plays in one transaction.
+     *
+     * @param songIds     the played songs, in the order they were played
+     * @param timesPlayed when each of them was played
+     * @param count       the number of plays in the arrays
+     */
+    public void addSongIds(@NonNull final long[] songIds, @NonNull final long[] timesPlayed, final int count) {
         final SQLiteDatabase database = getWritableDatabase();
         database.beginTransaction();
 
         try {
-            // remove previous entries
-            removeSongId(songId);
-
-            // add the entry
-            final ContentValues values = new ContentValues(2);
-            values.put(RecentStoreColumns.ID, songId);
-            values.put(RecentStoreColumns.TIME_PLAYED, System.currentTimeMillis());
-            database.insert(RecentStoreColumns.NAME, null, values);
-
-            // if our db is too large, delete the extra items
-            Cursor oldest = null;
-            try {
-                oldest = database.query(RecentStoreColumns.NAME,
-                        new String[]{RecentStoreColumns.TIME_PLAYED}, null, null, null, null,
-                        RecentStoreColumns.TIME_PLAYED + " ASC");
-
-                if (oldest != null && oldest.getCount() > MAX_ITEMS_IN_DB) {
-                    oldest.moveToPosition(oldest.getCount() - MAX_ITEMS_IN_DB);
-                    long timeOfRecordToKeep = oldest.getLong(0);
-
-                    database.delete(RecentStoreColumns.NAME,
-                            RecentStoreColumns.TIME_PLAYED + " < ?",
-                            new String[]{String.valueOf(timeOfRecordToKeep)});
-
-                }
-            } finally {
-                if (oldest != null) {
-                    oldest.close();
-                }
+            for (int i = 0; i < count; i++) {
+                if (songIds[i] == -1) continue;
+
+                // remove previous entries
+                removeSongId(songIds[i]);
+
+                // add the entry
+                final ContentValues values = new ContentValues(2);
+                values.put(RecentStoreColumns.ID, songIds[i]);
+                values.put(RecentStoreColumns.TIME_PLAYED, timesPlayed[i]);
+                database.insert(RecentStoreColumns.NAME, null, values);
             }
-        } finally {
+
+            // if our db is too large, delete the songs that were played too far back. Row ids of songs played again
+            // were dropped with their old plays, so the oldest row id to keep is counted from the newest rows
+            database.delete(RecentStoreColumns.NAME, RecentStoreColumns._ID + " <= (SELECT " + RecentStoreColumns._ID
+                            + " FROM " + RecentStoreColumns.NAME + " ORDER BY " + RecentStoreColumns._ID + " DESC LIMIT 1 OFFSET ?)",
+                    new String[]{String.valueOf(mMaxItems)});
             database.setTransactionSuccessful();
+        } finally {
             database.endTransaction();
         }
     }
@@ -144,7 +183,68 @@ public class HistoryStore extends SQLiteOpenHelper {
                 RecentStoreColumns.TIME_PLAYED + " DESC");
     }
 
-    public interface RecentStoreColumns {
+    /**
+     * Queries one page of the songs last played at or after {@code fromMillis} that come after {@code page}, the most
+     * recent first, and moves {@code page} to the end of the results. Plays are ordered by their play time and then
+     * their row id, so plays in the same millisecond are neither skipped nor repeated across pages.
+     *
+     * @param limit the page size. If <= 0 it returns all results
+     * @return the song ids, their play times and row ids
+     */
+    public Cursor queryRecentIds(final long fromMillis, @NonNull final Page page, final int limit) {
+        final SQLiteDatabase database = getReadableDatabase();
+        final Cursor cursor = database.query(RecentStoreColumns.NAME,
+                new String[]{RecentStoreColumns.ID, RecentStoreColumns.TIME_PLAYED, RecentStoreColumns._ID},
+                RecentStoreColumns.TIME_PLAYED + " >= ? AND " + RecentStoreColumns.TIME_PLAYED + " <= ? AND ("
+                        + RecentStoreColumns.TIME_PLAYED + " < ? OR " + RecentStoreColumns._ID + " < ?)",
+                new String[]{String.valueOf(fromMillis), String.valueOf(page.timePlayed),
+                        String.valueOf(page.timePlayed), String.valueOf(page.rowId)},
+                null, null,
+                RecentStoreColumns.TIME_PLAYED + " DESC, " + RecentStoreColumns._ID + " DESC",
+                (limit <= 0 ? null : String.valueOf(limit)));
+
+        if (cursor == null || limit <= 0 || cursor.getCount() < limit) {
+            page.hasMore = false;
+        }
+        if (cursor != null && cursor.moveToLast()) {
+            page.timePlayed = cursor.getLong(1);
+            page.rowId = cursor.getLong(2);
+            cursor.moveToPosition(-1);
+        }
+        return cursor;
+    }
+
+    /**
+     * Where a page of {@link #queryRecentIds(long, Page, int)} ends, the next page starts right after it.
+     */
+    public static final class Page {
+        private long timePlayed;
+        private long rowId;
+        private boolean hasMore = true;
+
+        /**
+         * Starts at the most recent play.
+         */
+        public Page() {
+            timePlayed = Long.MAX_VALUE;
+            rowId = Long.MAX_VALUE;
+        }
+
+        /**
+         * Starts at the most recent play before {@code toMillis}.
+         */
+        public Page(final long toMillis) {
+            timePlayed = toMillis;
+            // row ids start at 1, so no play of toMillis itself is included
+            rowId = 0;
+        }
+
+        public boolean hasMore() {
+            return hasMore;
+        }
+    }
+
+    public interface RecentStoreColumns extends BaseColumns {
         String NAME = "recent_history";
 
         String ID = "song_id";
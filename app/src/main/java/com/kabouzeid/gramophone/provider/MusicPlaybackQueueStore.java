@@ -21,28 +21,64 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
-import android.provider.MediaStore.Audio.AudioColumns;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
 import com.kabouzeid.gramophone.loader.SongLoader;
 import com.kabouzeid.gramophone.model.Song;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * @author Andrew Neal, modified for Phonograph by Karim Abou Zeid
  *         <p/>
  *         This keeps track of the music playback and history state of the playback service
+ *         <p/>
+ *         The queues are saved as a snapshot of both queues plus a journal of the {@link QueueOperation}s since then,
+ *         so a change costs a few journal rows instead of rewriting both queues. Once the journal grows larger than
+ *         rewriting the snapshot would be, the snapshot is rewritten and the journal cleared. Every flush is a single
+ *         transaction, so a crash never leaves a partial snapshot or journal behind.
+ *         <p/>
+ *         Only song ids are saved: the snapshot is the ids of the original queue plus the playing order as positions
+ *         in the original queue, each as a blob. The songs are looked up in the media store again when restoring.
  */
 public class MusicPlaybackQueueStore extends SQLiteOpenHelper {
     @Nullable
     private static MusicPlaybackQueueStore sInstance = null;
     public static final String DATABASE_NAME = "music_playback_state.db";
-    public static final String PLAYING_QUEUE_TABLE_NAME = "playing_queue";
-    public static final String ORIGINAL_PLAYING_QUEUE_TABLE_NAME = "original_playing_queue";
-    private static final int VERSION = 4;
+    public static final String SNAPSHOT_TABLE_NAME = "playing_queue_snapshot";
+    public static final String JOURNAL_TABLE_NAME = "playing_queue_journal";
+    private static final int VERSION = 6;
+
+    // the tables of version 4 and 5, which saved the songs of both queues with all their metadata
+    private static final String PLAYING_QUEUE_TABLE_NAME = "playing_queue";
+    private static final String ORIGINAL_PLAYING_QUEUE_TABLE_NAME = "original_playing_queue";
+
+    private static final String TAG = MusicPlaybackQueueStore.class.getSimpleName();
+
+    // rewriting the snapshot costs as much as journaling twice the queue size, plus some slack for small queues
+    private static final int MIN_JOURNAL_LENGTH_TO_COMPACT = 256;
+
+    // keeps the selection of a single media store query well below SQLite's statement length limit
+    private static final int MAX_IDS_PER_QUERY = 1000;
+
+    @NonNull
+    private final Context mContext;
+
+    private final Object mPendingLock = new Object();
+    @NonNull
+    private List<QueueOperation> mPendingOperations = new ArrayList<>();
+    @Nullable
+    private List<Song> mPendingPlayingQueue;
+    @Nullable
+    private List<Song> mPendingOriginalPlayingQueue;
+    private int mJournalLength;
 
     /**
      * Constructor of <code>MusicPlaybackState</code>
@@ -51,70 +87,64 @@ public class MusicPlaybackQueueStore extends SQLiteOpenHelper {
      */
     public MusicPlaybackQueueStore(final Context context) {
         super(context, DATABASE_NAME, null, VERSION);
+        mContext = context.getApplicationContext();
     }
 
     @Override
     public void onCreate(@NonNull final SQLiteDatabase db) {
-        createTable(db, PLAYING_QUEUE_TABLE_NAME);
-        createTable(db, ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
+        createSnapshotTable(db);
+        createJournalTable(db);
     }
 
-    private void createTable(@NonNull final SQLiteDatabase db, final String tableName) {
-        //noinspection StringBufferReplaceableByString
-        StringBuilder builder = new StringBuilder();
-        builder.append("CREATE TABLE IF NOT EXISTS ");
-        builder.append(tableName);
-        builder.append("(");
-
-        builder.append(BaseColumns._ID);
-        builder.append(" LONG NOT NULL,");
-
-        builder.append(AudioColumns.TITLE);
-        builder.append(" STRING NOT NULL,");
-
-        builder.append(AudioColumns.TRACK);
-        builder.append(" INT NOT NULL,");
-
-        builder.append(AudioColumns.YEAR);
-        builder.append(" INT NOT NULL,");
-
-        builder.append(AudioColumns.DURATION);
-        builder.append(" LONG NOT NULL,");
-
-        builder.append(AudioColumns.DATA);
-        builder.append(" STRING NOT NULL,");
-
-        builder.append(AudioColumns.DATE_MODIFIED);
-        builder.append(" LONG NOT NULL,");
-
-        builder.append(AudioColumns.ALBUM_ID);
-        builder.append(" LONG NOT NULL,");
-
-        builder.append(AudioColumns.ALBUM);
-        builder.append(" STRING NOT NULL,");
-
-        builder.append(AudioColumns.ARTIST_ID);
-        builder.append(" LONG NOT NULL,");
-
-        builder.append(AudioColumns.ARTIST);
-        builder.append(" STRING NOT NULL);");
+    private static void createSnapshotTable(@NonNull final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + SNAPSHOT_TABLE_NAME + " ("
+                + SnapshotColumns.SONG_IDS + " BLOB NOT NULL,"
+                + SnapshotColumns.PLAYING_ORDER + " BLOB NOT NULL);");
+    }
 
-        db.execSQL(builder.toString());
+    private static void createJournalTable(@NonNull final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + JOURNAL_TABLE_NAME + " ("
+                + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + JournalColumns.TYPE + " INT NOT NULL,"
+                + JournalColumns.POSITION + " INT NOT NULL,"
+                + JournalColumns.ORIGINAL_POSITION + " INT NOT NULL,"
+                + JournalColumns.TO_POSITION + " INT NOT NULL,"
+                + JournalColumns.TO_ORIGINAL_POSITION + " INT NOT NULL,"
+                + JournalColumns.SEED + " LONG NOT NULL,"
+                // the song of an insert, null otherwise
+                + JournalColumns.SONG_ID + " LONG);");
     }
 
     @Override
     public void onUpgrade(@NonNull final SQLiteDatabase db, final int oldVersion, final int newVersion) {
-        // not necessary yet
+        if (oldVersion == 4 || oldVersion == 5) {
+            // keep the ids of the saved queues, version 5 journaled the changes since then
+            List<Song> playingQueue = getQueueIds(db, PLAYING_QUEUE_TABLE_NAME);
+            List<Song> originalPlayingQueue = getQueueIds(db, ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
+            if (oldVersion == 5 && !replayJournal(db, playingQueue, originalPlayingQueue)) {
+                playingQueue.clear();
+                originalPlayingQueue.clear();
+            }
+
+            db.execSQL("DROP TABLE IF EXISTS " + PLAYING_QUEUE_TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + JOURNAL_TABLE_NAME);
+            onCreate(db);
+            saveSnapshot(db, playingQueue, originalPlayingQueue);
+            return;
+        }
         db.execSQL("DROP TABLE IF EXISTS " + PLAYING_QUEUE_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + SNAPSHOT_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + JOURNAL_TABLE_NAME);
         onCreate(db);
     }
 
     @Override
     public void onDowngrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
         // If we ever have downgrade, drop the table to be safe
-        db.execSQL("DROP TABLE IF EXISTS " + PLAYING_QUEUE_TABLE_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + SNAPSHOT_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + JOURNAL_TABLE_NAME);
         onCreate(db);
     }
 
@@ -130,73 +160,392 @@ public class MusicPlaybackQueueStore extends SQLiteOpenHelper {
         return sInstance;
     }
 
-    public synchronized void saveQueues(@NonNull final List<Song> playingQueue, @NonNull final List<Song> originalPlayingQueue) {
-        saveQueue(PLAYING_QUEUE_TABLE_NAME, playingQueue);
-        saveQueue(ORIGINAL_PLAYING_QUEUE_TABLE_NAME, originalPlayingQueue);
+    /**
+     * Replaces the saved queues with copies of these at the next {@link #flush()}, dropping all pending operations.
+     */
+    public void saveQueues(@NonNull final List<Song> playingQueue, @NonNull final List<Song> originalPlayingQueue) {
+        synchronized (mPendingLock) {
+            mPendingPlayingQueue = new ArrayList<>(playingQueue);
+            mPendingOriginalPlayingQueue = new ArrayList<>(originalPlayingQueue);
+            mPendingOperations = new ArrayList<>();
+            mJournalLength = 0;
+        }
     }
 
     /**
-     * Clears the existing database and saves the queue into the db so that when the
-     * app is restarted, the tracks you were listening to is restored
-     *
-     * @param queue the queue to save
+     * Journals an operation at the next {@link #flush()}, it must have been applied to the queues last saved or
+     * journaled.
+     */
+    public void journal(@NonNull final QueueOperation operation) {
+        synchronized (mPendingLock) {
+            mPendingOperations.add(operation);
+            mJournalLength++;
+        }
+    }
+
+    /**
+     * @return whether the journal got so long that the queues should be saved as a whole again
      */
-    private synchronized void saveQueue(final String tableName, @NonNull final List<Song> queue) {
+    public boolean shouldCompact(final int queueSize) {
+        synchronized (mPendingLock) {
+            return mJournalLength > MIN_JOURNAL_LENGTH_TO_COMPACT + 2 * queueSize;
+        }
+    }
+
+    /**
+     * Writes the pending snapshot and operations in a single transaction. Call this on a background thread.
+     */
+    public synchronized void flush() {
+        final List<QueueOperation> operations;
+        final List<Song> playingQueue;
+        final List<Song> originalPlayingQueue;
+        synchronized (mPendingLock) {
+            operations = mPendingOperations;
+            playingQueue = mPendingPlayingQueue;
+            originalPlayingQueue = mPendingOriginalPlayingQueue;
+            mPendingOperations = new ArrayList<>();
+            mPendingPlayingQueue = null;
+            mPendingOriginalPlayingQueue = null;
+        }
+        if (operations.isEmpty() && playingQueue == null) return;
+
         final SQLiteDatabase database = getWritableDatabase();
         database.beginTransaction();
-
         try {
-            database.delete(tableName, null, null);
+            if (playingQueue != null) {
+                database.delete(JOURNAL_TABLE_NAME, null, null);
+                saveSnapshot(database, playingQueue, originalPlayingQueue);
+            }
+            for (QueueOperation operation : operations) {
+                database.insert(JOURNAL_TABLE_NAME, null, toContentValues(operation));
+            }
             database.setTransactionSuccessful();
         } finally {
             database.endTransaction();
         }
+    }
+
+    /**
+     * Clears the existing snapshot and saves the queues into it so that when the
+     * app is restarted, the tracks you were listening to is restored
+     */
+    private static void saveSnapshot(@NonNull final SQLiteDatabase database, @NonNull List<Song> playingQueue, @NonNull List<Song> originalPlayingQueue) {
+        int[] playingOrder = getPlayingOrder(playingQueue, originalPlayingQueue);
+        if (playingOrder == null) {
+            // not a permutation of each other, which the service never produces; at least keep what's playing
+            Log.w(TAG, "The playing queue doesn't match the original playing queue, saving it as both");
+            originalPlayingQueue = playingQueue;
+            playingOrder = new int[playingQueue.size()];
+            for (int i = 0; i < playingOrder.length; i++) {
+                playingOrder[i] = i;
+            }
+        }
+
+        ByteBuffer songIds = ByteBuffer.allocate(originalPlayingQueue.size() * 8);
+        for (Song song : originalPlayingQueue) {
+            songIds.putLong(song.id);
+        }
+        ByteBuffer order = ByteBuffer.allocate(playingOrder.length * 4);
+        order.asIntBuffer().put(playingOrder);
+
+        ContentValues values = new ContentValues(2);
+        values.put(SnapshotColumns.SONG_IDS, songIds.array());
+        values.put(SnapshotColumns.PLAYING_ORDER, order.array());
+
+        database.delete(SNAPSHOT_TABLE_NAME, null, null);
+        database.insert(SNAPSHOT_TABLE_NAME, null, values);
+    }
+
+    /**
+     * @return for every position in the playing queue the position of the same song in the original queue, or null if
+     * the queues don't contain the same songs
+     */
+    @Nullable
+    private static int[] getPlayingOrder(@NonNull final List<Song> playingQueue, @NonNull final List<Song> originalPlayingQueue) {
+        final int size = originalPlayingQueue.size();
+        if (playingQueue.size() != size) return null;
+
+        // chains the original positions of each id, so duplicates are matched in order
+        final LongIntHashMap firstPosition = new LongIntHashMap(size);
+        final int[] nextPosition = new int[size];
+        for (int i = size - 1; i >= 0; i--) {
+            nextPosition[i] = firstPosition.put(originalPlayingQueue.get(i).id, i, -1);
+        }
 
-        final int NUM_PROCESS = 20;
-        int position = 0;
-        while (position < queue.size()) {
-            database.beginTransaction();
-            try {
-                for (int i = position; i < queue.size() && i < position + NUM_PROCESS; i++) {
-                    Song song = queue.get(i);
-                    ContentValues values = new ContentValues(4);
-
-                    values.put(BaseColumns._ID, song.id);
-                    values.put(AudioColumns.TITLE, song.title);
-                    values.put(AudioColumns.TRACK, song.trackNumber);
-                    values.put(AudioColumns.YEAR, song.year);
-                    values.put(AudioColumns.DURATION, song.duration);
-                    values.put(AudioColumns.DATA, song.data);
-                    values.put(AudioColumns.DATE_MODIFIED, song.dateModified);
-                    values.put(AudioColumns.ALBUM_ID, song.albumId);
-                    values.put(AudioColumns.ALBUM, song.albumName);
-                    values.put(AudioColumns.ARTIST_ID, song.artistId);
-                    values.put(AudioColumns.ARTIST, song.artistName);
-
-                    database.insert(tableName, null, values);
+        final int[] playingOrder = new int[size];
+        for (int i = 0; i < size; i++) {
+            final long id = playingQueue.get(i).id;
+            final int position = firstPosition.get(id, -1);
+            if (position == -1) return null;
+            playingOrder[i] = position;
+            if (nextPosition[position] == -1) {
+                firstPosition.remove(id, -1);
+            } else {
+                firstPosition.put(id, nextPosition[position]);
+            }
+        }
+        return playingOrder;
+    }
+
+    @NonNull
+    private static ContentValues toContentValues(@NonNull final QueueOperation operation) {
+        ContentValues values = new ContentValues(7);
+        values.put(JournalColumns.TYPE, operation.type);
+        values.put(JournalColumns.POSITION, operation.position);
+        values.put(JournalColumns.ORIGINAL_POSITION, operation.originalPosition);
+        values.put(JournalColumns.TO_POSITION, operation.toPosition);
+        values.put(JournalColumns.TO_ORIGINAL_POSITION, operation.toOriginalPosition);
+        values.put(JournalColumns.SEED, operation.seed);
+        if (operation.song != null) {
+            values.put(JournalColumns.SONG_ID, operation.song.id);
+        }
+        return values;
+    }
+
+    /**
+     * Restores the saved snapshot and replays the journal on it. This doesn't query the media store, the songs only
+     * have their ids until they are looked up with {@link #resolve(SavedQueues, int, int)}.
+     *
+     * @return the saved playing queue and original playing queue
+     */
+    @NonNull
+    public synchronized SavedQueues getSavedQueues() {
+        final SQLiteDatabase database = getReadableDatabase();
+        final List<Song> playingQueue = new ArrayList<>();
+        final List<Song> originalPlayingQueue = new ArrayList<>();
+
+        Cursor cursor = database.query(SNAPSHOT_TABLE_NAME, null,
+                null, null, null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                ByteBuffer songIds = ByteBuffer.wrap(cursor.getBlob(cursor.getColumnIndex(SnapshotColumns.SONG_IDS)));
+                ByteBuffer order = ByteBuffer.wrap(cursor.getBlob(cursor.getColumnIndex(SnapshotColumns.PLAYING_ORDER)));
+                while (songIds.hasRemaining()) {
+                    originalPlayingQueue.add(placeholder(songIds.getLong()));
+                }
+                while (order.hasRemaining()) {
+                    playingQueue.add(originalPlayingQueue.get(order.getInt()));
                 }
-                database.setTransactionSuccessful();
-            } finally {
-                database.endTransaction();
-                position += NUM_PROCESS;
             }
+            cursor.close();
         }
+
+        final int journalLength = getJournalLength(database);
+        if (!replayJournal(database, playingQueue, originalPlayingQueue)) {
+            playingQueue.clear();
+            originalPlayingQueue.clear();
+        }
+
+        synchronized (mPendingLock) {
+            mJournalLength = journalLength;
+        }
+        return new SavedQueues(playingQueue, originalPlayingQueue, 0, new int[0]);
     }
 
+    /**
+     * Looks up the songs of the saved queues in the media store, in as few queries as possible.
+     * <p>
+     * To restore only a part of the queue, pass the range of positions in the saved playing queue. The original
+     * playing queue of such a part has the same songs in the same order, as the rest of the original queue is missing.
+     *
+     * @param savedQueues the queues returned by {@link #getSavedQueues()}
+     * @param from        the first position in the playing queue to restore
+     * @param to          the position after the last one to restore
+     * @return the restored part of the queues, without the songs that don't exist anymore
+     */
     @NonNull
-    public List<Song> getSavedPlayingQueue() {
-        return getQueue(PLAYING_QUEUE_TABLE_NAME);
+    public SavedQueues resolve(@NonNull final SavedQueues savedQueues, final int from, final int to) {
+        final List<Song> playingQueue = savedQueues.playingQueue.subList(from, to);
+        final List<Song> originalPlayingQueue = from == 0 && to == savedQueues.playingQueue.size()
+                ? savedQueues.originalPlayingQueue
+                : playingQueue;
+
+        // every song is in both queues, so the original one has all ids
+        final LongIntHashMap songIndices = new LongIntHashMap(originalPlayingQueue.size());
+        final long[] ids = new long[originalPlayingQueue.size()];
+        int idCount = 0;
+        for (Song song : originalPlayingQueue) {
+            if (songIndices.put(song.id, -1, -2) == -2) {
+                ids[idCount++] = song.id;
+            }
+        }
+
+        final List<Song> songs = new ArrayList<>(idCount);
+        for (int start = 0; start < idCount; start += MAX_IDS_PER_QUERY) {
+            final int end = Math.min(idCount, start + MAX_IDS_PER_QUERY);
+            StringBuilder selection = new StringBuilder();
+            selection.append(BaseColumns._ID);
+            selection.append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) selection.append(",");
+                selection.append(ids[i]);
+            }
+            selection.append(")");
+
+            for (Song song : SongLoader.getSongs(SongLoader.makeSongCursor(mContext, selection.toString(), null, null))) {
+                songIndices.put(song.id, songs.size());
+                songs.add(song);
+            }
+        }
+
+        final List<Song> resolvedOriginalQueue = new ArrayList<>(originalPlayingQueue.size());
+        for (Song song : originalPlayingQueue) {
+            final int index = songIndices.get(song.id, -1);
+            if (index != -1) {
+                resolvedOriginalQueue.add(songs.get(index));
+            }
+        }
+        final List<Song> resolvedQueue = new ArrayList<>(playingQueue.size());
+        int[] removedPositions = new int[0];
+        int removedCount = 0;
+        for (int i = 0; i < playingQueue.size(); i++) {
+            final int index = songIndices.get(playingQueue.get(i).id, -1);
+            if (index != -1) {
+                resolvedQueue.add(songs.get(index));
+            } else {
+                // the song was deleted since, fall back to playing the songs around it
+                if (removedCount == removedPositions.length) {
+                    removedPositions = Arrays.copyOf(removedPositions, Math.max(8, removedCount * 2));
+                }
+                removedPositions[removedCount++] = from + i;
+            }
+        }
+        return new SavedQueues(resolvedQueue, resolvedOriginalQueue, from, Arrays.copyOf(removedPositions, removedCount));
+    }
+
+    private static int getJournalLength(@NonNull final SQLiteDatabase database) {
+        Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM " + JOURNAL_TABLE_NAME, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return false if the journal doesn't belong to these queues
+     */
+    private static boolean replayJournal(@NonNull final SQLiteDatabase database, @NonNull final List<Song> playingQueue, @NonNull final List<Song> originalPlayingQueue) {
+        Cursor cursor = database.query(JOURNAL_TABLE_NAME, null,
+                null, null, null, null, BaseColumns._ID);
+        if (cursor == null) return true;
+        try {
+            while (cursor.moveToNext()) {
+                fromCursor(cursor).apply(playingQueue, originalPlayingQueue);
+            }
+            return true;
+        } catch (IndexOutOfBoundsException e) {
+            Log.e(TAG, "Failed to replay the playing queue journal", e);
+            return false;
+        } finally {
+            cursor.close();
+        }
     }
 
     @NonNull
-    public List<Song> getSavedOriginalPlayingQueue() {
-        return getQueue(ORIGINAL_PLAYING_QUEUE_TABLE_NAME);
+    private static QueueOperation fromCursor(@NonNull final Cursor cursor) {
+        final int songIdColumn = cursor.getColumnIndex(JournalColumns.SONG_ID);
+        return new QueueOperation(
+                cursor.getInt(cursor.getColumnIndex(JournalColumns.TYPE)),
+                cursor.getInt(cursor.getColumnIndex(JournalColumns.POSITION)),
+                cursor.getInt(cursor.getColumnIndex(JournalColumns.ORIGINAL_POSITION)),
+                cursor.getInt(cursor.getColumnIndex(JournalColumns.TO_POSITION)),
+                cursor.getInt(cursor.getColumnIndex(JournalColumns.TO_ORIGINAL_POSITION)),
+                cursor.getLong(cursor.getColumnIndex(JournalColumns.SEED)),
+                cursor.isNull(songIdColumn) ? null : placeholder(cursor.getLong(songIdColumn)));
     }
 
     @NonNull
-    private List<Song> getQueue(@NonNull final String tableName) {
-        Cursor cursor = getReadableDatabase().query(tableName, null,
+    private static List<Song> getQueueIds(@NonNull final SQLiteDatabase database, @NonNull final String tableName) {
+        List<Song> queue = new ArrayList<>();
+        Cursor cursor = database.query(tableName, new String[]{BaseColumns._ID},
                 null, null, null, null, null);
-        return SongLoader.getSongs(cursor);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                queue.add(placeholder(cursor.getLong(0)));
+            }
+            cursor.close();
+        }
+        return queue;
+    }
+
+    /**
+     * Stands in for a song until it is looked up in the media store.
+     */
+    @NonNull
+    private static Song placeholder(final long id) {
+        return new Song(id, "", -1, -1, -1, "", -1, -1, "", -1, "");
+    }
+
+    public static class SavedQueues {
+        @NonNull
+        public final List<Song> playingQueue;
+        @NonNull
+        public final List<Song> originalPlayingQueue;
+        // the position in the saved playing queue of the first song
+        private final int offset;
+        // the positions in the saved playing queue of the songs that don't exist anymore, ascending
+        @NonNull
+        private final int[] removedPositions;
+
+        SavedQueues(@NonNull List<Song> playingQueue, @NonNull List<Song> originalPlayingQueue, int offset, @NonNull int[] removedPositions) {
+            this.playingQueue = playingQueue;
+            this.originalPlayingQueue = originalPlayingQueue;
+            this.offset = offset;
+            this.removedPositions = removedPositions;
+        }
+
+        /**
+         * @return whether songs of the saved queues were dropped because they don't exist anymore
+         */
+        public boolean hasRemovedSongs() {
+            return removedPositions.length > 0;
+        }
+
+        /**
+         * @return the position in {@link #playingQueue} of a position in the saved playing queue, the next song if the
+         * song at that position doesn't exist anymore
+         */
+        public int getRestoredPosition(final int savedPosition) {
+            int removedBefore = 0;
+            while (removedBefore < removedPositions.length && removedPositions[removedBefore] < savedPosition) {
+                removedBefore++;
+            }
+            return Math.min(savedPosition - offset - removedBefore, playingQueue.size() - 1);
+        }
+
+        /**
+         * @return the position in the saved playing queue of a position in {@link #playingQueue}
+         */
+        public int getSavedPosition(final int restoredPosition) {
+            int savedPosition = restoredPosition + offset;
+            for (int removedPosition : removedPositions) {
+                if (removedPosition > savedPosition) break;
+                savedPosition++;
+            }
+            return savedPosition;
+        }
+    }
+
+    public interface SnapshotColumns {
+        String SONG_IDS = "song_ids";
+
+        String PLAYING_ORDER = "playing_order";
+    }
+
+    public interface JournalColumns {
+        String TYPE = "type";
+
+        String POSITION = "position";
+
+        String ORIGINAL_POSITION = "original_position";
+
+        String TO_POSITION = "to_position";
+
+        String TO_ORIGINAL_POSITION = "to_original_position";
+
+        String SEED = "seed";
+
+        String SONG_ID = "song_id";
     }
 }
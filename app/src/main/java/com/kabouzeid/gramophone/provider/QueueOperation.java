@@ -0,0 +1,101 @@
+package com.kabouzeid.gramophone.provider;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.helper.ShuffleHelper;
+import com.kabouzeid.gramophone.model.Song;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A single change of the playing queues, as journaled by {@link MusicPlaybackQueueStore}.
+ * <p>
+ * Operations carry the exact positions in both queues, -1 for a queue they don't touch, and shuffles carry their
+ * seed, so replaying them on the saved queues results in exactly the queues of the service.
+ */
+public final class QueueOperation {
+    static final int INSERT = 0;
+    static final int REMOVE = 1;
+    static final int MOVE = 2;
+    static final int SHUFFLE = 3;
+    static final int UNSHUFFLE = 4;
+
+    final int type;
+    final int position;
+    final int originalPosition;
+    final int toPosition;
+    final int toOriginalPosition;
+    final long seed;
+    @Nullable
+    final Song song;
+
+    QueueOperation(int type, int position, int originalPosition, int toPosition, int toOriginalPosition, long seed, @Nullable Song song) {
+        this.type = type;
+        this.position = position;
+        this.originalPosition = originalPosition;
+        this.toPosition = toPosition;
+        this.toOriginalPosition = toOriginalPosition;
+        this.seed = seed;
+        this.song = song;
+    }
+
+    @NonNull
+    public static QueueOperation insert(int position, int originalPosition, @NonNull Song song) {
+        return new QueueOperation(INSERT, position, originalPosition, -1, -1, 0, song);
+    }
+
+    @NonNull
+    public static QueueOperation remove(int position, int originalPosition) {
+        return new QueueOperation(REMOVE, position, originalPosition, -1, -1, 0, null);
+    }
+
+    @NonNull
+    public static QueueOperation move(int from, int to, int originalFrom, int originalTo) {
+        return new QueueOperation(MOVE, from, originalFrom, to, originalTo, 0, null);
+    }
+
+    /**
+     * @see ShuffleHelper#makeShuffleList(List, int, Random)
+     */
+    @NonNull
+    public static QueueOperation shuffle(int current, long seed) {
+        return new QueueOperation(SHUFFLE, current, -1, -1, -1, seed, null);
+    }
+
+    /**
+     * Replaces the playing queue with the original one.
+     */
+    @NonNull
+    public static QueueOperation unshuffle() {
+        return new QueueOperation(UNSHUFFLE, -1, -1, -1, -1, 0, null);
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if the queues aren't the ones this operation was recorded for
+     */
+    void apply(@NonNull List<Song> playingQueue, @NonNull List<Song> originalPlayingQueue) {
+        switch (type) {
+            case INSERT:
+                if (position != -1) playingQueue.add(position, song);
+                if (originalPosition != -1) originalPlayingQueue.add(originalPosition, song);
+                break;
+            case REMOVE:
+                if (position != -1) playingQueue.remove(position);
+                if (originalPosition != -1) originalPlayingQueue.remove(originalPosition);
+                break;
+            case MOVE:
+                if (position != -1) playingQueue.add(toPosition, playingQueue.remove(position));
+                if (originalPosition != -1) originalPlayingQueue.add(toOriginalPosition, originalPlayingQueue.remove(originalPosition));
+                break;
+            case SHUFFLE:
+                ShuffleHelper.makeShuffleList(playingQueue, position, new Random(seed));
+                break;
+            case UNSHUFFLE:
+                playingQueue.clear();
+                playingQueue.addAll(originalPlayingQueue);
+                break;
+        }
+    }
+}
@@ -21,87 +21,74 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.view.animation.AccelerateInterpolator;
-import android.view.animation.Interpolator;
+import android.database.sqlite.SQLiteStatement;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.kabouzeid.gramophone.helper.PlayCountScorer;
+
 /**
  * This database tracks the number of play counts for an individual song.  This is used to drive
  * the top played tracks as well as the playlist images
+ * <p>
+ * Every song has one exponentially decayed score, see {@link PlayCountScorer} for how it is stored.
  */
 public class SongPlayCountStore extends SQLiteOpenHelper {
     @Nullable
     private static SongPlayCountStore sInstance = null;
 
     public static final String DATABASE_NAME = "song_play_count.db";
-    private static final int VERSION = 3;
-
-    // interpolator curve applied for measuring the curve
-    @NonNull
-    private static final Interpolator sInterpolator = new AccelerateInterpolator(1.5f);
-
-    // how many weeks worth of playback to track
+    private static final int VERSION = 5;
+
+    // the version that still kept one play counter per week
+    private static final int VERSION_WEEKLY_COUNTS = 3;
+    // the first version with decayed scores, before they were indexed
+    private static final int VERSION_UNINDEXED_SCORES = 4;
+    private static final String WEEKLY_TABLE_NAME = "song_play_count_weekly";
+    private static final String WEEKLY_PLAY_COUNT = "week";
+    private static final String WEEKLY_LAST_UPDATED_WEEK_INDEX = "week_index";
     private static final int NUM_WEEKS = 52;
 
-    // how high to multiply the interpolation curve
-    @SuppressWarnings("FieldCanBeLocal")
-    private static final int INTERPOLATOR_HEIGHT = 50;
+    private static final String SCORE_INDEX_NAME = SongPlayCountColumns.NAME + "_" + SongPlayCountColumns.SCORE;
 
-    // how high the base value is. The ratio of the Height to Base is what really matters
-    @SuppressWarnings("FieldCanBeLocal")
-    private static final int INTERPOLATOR_BASE = 25;
+    @NonNull
+    private static final String WHERE_ID_EQUALS = SongPlayCountColumns.ID + "=?";
 
-    @SuppressWarnings("FieldCanBeLocal")
-    private static final int ONE_WEEK_IN_MS = 1000 * 60 * 60 * 24 * 7;
+    @NonNull
+    private static final String WHERE_SCORE_BELOW = SongPlayCountColumns.SCORE + "<?";
 
     @NonNull
-    private static final String WHERE_ID_EQUALS = SongPlayCountColumns.ID + "=?";
+    private static final String WHERE_SCORE_AT_LEAST = SongPlayCountColumns.SCORE + ">=?";
 
-    // number of weeks since epoch time
-    private final int mNumberOfWeeksSinceEpoch;
+    @NonNull
+    private static final String BUMP_STATEMENT = "UPDATE " + SongPlayCountColumns.NAME
+            + " SET " + SongPlayCountColumns.SCORE + "=" + SongPlayCountColumns.SCORE + "+?,"
+            + SongPlayCountColumns.LAST_PLAYED + "=?"
+            + " WHERE " + WHERE_ID_EQUALS;
 
-    // used to track if we've walked through the db and updated all the rows
-    private boolean mDatabaseUpdated;
+    // used to track if we've dropped the songs that were not played for too long
+    private boolean mForgottenSongsRemoved;
 
     public SongPlayCountStore(final Context context) {
         super(context, DATABASE_NAME, null, VERSION);
-
-        long msSinceEpoch = System.currentTimeMillis();
-        mNumberOfWeeksSinceEpoch = (int) (msSinceEpoch / ONE_WEEK_IN_MS);
-
-        mDatabaseUpdated = false;
     }
 
     @Override
     public void onCreate(@NonNull final SQLiteDatabase db) {
-        // create the play count table
-        // WARNING: If you change the order of these columns
-        // please update getColumnIndexForWeek
-        StringBuilder builder = new StringBuilder();
-        builder.append("CREATE TABLE IF NOT EXISTS ");
-        builder.append(SongPlayCountColumns.NAME);
-        builder.append("(");
-        builder.append(SongPlayCountColumns.ID);
-        builder.append(" LONG UNIQUE,");
-
-        for (int i = 0; i < NUM_WEEKS; i++) {
-            builder.append(getColumnNameForWeek(i));
-            builder.append(" INT DEFAULT 0,");
-        }
-
-        builder.append(SongPlayCountColumns.LAST_UPDATED_WEEK_INDEX);
-        builder.append(" INT NOT NULL,");
-
-        builder.append(SongPlayCountColumns.PLAY_COUNT_SCORE);
-        builder.append(" REAL DEFAULT 0);");
-
-        db.execSQL(builder.toString());
+        createTable(db);
     }
 
     @Override
     public void onUpgrade(@NonNull final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+        if (oldVersion == VERSION_WEEKLY_COUNTS) {
+            migrateWeeklyPlayCounts(db);
+            return;
+        }
+        if (oldVersion == VERSION_UNINDEXED_SCORES) {
+            createScoreIndex(db);
+            return;
+        }
         db.execSQL("DROP TABLE IF EXISTS " + SongPlayCountColumns.NAME);
         onCreate(db);
     }
@@ -113,6 +100,62 @@ public class SongPlayCountStore extends SQLiteOpenHelper {
         onCreate(db);
     }
 
+    /**
+     * Converts the 52 weekly play counters of every song into its decayed score.
+     */
+    private static void migrateWeeklyPlayCounts(@NonNull final SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + SongPlayCountColumns.NAME + " RENAME TO " + WEEKLY_TABLE_NAME);
+        createTable(db);
+
+        final String[] projection = new String[NUM_WEEKS + 2];
+        projection[0] = SongPlayCountColumns.ID;
+        projection[1] = WEEKLY_LAST_UPDATED_WEEK_INDEX;
+        for (int i = 0; i < NUM_WEEKS; i++) {
+            projection[i + 2] = WEEKLY_PLAY_COUNT + i;
+        }
+
+        try (Cursor cursor = db.query(WEEKLY_TABLE_NAME, projection, null, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                final int[] playCounts = new int[NUM_WEEKS];
+                final ContentValues values = new ContentValues(3);
+                do {
+                    final int lastUpdatedWeek = cursor.getInt(1);
+                    int lastPlayedWeek = -1;
+                    for (int i = 0; i < NUM_WEEKS; i++) {
+                        playCounts[i] = cursor.getInt(i + 2);
+                        if (lastPlayedWeek < 0 && playCounts[i] > 0) {
+                            lastPlayedWeek = i;
+                        }
+                    }
+                    if (lastPlayedWeek < 0) continue;
+
+                    values.put(SongPlayCountColumns.ID, cursor.getLong(0));
+                    values.put(SongPlayCountColumns.SCORE, PlayCountScorer.fromWeeklyPlayCounts(playCounts, lastUpdatedWeek));
+                    values.put(SongPlayCountColumns.LAST_PLAYED, (lastUpdatedWeek - lastPlayedWeek) * PlayCountScorer.ONE_WEEK_MILLIS);
+                    db.insert(SongPlayCountColumns.NAME, null, values);
+                } while (cursor.moveToNext());
+            }
+        }
+
+        db.execSQL("DROP TABLE IF EXISTS " + WEEKLY_TABLE_NAME);
+    }
+
+    private static void createTable(@NonNull final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + SongPlayCountColumns.NAME + " ("
+                + SongPlayCountColumns.ID + " LONG UNIQUE,"
+                + SongPlayCountColumns.SCORE + " REAL NOT NULL DEFAULT 0,"
+                + SongPlayCountColumns.LAST_PLAYED + " LONG NOT NULL);");
+        createScoreIndex(db);
+    }
+
+    /**
+     * Lets the top tracks and the removal of forgotten songs read just the rows they need, in order.
+     */
+    private static void createScoreIndex(@NonNull final SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + SCORE_INDEX_NAME + " ON " + SongPlayCountColumns.NAME
+                + "(" + SongPlayCountColumns.SCORE + ")");
+    }
+
     /**
      * @param context The {@link Context} to use
      * @return A new instance of this class.
@@ -135,133 +178,47 @@ public class SongPlayCountStore extends SQLiteOpenHelper {
             return;
         }
 
-        final SQLiteDatabase database = getWritableDatabase();
-        updateExistingRow(database, songId, true);
+        final long now = System.currentTimeMillis();
+        bumpPlayCounts(new long[]{songId}, new double[]{PlayCountScorer.getPlayWeight(now)}, new long[]{now}, 1);
     }
 
     /**
-     * This creates a new entry that indicates a song has been played once as well as its score
+     * Bumps the play counts of several songs in one transaction.
      *
-     * @param database a write able database
-     * @param songId   the id of the track
+     * @param songIds    the played songs, each one at most once
+     * @param weights    what their plays add to their scores, the sum of {@link PlayCountScorer#getPlayWeight(long)} of
+     *                   every play
+     * @param lastPlayed when each of them was last played
+     * @param count      the number of songs in the arrays
      */
-    private void createNewPlayedEntry(@NonNull final SQLiteDatabase database, final long songId) {
-        // no row exists, create a new one
-        float newScore = getScoreMultiplierForWeek(0);
-        int newPlayCount = 1;
-
-        final ContentValues values = new ContentValues(3);
-        values.put(SongPlayCountColumns.ID, songId);
-        values.put(SongPlayCountColumns.PLAY_COUNT_SCORE, newScore);
-        values.put(SongPlayCountColumns.LAST_UPDATED_WEEK_INDEX, mNumberOfWeeksSinceEpoch);
-        values.put(getColumnNameForWeek(0), newPlayCount);
-
-        database.insert(SongPlayCountColumns.NAME, null, values);
-    }
-
-    /**
-     * This function will take a song entry and update it to the latest week and increase the count
-     * for the current week by 1 if necessary
-     *
-     * @param database  a writeable database
-     * @param id        the id of the track to bump
-     * @param bumpCount whether to bump the current's week play count by 1 and adjust the score
-     */
-    private void updateExistingRow(@NonNull final SQLiteDatabase database, final long id, boolean bumpCount) {
-        String stringId = String.valueOf(id);
-
-        // begin the transaction
+    public void bumpPlayCounts(@NonNull final long[] songIds, @NonNull final double[] weights, @NonNull final long[] lastPlayed, final int count) {
+        final SQLiteDatabase database = getWritableDatabase();
         database.beginTransaction();
 
-        // get the cursor of this content inside the transaction
-        final Cursor cursor = database.query(SongPlayCountColumns.NAME, null, WHERE_ID_EQUALS,
-                new String[]{stringId}, null, null, null);
-
-        // if we have a result
-        if (cursor != null && cursor.moveToFirst()) {
-            // figure how many weeks since we last updated
-            int lastUpdatedIndex = cursor.getColumnIndex(SongPlayCountColumns.LAST_UPDATED_WEEK_INDEX);
-            int lastUpdatedWeek = cursor.getInt(lastUpdatedIndex);
-            int weekDiff = mNumberOfWeeksSinceEpoch - lastUpdatedWeek;
-
-            // if it's more than the number of weeks we track, delete it and create a new entry
-            if (Math.abs(weekDiff) >= NUM_WEEKS) {
-                // this entry needs to be dropped since it is too outdated
-                deleteEntry(database, stringId);
-                if (bumpCount) {
-                    createNewPlayedEntry(database, id);
-                }
-            } else if (weekDiff != 0) {
-                // else, shift the weeks
-                int[] playCounts = new int[NUM_WEEKS];
-
-                if (weekDiff > 0) {
-                    // time is shifted forwards
-                    for (int i = 0; i < NUM_WEEKS - weekDiff; i++) {
-                        playCounts[i + weekDiff] = cursor.getInt(getColumnIndexForWeek(i));
-                    }
-                } else if (weekDiff < 0) {
-                    // time is shifted backwards (by user) - nor typical behavior but we
-                    // will still handle it
-
-                    // since weekDiff is -ve, NUM_WEEKS + weekDiff is the real # of weeks we have to
-                    // transfer.  Then we transfer the old week i - weekDiff to week i
-                    // for example if the user shifted back 2 weeks, ie -2, then for 0 to
-                    // NUM_WEEKS + (-2) we set the new week i = old week i - (-2) or i+2
-                    for (int i = 0; i < NUM_WEEKS + weekDiff; i++) {
-                        playCounts[i] = cursor.getInt(getColumnIndexForWeek(i - weekDiff));
-                    }
+        // the song has been played before most of the time, which is a single update of its row
+        final SQLiteStatement statement = database.compileStatement(BUMP_STATEMENT);
+        try {
+            for (int i = 0; i < count; i++) {
+                if (songIds[i] == -1) continue;
+
+                statement.bindDouble(1, weights[i]);
+                statement.bindLong(2, lastPlayed[i]);
+                statement.bindLong(3, songIds[i]);
+                if (statement.executeUpdateDelete() > 0) {
+                    continue;
                 }
 
-                // bump the count
-                if (bumpCount) {
-                    playCounts[0]++;
-                }
-
-                float score = calculateScore(playCounts);
-
-                // if the score is non-existant, then delete it
-                if (score < .01f) {
-                    deleteEntry(database, stringId);
-                } else {
-                    // create the content values
-                    ContentValues values = new ContentValues(NUM_WEEKS + 2);
-                    values.put(SongPlayCountColumns.LAST_UPDATED_WEEK_INDEX, mNumberOfWeeksSinceEpoch);
-                    values.put(SongPlayCountColumns.PLAY_COUNT_SCORE, score);
-
-                    for (int i = 0; i < NUM_WEEKS; i++) {
-                        values.put(getColumnNameForWeek(i), playCounts[i]);
-                    }
-
-                    // update the entry
-                    database.update(SongPlayCountColumns.NAME, values, WHERE_ID_EQUALS,
-                            new String[]{stringId});
-                }
-            } else if (bumpCount) {
-                // else no shifting, just update the scores
-                ContentValues values = new ContentValues(2);
-
-                // increase the score by a single score amount
-                int scoreIndex = cursor.getColumnIndex(SongPlayCountColumns.PLAY_COUNT_SCORE);
-                float score = cursor.getFloat(scoreIndex) + getScoreMultiplierForWeek(0);
-                values.put(SongPlayCountColumns.PLAY_COUNT_SCORE, score);
-
-                // increase the play count by 1
-                values.put(getColumnNameForWeek(0), cursor.getInt(getColumnIndexForWeek(0)) + 1);
-
-                // update the entry
-                database.update(SongPlayCountColumns.NAME, values, WHERE_ID_EQUALS,
-                        new String[]{stringId});
+                final ContentValues values = new ContentValues(3);
+                values.put(SongPlayCountColumns.ID, songIds[i]);
+                values.put(SongPlayCountColumns.SCORE, weights[i]);
+                values.put(SongPlayCountColumns.LAST_PLAYED, lastPlayed[i]);
+                database.insert(SongPlayCountColumns.NAME, null, values);
             }
-
-            cursor.close();
-        } else if (bumpCount) {
-            // if we have no existing results, create a new one
-            createNewPlayedEntry(database, id);
+            database.setTransactionSuccessful();
+        } finally {
+            statement.close();
+            database.endTransaction();
         }
-
-        database.setTransactionSuccessful();
-        database.endTransaction();
     }
 
     public void clear() {
@@ -270,56 +227,36 @@ public class SongPlayCountStore extends SQLiteOpenHelper {
     }
 
     /**
-     * Gets a cursor containing the top songs played.  Note this only returns songs that have been
-     * played at least once in the past NUM_WEEKS
+     * Gets a cursor containing the top songs played, best first.
      *
      * @param numResults number of results to limit by.  If <= 0 it returns all results
      * @return the top tracks
      */
     public Cursor getTopPlayedResults(int numResults) {
-        updateResults();
+        removeForgottenSongs();
 
         final SQLiteDatabase database = getReadableDatabase();
+        final String minStoredScore = String.valueOf(PlayCountScorer.toStoredScore(PlayCountScorer.MIN_SCORE, System.currentTimeMillis()));
+        // the stored scores all decay by the same factor, their order is the order of the current scores
         return database.query(SongPlayCountColumns.NAME, new String[]{SongPlayCountColumns.ID},
-                null, null, null, null, SongPlayCountColumns.PLAY_COUNT_SCORE + " DESC",
+                WHERE_SCORE_AT_LEAST, new String[]{minStoredScore}, null, null, SongPlayCountColumns.SCORE + " DESC",
                 (numResults <= 0 ? null : String.valueOf(numResults)));
     }
 
     /**
-     * This updates all the results for the getTopPlayedResults so that we can get an
-     * accurate list of the top played results
+     * Drops all songs whose score decayed below {@link PlayCountScorer#MIN_SCORE}, once per process.
+     * A single range delete on the score index, the other rows don't need to be touched.
      */
-    private synchronized void updateResults() {
-        if (mDatabaseUpdated) {
+    private synchronized void removeForgottenSongs() {
+        if (mForgottenSongsRemoved) {
             return;
         }
 
         final SQLiteDatabase database = getWritableDatabase();
+        final double minStoredScore = PlayCountScorer.toStoredScore(PlayCountScorer.MIN_SCORE, System.currentTimeMillis());
+        database.delete(SongPlayCountColumns.NAME, WHERE_SCORE_BELOW, new String[]{String.valueOf(minStoredScore)});
 
-        database.beginTransaction();
-
-        int oldestWeekWeCareAbout = mNumberOfWeeksSinceEpoch - NUM_WEEKS + 1;
-        // delete rows we don't care about anymore
-        database.delete(SongPlayCountColumns.NAME, SongPlayCountColumns.LAST_UPDATED_WEEK_INDEX
-                + " < " + oldestWeekWeCareAbout, null);
-
-        // get the remaining rows
-        Cursor cursor = database.query(SongPlayCountColumns.NAME,
-                new String[]{SongPlayCountColumns.ID},
-                null, null, null, null, null);
-
-        if (cursor != null && cursor.moveToFirst()) {
-            // for each row, update it
-            do {
-                updateExistingRow(database, cursor.getLong(0), false);
-            } while (cursor.moveToNext());
-
-            cursor.close();
-        }
-
-        mDatabaseUpdated = true;
-        database.setTransactionSuccessful();
-        database.endTransaction();
+        mForgottenSongsRemoved = true;
     }
 
     /**
@@ -327,71 +264,7 @@ public class SongPlayCountStore extends SQLiteOpenHelper {
      */
     public void removeItem(final long songId) {
         final SQLiteDatabase database = getWritableDatabase();
-        deleteEntry(database, String.valueOf(songId));
-    }
-
-    /**
-     * Deletes the entry
-     *
-     * @param database database to use
-     * @param stringId id to delete
-     */
-    private void deleteEntry(@NonNull final SQLiteDatabase database, final String stringId) {
-        database.delete(SongPlayCountColumns.NAME, WHERE_ID_EQUALS, new String[]{stringId});
-    }
-
-    /**
-     * Calculates the score of the song given the play counts
-     *
-     * @param playCounts an array of the # of times a song has been played for each week
-     *                   where playCounts[N] is the # of times it was played N weeks ago
-     * @return the score
-     */
-    private static float calculateScore(@Nullable final int[] playCounts) {
-        if (playCounts == null) {
-            return 0;
-        }
-
-        float score = 0;
-        for (int i = 0; i < Math.min(playCounts.length, NUM_WEEKS); i++) {
-            score += playCounts[i] * getScoreMultiplierForWeek(i);
-        }
-
-        return score;
-    }
-
-    /**
-     * Gets the column name for each week #
-     *
-     * @param week number
-     * @return the column name
-     */
-    @NonNull
-    private static String getColumnNameForWeek(final int week) {
-        return SongPlayCountColumns.WEEK_PLAY_COUNT + week;
-    }
-
-    /**
-     * Gets the score multiplier for each week
-     *
-     * @param week number
-     * @return the multiplier to apply
-     */
-    private static float getScoreMultiplierForWeek(final int week) {
-        return sInterpolator.getInterpolation(1 - (week / (float) NUM_WEEKS)) * INTERPOLATOR_HEIGHT
-                + INTERPOLATOR_BASE;
-    }
-
-    /**
-     * For some performance gain, return a static value for the column index for a week
-     * WARNING: This function assumes you have selected all columns for it to work
-     *
-     * @param week number
-     * @return column index of that week
-     */
-    private static int getColumnIndexForWeek(final int week) {
-        // ID, followed by the weeks columns
-        return 1 + week;
+        database.delete(SongPlayCountColumns.NAME, WHERE_ID_EQUALS, new String[]{String.valueOf(songId)});
     }
 
     public interface SongPlayCountColumns {
@@ -400,10 +273,9 @@ public class SongPlayCountStore extends SQLiteOpenHelper {
 
         String ID = "song_id";
 
-        String WEEK_PLAY_COUNT = "week";
-
-        String LAST_UPDATED_WEEK_INDEX = "week_index";
+        // see PlayCountScorer
+        String SCORE = "score";
 
-        String PLAY_COUNT_SCORE = "play_count_score";
+        String LAST_PLAYED = "last_played";
     }
 }
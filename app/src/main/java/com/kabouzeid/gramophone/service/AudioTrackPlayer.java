@@ -0,0 +1,987 @@
+package com.kabouzeid.gramophone.service;
+
+import android.content.Context;
+import android.content.Intent;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.audiofx.AudioEffect;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+import android.widget.Toast;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kabouzeid.gramophone.service.playback.MediaCodecDecoder;
+import com.kabouzeid.gramophone.service.playback.PcmDecoder;
+import com.kabouzeid.gramophone.service.playback.PcmRingBuffer;
+import com.kabouzeid.gramophone.service.playback.Playback;
+import com.kabouzeid.gramophone.service.playback.WavDecoder;
+import com.kabouzeid.gramophone.util.PreferenceUtil;
+
+import org.frknkrc44.frigraph.R;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays tracks through a single {@link AudioTrack} and decodes them itself, instead of leaving both to
+ * {@link android.media.MediaPlayer}.
+ * <p/>
+ * A decoding thread writes the samples of the current track, followed directly by those of the next one, into a
+ * {@link PcmRingBuffer} that an output thread copies to the {@link AudioTrack}. Track changes are therefore sample
+ * accurate, and seeking to a part of the current track that is already decoded only drops the samples before it.
+ * <p/>
+ * Positions are counted in frames of that stream of samples since it was last reset, which is when a track is opened or
+ * a seek has to decode again. A next track is only stitched on if it has the same format as the current one, otherwise
+ * the current track ends and the next one is opened like any other.
+ * <p/>
+ * A track that isn't already decoded as the next one is opened on a thread of its own, which is reported through
+ * {@link Playback.PlaybackCallbacks#onTrackPrepared(boolean)}. Both workers sleep while they have nothing to do, until
+ * the other one or a call of the player wakes them up.
+ */
+public class AudioTrackPlayer implements Playback {
+    public static final String TAG = AudioTrackPlayer.class.getSimpleName();
+
+    // about three seconds of stereo at 44.1 kHz, that much of the current track can be skipped without decoding again
+    private static final int RING_BUFFER_SAMPLES = 1 << 18;
+    private static final int CHUNK_FRAMES = 1024;
+
+    private static final int DEFAULT_SAMPLE_RATE = 44100;
+    private static final int DEFAULT_CHANNEL_COUNT = 2;
+
+    private final Context context;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final PcmRingBuffer mRing = new PcmRingBuffer(RING_BUFFER_SAMPLES);
+
+    // guards the state shared with the worker threads, which never wait for anything while holding it
+    private final Object mStateLock = new Object();
+
+    @Nullable
+    private AudioTrack mAudioTrack;
+    private int mSampleRate;
+    private int mChannelCount;
+    private volatile int mAudioSessionId = AudioManager.AUDIO_SESSION_ID_GENERATE;
+    private int mOpenedAudioEffectSessionId = -1;
+    private float mVolume = 1f;
+
+    // the track that is heard
+    @Nullable
+    private PcmDecoder mCurrentDecoder;
+    // the track that is decoded, the next one once it is stitched on
+    @Nullable
+    private PcmDecoder mDecoder;
+    @Nullable
+    private String mStitchedPath;
+    @Nullable
+    private String mNextPath;
+    // owned by the decoding thread while it runs
+    @Nullable
+    private PcmDecoder mNextDecoder;
+    @Nullable
+    private String mNextDecoderPath;
+
+    private long mTrackStartFrame;
+    private int mTrackStartMillis;
+    // the frame that the audio track's playback head counts from
+    private long mHeadBase;
+    private long mBoundaryFrame = -1;
+    private long mEndFrame = -1;
+    private boolean mDrained;
+
+    // opens the current track, while it runs the track is preparing
+    @Nullable
+    private volatile Opener mOpener;
+    private volatile boolean mStartWhenPrepared;
+    private volatile int mSeekWhenPrepared = -1;
+
+    @Nullable
+    private volatile Worker mDecodeThread;
+    @Nullable
+    private volatile Worker mOutputThread;
+
+    private volatile boolean mIsInitialized = false;
+    private volatile boolean mPlaying = false;
+
+    @Nullable
+    private Playback.PlaybackCallbacks callbacks;
+
+    public AudioTrackPlayer(final Context context) {
+        this.context = context;
+        // the audio session is there before the first track
+        createAudioTrack(DEFAULT_SAMPLE_RATE, DEFAULT_CHANNEL_COUNT);
+    }
+
+    /**
+     * @param path The path of the file, or the content uri of the track you want to play
+     * @return True if the track is opened or being opened, false if it can't be played
+     */
+    @Override
+    public synchronized boolean setDataSource(@NonNull final String path) {
+        final long start = PlaybackLatencyStats.startTiming();
+        final boolean initialized = setDataSourceImpl(path);
+        PlaybackLatencyStats.getInstance().record(PlaybackLatencyStats.Stage.SET_DATA_SOURCE, start, path);
+        return initialized;
+    }
+
+    private boolean setDataSourceImpl(@NonNull final String path) {
+        stopWorkers();
+        cancelOpening();
+        mIsInitialized = false;
+        mPlaying = false;
+        synchronized (mStateLock) {
+            mNextPath = null;
+        }
+
+        final PcmDecoder decoder = takeDecoderFor(path);
+        closeDecoders();
+        if (decoder != null) {
+            return openStream(decoder, 0);
+        }
+        if (context == null) {
+            return false;
+        }
+        // opening a track reads the storage, the thread skipping to it doesn't wait for that
+        mOpener = new Opener(path);
+        mOpener.start();
+        mIsInitialized = true;
+        return true;
+    }
+
+    /**
+     * Called by the opening thread once it is done.
+     */
+    private synchronized void onOpened(@NonNull final Opener opener, @Nullable final PcmDecoder decoder) {
+        if (opener != mOpener) {
+            // replaced by another track in the meantime
+            closeQuietly(decoder);
+            return;
+        }
+        mOpener = null;
+        final boolean prepared = decoder != null && openStream(decoder, Math.max(mSeekWhenPrepared, 0));
+        final boolean startWhenPrepared = mStartWhenPrepared;
+        mStartWhenPrepared = false;
+        mSeekWhenPrepared = -1;
+        if (!prepared) {
+            mIsInitialized = false;
+        }
+        // posted before starting, so it comes before the track changes
+        runOnMainThread(() -> {
+            if (callbacks != null)
+                callbacks.onTrackPrepared(prepared);
+        });
+        if (prepared && startWhenPrepared) {
+            start();
+        }
+    }
+
+    private void cancelOpening() {
+        mOpener = null;
+        mStartWhenPrepared = false;
+        mSeekWhenPrepared = -1;
+    }
+
+    /**
+     * Starts decoding the track at {@code trackMillis}. The workers must be stopped.
+     */
+    private boolean openStream(@NonNull final PcmDecoder decoder, final int trackMillis) {
+        if (!createAudioTrack(decoder.getSampleRate(), decoder.getChannelCount())) {
+            closeQuietly(decoder);
+            return false;
+        }
+        if (trackMillis > 0) {
+            try {
+                decoder.seekTo(trackMillis);
+            } catch (IOException e) {
+                Log.e(TAG, "seek()", e);
+            }
+        }
+        synchronized (mStateLock) {
+            mCurrentDecoder = decoder;
+            mDecoder = decoder;
+            resetStream(trackMillis);
+        }
+        mIsInitialized = true;
+        openAudioEffectSession();
+        startWorkers();
+        return true;
+    }
+
+    /**
+     * Skipping to the track that is already decoded as the next one doesn't have to open it again.
+     */
+    @Nullable
+    private PcmDecoder takeDecoderFor(@NonNull final String path) {
+        PcmDecoder decoder = null;
+        if (path.equals(mStitchedPath)) {
+            decoder = mDecoder;
+            mDecoder = mCurrentDecoder;
+        } else if (path.equals(mNextDecoderPath)) {
+            decoder = mNextDecoder;
+        } else {
+            return null;
+        }
+        if (decoder == mNextDecoder) {
+            mNextDecoder = null;
+        }
+        mNextDecoderPath = null;
+        mStitchedPath = null;
+        try {
+            if (decoder != null) decoder.seekTo(0);
+        } catch (IOException e) {
+            closeQuietly(decoder);
+            decoder = null;
+        }
+        return decoder;
+    }
+
+    /**
+     * Called on the opening and on the decoding thread.
+     */
+    @Nullable
+    PcmDecoder openDecoder(@NonNull final String path) {
+        if (context == null) {
+            return null;
+        }
+        try {
+            FileChannel channel = openChannel(path);
+            try {
+                if (WavDecoder.isWav(channel)) {
+                    return new WavDecoder(channel);
+                }
+            } catch (IOException e) {
+                // not a PCM WAV file, maybe the platform can play it
+                Log.i(TAG, "openDecoder: " + e.getMessage());
+            }
+            channel.close();
+            return new MediaCodecDecoder(context, path);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Can't open " + path, e);
+            return null;
+        }
+    }
+
+    @NonNull
+    private FileChannel openChannel(@NonNull final String path) throws IOException {
+        if (path.startsWith("content://")) {
+            final ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(Uri.parse(path), "r");
+            if (descriptor == null) {
+                throw new IOException("Can't open " + path);
+            }
+            return new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel();
+        }
+        return new FileInputStream(new File(path)).getChannel();
+    }
+
+    /**
+     * Creates the audio track for a format unless the current one already has it, the audio session stays the same.
+     */
+    private boolean createAudioTrack(final int sampleRate, final int channelCount) {
+        if (mAudioTrack != null && mSampleRate == sampleRate && mChannelCount == channelCount) {
+            return true;
+        }
+        releaseAudioTrack();
+        try {
+            final AudioTrack track = buildAudioTrack(sampleRate, channelCount, mAudioSessionId);
+            if (track == null) {
+                return false;
+            }
+            track.setVolume(mVolume);
+            mAudioTrack = track;
+            mSampleRate = sampleRate;
+            mChannelCount = channelCount;
+            mAudioSessionId = track.getAudioSessionId();
+            return true;
+        } catch (@NonNull IllegalArgumentException | UnsupportedOperationException e) {
+            Log.e(TAG, "createAudioTrack()", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return a new audio track in the audio session, null if it can't play the format
+     */
+    @Nullable
+    AudioTrack buildAudioTrack(final int sampleRate, final int channelCount, final int audioSessionId) {
+        final int channelMask = channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        final int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            Log.e(TAG, "Unsupported format: " + sampleRate + " Hz, " + channelCount + " channels");
+            return null;
+        }
+        final AudioTrack track = new AudioTrack(
+                new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build(),
+                new AudioFormat.Builder()
+                        .setSampleRate(sampleRate)
+                        .setChannelMask(channelMask)
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .build(),
+                minBufferSize * 2, AudioTrack.MODE_STREAM, audioSessionId);
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            track.release();
+            return null;
+        }
+        return track;
+    }
+
+    private void releaseAudioTrack() {
+        if (mAudioTrack != null) {
+            mAudioTrack.release();
+            mAudioTrack = null;
+        }
+    }
+
+    private void openAudioEffectSession() {
+        if (mOpenedAudioEffectSessionId == mAudioSessionId) {
+            return;
+        }
+        mOpenedAudioEffectSessionId = mAudioSessionId;
+        final Intent intent = new Intent(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION);
+        intent.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, mAudioSessionId);
+        intent.putExtra(AudioEffect.EXTRA_PACKAGE_NAME, context.getPackageName());
+        intent.putExtra(AudioEffect.EXTRA_CONTENT_TYPE, AudioEffect.CONTENT_TYPE_MUSIC);
+        context.sendBroadcast(intent);
+    }
+
+    /**
+     * Set the track to play right after the current one ends.
+     *
+     * @param path The path of the file, or the content uri of the track you want to play
+     */
+    @Override
+    public synchronized void setNextDataSource(@Nullable final String path) {
+        final long start = PlaybackLatencyStats.startTiming();
+        setNextDataSourceImpl(path);
+        PlaybackLatencyStats.getInstance().record(PlaybackLatencyStats.Stage.SET_NEXT_DATA_SOURCE, start, path);
+    }
+
+    private void setNextDataSourceImpl(@Nullable String path) {
+        if (context == null) {
+            return;
+        }
+        if (path != null && !isGaplessPlayback()) {
+            path = null;
+        }
+        final boolean restitch;
+        synchronized (mStateLock) {
+            if (path == null ? mNextPath == null : path.equals(mNextPath)) {
+                return;
+            }
+            mNextPath = path;
+            // the next track is already being decoded, the samples have to go
+            restitch = mStitchedPath != null;
+        }
+        if (restitch) {
+            seekImpl(position(), false);
+        } else if (mDecodeThread != null) {
+            LockSupport.unpark(mDecodeThread);
+        }
+    }
+
+    boolean isGaplessPlayback() {
+        return PreferenceUtil.getInstance(context).gaplessPlayback();
+    }
+
+    /**
+     * Sets the callbacks
+     *
+     * @param callbacks The callbacks to use
+     */
+    @Override
+    public void setCallbacks(@Nullable Playback.PlaybackCallbacks callbacks) {
+        this.callbacks = callbacks;
+    }
+
+    /**
+     * @return True if the player is ready to go, false otherwise
+     */
+    @Override
+    public boolean isInitialized() {
+        return mIsInitialized;
+    }
+
+    /**
+     * Starts or resumes playback.
+     */
+    @Override
+    public synchronized boolean start() {
+        if (mOpener != null) {
+            mStartWhenPrepared = true;
+            return true;
+        }
+        if (!mIsInitialized || mAudioTrack == null) {
+            return false;
+        }
+        final long start = PlaybackLatencyStats.startTiming();
+        final boolean ended;
+        synchronized (mStateLock) {
+            ended = mDrained;
+        }
+        if (ended) {
+            // like a media player after it completed, start over
+            seekImpl(0, false);
+        }
+        try {
+            mAudioTrack.play();
+        } catch (IllegalStateException e) {
+            return false;
+        }
+        mPlaying = true;
+        if (mOutputThread != null) {
+            LockSupport.unpark(mOutputThread);
+        }
+        PlaybackLatencyStats.getInstance().record(PlaybackLatencyStats.Stage.START, start);
+        return true;
+    }
+
+    /**
+     * Stops playback and closes the current track.
+     */
+    @Override
+    public synchronized void stop() {
+        stopWorkers();
+        cancelOpening();
+        mIsInitialized = false;
+        mPlaying = false;
+        closeDecoders();
+        synchronized (mStateLock) {
+            mNextPath = null;
+            resetStream(0);
+        }
+        // the audio effect session may be closed now, announce it again with the next track
+        mOpenedAudioEffectSessionId = -1;
+    }
+
+    /**
+     * Releases the audio track, the player can't be used afterwards.
+     */
+    @Override
+    public synchronized void release() {
+        stop();
+        releaseAudioTrack();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Pauses playback. Call start() to resume.
+     */
+    @Override
+    public synchronized boolean pause() {
+        mStartWhenPrepared = false;
+        if (mAudioTrack == null) {
+            return false;
+        }
+        mPlaying = false;
+        try {
+            mAudioTrack.pause();
+            return true;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mIsInitialized && (mPlaying || mStartWhenPrepared);
+    }
+
+    /**
+     * @return The duration in milliseconds
+     */
+    @Override
+    public int duration() {
+        if (!mIsInitialized || mOpener != null) {
+            return -1;
+        }
+        synchronized (mStateLock) {
+            return mCurrentDecoder != null ? mCurrentDecoder.getDurationMillis() : -1;
+        }
+    }
+
+    /**
+     * @return The current position in milliseconds
+     */
+    @Override
+    public int position() {
+        if (!mIsInitialized) {
+            return -1;
+        }
+        if (mOpener != null) {
+            return Math.max(mSeekWhenPrepared, 0);
+        }
+        synchronized (mStateLock) {
+            if (mAudioTrack == null || mCurrentDecoder == null) {
+                return -1;
+            }
+            final long frames = getPlayedFrame(mAudioTrack) - mTrackStartFrame;
+            final long millis = mTrackStartMillis + Math.max(0, frames) * 1000 / mSampleRate;
+            return (int) Math.min(millis, mCurrentDecoder.getDurationMillis());
+        }
+    }
+
+    /**
+     * @param whereto The offset in milliseconds from the start to seek to
+     * @return The offset in milliseconds from the start to seek to
+     */
+    @Override
+    public synchronized int seek(final int whereto) {
+        if (!mIsInitialized) {
+            return -1;
+        }
+        if (mOpener != null) {
+            mSeekWhenPrepared = whereto;
+            return whereto;
+        }
+        final long start = PlaybackLatencyStats.startTiming();
+        final int position = seekImpl(whereto, true);
+        PlaybackLatencyStats.getInstance().record(PlaybackLatencyStats.Stage.SEEK, start);
+        return position;
+    }
+
+    private int seekImpl(int whereto, final boolean allowSkip) {
+        final PcmDecoder current = mCurrentDecoder;
+        if (current == null || mAudioTrack == null) {
+            return -1;
+        }
+        whereto = Math.max(0, Math.min(whereto, current.getDurationMillis()));
+        if (allowSkip && skipTo(whereto)) {
+            return whereto;
+        }
+
+        stopWorkers();
+        synchronized (mStateLock) {
+            if (mDecoder != current) {
+                // the next track is decoded again once this one ends
+                closeQuietly(mDecoder);
+                mDecoder = current;
+                mStitchedPath = null;
+                mNextDecoderPath = null;
+            }
+            resetStream(whereto);
+        }
+        try {
+            current.seekTo(whereto);
+        } catch (IOException e) {
+            Log.e(TAG, "seek()", e);
+        }
+        startWorkers();
+        if (mPlaying) {
+            mAudioTrack.play();
+        }
+        return whereto;
+    }
+
+    /**
+     * Seeks to a part of the current track that is already decoded, without decoding it again.
+     *
+     * @return false if it isn't decoded yet or anymore
+     */
+    private boolean skipTo(final int whereto) {
+        final long target;
+        synchronized (mStateLock) {
+            target = mTrackStartFrame + (long) (whereto - mTrackStartMillis) * mSampleRate / 1000;
+            if (mDrained || mBoundaryFrame >= 0 && target >= mBoundaryFrame
+                    || target * mChannelCount > mRing.getWritePosition()) {
+                return false;
+            }
+        }
+
+        stopWorker(mOutputThread);
+        mOutputThread = null;
+        final boolean skipped;
+        synchronized (mStateLock) {
+            // samples can only be dropped from the buffer, what is in the audio track already has to go as well
+            skipped = mRing.skipTo(target * mChannelCount);
+            if (skipped) {
+                mAudioTrack.flush();
+                mHeadBase = target;
+            }
+        }
+        if (!skipped) {
+            return false;
+        }
+        // the skipped samples made room in the buffer
+        LockSupport.unpark(mDecodeThread);
+        mOutputThread = new Worker(false);
+        mOutputThread.start();
+        if (mPlaying) {
+            mAudioTrack.play();
+        }
+        return true;
+    }
+
+    /**
+     * Starts the stream over at {@code trackMillis} of the current track. The workers must be stopped.
+     */
+    private void resetStream(final int trackMillis) {
+        if (mAudioTrack != null) {
+            mAudioTrack.flush();
+        }
+        mRing.reset();
+        mHeadBase = 0;
+        mTrackStartFrame = 0;
+        mTrackStartMillis = trackMillis;
+        mBoundaryFrame = -1;
+        mEndFrame = -1;
+        mDrained = false;
+    }
+
+    @Override
+    public synchronized boolean setVolume(final float vol) {
+        mVolume = vol;
+        return mAudioTrack != null && mAudioTrack.setVolume(vol) == AudioTrack.SUCCESS;
+    }
+
+    /**
+     * Sets the audio session ID, only possible while no track is open.
+     *
+     * @param sessionId The audio session ID
+     */
+    @Override
+    public synchronized boolean setAudioSessionId(final int sessionId) {
+        if (mIsInitialized) {
+            return false;
+        }
+        final int sampleRate = mAudioTrack != null ? mSampleRate : DEFAULT_SAMPLE_RATE;
+        final int channelCount = mAudioTrack != null ? mChannelCount : DEFAULT_CHANNEL_COUNT;
+        releaseAudioTrack();
+        mAudioSessionId = sessionId;
+        return createAudioTrack(sampleRate, channelCount);
+    }
+
+    /**
+     * @return The current audio session ID.
+     */
+    @Override
+    public int getAudioSessionId() {
+        return mAudioSessionId;
+    }
+
+    private void startWorkers() {
+        mDecodeThread = new Worker(true);
+        mOutputThread = new Worker(false);
+        mDecodeThread.start();
+        mOutputThread.start();
+    }
+
+    private void stopWorkers() {
+        stopWorker(mOutputThread);
+        stopWorker(mDecodeThread);
+        mOutputThread = null;
+        mDecodeThread = null;
+    }
+
+    private void stopWorker(@Nullable final Worker worker) {
+        if (worker == null) return;
+        worker.stopped = true;
+        LockSupport.unpark(worker);
+        if (!worker.decoding && mAudioTrack != null) {
+            // a blocking write returns once the track is paused
+            mAudioTrack.pause();
+        }
+        boolean interrupted = false;
+        while (worker.isAlive()) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeDecoders() {
+        synchronized (mStateLock) {
+            if (mDecoder != mCurrentDecoder) {
+                closeQuietly(mDecoder);
+            }
+            closeQuietly(mCurrentDecoder);
+            closeQuietly(mNextDecoder);
+            mCurrentDecoder = null;
+            mDecoder = null;
+            mNextDecoder = null;
+            mNextDecoderPath = null;
+            mStitchedPath = null;
+        }
+    }
+
+    private static void closeQuietly(@Nullable final PcmDecoder decoder) {
+        if (decoder == null) return;
+        try {
+            decoder.close();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "close()", e);
+        }
+    }
+
+    private long getPlayedFrame(@NonNull final AudioTrack track) {
+        return mHeadBase + (track.getPlaybackHeadPosition() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Decoding thread: fills the ring buffer with the current track and then with the next one.
+     */
+    private void decode(@NonNull final Worker worker) {
+        final short[] chunk = new short[CHUNK_FRAMES * mChannelCount];
+        int offset = 0;
+        int length = 0;
+        while (!worker.stopped) {
+            if (length == 0) {
+                updateNextDecoder();
+                int read;
+                try {
+                    read = mDecoder.read(chunk, 0, chunk.length);
+                } catch (IOException | RuntimeException e) {
+                    // the rest of the track is skipped
+                    Log.e(TAG, "decode()", e);
+                    read = -1;
+                }
+                if (read < 0) {
+                    if (!onEndOfTrackDecoded()) {
+                        // the output drains the buffer now, setting a next track wakes this up again
+                        LockSupport.unpark(mOutputThread);
+                        LockSupport.park(this);
+                    }
+                    continue;
+                }
+                offset = 0;
+                length = read;
+            }
+            // the free space is always whole frames, so a frame is never split
+            final int written = mRing.write(chunk, offset, length);
+            offset += written;
+            length -= written;
+            if (written > 0) {
+                LockSupport.unpark(mOutputThread);
+            } else {
+                // the buffer is full, the output wakes this up once it read from it
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * Opens the requested next track ahead of time, on the decoding thread.
+     */
+    private void updateNextDecoder() {
+        final String path;
+        final PcmDecoder previous;
+        synchronized (mStateLock) {
+            path = mNextPath;
+            if (path == null ? mNextDecoderPath == null : path.equals(mNextDecoderPath)) {
+                return;
+            }
+            previous = mNextDecoder;
+            mNextDecoder = null;
+            mNextDecoderPath = null;
+        }
+        closeQuietly(previous);
+
+        final long start = PlaybackLatencyStats.startTiming();
+        PcmDecoder decoder = path != null ? openDecoder(path) : null;
+        if (decoder != null) {
+            PlaybackLatencyStats.getInstance().record(PlaybackLatencyStats.Stage.PREPARE_NEXT, start, path);
+        }
+        if (decoder != null && (decoder.getSampleRate() != mSampleRate || decoder.getChannelCount() != mChannelCount)) {
+            // can't share the audio track, it is opened once the current track ended
+            closeQuietly(decoder);
+            decoder = null;
+        }
+        synchronized (mStateLock) {
+            mNextDecoder = decoder;
+            mNextDecoderPath = path;
+        }
+    }
+
+    /**
+     * Called by the decoding thread whenever the track it decodes has no samples left.
+     *
+     * @return whether it continues with the next track
+     */
+    private boolean onEndOfTrackDecoded() {
+        synchronized (mStateLock) {
+            final long frame = mRing.getWritePosition() / mChannelCount;
+            final boolean canStitch = mBoundaryFrame < 0 && !mDrained && mNextDecoder != null
+                    && mNextDecoderPath != null && mNextDecoderPath.equals(mNextPath);
+            if (!canStitch) {
+                mEndFrame = frame;
+                return false;
+            }
+            mDecoder = mNextDecoder;
+            mStitchedPath = mNextDecoderPath;
+            // the path stays, the requested next track is now decoded
+            mNextDecoder = null;
+            mBoundaryFrame = frame;
+            mEndFrame = -1;
+            return true;
+        }
+    }
+
+    /**
+     * Output thread: copies the ring buffer to the audio track, and reports track changes once they are heard.
+     */
+    private void output(@NonNull final Worker worker) {
+        final AudioTrack track = mAudioTrack;
+        final short[] chunk = new short[CHUNK_FRAMES * mChannelCount];
+        int offset = 0;
+        int length = 0;
+        while (!worker.stopped) {
+            if (!mPlaying) {
+                // start() wakes this up
+                LockSupport.park(this);
+                continue;
+            }
+            if (length == 0) {
+                offset = 0;
+                length = mRing.read(chunk, 0, chunk.length);
+                if (length > 0) {
+                    LockSupport.unpark(mDecodeThread);
+                } else if (isDrained()) {
+                    // keeps the track going until the last samples are heard, the silence is flushed after that
+                    Arrays.fill(chunk, (short) 0);
+                    length = chunk.length;
+                }
+            }
+            if (length > 0) {
+                final int written = track.write(chunk, offset, length);
+                if (written < 0) {
+                    onOutputError(written);
+                    return;
+                }
+                offset += written;
+                length -= written;
+            } else {
+                // the decoder is behind, it wakes this up once it wrote to the buffer
+                LockSupport.park(this);
+            }
+            checkPlayedFrame(track);
+        }
+    }
+
+    private boolean isDrained() {
+        synchronized (mStateLock) {
+            if (!mDrained && mEndFrame >= 0 && mRing.getReadPosition() >= mEndFrame * mChannelCount) {
+                mDrained = true;
+            }
+            return mDrained;
+        }
+    }
+
+    private void checkPlayedFrame(@NonNull final AudioTrack track) {
+        PcmDecoder previous = null;
+        boolean wentToNext = false;
+        boolean ended = false;
+        long transitionMillis = 0;
+        synchronized (mStateLock) {
+            final long played = getPlayedFrame(track);
+            if (mBoundaryFrame >= 0 && played >= mBoundaryFrame) {
+                // the new track is heard right away, only telling the service about it can be late
+                transitionMillis = (played - mBoundaryFrame) * 1000 / mSampleRate;
+                previous = mCurrentDecoder;
+                mCurrentDecoder = mDecoder;
+                mTrackStartFrame = mBoundaryFrame;
+                mTrackStartMillis = 0;
+                mBoundaryFrame = -1;
+                mStitchedPath = null;
+                mNextPath = null;
+                wentToNext = true;
+            }
+            if (mDrained && mEndFrame >= 0 && played >= mEndFrame) {
+                mEndFrame = -1;
+                ended = true;
+            }
+        }
+        closeQuietly(previous);
+        if (ended) {
+            mPlaying = false;
+            track.pause();
+        }
+        if (wentToNext) {
+            PlaybackLatencyStats.getInstance().recordMillis(PlaybackLatencyStats.Stage.TRACK_TRANSITION, transitionMillis, null);
+            runOnMainThread(() -> {
+                if (callbacks != null)
+                    callbacks.onTrackWentToNext();
+            });
+        }
+        if (ended) {
+            runOnMainThread(() -> {
+                if (callbacks != null)
+                    callbacks.onTrackEnded();
+            });
+        }
+    }
+
+    private void onOutputError(final int error) {
+        Log.e(TAG, "AudioTrack.write() failed: " + error);
+        mIsInitialized = false;
+        mPlaying = false;
+        runOnMainThread(() -> {
+            if (context != null) {
+                Toast.makeText(context, context.getResources().getString(R.string.unplayable_file), Toast.LENGTH_SHORT).show();
+            }
+            // the track can't go on, continue with the next one like after a decoding error
+            if (callbacks != null)
+                callbacks.onTrackEnded();
+        });
+    }
+
+    void runOnMainThread(@NonNull final Runnable action) {
+        mHandler.post(action);
+    }
+
+    /**
+     * Opens the current track off the thread that set it.
+     */
+    private final class Opener extends Thread {
+        @NonNull
+        private final String path;
+
+        Opener(@NonNull final String path) {
+            super("AudioTrackOpener");
+            this.path = path;
+        }
+
+        @Override
+        public void run() {
+            final long start = PlaybackLatencyStats.startTiming();
+            final PcmDecoder decoder = openDecoder(path);
+            PlaybackLatencyStats.getInstance().record(PlaybackLatencyStats.Stage.PREPARE, start, path);
+            onOpened(this, decoder);
+        }
+    }
+
+    private final class Worker extends Thread {
+        private final boolean decoding;
+        private volatile boolean stopped;
+
+        Worker(final boolean decoding) {
+            super(decoding ? "AudioTrackDecoder" : "AudioTrackOutput");
+            this.decoding = decoding;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            if (decoding) {
+                decode(this);
+            } else {
+                output(this);
+            }
+        }
+    }
+}
@@ -6,6 +6,8 @@ import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.audiofx.AudioEffect;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.util.Log;
 import android.widget.Toast;
@@ -18,14 +20,65 @@ import com.kabouzeid.gramophone.util.PreferenceUtil;
 
 import org.frknkrc44.frigraph.R;
 
+import java.util.ArrayDeque;
+
 /**
  * @author Andrew Neal, Karim Abou Zeid (kabouzeid)
+ *         <p/>
+ *         Tracks are prepared asynchronously, so that the thread calling {@link #setDataSource(String)} or
+ *         {@link #setNextDataSource(String)} never waits for the storage. Starting, pausing, seeking and the volume
+ *         of a current track that is still preparing are applied once it is prepared, which is reported through
+ *         {@link Playback.PlaybackCallbacks#onTrackPrepared(boolean)}.
+ *         <p/>
+ *         Once the next track is prepared it is set as the next player for gapless playback, a newer next track or a
+ *         timeout cancels its preparation.
+ *         <p/>
+ *         Players that are done with a track are reset and kept in a small pool for the next tracks instead of being
+ *         released, all of them share the same audio session.
  */
 public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener {
     public static final String TAG = MultiPlayer.class.getSimpleName();
 
-    private MediaPlayer mCurrentMediaPlayer = new MediaPlayer();
+    // the states of mNextMediaPlayer
+    private static final int NEXT_IDLE = 0;
+    private static final int NEXT_PREPARING = 1;
+    private static final int NEXT_PREPARED = 2;
+
+    // a next track that isn't prepared by then is played without gapless playback
+    private static final long NEXT_PREPARE_TIMEOUT_MILLIS = 10 * 1000;
+    // after a gapless track change, how often and how long to wait for the next track to be heard
+    private static final long TRANSITION_CHECK_INTERVAL_MILLIS = 10;
+    private static final long MAX_TRANSITION_MILLIS = 2000;
+
+    // the current and the next player are taken from here, creating a native player is expensive
+    private static final int MAX_POOLED_PLAYERS = 2;
+
+    private final ArrayDeque<MediaPlayer> mPlayerPool = new ArrayDeque<>(MAX_POOLED_PLAYERS);
+    private int mAudioSessionId;
+    // the audio session that audio effects were told about last
+    private int mOpenedAudioEffectSessionId = -1;
+
+    private MediaPlayer mCurrentMediaPlayer;
+    private boolean mCurrentPreparing;
+    // what to apply to the current player once it is prepared
+    private boolean mStartWhenPrepared;
+    private int mSeekWhenPrepared = -1;
+    private float mVolumeWhenPrepared = -1;
+    @Nullable
+    private String mNextPathWhenPrepared;
+    @Nullable
+    private String mCurrentPath;
+    private long mCurrentPrepareStartNanos;
     private MediaPlayer mNextMediaPlayer;
+    private int mNextState = NEXT_IDLE;
+    @Nullable
+    private String mNextPath;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mNextPrepareTimeout = this::onNextPrepareTimeout;
+    private final Runnable mTransitionCheck = this::checkTransitionHeard;
+    private long mNextPrepareStartNanos;
+    private long mTransitionStartNanos;
 
     private final Context context;
     @Nullable
@@ -38,57 +91,196 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     public MultiPlayer(final Context context) {
         this.context = context;
+        mCurrentMediaPlayer = createMediaPlayer();
         mCurrentMediaPlayer.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
+        mAudioSessionId = mCurrentMediaPlayer.getAudioSessionId();
+    }
+
+    /**
+     * @return a new native player, overridden by the tests with a fake one
+     */
+    @NonNull
+    MediaPlayer createMediaPlayer() {
+        return new MediaPlayer();
+    }
+
+    /**
+     * @return a player in the idle state from the pool, or a new one
+     */
+    @NonNull
+    private synchronized MediaPlayer obtainMediaPlayer() {
+        MediaPlayer player = mPlayerPool.poll();
+        if (player == null) {
+            player = createMediaPlayer();
+            player.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
+        }
+        try {
+            player.setAudioSessionId(mAudioSessionId);
+        } catch (@NonNull IllegalArgumentException | IllegalStateException e) {
+            Log.e(TAG, "obtainMediaPlayer: setAudioSessionId()", e);
+        }
+        return player;
+    }
+
+    /**
+     * Resets a player that isn't used anymore and keeps it for later, unless the pool is full.
+     * It must not be preparing asynchronously, as its prepared callback might still arrive.
+     */
+    private synchronized void recycleMediaPlayer(@NonNull final MediaPlayer player) {
+        player.setOnPreparedListener(null);
+        player.setOnCompletionListener(null);
+        player.setOnErrorListener(null);
+        if (mPlayerPool.size() < MAX_POOLED_PLAYERS) {
+            try {
+                player.reset();
+                mPlayerPool.push(player);
+                return;
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "recycleMediaPlayer: reset()", e);
+            }
+        }
+        player.release();
     }
 
     /**
      * @param path The path of the file, or the http/rtsp URL of the stream
      *             you want to play
-     * @return True if the <code>player</code> has been prepared and is
-     * ready to play, false otherwise
+     * @return True if the track is prepared or being prepared, false if it can't be opened
      */
     @Override
     public boolean setDataSource(@NonNull final String path) {
-        mIsInitialized = false;
-        mIsInitialized = setDataSourceImpl(mCurrentMediaPlayer, path);
-        if (mIsInitialized) {
-            setNextDataSource(null);
+        final long start = PlaybackLatencyStats.startTiming();
+        final boolean initialized = setDataSourceImpl(path);
+        PlaybackLatencyStats.getInstance().record(PlaybackLatencyStats.Stage.SET_DATA_SOURCE, start, path);
+        return initialized;
+    }
+
+    private boolean setDataSourceImpl(@NonNull final String path) {
+        if (promoteNextMediaPlayer(path)) {
+            return true;
         }
-        return mIsInitialized;
+        releaseNextMediaPlayer();
+        return prepareCurrentMediaPlayer(path);
     }
 
     /**
-     * @param player The {@link MediaPlayer} to use
-     * @param path   The path of the file, or the http/rtsp URL of the stream
-     *               you want to play
-     * @return True if the <code>player</code> has been prepared and is
-     * ready to play, false otherwise
+     * Starts preparing the track with the current player, skipping to a track that isn't the prepared next one doesn't
+     * wait for the storage either.
+     *
+     * @return whether the track is being prepared
      */
-    private boolean setDataSourceImpl(@NonNull final MediaPlayer player, @NonNull final String path) {
+    private synchronized boolean prepareCurrentMediaPlayer(@NonNull final String path) {
+        mIsInitialized = false;
+        resetCurrentMediaPlayer();
         if (context == null) {
             return false;
         }
+        final MediaPlayer player = mCurrentMediaPlayer;
         try {
-            player.reset();
-            player.setOnPreparedListener(null);
-            if (path.startsWith("content://")) {
-                player.setDataSource(context, Uri.parse(path));
-            } else {
-                player.setDataSource(path);
-            }
-            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            player.prepare();
+            initDataSource(player, path);
+            player.setOnPreparedListener(this::onCurrentMediaPlayerPrepared);
+            player.setOnErrorListener(this::onCurrentMediaPlayerError);
+            mCurrentPath = path;
+            mCurrentPrepareStartNanos = PlaybackLatencyStats.startTiming();
+            player.prepareAsync();
         } catch (Exception e) {
             return false;
         }
+        mCurrentPreparing = true;
+        mIsInitialized = true;
+        return true;
+    }
+
+    private void onCurrentMediaPlayerPrepared(@NonNull final MediaPlayer player) {
+        synchronized (this) {
+            if (player != mCurrentMediaPlayer || !mCurrentPreparing) {
+                // replaced by another track in the meantime
+                return;
+            }
+            mCurrentPreparing = false;
+            PlaybackLatencyStats.getInstance().record(PlaybackLatencyStats.Stage.PREPARE, mCurrentPrepareStartNanos, mCurrentPath);
+            onDataSourcePrepared(player);
+            if (mVolumeWhenPrepared >= 0) {
+                setVolume(mVolumeWhenPrepared);
+            }
+            if (mSeekWhenPrepared > 0) {
+                seek(mSeekWhenPrepared);
+            }
+            if (mStartWhenPrepared) {
+                start();
+            }
+            final String nextPath = mNextPathWhenPrepared;
+            clearWhenPrepared();
+            if (nextPath != null) {
+                setNextDataSource(nextPath);
+            }
+        }
+        if (callbacks != null) {
+            callbacks.onTrackPrepared(true);
+        }
+    }
+
+    private boolean onCurrentMediaPlayerError(@NonNull final MediaPlayer player, final int what, final int extra) {
+        synchronized (this) {
+            if (player != mCurrentMediaPlayer || !mCurrentPreparing) {
+                return true;
+            }
+            Log.w(TAG, "Preparing the track failed: " + what + ", " + extra);
+            mIsInitialized = false;
+            resetCurrentMediaPlayer();
+        }
+        if (callbacks != null) {
+            callbacks.onTrackPrepared(false);
+        }
+        return true;
+    }
+
+    /**
+     * Makes the current player idle. One that is still preparing is replaced, as its prepared callback might still
+     * arrive.
+     */
+    private synchronized void resetCurrentMediaPlayer() {
+        if (mCurrentPreparing) {
+            mCurrentMediaPlayer.release();
+            mCurrentMediaPlayer = obtainMediaPlayer();
+            mCurrentPreparing = false;
+        } else {
+            mCurrentMediaPlayer.reset();
+        }
+        clearWhenPrepared();
+    }
+
+    private void clearWhenPrepared() {
+        mStartWhenPrepared = false;
+        mSeekWhenPrepared = -1;
+        mVolumeWhenPrepared = -1;
+        mNextPathWhenPrepared = null;
+    }
+
+    private void initDataSource(@NonNull final MediaPlayer player, @NonNull final String path) throws Exception {
+        player.reset();
+        player.setOnPreparedListener(null);
+        if (path.startsWith("content://")) {
+            player.setDataSource(context, Uri.parse(path));
+        } else {
+            player.setDataSource(path);
+        }
+        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+    }
+
+    private void onDataSourcePrepared(@NonNull final MediaPlayer player) {
         player.setOnCompletionListener(this);
         player.setOnErrorListener(this);
+        if (mOpenedAudioEffectSessionId == getAudioSessionId()) {
+            // every player shares the session, it only has to be announced once
+            return;
+        }
+        mOpenedAudioEffectSessionId = getAudioSessionId();
         final Intent intent = new Intent(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION);
         intent.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, getAudioSessionId());
         intent.putExtra(AudioEffect.EXTRA_PACKAGE_NAME, context.getPackageName());
         intent.putExtra(AudioEffect.EXTRA_CONTENT_TYPE, AudioEffect.CONTENT_TYPE_MUSIC);
         context.sendBroadcast(intent);
-        return true;
     }
 
     /**
@@ -98,10 +290,25 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      *             you want to play
      */
     @Override
-    public void setNextDataSource(@Nullable final String path) {
+    public synchronized void setNextDataSource(@Nullable final String path) {
+        final long start = PlaybackLatencyStats.startTiming();
+        setNextDataSourceImpl(path);
+        PlaybackLatencyStats.getInstance().record(PlaybackLatencyStats.Stage.SET_NEXT_DATA_SOURCE, start, path);
+    }
+
+    private void setNextDataSourceImpl(@Nullable final String path) {
         if (context == null) {
             return;
         }
+        if (path != null && path.equals(mNextPath)) {
+            // still the same next track, e.g. after a change further down the queue
+            return;
+        }
+        if (mCurrentPreparing) {
+            // the next player can only be attached to a prepared one
+            mNextPathWhenPrepared = path;
+            return;
+        }
         try {
             mCurrentMediaPlayer.setNextMediaPlayer(null);
         } catch (IllegalArgumentException e) {
@@ -110,34 +317,123 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
             Log.e(TAG, "Media player not initialized!");
             return;
         }
-        if (mNextMediaPlayer != null) {
-            mNextMediaPlayer.release();
-            mNextMediaPlayer = null;
-        }
+        releaseNextMediaPlayer();
         if (path == null) {
             return;
         }
         if (PreferenceUtil.getInstance(context).gaplessPlayback()) {
-            mNextMediaPlayer = new MediaPlayer();
-            mNextMediaPlayer.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
-            mNextMediaPlayer.setAudioSessionId(getAudioSessionId());
-            if (setDataSourceImpl(mNextMediaPlayer, path)) {
-                try {
-                    mCurrentMediaPlayer.setNextMediaPlayer(mNextMediaPlayer);
-                } catch (@NonNull IllegalArgumentException | IllegalStateException e) {
-                    Log.e(TAG, "setNextDataSource: setNextMediaPlayer()", e);
-                    if (mNextMediaPlayer != null) {
-                        mNextMediaPlayer.release();
-                        mNextMediaPlayer = null;
-                    }
-                }
+            final MediaPlayer player = obtainMediaPlayer();
+            player.setOnErrorListener(this::onNextMediaPlayerError);
+            try {
+                initDataSource(player, path);
+                player.setOnPreparedListener(this::onNextMediaPlayerPrepared);
+                mNextPrepareStartNanos = PlaybackLatencyStats.startTiming();
+                player.prepareAsync();
+            } catch (Exception e) {
+                recycleMediaPlayer(player);
+                return;
+            }
+            mNextMediaPlayer = player;
+            mNextPath = path;
+            mNextState = NEXT_PREPARING;
+            mHandler.postDelayed(mNextPrepareTimeout, NEXT_PREPARE_TIMEOUT_MILLIS);
+        }
+    }
+
+    private synchronized void onNextMediaPlayerPrepared(@NonNull final MediaPlayer player) {
+        if (player != mNextMediaPlayer || mNextState != NEXT_PREPARING) {
+            // replaced by another next track in the meantime
+            return;
+        }
+        mHandler.removeCallbacks(mNextPrepareTimeout);
+        PlaybackLatencyStats.getInstance().record(PlaybackLatencyStats.Stage.PREPARE_NEXT, mNextPrepareStartNanos, mNextPath);
+        onDataSourcePrepared(player);
+        try {
+            mCurrentMediaPlayer.setNextMediaPlayer(player);
+            mNextState = NEXT_PREPARED;
+        } catch (@NonNull IllegalArgumentException | IllegalStateException e) {
+            Log.e(TAG, "setNextDataSource: setNextMediaPlayer()", e);
+            releaseNextMediaPlayer();
+        }
+    }
+
+    private synchronized void onNextPrepareTimeout() {
+        if (mNextState == NEXT_PREPARING) {
+            Log.w(TAG, "Preparing the next track timed out: " + mNextPath);
+            releaseNextMediaPlayer();
+        }
+    }
+
+    private synchronized boolean onNextMediaPlayerError(@NonNull final MediaPlayer player, final int what, final int extra) {
+        if (player == mNextMediaPlayer && mNextState == NEXT_PREPARING) {
+            Log.w(TAG, "Preparing the next track failed: " + what + ", " + extra);
+            releaseNextMediaPlayer();
+        }
+        return true;
+    }
+
+    /**
+     * Records the track transition once the position of the new current track moves.
+     */
+    private synchronized void checkTransitionHeard() {
+        final long elapsedMillis = (PlaybackLatencyStats.startTiming() - mTransitionStartNanos) / 1000000;
+        int position;
+        try {
+            position = mIsInitialized ? mCurrentMediaPlayer.getCurrentPosition() : -1;
+        } catch (IllegalStateException e) {
+            position = -1;
+        }
+        if (position > 0) {
+            PlaybackLatencyStats.getInstance().record(PlaybackLatencyStats.Stage.TRACK_TRANSITION, mTransitionStartNanos);
+        } else if (position == 0 && elapsedMillis < MAX_TRANSITION_MILLIS) {
+            mHandler.postDelayed(mTransitionCheck, TRANSITION_CHECK_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * Cancels the preparation of the next track, or releases its prepared player.
+     */
+    private synchronized void releaseNextMediaPlayer() {
+        mHandler.removeCallbacks(mNextPrepareTimeout);
+        if (mNextMediaPlayer != null) {
+            if (mNextState == NEXT_PREPARED) {
+                recycleMediaPlayer(mNextMediaPlayer);
             } else {
-                if (mNextMediaPlayer != null) {
-                    mNextMediaPlayer.release();
-                    mNextMediaPlayer = null;
-                }
+                // still preparing, or failed to
+                mNextMediaPlayer.release();
             }
+            mNextMediaPlayer = null;
+        }
+        mNextPath = null;
+        mNextState = NEXT_IDLE;
+    }
+
+    /**
+     * Skipping to the track that is prepared as the next one doesn't have to prepare it again.
+     *
+     * @return whether the next player is now the current one
+     */
+    private synchronized boolean promoteNextMediaPlayer(@NonNull final String path) {
+        if (mNextState != NEXT_PREPARED || !path.equals(mNextPath)) {
+            return false;
+        }
+        try {
+            mCurrentMediaPlayer.setNextMediaPlayer(null);
+        } catch (@NonNull IllegalArgumentException | IllegalStateException ignored) {
+        }
+        if (mCurrentPreparing) {
+            mCurrentMediaPlayer.release();
+            mCurrentPreparing = false;
+            clearWhenPrepared();
+        } else {
+            recycleMediaPlayer(mCurrentMediaPlayer);
         }
+        mCurrentMediaPlayer = mNextMediaPlayer;
+        mNextMediaPlayer = null;
+        mNextPath = null;
+        mNextState = NEXT_IDLE;
+        mIsInitialized = true;
+        return true;
     }
 
     /**
@@ -163,8 +459,16 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public boolean start() {
+        synchronized (this) {
+            if (mCurrentPreparing) {
+                mStartWhenPrepared = true;
+                return true;
+            }
+        }
         try {
+            final long start = PlaybackLatencyStats.startTiming();
             mCurrentMediaPlayer.start();
+            PlaybackLatencyStats.getInstance().record(PlaybackLatencyStats.Stage.START, start);
             return true;
         } catch (IllegalStateException e) {
             return false;
@@ -176,8 +480,10 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public void stop() {
-        mCurrentMediaPlayer.reset();
+        resetCurrentMediaPlayer();
         mIsInitialized = false;
+        // the audio effect session may be closed now, announce it again with the next track
+        mOpenedAudioEffectSessionId = -1;
     }
 
     /**
@@ -186,9 +492,14 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
     @Override
     public void release() {
         stop();
+        mHandler.removeCallbacks(mTransitionCheck);
         mCurrentMediaPlayer.release();
-        if (mNextMediaPlayer != null) {
-            mNextMediaPlayer.release();
+        releaseNextMediaPlayer();
+        synchronized (this) {
+            for (MediaPlayer player : mPlayerPool) {
+                player.release();
+            }
+            mPlayerPool.clear();
         }
     }
 
@@ -197,6 +508,12 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public boolean pause() {
+        synchronized (this) {
+            if (mCurrentPreparing) {
+                mStartWhenPrepared = false;
+                return true;
+            }
+        }
         try {
             mCurrentMediaPlayer.pause();
             return true;
@@ -210,6 +527,11 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public boolean isPlaying() {
+        synchronized (this) {
+            if (mCurrentPreparing) {
+                return mStartWhenPrepared;
+            }
+        }
         return mIsInitialized && mCurrentMediaPlayer.isPlaying();
     }
 
@@ -220,7 +542,7 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public int duration() {
-        if (!mIsInitialized) {
+        if (!mIsInitialized || mCurrentPreparing) {
             return -1;
         }
         try {
@@ -240,6 +562,11 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
         if (!mIsInitialized) {
             return -1;
         }
+        synchronized (this) {
+            if (mCurrentPreparing) {
+                return Math.max(mSeekWhenPrepared, 0);
+            }
+        }
         try {
             return mCurrentMediaPlayer.getCurrentPosition();
         } catch (IllegalStateException e) {
@@ -255,8 +582,16 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public int seek(final int whereto) {
+        synchronized (this) {
+            if (mCurrentPreparing) {
+                mSeekWhenPrepared = whereto;
+                return whereto;
+            }
+        }
         try {
+            final long start = PlaybackLatencyStats.startTiming();
             mCurrentMediaPlayer.seekTo(whereto);
+            PlaybackLatencyStats.getInstance().record(PlaybackLatencyStats.Stage.SEEK, start);
             return whereto;
         } catch (IllegalStateException e) {
             return -1;
@@ -265,6 +600,12 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
 
     @Override
     public boolean setVolume(final float vol) {
+        synchronized (this) {
+            if (mCurrentPreparing) {
+                mVolumeWhenPrepared = vol;
+                return true;
+            }
+        }
         try {
             mCurrentMediaPlayer.setVolume(vol, vol);
             return true;
@@ -282,6 +623,7 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
     public boolean setAudioSessionId(final int sessionId) {
         try {
             mCurrentMediaPlayer.setAudioSessionId(sessionId);
+            mAudioSessionId = sessionId;
             return true;
         } catch (@NonNull IllegalArgumentException | IllegalStateException e) {
             return false;
@@ -304,9 +646,10 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
     @Override
     public boolean onError(final MediaPlayer mp, final int what, final int extra) {
         mIsInitialized = false;
+        releaseNextMediaPlayer();
+        // a player in the error state isn't reused
         mCurrentMediaPlayer.release();
-        mCurrentMediaPlayer = new MediaPlayer();
-        mCurrentMediaPlayer.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
+        mCurrentMediaPlayer = obtainMediaPlayer();
         if (context != null) {
             Toast.makeText(context, context.getResources().getString(R.string.unplayable_file), Toast.LENGTH_SHORT).show();
         }
@@ -318,12 +661,26 @@ public class MultiPlayer implements Playback, MediaPlayer.OnErrorListener, Media
      */
     @Override
     public void onCompletion(final MediaPlayer mp) {
-        if (mp == mCurrentMediaPlayer && mNextMediaPlayer != null) {
-            mIsInitialized = false;
-            mCurrentMediaPlayer.release();
-            mCurrentMediaPlayer = mNextMediaPlayer;
-            mIsInitialized = true;
-            mNextMediaPlayer = null;
+        boolean wentToNext = false;
+        synchronized (this) {
+            if (mp == mCurrentMediaPlayer && mNextState == NEXT_PREPARED) {
+                mIsInitialized = false;
+                recycleMediaPlayer(mCurrentMediaPlayer);
+                mCurrentMediaPlayer = mNextMediaPlayer;
+                mIsInitialized = true;
+                mNextMediaPlayer = null;
+                mNextPath = null;
+                mNextState = NEXT_IDLE;
+                wentToNext = true;
+            } else if (mp == mCurrentMediaPlayer) {
+                // the next track wasn't ready in time, it is opened like any other track
+                releaseNextMediaPlayer();
+            }
+        }
+        if (wentToNext) {
+            mTransitionStartNanos = PlaybackLatencyStats.startTiming();
+            mHandler.removeCallbacks(mTransitionCheck);
+            mHandler.post(mTransitionCheck);
             if (callbacks != null)
                 callbacks.onTrackWentToNext();
         } else {
@@ -19,6 +19,7 @@ import android.media.MediaMetadata;
 import android.media.audiofx.AudioEffect;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
+import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
@@ -29,6 +30,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.Process;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.widget.Toast;
 
@@ -46,15 +48,16 @@ import com.kabouzeid.gramophone.appwidgets.AppWidgetClassic;
 import com.kabouzeid.gramophone.appwidgets.AppWidgetSmall;
 import com.kabouzeid.gramophone.glide.BlurTransformation;
 import com.kabouzeid.gramophone.glide.SongGlideRequest;
+import com.kabouzeid.gramophone.helper.IndexedSongList;
 import com.kabouzeid.gramophone.helper.ShuffleHelper;
 import com.kabouzeid.gramophone.helper.StopWatch;
+import com.kabouzeid.gramophone.loader.LibrarySnapshot;
 import com.kabouzeid.gramophone.loader.PlaylistSongLoader;
 import com.kabouzeid.gramophone.model.AbsCustomPlaylist;
 import com.kabouzeid.gramophone.model.Playlist;
 import com.kabouzeid.gramophone.model.Song;
-import com.kabouzeid.gramophone.provider.HistoryStore;
 import com.kabouzeid.gramophone.provider.MusicPlaybackQueueStore;
-import com.kabouzeid.gramophone.provider.SongPlayCountStore;
+import com.kabouzeid.gramophone.provider.QueueOperation;
 import com.kabouzeid.gramophone.service.notification.PlayingNotification;
 import com.kabouzeid.gramophone.service.notification.PlayingNotificationImpl;
 import com.kabouzeid.gramophone.service.notification.PlayingNotificationImpl24;
@@ -65,10 +68,14 @@ import com.kabouzeid.gramophone.util.Util;
 
 import org.frknkrc44.frigraph.R;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 /**
  * @author Karim Abou Zeid (kabouzeid), Andrew Neal
@@ -117,6 +124,7 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     private static final int DUCK = 7;
     private static final int UNDUCK = 8;
     public static final int RESTORE_QUEUES = 9;
+    public static final int TRACK_PREPARED = 10;
 
     public static final int SHUFFLE_MODE_NONE = 0;
     public static final int SHUFFLE_MODE_SHUFFLE = 1;
@@ -125,7 +133,11 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     public static final int REPEAT_MODE_ALL = 1;
     public static final int REPEAT_MODE_THIS = 2;
 
-    public static final int SAVE_QUEUES = 0;
+    // not 0, that's the what of posted runnables and saveQueues() would remove them
+    public static final int SAVE_QUEUES = 1;
+
+    // the number of songs before and after the current one that are restored before the rest of the queue
+    private static final int RESTORE_WINDOW_RADIUS = 10;
 
     private final IBinder musicBind = new MusicBinder();
 
@@ -137,13 +149,20 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     private final AppWidgetCard appWidgetCard = AppWidgetCard.getInstance();
 
     private Playback playback;
-    private List<Song> playingQueue = new ArrayList<>();
-    private List<Song> originalPlayingQueue = new ArrayList<>();
+    // edited on the main thread while the playback handler thread reads them, both only under the lock of the service
+    private IndexedSongList playingQueue = new IndexedSongList();
+    private IndexedSongList originalPlayingQueue = new IndexedSongList();
     private int position = -1;
     private int nextPosition = -1;
     private int shuffleMode;
     private int repeatMode;
     private boolean queuesRestored;
+    // the part of the saved queues that's playing while the rest of them is restored
+    @Nullable
+    private volatile MusicPlaybackQueueStore.SavedQueues restoredQueueWindow;
+    // the changes of the queues made meanwhile, they are applied to the whole queues once they are restored
+    private final List<QueueChange> deferredQueueChanges = new ArrayList<>();
+    private final Handler uiThreadHandler = new Handler(Looper.getMainLooper());
     private boolean pausedByTransientLossOfFocus;
     private PlayingNotification playingNotification;
     private AudioManager audioManager;
@@ -160,7 +179,9 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     private QueueSaveHandler queueSaveHandler;
     private HandlerThread musicPlayerHandlerThread;
     private HandlerThread queueSaveHandlerThread;
+    private HandlerThread librarySyncHandlerThread;
     private final SongPlayCountHelper songPlayCountHelper = new SongPlayCountHelper();
+    private StatisticsWriter statisticsWriter;
     private ThrottledSeekHandler throttledSeekHandler;
     private boolean becomingNoisyReceiverRegistered;
     private final IntentFilter becomingNoisyReceiverIntentFilter = new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
@@ -191,7 +212,7 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         musicPlayerHandlerThread.start();
         playerHandler = new PlaybackHandler(this, musicPlayerHandlerThread.getLooper());
 
-        playback = new MultiPlayer(this);
+        playback = createPlayback();
         playback.setCallbacks(this);
 
         setupMediaSession();
@@ -201,6 +222,13 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         queueSaveHandlerThread.start();
         queueSaveHandler = new QueueSaveHandler(this, queueSaveHandlerThread.getLooper());
 
+        // syncing the library with the media store queries the provider, so it gets its own thread as well
+        librarySyncHandlerThread = new HandlerThread("LibrarySyncHandler", Process.THREAD_PRIORITY_BACKGROUND);
+        librarySyncHandlerThread.start();
+
+        // the history and play counts are written behind the playback as well
+        statisticsWriter = new StatisticsWriter(this);
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
             registerReceiver(widgetIntentReceiver, new IntentFilter(APP_WIDGET_UPDATE), Context.RECEIVER_EXPORTED);
         } else {
@@ -209,7 +237,7 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
 
         initNotification();
 
-        mediaStoreObserver = new MediaStoreObserver(playerHandler);
+        mediaStoreObserver = new MediaStoreObserver(new Handler(librarySyncHandlerThread.getLooper()));
         throttledSeekHandler = new ThrottledSeekHandler(playerHandler);
 
         getContentResolver().registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mediaStoreObserver);
@@ -398,6 +426,19 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         return musicBind;
     }
 
+    /**
+     * Playback latency for {@code adb shell dumpsys activity service MusicService}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        final Playback playback = this.playback;
+        writer.println("Playback: " + (playback != null ? playback.getClass().getSimpleName() : "released"));
+        writer.println("Position: " + position + " of " + playingQueue.size());
+        writer.println("Statistics: " + statisticsWriter.getQueuedCount() + " plays queued, "
+                + statisticsWriter.getFlushedCount() + " written, " + statisticsWriter.getDroppedCount() + " dropped");
+        PlaybackLatencyStats.getInstance().dump(writer);
+    }
+
     private static final class QueueSaveHandler extends Handler {
         @NonNull
         private final WeakReference<MusicService> mService;
@@ -417,11 +458,21 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     }
 
     private void saveQueuesImpl() {
-        MusicPlaybackQueueStore.getInstance(this).saveQueues(playingQueue, originalPlayingQueue);
+        MusicPlaybackQueueStore.getInstance(this).flush();
+    }
+
+    private void journal(@NonNull final QueueOperation operation) {
+        MusicPlaybackQueueStore.getInstance(this).journal(operation);
     }
 
     private void savePosition() {
-        PreferenceUtil.getInstance(this).edit().putInt(SAVED_POSITION, getPosition()).apply();
+        int position = getPosition();
+        final MusicPlaybackQueueStore.SavedQueues restoredWindow = restoredQueueWindow;
+        if (restoredWindow != null && position >= 0) {
+            // the saved queues are still the whole queues
+            position = restoredWindow.getSavedPosition(position);
+        }
+        PreferenceUtil.getInstance(this).edit().putInt(SAVED_POSITION, position).apply();
     }
 
     private void savePositionInTrack() {
@@ -435,6 +486,10 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     }
 
     private void saveQueues() {
+        final MusicPlaybackQueueStore queueStore = MusicPlaybackQueueStore.getInstance(this);
+        if (restoredQueueWindow == null && queueStore.shouldCompact(playingQueue.size())) {
+            queueStore.saveQueues(playingQueue, originalPlayingQueue);
+        }
         queueSaveHandler.removeMessages(SAVE_QUEUES);
         queueSaveHandler.sendEmptyMessage(SAVE_QUEUES);
     }
@@ -450,30 +505,142 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     }
 
     private synchronized void restoreQueuesAndPositionIfNecessary() {
-        if (!queuesRestored && playingQueue.isEmpty()) {
-            List<Song> restoredQueue = MusicPlaybackQueueStore.getInstance(this).getSavedPlayingQueue();
-            List<Song> restoredOriginalQueue = MusicPlaybackQueueStore.getInstance(this).getSavedOriginalPlayingQueue();
-            int restoredPosition = PreferenceUtil.getInstance(this).getPrefs().getInt(SAVED_POSITION, -1);
-            int restoredPositionInTrack = PreferenceUtil.getInstance(this).getPrefs().getInt(SAVED_POSITION_IN_TRACK, -1);
-
-            if (!restoredQueue.isEmpty() && restoredQueue.size() == restoredOriginalQueue.size() && restoredPosition != -1) {
-                this.originalPlayingQueue = restoredOriginalQueue;
-                this.playingQueue = restoredQueue;
-
-                position = restoredPosition;
-                openCurrent();
-                prepareNext();
+        if (!queuesRestored) {
+            boolean restored = false;
+            if (playingQueue.isEmpty()) {
+                final MusicPlaybackQueueStore queueStore = MusicPlaybackQueueStore.getInstance(this);
+                final MusicPlaybackQueueStore.SavedQueues savedQueues = queueStore.getSavedQueues();
+                final int savedQueueSize = savedQueues.playingQueue.size();
+                int savedPosition = PreferenceUtil.getInstance(this).getPrefs().getInt(SAVED_POSITION, -1);
+                int restoredPositionInTrack = PreferenceUtil.getInstance(this).getPrefs().getInt(SAVED_POSITION_IN_TRACK, -1);
+
+                if (savedQueueSize > 0 && savedQueueSize == savedQueues.originalPlayingQueue.size() && savedPosition >= 0 && savedPosition < savedQueueSize) {
+                    // only look up the songs around the current one, so playback can resume right away
+                    final int windowStart = Math.max(0, savedPosition - RESTORE_WINDOW_RADIUS);
+                    final int windowEnd = Math.min(savedQueueSize, savedPosition + RESTORE_WINDOW_RADIUS + 1);
+                    boolean partial = windowEnd - windowStart < savedQueueSize;
+                    MusicPlaybackQueueStore.SavedQueues window = queueStore.resolve(savedQueues, windowStart, windowEnd);
+                    if (partial && window.playingQueue.isEmpty()) {
+                        // none of these songs exist anymore, look for the next one in the whole queue
+                        window = queueStore.resolve(savedQueues, 0, savedQueueSize);
+                        partial = false;
+                    }
+                    final MusicPlaybackQueueStore.SavedQueues restoredWindow = window;
+                    int restoredPosition = restoredWindow.getRestoredPosition(savedPosition);
+
+                    if (restoredPosition != -1) {
+                        this.originalPlayingQueue = new IndexedSongList(restoredWindow.originalPlayingQueue);
+                        this.playingQueue = new IndexedSongList(restoredWindow.playingQueue);
+                        restored = true;
+                        if (partial) {
+                            // the rest of the queue follows in the background, until then the saved queues stay as they are
+                            this.restoredQueueWindow = restoredWindow;
+                            queueSaveHandler.post(() -> finishRestoringQueues(savedQueues, restoredWindow));
+                        }
 
-                if (restoredPositionInTrack > 0) seek(restoredPositionInTrack);
+                        position = restoredPosition;
+                        if (!partial && restoredWindow.hasRemovedSongs()) {
+                            rebaseSavedQueues();
+                        }
+                        openCurrent();
+                        prepareNext();
+
+                        if (restoredPositionInTrack > 0) seek(restoredPositionInTrack);
 
-                notHandledMetaChangedForCurrentTrack = true;
-                sendChangeInternal(META_CHANGED);
-                sendChangeInternal(QUEUE_CHANGED);
+                        notHandledMetaChangedForCurrentTrack = true;
+                        sendChangeInternal(META_CHANGED);
+                        sendChangeInternal(QUEUE_CHANGED);
+                    }
+                }
+            }
+            if (!restored) {
+                // the journal has to continue from the queues we actually have
+                MusicPlaybackQueueStore.getInstance(this).saveQueues(playingQueue, originalPlayingQueue);
+                saveQueues();
             }
         }
         queuesRestored = true;
     }
 
+    /**
+     * The journal and the saved position are in positions of the saved queues, once songs that don't exist anymore
+     * were dropped from the restored queues, these have to be saved again for them to continue from.
+     */
+    private void rebaseSavedQueues() {
+        MusicPlaybackQueueStore.getInstance(this).saveQueues(playingQueue, originalPlayingQueue);
+        saveQueues();
+        savePosition();
+    }
+
+    private void finishRestoringQueues(@NonNull final MusicPlaybackQueueStore.SavedQueues savedQueues, @NonNull final MusicPlaybackQueueStore.SavedQueues restoredWindow) {
+        final MusicPlaybackQueueStore.SavedQueues restoredQueues = MusicPlaybackQueueStore.getInstance(this)
+                .resolve(savedQueues, 0, savedQueues.playingQueue.size());
+        // the queues are changed on the main thread, swapping them there keeps the deferred changes in order
+        uiThreadHandler.post(() -> applyRestoredQueues(restoredQueues, restoredWindow));
+    }
+
+    private void applyRestoredQueues(@NonNull final MusicPlaybackQueueStore.SavedQueues restoredQueues, @NonNull final MusicPlaybackQueueStore.SavedQueues restoredWindow) {
+        final List<QueueChange> changes;
+        synchronized (this) {
+            // the window may have been replaced by a new queue in the meantime
+            if (restoredQueueWindow != restoredWindow) return;
+            final int savedPosition = restoredWindow.getSavedPosition(position);
+            this.originalPlayingQueue = new IndexedSongList(restoredQueues.originalPlayingQueue);
+            this.playingQueue = new IndexedSongList(restoredQueues.playingQueue);
+            position = restoredQueues.getRestoredPosition(savedPosition);
+            // the player may already have the next song of the window, it has to be found in the whole queue too
+            if (nextPosition >= 0) {
+                nextPosition = restoredQueues.getRestoredPosition(restoredWindow.getSavedPosition(nextPosition));
+            }
+            restoredQueueWindow = null;
+            if (restoredQueues.hasRemovedSongs()) {
+                rebaseSavedQueues();
+            }
+            changes = new ArrayList<>(deferredQueueChanges);
+            deferredQueueChanges.clear();
+        }
+        prepareNext();
+        sendChangeInternal(QUEUE_CHANGED);
+
+        // a position in the restored queues, the changes are journaled from there like any other edit
+        final int windowOffset = restoredQueues.getRestoredPosition(restoredWindow.getSavedPosition(0));
+        for (QueueChange change : changes) {
+            change.apply(windowOffset);
+        }
+    }
+
+    /**
+     * Stops restoring the rest of the queue, the queues are replaced without it.
+     */
+    private void cancelQueueRestore() {
+        synchronized (this) {
+            restoredQueueWindow = null;
+            deferredQueueChanges.clear();
+        }
+    }
+
+    /**
+     * While the rest of a partially restored queue is looked up, changes of the queues wait until it is there, so
+     * that they apply to the whole queue without blocking the caller.
+     *
+     * @return whether the change was deferred
+     */
+    private boolean deferWhileRestoringQueues(@NonNull final QueueChange change) {
+        synchronized (this) {
+            if (restoredQueueWindow == null) return false;
+            deferredQueueChanges.add(change);
+            return true;
+        }
+    }
+
+    private interface QueueChange {
+        /**
+         * @param windowOffset the position in the whole restored playing queue of the first song of the window that
+         *                     was playing while it was restored, the positions of the change are relative to it
+         */
+        void apply(int windowOffset);
+    }
+
     private void quit() {
         pause();
         playingNotification.stop();
@@ -486,8 +653,14 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     private void releaseResources() {
         playerHandler.removeCallbacksAndMessages(null);
         musicPlayerHandlerThread.quitSafely();
+        // the saved queues are still complete, the rest of them isn't needed anymore
+        uiThreadHandler.removeCallbacksAndMessages(null);
         queueSaveHandler.removeCallbacksAndMessages(null);
+        // write what's still pending before the thread quits
+        queueSaveHandler.sendEmptyMessage(SAVE_QUEUES);
         queueSaveHandlerThread.quitSafely();
+        librarySyncHandlerThread.quitSafely();
+        statisticsWriter.release();
         playback.release();
         playback = null;
         mediaSession.release();
@@ -714,15 +887,19 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
 
     public void openQueue(@Nullable final List<Song> playingQueue, final int startPosition, final boolean startPlaying) {
         if (playingQueue != null && !playingQueue.isEmpty() && startPosition >= 0 && startPosition < playingQueue.size()) {
-            // it is important to copy the playing queue here first as we might add/remove songs later
-            originalPlayingQueue = new ArrayList<>(playingQueue);
-            this.playingQueue = new ArrayList<>(originalPlayingQueue);
-
+            cancelQueueRestore();
             int position = startPosition;
-            if (shuffleMode == SHUFFLE_MODE_SHUFFLE) {
-                ShuffleHelper.makeShuffleList(this.playingQueue, startPosition);
-                position = 0;
+            synchronized (this) {
+                // it is important to copy the playing queue here first as we might add/remove songs later
+                originalPlayingQueue = new IndexedSongList(playingQueue);
+                this.playingQueue = new IndexedSongList(originalPlayingQueue);
+
+                if (shuffleMode == SHUFFLE_MODE_SHUFFLE) {
+                    ShuffleHelper.makeShuffleList(this.playingQueue, startPosition);
+                    position = 0;
+                }
             }
+            MusicPlaybackQueueStore.getInstance(this).saveQueues(this.playingQueue, originalPlayingQueue);
             if (startPlaying) {
                 playSongAt(position);
             } else {
@@ -733,52 +910,84 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     }
 
     public void addSong(int position, Song song) {
-        playingQueue.add(position, song);
-        originalPlayingQueue.add(position, song);
+        if (deferWhileRestoringQueues(windowOffset -> addSong(windowOffset + position, song))) return;
+        synchronized (this) {
+            playingQueue.add(position, song);
+            originalPlayingQueue.add(position, song);
+        }
+        journal(QueueOperation.insert(position, position, song));
         notifyChange(QUEUE_CHANGED);
     }
 
     public void addSong(Song song) {
-        playingQueue.add(song);
-        originalPlayingQueue.add(song);
+        if (deferWhileRestoringQueues(windowOffset -> addSong(song))) return;
+        journal(QueueOperation.insert(playingQueue.size(), originalPlayingQueue.size(), song));
+        synchronized (this) {
+            playingQueue.add(song);
+            originalPlayingQueue.add(song);
+        }
         notifyChange(QUEUE_CHANGED);
     }
 
     public void addSongs(int position, List<Song> songs) {
-        playingQueue.addAll(position, songs);
-        originalPlayingQueue.addAll(position, songs);
+        if (deferWhileRestoringQueues(windowOffset -> addSongs(windowOffset + position, songs))) return;
+        synchronized (this) {
+            playingQueue.addAll(position, songs);
+            originalPlayingQueue.addAll(position, songs);
+        }
+        for (int i = 0; i < songs.size(); i++) {
+            journal(QueueOperation.insert(position + i, position + i, songs.get(i)));
+        }
         notifyChange(QUEUE_CHANGED);
     }
 
     public void addSongs(List<Song> songs) {
-        playingQueue.addAll(songs);
-        originalPlayingQueue.addAll(songs);
+        if (deferWhileRestoringQueues(windowOffset -> addSongs(songs))) return;
+        for (int i = 0; i < songs.size(); i++) {
+            journal(QueueOperation.insert(playingQueue.size() + i, originalPlayingQueue.size() + i, songs.get(i)));
+        }
+        synchronized (this) {
+            playingQueue.addAll(songs);
+            originalPlayingQueue.addAll(songs);
+        }
         notifyChange(QUEUE_CHANGED);
     }
 
     public void removeSong(int position) {
-        if (getShuffleMode() == SHUFFLE_MODE_NONE) {
-            playingQueue.remove(position);
-            originalPlayingQueue.remove(position);
-        } else {
-            originalPlayingQueue.remove(playingQueue.remove(position));
-        }
+        if (deferWhileRestoringQueues(windowOffset -> removeSong(windowOffset + position))) return;
+        synchronized (this) {
+            if (getShuffleMode() == SHUFFLE_MODE_NONE) {
+                playingQueue.remove(position);
+                originalPlayingQueue.remove(position);
+                journal(QueueOperation.remove(position, position));
+            } else {
+                int originalPosition = originalPlayingQueue.indexOf(playingQueue.remove(position));
+                if (originalPosition != -1) {
+                    originalPlayingQueue.remove(originalPosition);
+                }
+                journal(QueueOperation.remove(position, originalPosition));
+            }
 
-        rePosition(position);
+            rePosition(position);
+        }
 
         notifyChange(QUEUE_CHANGED);
     }
 
     public void removeSong(@NonNull Song song) {
-        for (int i = 0; i < playingQueue.size(); i++) {
-            if (playingQueue.get(i).id == song.id) {
-                playingQueue.remove(i);
-                rePosition(i);
+        if (deferWhileRestoringQueues(windowOffset -> removeSong(song))) return;
+        synchronized (this) {
+            // from the back, so the positions of the ones still to remove don't change
+            final int[] positions = playingQueue.indexesOf(song.id);
+            for (int i = positions.length - 1; i >= 0; i--) {
+                playingQueue.remove(positions[i]);
+                journal(QueueOperation.remove(positions[i], -1));
+                rePosition(positions[i]);
             }
-        }
-        for (int i = 0; i < originalPlayingQueue.size(); i++) {
-            if (originalPlayingQueue.get(i).id == song.id) {
-                originalPlayingQueue.remove(i);
+            final int[] originalPositions = originalPlayingQueue.indexesOf(song.id);
+            for (int i = originalPositions.length - 1; i >= 0; i--) {
+                originalPlayingQueue.remove(originalPositions[i]);
+                journal(QueueOperation.remove(-1, originalPositions[i]));
             }
         }
         notifyChange(QUEUE_CHANGED);
@@ -799,26 +1008,36 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
 
     public void moveSong(int from, int to) {
         if (from == to) return;
-        final int currentPosition = getPosition();
-        Song songToMove = playingQueue.remove(from);
-        playingQueue.add(to, songToMove);
-        if (getShuffleMode() == SHUFFLE_MODE_NONE) {
-            Song tmpSong = originalPlayingQueue.remove(from);
-            originalPlayingQueue.add(to, tmpSong);
-        }
-        if (from > currentPosition && to <= currentPosition) {
-            position = currentPosition + 1;
-        } else if (from < currentPosition && to >= currentPosition) {
-            position = currentPosition - 1;
-        } else if (from == currentPosition) {
-            position = to;
+        if (deferWhileRestoringQueues(windowOffset -> moveSong(windowOffset + from, windowOffset + to))) return;
+        synchronized (this) {
+            final int currentPosition = getPosition();
+            Song songToMove = playingQueue.remove(from);
+            playingQueue.add(to, songToMove);
+            if (getShuffleMode() == SHUFFLE_MODE_NONE) {
+                Song tmpSong = originalPlayingQueue.remove(from);
+                originalPlayingQueue.add(to, tmpSong);
+                journal(QueueOperation.move(from, to, from, to));
+            } else {
+                journal(QueueOperation.move(from, to, -1, -1));
+            }
+            if (from > currentPosition && to <= currentPosition) {
+                position = currentPosition + 1;
+            } else if (from < currentPosition && to >= currentPosition) {
+                position = currentPosition - 1;
+            } else if (from == currentPosition) {
+                position = to;
+            }
         }
         notifyChange(QUEUE_CHANGED);
     }
 
     public void clearQueue() {
-        playingQueue.clear();
-        originalPlayingQueue.clear();
+        cancelQueueRestore();
+        synchronized (this) {
+            playingQueue.clear();
+            originalPlayingQueue.clear();
+        }
+        MusicPlaybackQueueStore.getInstance(this).saveQueues(playingQueue, originalPlayingQueue);
 
         setPosition(-1);
         notifyChange(QUEUE_CHANGED);
@@ -849,6 +1068,7 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         if (playback.isPlaying()) {
             playback.pause();
             notifyChange(PLAY_STATE_CHANGED);
+            statisticsWriter.flush();
         }
     }
 
@@ -996,28 +1216,29 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
     }
 
     public void setShuffleMode(final int shuffleMode) {
+        if (deferWhileRestoringQueues(windowOffset -> setShuffleMode(shuffleMode))) return;
         PreferenceUtil.getInstance(this)
                 .edit()
                 .putInt(SAVED_SHUFFLE_MODE, shuffleMode)
                 .apply();
-        switch (shuffleMode) {
-            case SHUFFLE_MODE_SHUFFLE:
-                this.shuffleMode = shuffleMode;
-                ShuffleHelper.makeShuffleList(this.getPlayingQueue(), getPosition());
-                position = 0;
-                break;
-            case SHUFFLE_MODE_NONE:
-                this.shuffleMode = shuffleMode;
-                long currentSongId = getCurrentSong().id;
-                playingQueue = new ArrayList<>(originalPlayingQueue);
-                int newPosition = 0;
-                for (Song song : getPlayingQueue()) {
-                    if (song.id == currentSongId) {
-                        newPosition = getPlayingQueue().indexOf(song);
-                    }
-                }
-                position = newPosition;
-                break;
+        synchronized (this) {
+            switch (shuffleMode) {
+                case SHUFFLE_MODE_SHUFFLE:
+                    this.shuffleMode = shuffleMode;
+                    final long seed = new Random().nextLong();
+                    ShuffleHelper.makeShuffleList(this.getPlayingQueue(), getPosition(), new Random(seed));
+                    journal(QueueOperation.shuffle(getPosition(), seed));
+                    position = 0;
+                    break;
+                case SHUFFLE_MODE_NONE:
+                    this.shuffleMode = shuffleMode;
+                    long currentSongId = getCurrentSong().id;
+                    playingQueue = new IndexedSongList(originalPlayingQueue);
+                    journal(QueueOperation.unshuffle());
+                    final int[] positions = playingQueue.indexesOf(currentSongId);
+                    position = positions.length > 0 ? positions[0] : 0;
+                    break;
+            }
         }
         handleAndSendChangeInternal(SHUFFLE_MODE_CHANGED);
         notifyChange(QUEUE_CHANGED);
@@ -1088,9 +1309,9 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
                 savePosition();
                 savePositionInTrack();
                 final Song currentSong = getCurrentSong();
-                HistoryStore.getInstance(this).addSongId(currentSong.id);
+                statisticsWriter.addToHistory(currentSong.id);
                 if (songPlayCountHelper.shouldBumpPlayCount()) {
-                    SongPlayCountStore.getInstance(this).bumpPlayCount(songPlayCountHelper.getSong().id);
+                    statisticsWriter.bumpPlayCount(songPlayCountHelper.getSong().id);
                 }
                 songPlayCountHelper.notifySongChanged(currentSong);
                 break;
@@ -1114,6 +1335,35 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         return mediaSession;
     }
 
+    @NonNull
+    private Playback createPlayback() {
+        return PreferenceUtil.getInstance(this).audioTrackPlayback() ? new AudioTrackPlayer(this) : new MultiPlayer(this);
+    }
+
+    /**
+     * Continues the current track with the playback that is selected now.
+     */
+    private void recreatePlayback() {
+        synchronized (this) {
+            if (playback == null) return;
+            final boolean wasPlaying = playback.isPlaying();
+            final boolean wasInitialized = playback.isInitialized();
+            final int progress = getSongProgressMillis();
+
+            closeAudioEffectSession();
+            playback.release();
+            playback = createPlayback();
+            playback.setCallbacks(this);
+            if (wasInitialized && openCurrent()) {
+                prepareNextImpl();
+                seek(Math.max(progress, 0));
+                if (wasPlaying) {
+                    playback.start();
+                }
+            }
+        }
+    }
+
     public void releaseWakeLock() {
         if (wakeLock.isHeld()) {
             wakeLock.release();
@@ -1134,6 +1384,9 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
                     playback.setNextDataSource(null);
                 }
                 break;
+            case PreferenceUtil.AUDIO_TRACK_PLAYBACK:
+                playerHandler.post(this::recreatePlayback);
+                break;
             case PreferenceUtil.ALBUM_ART_ON_LOCKSCREEN:
             case PreferenceUtil.BLURRED_ALBUM_ART:
                 updateMediaSessionMetaData();
@@ -1159,6 +1412,11 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         playerHandler.sendEmptyMessage(TRACK_ENDED);
     }
 
+    @Override
+    public void onTrackPrepared(boolean prepared) {
+        playerHandler.obtainMessage(TRACK_PREPARED, prepared ? 1 : 0, 0).sendToTarget();
+    }
+
     private static final class PlaybackHandler extends Handler {
         @NonNull
         private final WeakReference<MusicService> mService;
@@ -1175,6 +1433,8 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
             if (service == null) {
                 return;
             }
+            PlaybackLatencyStats.getInstance().recordMillis(PlaybackLatencyStats.Stage.HANDLER_QUEUE,
+                    SystemClock.uptimeMillis() - msg.getWhen(), "message " + msg.what);
 
             switch (msg.what) {
                 case DUCK:
@@ -1215,7 +1475,10 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
                             break;
                         }
                     } else {
-                        service.position = service.nextPosition;
+                        synchronized (service) {
+                            // remapped when the rest of a partially restored queue is swapped in
+                            service.position = service.nextPosition;
+                        }
                         service.prepareNextImpl();
                         service.notifyChange(META_CHANGED);
                     }
@@ -1242,6 +1505,14 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
                     service.releaseWakeLock();
                     break;
 
+                case TRACK_PREPARED:
+                    if (msg.arg1 == 0) {
+                        Toast.makeText(service, service.getResources().getString(R.string.unplayable_file), Toast.LENGTH_SHORT).show();
+                    }
+                    // the playing state and the progress of the track are known now
+                    service.notifyChange(PLAY_STATE_CHANGED);
+                    break;
+
                 case PLAY_SONG:
                     service.playSongAtImpl(msg.arg1);
                     break;
@@ -1334,6 +1605,9 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         // milliseconds to delay before calling refresh to aggregate events
         private static final long REFRESH_DELAY = 500;
         private final Handler mHandler;
+        // uris changed since the last refresh, null if at least one change didn't report its uri
+        @Nullable
+        private Set<Uri> changedUris = new HashSet<>();
 
         public MediaStoreObserver(Handler handler) {
             super(handler);
@@ -1342,6 +1616,16 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
 
         @Override
         public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, @Nullable Uri uri) {
+            if (uri == null) {
+                changedUris = null;
+            } else if (changedUris != null) {
+                changedUris.add(uri);
+            }
             // if a change is detected, remove any scheduled callback
             // then post a new one. This is intended to prevent closely
             // spaced events from generating multiple refresh calls
@@ -1353,6 +1637,10 @@ public class MusicService extends Service implements SharedPreferences.OnSharedP
         public void run() {
             // actually call refresh when the delayed callback fires
             // do not send a sticky broadcast here
+            final Set<Uri> uris = changedUris;
+            changedUris = new HashSet<>();
+            // only fetch the changed rows instead of letting every library tab reload everything
+            LibrarySnapshot.sync(getApplicationContext(), uris);
             handleAndSendChangeInternal(MEDIA_STORE_CHANGED);
         }
     }
@@ -0,0 +1,195 @@
+package com.kabouzeid.gramophone.service;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings of the playback paths, to compare devices and to catch regressions.
+ * <p/>
+ * Every stage has a histogram with power of two millisecond buckets. Operations slower than the threshold of their stage
+ * are logged, and the most recent of them are kept for {@link #dump(PrintWriter)}. Recording is only a few atomic
+ * operations, so it is always on.
+ */
+public final class PlaybackLatencyStats {
+    private static final String TAG = PlaybackLatencyStats.class.getSimpleName();
+
+    // bucket i counts what took less than 2^i ms, the last one everything else
+    private static final int BUCKET_COUNT = 14;
+    private static final int MAX_SLOW_OPERATIONS = 32;
+
+    public enum Stage {
+        SET_DATA_SOURCE("setDataSource", 250),
+        PREPARE("prepare", 200),
+        PREPARE_NEXT("prepare next", 1000),
+        SET_NEXT_DATA_SOURCE("setNextDataSource", 50),
+        START("start", 50),
+        SEEK("seek", 100),
+        // from the end of a track until the next one is heard, as far as the playback can tell
+        TRACK_TRANSITION("track transition", 50),
+        // how late playback handler messages are handled
+        HANDLER_QUEUE("handler queue", 100);
+
+        final String label;
+        final long slowMillis;
+
+        Stage(final String label, final long slowMillis) {
+            this.label = label;
+            this.slowMillis = slowMillis;
+        }
+    }
+
+    private static final PlaybackLatencyStats sInstance = new PlaybackLatencyStats();
+
+    private final Histogram[] mHistograms = new Histogram[Stage.values().length];
+    private final ArrayDeque<String> mSlowOperations = new ArrayDeque<>(MAX_SLOW_OPERATIONS);
+    private final SimpleDateFormat mTimeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+
+    private PlaybackLatencyStats() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new Histogram();
+        }
+    }
+
+    @NonNull
+    public static PlaybackLatencyStats getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return the start time to pass to {@link #record(Stage, long)}
+     */
+    public static long startTiming() {
+        return System.nanoTime();
+    }
+
+    public void record(@NonNull final Stage stage, final long startNanos) {
+        record(stage, startNanos, null);
+    }
+
+    /**
+     * @param detail what the operation was about, only logged if it was slow
+     */
+    public void record(@NonNull final Stage stage, final long startNanos, @Nullable final String detail) {
+        recordMicros(stage, (System.nanoTime() - startNanos) / 1000, detail);
+    }
+
+    public void recordMillis(@NonNull final Stage stage, final long millis, @Nullable final String detail) {
+        recordMicros(stage, millis * 1000, detail);
+    }
+
+    private void recordMicros(@NonNull final Stage stage, final long micros, @Nullable final String detail) {
+        mHistograms[stage.ordinal()].add(Math.max(0, micros));
+        final long millis = micros / 1000;
+        if (millis >= stage.slowMillis) {
+            final String message = "Slow " + stage.label + ": " + millis + " ms" + (detail != null ? " (" + detail + ")" : "");
+            Log.w(TAG, message);
+            synchronized (mSlowOperations) {
+                if (mSlowOperations.size() == MAX_SLOW_OPERATIONS) {
+                    mSlowOperations.removeFirst();
+                }
+                mSlowOperations.addLast(mTimeFormat.format(new Date()) + " " + message);
+            }
+        }
+    }
+
+    public void reset() {
+        for (Histogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        synchronized (mSlowOperations) {
+            mSlowOperations.clear();
+        }
+    }
+
+    public void dump(@NonNull final PrintWriter writer) {
+        writer.println("Playback latency (ms): count, mean, p50, p90, p99, max");
+        for (Stage stage : Stage.values()) {
+            final Histogram histogram = mHistograms[stage.ordinal()];
+            final long count = histogram.count.get();
+            writer.print(String.format(Locale.US, "  %-18s %6d", stage.label, count));
+            if (count > 0) {
+                writer.print(String.format(Locale.US, " %8.1f %6s %6s %6s %8.1f",
+                        histogram.totalMicros.get() / 1000.0 / count,
+                        histogram.percentile(0.5), histogram.percentile(0.9), histogram.percentile(0.99),
+                        histogram.maxMicros.get() / 1000.0));
+            }
+            writer.println();
+            if (count > 0) {
+                writer.print("    ");
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    final long bucket = histogram.buckets.get(i);
+                    if (bucket > 0) {
+                        writer.print(bucketLabel(i) + ":" + bucket + " ");
+                    }
+                }
+                writer.println();
+            }
+        }
+        writer.println("Slow operations:");
+        synchronized (mSlowOperations) {
+            for (String operation : mSlowOperations) {
+                writer.println("  " + operation);
+            }
+        }
+    }
+
+    @NonNull
+    private static String bucketLabel(final int bucket) {
+        return bucket < BUCKET_COUNT - 1 ? "<" + (1 << bucket) : ">=" + (1 << (BUCKET_COUNT - 2));
+    }
+
+    private static final class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+
+        void add(final long micros) {
+            final long millis = micros / 1000;
+            // the number of bits of the millis is the first bucket whose bound is larger
+            final int bucket = Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKET_COUNT - 1);
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalMicros.addAndGet(micros);
+            long max;
+            while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+                // retry
+            }
+        }
+
+        /**
+         * @return the upper bound of the bucket the percentile falls into
+         */
+        @NonNull
+        String percentile(final double fraction) {
+            final long target = (long) Math.ceil(count.get() * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0) {
+                    return bucketLabel(i);
+                }
+            }
+            return bucketLabel(BUCKET_COUNT - 1);
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            totalMicros.set(0);
+            maxMicros.set(0);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.kabouzeid.gramophone.service;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+
+import com.kabouzeid.gramophone.helper.LongIntHashMap;
+import com.kabouzeid.gramophone.helper.PlayCountScorer;
+import com.kabouzeid.gramophone.provider.HistoryStore;
+import com.kabouzeid.gramophone.provider.SongPlayCountStore;
+
+import java.util.Arrays;
+
+/**
+ * Writes the history and the play counts behind the playback, on its own thread.
+ * <p>
+ * Plays are collected in a bounded buffer, which is written in one transaction per store a few seconds after the first
+ * pending play, on pause and when the service is destroyed. Plays of the same song in one batch are coalesced: the
+ * history only keeps its last play and the play count adds up the weights of all of them. While the buffer is full,
+ * further plays are dropped.
+ */
+public class StatisticsWriter {
+    private static final int MAX_PENDING_PLAYS = 256;
+    private static final long FLUSH_DELAY_MILLIS = 10 * 1000;
+
+    @NonNull
+    private final Context context;
+    @NonNull
+    private final HandlerThread handlerThread;
+    @NonNull
+    private final Handler handler;
+    private final Runnable flushRunnable = this::flushImpl;
+
+    private final Object lock = new Object();
+
+    // the last play of each song, in the order they happened
+    private final LongIntHashMap historyIndices = new LongIntHashMap(MAX_PENDING_PLAYS);
+    private final long[] historyIds = new long[MAX_PENDING_PLAYS];
+    private final long[] historyTimes = new long[MAX_PENDING_PLAYS];
+    private int historyCount;
+
+    // one entry per song
+    private final LongIntHashMap playCountIndices = new LongIntHashMap(MAX_PENDING_PLAYS);
+    private final long[] playCountIds = new long[MAX_PENDING_PLAYS];
+    private final double[] playCountWeights = new double[MAX_PENDING_PLAYS];
+    private final long[] playCountLastPlayed = new long[MAX_PENDING_PLAYS];
+    private int playCountCount;
+
+    private int pendingCount;
+    private long queuedCount;
+    private long flushedCount;
+    private long droppedCount;
+
+    public StatisticsWriter(@NonNull final Context context) {
+        this.context = context.getApplicationContext();
+        handlerThread = new HandlerThread("StatisticsWriter", Process.THREAD_PRIORITY_BACKGROUND);
+        handlerThread.start();
+        handler = new Handler(handlerThread.getLooper());
+    }
+
+    public void addToHistory(final long songId) {
+        if (songId == -1) return;
+        final long now = System.currentTimeMillis();
+        synchronized (lock) {
+            final int previous = historyIndices.get(songId, -1);
+            if (previous != -1) {
+                // the history only keeps the last play, move the song to the end instead of taking another slot
+                historyCount--;
+                System.arraycopy(historyIds, previous + 1, historyIds, previous, historyCount - previous);
+                System.arraycopy(historyTimes, previous + 1, historyTimes, previous, historyCount - previous);
+                for (int i = previous; i < historyCount; i++) {
+                    historyIndices.put(historyIds[i], i);
+                }
+            } else if (historyCount == MAX_PENDING_PLAYS) {
+                droppedCount++;
+                return;
+            }
+            historyIndices.put(songId, historyCount);
+            historyIds[historyCount] = songId;
+            historyTimes[historyCount] = now;
+            historyCount++;
+            onQueued();
+        }
+    }
+
+    public void bumpPlayCount(final long songId) {
+        if (songId == -1) return;
+        final long now = System.currentTimeMillis();
+        synchronized (lock) {
+            int index = playCountIndices.get(songId, -1);
+            if (index == -1) {
+                if (playCountCount == MAX_PENDING_PLAYS) {
+                    droppedCount++;
+                    return;
+                }
+                index = playCountCount++;
+                playCountIndices.put(songId, index);
+                playCountIds[index] = songId;
+                playCountWeights[index] = 0;
+            }
+            playCountWeights[index] += PlayCountScorer.getPlayWeight(now);
+            playCountLastPlayed[index] = now;
+            onQueued();
+        }
+    }
+
+    private void onQueued() {
+        queuedCount++;
+        if (pendingCount++ == 0) {
+            handler.postDelayed(flushRunnable, FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Writes the pending plays as soon as possible.
+     */
+    public void flush() {
+        handler.removeCallbacks(flushRunnable);
+        handler.post(flushRunnable);
+    }
+
+    /**
+     * Writes the pending plays and stops the writer thread once they are written.
+     */
+    public void release() {
+        flush();
+        handlerThread.quitSafely();
+    }
+
+    private void flushImpl() {
+        final long[] historyIds;
+        final long[] historyTimes;
+        final long[] playCountIds;
+        final double[] playCountWeights;
+        final long[] playCountLastPlayed;
+        final int flushed;
+        synchronized (lock) {
+            handler.removeCallbacks(flushRunnable);
+            if (pendingCount == 0) return;
+
+            historyIds = Arrays.copyOf(this.historyIds, historyCount);
+            historyTimes = Arrays.copyOf(this.historyTimes, historyCount);
+            playCountIds = Arrays.copyOf(this.playCountIds, playCountCount);
+            playCountWeights = Arrays.copyOf(this.playCountWeights, playCountCount);
+            playCountLastPlayed = Arrays.copyOf(this.playCountLastPlayed, playCountCount);
+            flushed = pendingCount;
+
+            historyIndices.clear();
+            historyCount = 0;
+            playCountIndices.clear();
+            playCountCount = 0;
+            pendingCount = 0;
+        }
+
+        if (historyIds.length > 0) {
+            HistoryStore.getInstance(context).addSongIds(historyIds, historyTimes, historyIds.length);
+        }
+        if (playCountIds.length > 0) {
+            SongPlayCountStore.getInstance(context).bumpPlayCounts(playCountIds, playCountWeights, playCountLastPlayed, playCountIds.length);
+        }
+
+        synchronized (lock) {
+            flushedCount += flushed;
+        }
+    }
+
+    /**
+     * @return the number of plays accepted so far
+     */
+    public long getQueuedCount() {
+        synchronized (lock) {
+            return queuedCount;
+        }
+    }
+
+    /**
+     * @return the number of plays written so far
+     */
+    public long getFlushedCount() {
+        synchronized (lock) {
+            return flushedCount;
+        }
+    }
+
+    /**
+     * @return the number of plays that were dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        synchronized (lock) {
+            return droppedCount;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.kabouzeid.gramophone.service.playback;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Decodes the first audio track of a file with the platform codecs.
+ * <p/>
+ * The first output buffer is decoded right away, as the output format can differ from the one of the container, e.g.
+ * for HE-AAC. Only the first two channels of a track with more channels are played.
+ */
+public class MediaCodecDecoder implements PcmDecoder {
+    private static final String TAG = MediaCodecDecoder.class.getSimpleName();
+
+    private static final long TIMEOUT_US = 10 * 1000;
+
+    private final MediaExtractor extractor = new MediaExtractor();
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    @Nullable
+    private MediaCodec codec;
+
+    private int sampleRate;
+    private int codecChannelCount;
+    private int channelCount;
+    private int durationMillis;
+    private boolean formatKnown;
+
+    @Nullable
+    private ShortBuffer pending;
+    private int pendingIndex = -1;
+    private boolean inputDone;
+    private boolean outputDone;
+    // output before this is dropped, to seek to a frame and not only to a sync sample
+    private long seekTargetUs = -1;
+
+    public MediaCodecDecoder(@NonNull final Context context, @NonNull final String path) throws IOException {
+        try {
+            if (path.startsWith("content://")) {
+                extractor.setDataSource(context, Uri.parse(path), null);
+            } else {
+                extractor.setDataSource(path);
+            }
+            final MediaFormat format = selectAudioTrack();
+            if (format == null) {
+                throw new IOException("No audio track in " + path);
+            }
+            sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            codecChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            durationMillis = format.containsKey(MediaFormat.KEY_DURATION) ? (int) (format.getLong(MediaFormat.KEY_DURATION) / 1000) : 0;
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            fillPending();
+            formatKnown = true;
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        channelCount = Math.min(codecChannelCount, 2);
+    }
+
+    @Nullable
+    private MediaFormat selectAudioTrack() {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            final MediaFormat format = extractor.getTrackFormat(i);
+            final String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    @Override
+    public int getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Override
+    public int read(@NonNull final short[] buffer, final int offset, final int length) throws IOException {
+        try {
+            if (!fillPending()) return -1;
+        } catch (IllegalStateException e) {
+            throw new IOException(e);
+        }
+        final ShortBuffer pending = this.pending;
+        final int frames = Math.min(length / channelCount, pending.remaining() / codecChannelCount);
+        int out = offset;
+        for (int i = 0; i < frames; i++) {
+            final int frameStart = pending.position();
+            for (int c = 0; c < channelCount; c++) {
+                buffer[out++] = pending.get(frameStart + c);
+            }
+            pending.position(frameStart + codecChannelCount);
+        }
+        if (pending.remaining() < codecChannelCount) {
+            releasePending();
+        }
+        return frames * channelCount;
+    }
+
+    /**
+     * Decodes until there is output left to read.
+     *
+     * @return false at the end of the track
+     */
+    private boolean fillPending() {
+        while (pending == null && !outputDone) {
+            if (!inputDone) {
+                queueInput();
+            }
+            final int index = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                onOutputFormatChanged(codec.getOutputFormat());
+            } else if (index >= 0) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    outputDone = true;
+                }
+                final ByteBuffer output = info.size > 0 ? codec.getOutputBuffer(index) : null;
+                if (output != null) {
+                    output.position(info.offset);
+                    output.limit(info.offset + info.size);
+                    pending = output.slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+                    pendingIndex = index;
+                    skipToSeekTarget(info.presentationTimeUs);
+                } else {
+                    codec.releaseOutputBuffer(index, false);
+                }
+            }
+        }
+        return pending != null;
+    }
+
+    private void queueInput() {
+        final int index = codec.dequeueInputBuffer(TIMEOUT_US);
+        if (index < 0) return;
+        final int size = extractor.readSampleData(codec.getInputBuffer(index), 0);
+        if (size < 0) {
+            codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            inputDone = true;
+        } else {
+            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+            extractor.advance();
+        }
+    }
+
+    private void onOutputFormatChanged(@NonNull final MediaFormat format) {
+        if (formatKnown) {
+            // the samples are still played, just in the format the track started with
+            Log.w(TAG, "Ignoring output format change: " + format);
+            return;
+        }
+        sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        codecChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+    }
+
+    private void skipToSeekTarget(final long presentationTimeUs) {
+        if (seekTargetUs < 0) return;
+        final long skipFrames = (seekTargetUs - presentationTimeUs) * sampleRate / 1000000;
+        final int frames = pending.remaining() / codecChannelCount;
+        if (skipFrames >= frames) {
+            releasePending();
+            return;
+        }
+        if (skipFrames > 0) {
+            pending.position((int) skipFrames * codecChannelCount);
+        }
+        seekTargetUs = -1;
+    }
+
+    private void releasePending() {
+        if (pending != null) {
+            codec.releaseOutputBuffer(pendingIndex, false);
+            pending = null;
+            pendingIndex = -1;
+        }
+    }
+
+    @Override
+    public void seekTo(final int millis) throws IOException {
+        try {
+            releasePending();
+            codec.flush();
+            extractor.seekTo(millis * 1000L, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            inputDone = false;
+            outputDone = false;
+            seekTargetUs = millis * 1000L;
+        } catch (IllegalStateException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException ignored) {
+            }
+            codec.release();
+            codec = null;
+        }
+        extractor.release();
+    }
+}
@@ -0,0 +1,30 @@
+package com.kabouzeid.gramophone.service.playback;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Decodes a track to interleaved 16 bit PCM samples.
+ * <p/>
+ * The format is known once the decoder is created and doesn't change while decoding. A frame is one sample for every
+ * channel.
+ */
+public interface PcmDecoder extends Closeable {
+
+    int getSampleRate();
+
+    int getChannelCount();
+
+    int getDurationMillis();
+
+    /**
+     * @return the number of samples read, always a multiple of the channel count, or -1 at the end of the track
+     * @throws IOException if the rest of the track can't be decoded
+     */
+    int read(short[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Continues decoding at exactly the frame of {@code millis}.
+     */
+    void seekTo(int millis) throws IOException;
+}
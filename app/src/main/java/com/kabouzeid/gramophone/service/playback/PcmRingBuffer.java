@@ -0,0 +1,112 @@
+package com.kabouzeid.gramophone.service.playback;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free ring buffer of samples for exactly one writing and one reading thread.
+ * <p/>
+ * Both positions only ever grow, so a position identifies a sample of the whole stream and not only a slot of the
+ * buffer. Each side publishes its position after copying, so the other side never sees a slot before it's ready.
+ */
+public class PcmRingBuffer {
+    private final short[] buffer;
+    private final int mask;
+
+    private final AtomicLong writePosition = new AtomicLong();
+    private final AtomicLong readPosition = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public PcmRingBuffer(final int capacity) {
+        buffer = new short[Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1];
+        mask = buffer.length - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public long getWritePosition() {
+        return writePosition.get();
+    }
+
+    public long getReadPosition() {
+        return readPosition.get();
+    }
+
+    /**
+     * @return the number of samples that can be read
+     */
+    public int available() {
+        return (int) (writePosition.get() - readPosition.get());
+    }
+
+    /**
+     * @return the number of samples that can be written
+     */
+    public int free() {
+        return buffer.length - available();
+    }
+
+    /**
+     * Writer side only.
+     *
+     * @return the number of samples written, less than {@code length} if the buffer is full
+     */
+    public int write(@NonNull final short[] source, final int offset, final int length) {
+        final long position = writePosition.get();
+        final int count = Math.min(length, buffer.length - (int) (position - readPosition.get()));
+        copy(source, offset, position, count, true);
+        writePosition.lazySet(position + count);
+        return count;
+    }
+
+    /**
+     * Reader side only.
+     *
+     * @return the number of samples read, less than {@code length} if the buffer is empty
+     */
+    public int read(@NonNull final short[] destination, final int offset, final int length) {
+        final long position = readPosition.get();
+        final int count = Math.min(length, (int) (writePosition.get() - position));
+        copy(destination, offset, position, count, false);
+        readPosition.lazySet(position + count);
+        return count;
+    }
+
+    /**
+     * Reader side only, drops the samples before {@code position}.
+     *
+     * @return false if {@code position} isn't between the read and the write position
+     */
+    public boolean skipTo(final long position) {
+        if (position < readPosition.get() || position > writePosition.get()) {
+            return false;
+        }
+        readPosition.set(position);
+        return true;
+    }
+
+    /**
+     * Empties the buffer and starts counting at 0 again, neither side may be using it meanwhile.
+     */
+    public void reset() {
+        writePosition.set(0);
+        readPosition.set(0);
+    }
+
+    private void copy(@NonNull final short[] samples, final int offset, final long position, final int count, final boolean write) {
+        final int start = (int) (position & mask);
+        final int first = Math.min(count, buffer.length - start);
+        if (write) {
+            System.arraycopy(samples, offset, buffer, start, first);
+            System.arraycopy(samples, offset + first, buffer, 0, count - first);
+        } else {
+            System.arraycopy(buffer, start, samples, offset, first);
+            System.arraycopy(buffer, 0, samples, offset + first, count - first);
+        }
+    }
+}
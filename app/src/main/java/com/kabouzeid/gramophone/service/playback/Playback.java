@@ -41,5 +41,10 @@ public interface Playback {
         void onTrackWentToNext();
 
         void onTrackEnded();
+
+        /**
+         * A track that {@link #setDataSource(String)} opened asynchronously is ready to play, or failed to open.
+         */
+        void onTrackPrepared(boolean prepared);
     }
 }
@@ -0,0 +1,168 @@
+package com.kabouzeid.gramophone.service.playback;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads uncompressed PCM from a RIFF/WAVE file, without any platform code.
+ * <p/>
+ * Supports 8, 16, 24 and 32 bit integer samples. Only the first two channels of a file with more channels are played.
+ */
+public class WavDecoder implements PcmDecoder {
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private static final int FRAMES_PER_READ = 1024;
+
+    private final FileChannel channel;
+    private final int sampleRate;
+    private final int fileChannelCount;
+    private final int channelCount;
+    private final int bytesPerSample;
+    private final int blockAlign;
+    private final long dataStart;
+    private final long frameCount;
+
+    private final ByteBuffer readBuffer;
+    private long frame;
+
+    /**
+     * @return whether the file starts with a RIFF/WAVE header, the position of the channel is left unchanged
+     */
+    public static boolean isWav(@NonNull final FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) return false;
+        }
+        return header.getInt(0) == fourCC("RIFF") && header.getInt(8) == fourCC("WAVE");
+    }
+
+    /**
+     * @param channel is closed by {@link #close()}
+     */
+    public WavDecoder(@NonNull final FileChannel channel) throws IOException {
+        this.channel = channel;
+
+        ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer format = null;
+        long position = 12;
+        long dataPosition;
+        long dataSize;
+        while (true) {
+            readFully(chunkHeader, position);
+            // the ids are read as big endian, like fourCC() makes them
+            final int id = Integer.reverseBytes(chunkHeader.getInt(0));
+            final long size = chunkHeader.getInt(4) & 0xFFFFFFFFL;
+            position += 8;
+            if (id == fourCC("fmt ")) {
+                format = ByteBuffer.allocate((int) Math.min(size, 40)).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(format, position);
+            } else if (id == fourCC("data")) {
+                dataPosition = position;
+                dataSize = Math.min(size, channel.size() - position);
+                break;
+            }
+            // chunks are padded to an even size
+            position += size + (size & 1);
+        }
+        if (format == null || format.capacity() < 16) {
+            throw new IOException("Missing fmt chunk");
+        }
+
+        int formatTag = format.getShort(0) & 0xFFFF;
+        if (formatTag == FORMAT_EXTENSIBLE && format.capacity() >= 26) {
+            // the sub format GUID starts with the format tag
+            formatTag = format.getShort(24) & 0xFFFF;
+        }
+        fileChannelCount = format.getShort(2) & 0xFFFF;
+        sampleRate = format.getInt(4);
+        blockAlign = format.getShort(12) & 0xFFFF;
+        final int bitsPerSample = format.getShort(14) & 0xFFFF;
+        bytesPerSample = (bitsPerSample + 7) / 8;
+        if (formatTag != FORMAT_PCM || fileChannelCount < 1 || sampleRate <= 0
+                || bytesPerSample < 1 || bytesPerSample > 4 || blockAlign < fileChannelCount * bytesPerSample) {
+            throw new IOException("Unsupported WAV format " + formatTag + ", " + bitsPerSample + " bit, " + fileChannelCount + " channels");
+        }
+
+        channelCount = Math.min(fileChannelCount, 2);
+        dataStart = dataPosition;
+        frameCount = dataSize / blockAlign;
+        readBuffer = ByteBuffer.allocate(FRAMES_PER_READ * blockAlign).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    @Override
+    public int getDurationMillis() {
+        return (int) (frameCount * 1000 / sampleRate);
+    }
+
+    @Override
+    public int read(@NonNull final short[] buffer, final int offset, final int length) throws IOException {
+        if (frame >= frameCount) return -1;
+
+        final int frames = (int) Math.min(Math.min(length / channelCount, FRAMES_PER_READ), frameCount - frame);
+        readBuffer.clear();
+        readBuffer.limit(frames * blockAlign);
+        readFully(readBuffer, dataStart + frame * blockAlign);
+
+        int out = offset;
+        for (int i = 0; i < frames; i++) {
+            final int frameStart = i * blockAlign;
+            for (int c = 0; c < channelCount; c++) {
+                buffer[out++] = readSample(frameStart + c * bytesPerSample);
+            }
+        }
+        frame += frames;
+        return frames * channelCount;
+    }
+
+    private short readSample(final int index) {
+        switch (bytesPerSample) {
+            case 1:
+                // 8 bit samples are unsigned
+                return (short) (((readBuffer.get(index) & 0xFF) - 128) << 8);
+            case 2:
+                return readBuffer.getShort(index);
+            default:
+                // the most significant two bytes are the last ones
+                return readBuffer.getShort(index + bytesPerSample - 2);
+        }
+    }
+
+    @Override
+    public void seekTo(final int millis) {
+        frame = Math.max(0, Math.min(frameCount, (long) millis * sampleRate / 1000));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void readFully(@NonNull final ByteBuffer buffer, long position) throws IOException {
+        buffer.rewind();
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException();
+            position += read;
+        }
+    }
+
+    private static int fourCC(@NonNull final String id) {
+        return id.charAt(0) << 24 | id.charAt(1) << 16 | id.charAt(2) << 8 | id.charAt(3);
+    }
+}
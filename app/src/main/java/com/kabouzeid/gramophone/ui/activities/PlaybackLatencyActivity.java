@@ -0,0 +1,97 @@
+package com.kabouzeid.gramophone.ui.activities;
+
+import android.annotation.SuppressLint;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.appcompat.widget.Toolbar;
+
+import com.kabouzeid.appthemehelper.ThemeStore;
+import com.kabouzeid.gramophone.service.PlaybackLatencyStats;
+import com.kabouzeid.gramophone.ui.activities.base.AbsBaseActivity;
+
+import org.frknkrc44.frigraph.R;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import butterknife.BindView;
+import butterknife.ButterKnife;
+
+/**
+ * Shows the {@link PlaybackLatencyStats}, the same as the dump of the music service.
+ */
+@SuppressLint("NonConstantResourceId")
+public class PlaybackLatencyActivity extends AbsBaseActivity {
+    private static final long REFRESH_INTERVAL_MILLIS = 1000;
+
+    @BindView(R.id.toolbar)
+    Toolbar toolbar;
+    @BindView(R.id.stats)
+    TextView stats;
+
+    private final Runnable refreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            stats.postDelayed(this, REFRESH_INTERVAL_MILLIS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_playback_stats);
+        setDrawUnderStatusbar();
+        ButterKnife.bind(this);
+
+        setStatusbarColorAuto();
+        setNavigationbarColorAuto();
+        setTaskDescriptionColorAuto();
+
+        toolbar.setBackgroundColor(ThemeStore.primaryColor(this));
+        setSupportActionBar(toolbar);
+        //noinspection ConstantConditions
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        stats.post(refreshRunnable);
+    }
+
+    @Override
+    protected void onPause() {
+        stats.removeCallbacks(refreshRunnable);
+        super.onPause();
+    }
+
+    private void refresh() {
+        final StringWriter text = new StringWriter();
+        PlaybackLatencyStats.getInstance().dump(new PrintWriter(text));
+        stats.setText(text.toString());
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_playback_stats, menu);
+        return super.onCreateOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            onBackPressed();
+            return true;
+        } else if (item.getItemId() == R.id.action_reset) {
+            PlaybackLatencyStats.getInstance().reset();
+            refresh();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+}
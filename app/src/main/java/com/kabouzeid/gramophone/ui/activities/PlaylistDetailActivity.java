@@ -8,6 +8,7 @@ import android.view.View;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.widget.Toolbar;
 import androidx.loader.app.LoaderManager;
 import androidx.loader.content.Loader;
@@ -33,6 +34,8 @@ import com.kabouzeid.gramophone.misc.WrappedAsyncTaskLoader;
 import com.kabouzeid.gramophone.model.AbsCustomPlaylist;
 import com.kabouzeid.gramophone.model.Playlist;
 import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.model.smartplaylist.HistoryPlaylist;
+import com.kabouzeid.gramophone.provider.HistoryStore;
 import com.kabouzeid.gramophone.ui.activities.base.AbsSlidingMusicPanelActivity;
 import com.kabouzeid.gramophone.util.PhonographColorUtil;
 import com.kabouzeid.gramophone.util.PlaylistsUtil;
@@ -50,6 +53,8 @@ import butterknife.ButterKnife;
 public class PlaylistDetailActivity extends AbsSlidingMusicPanelActivity implements CabHolder, LoaderManager.LoaderCallbacks<List<Song>> {
 
     private static final int LOADER_ID = LoaderIds.PLAYLIST_DETAIL_ACTIVITY;
+    // how close to the end of the history its next page is loaded
+    private static final int LOAD_MORE_THRESHOLD = 50;
 
     @NonNull
     public static String EXTRA_PLAYLIST = "extra_playlist";
@@ -124,6 +129,24 @@ public class PlaylistDetailActivity extends AbsSlidingMusicPanelActivity impleme
                 checkIsEmpty();
             }
         });
+
+        if (playlist instanceof HistoryPlaylist) {
+            recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+                @Override
+                public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                    loadMoreIfNeeded();
+                }
+            });
+        }
+    }
+
+    private void loadMoreIfNeeded() {
+        final int lastVisible = ((LinearLayoutManager) recyclerView.getLayoutManager()).findLastVisibleItemPosition();
+        if (lastVisible < adapter.getItemCount() - LOAD_MORE_THRESHOLD) return;
+        final Loader<List<Song>> loader = getSupportLoaderManager().getLoader(LOADER_ID);
+        if (loader instanceof AsyncPlaylistSongLoader) {
+            ((AsyncPlaylistSongLoader) loader).loadMore();
+        }
     }
 
     private void setUpToolbar() {
@@ -150,7 +173,9 @@ public class PlaylistDetailActivity extends AbsSlidingMusicPanelActivity impleme
         int id = item.getItemId();
         switch (id) {
             case R.id.action_shuffle_playlist:
-                MusicPlayerRemote.openAndShuffleQueue(adapter.getDataSet(), true);
+                // only the pages of the history scrolled through so far are loaded
+                MusicPlayerRemote.openAndShuffleQueue(playlist instanceof HistoryPlaylist
+                        ? ((HistoryPlaylist) playlist).getSongs(this) : adapter.getDataSet(), true);
                 return true;
             case android.R.id.home:
                 onBackPressed();
@@ -258,14 +283,45 @@ public class PlaylistDetailActivity extends AbsSlidingMusicPanelActivity impleme
     private static class AsyncPlaylistSongLoader extends WrappedAsyncTaskLoader<List<Song>> {
         private final Playlist playlist;
 
+        // the history is loaded a page at a time, each load adds the next page to the songs loaded before
+        @Nullable
+        private final HistoryStore.Page historyPage;
+        private final List<Song> historySongs = new ArrayList<>();
+        private volatile boolean hasMoreHistory;
+        private boolean isLoadingMore;
+
         public AsyncPlaylistSongLoader(Context context, Playlist playlist) {
             super(context);
             this.playlist = playlist;
+            historyPage = playlist instanceof HistoryPlaylist ? new HistoryStore.Page() : null;
+        }
+
+        /**
+         * Loads the next page of the history, unless it is loading already or there is none.
+         */
+        void loadMore() {
+            if (hasMoreHistory && !isLoadingMore) {
+                isLoadingMore = true;
+                onContentChanged();
+            }
+        }
+
+        @Override
+        public void deliverResult(List<Song> data) {
+            isLoadingMore = false;
+            super.deliverResult(data);
         }
 
         @Override
         public List<Song> loadInBackground() {
-            if (playlist instanceof AbsCustomPlaylist) {
+            if (historyPage != null) {
+                // a cancelled load can still be running, the pages have to be added one after the other
+                synchronized (historySongs) {
+                    historySongs.addAll(((HistoryPlaylist) playlist).getSongs(getContext(), historyPage));
+                    hasMoreHistory = historyPage.hasMore();
+                    return new ArrayList<>(historySongs);
+                }
+            } else if (playlist instanceof AbsCustomPlaylist) {
                 return ((AbsCustomPlaylist) playlist).getSongs(getContext());
             } else {
                 //noinspection unchecked
@@ -11,6 +11,7 @@ import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.appcompat.widget.SearchView;
 import androidx.appcompat.widget.Toolbar;
+import androidx.core.os.OperationCanceledException;
 import androidx.loader.app.LoaderManager;
 import androidx.loader.content.Loader;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -19,9 +20,7 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.kabouzeid.appthemehelper.ThemeStore;
 import com.kabouzeid.gramophone.adapter.SearchAdapter;
 import com.kabouzeid.gramophone.interfaces.LoaderIds;
-import com.kabouzeid.gramophone.loader.AlbumLoader;
-import com.kabouzeid.gramophone.loader.ArtistLoader;
-import com.kabouzeid.gramophone.loader.SongLoader;
+import com.kabouzeid.gramophone.loader.SearchIndex;
 import com.kabouzeid.gramophone.misc.WrappedAsyncTaskLoader;
 import com.kabouzeid.gramophone.ui.activities.base.AbsMusicServiceActivity;
 import com.kabouzeid.gramophone.util.Util;
@@ -39,6 +38,8 @@ public class SearchActivity extends AbsMusicServiceActivity implements SearchVie
 
     public static final String QUERY = "query";
     private static final int LOADER_ID = LoaderIds.SEARCH_ACTIVITY;
+    // typing faster than this only searches for the last query
+    private static final int SEARCH_DELAY_MILLIS = 120;
 
     @BindView(R.id.recycler_view)
     RecyclerView recyclerView;
@@ -52,6 +53,8 @@ public class SearchActivity extends AbsMusicServiceActivity implements SearchVie
     private SearchAdapter adapter;
     private String query;
 
+    private final Runnable searchRunnable = () -> getSupportLoaderManager().restartLoader(LOADER_ID, null, this);
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -140,7 +143,15 @@ public class SearchActivity extends AbsMusicServiceActivity implements SearchVie
 
     private void search(@NonNull String query) {
         this.query = query;
-        getSupportLoaderManager().restartLoader(LOADER_ID, null, this);
+        // restarting the loader cancels a search that is still running
+        recyclerView.removeCallbacks(searchRunnable);
+        recyclerView.postDelayed(searchRunnable, SEARCH_DELAY_MILLIS);
+    }
+
+    @Override
+    protected void onDestroy() {
+        recyclerView.removeCallbacks(searchRunnable);
+        super.onDestroy();
     }
 
     @Override
@@ -195,22 +206,26 @@ public class SearchActivity extends AbsMusicServiceActivity implements SearchVie
         public List<Object> loadInBackground() {
             List<Object> results = new ArrayList<>();
             if (!TextUtils.isEmpty(query)) {
-                List songs = SongLoader.getSongs(getContext(), query.trim());
-                if (!songs.isEmpty()) {
+                // building the index the first time takes a while, by then a newer query may have replaced this one
+                SearchIndex index = SearchIndex.getInstance(getContext());
+                if (isLoadInBackgroundCanceled()) {
+                    throw new OperationCanceledException();
+                }
+                SearchIndex.Result result = index.search(query);
+
+                if (!result.songs.isEmpty()) {
                     results.add(getContext().getResources().getString(R.string.songs));
-                    results.addAll(songs);
+                    results.addAll(result.songs);
                 }
 
-                List artists = ArtistLoader.getArtists(getContext(), query.trim());
-                if (!artists.isEmpty()) {
+                if (!result.artists.isEmpty()) {
                     results.add(getContext().getResources().getString(R.string.artists));
-                    results.addAll(artists);
+                    results.addAll(result.artists);
                 }
 
-                List albums = AlbumLoader.getAlbums(getContext(), query.trim());
-                if (!albums.isEmpty()) {
+                if (!result.albums.isEmpty()) {
                     results.add(getContext().getResources().getString(R.string.albums));
-                    results.addAll(albums);
+                    results.addAll(result.albums);
                 }
             }
             return results;
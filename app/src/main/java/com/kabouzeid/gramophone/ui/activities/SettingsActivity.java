@@ -34,6 +34,7 @@ import com.kabouzeid.gramophone.preferences.LibraryPreference;
 import com.kabouzeid.gramophone.preferences.LibraryPreferenceDialog;
 import com.kabouzeid.gramophone.preferences.NowPlayingScreenPreference;
 import com.kabouzeid.gramophone.preferences.NowPlayingScreenPreferenceDialog;
+import com.kabouzeid.gramophone.provider.HistoryStore;
 import com.kabouzeid.gramophone.ui.activities.base.AbsBaseActivity;
 import com.kabouzeid.gramophone.util.NavigationUtil;
 import com.kabouzeid.gramophone.util.PhonographColorUtil;
@@ -206,6 +207,16 @@ public class SettingsActivity extends AbsBaseActivity implements ColorChooserDia
                 });
             }
 
+            final Preference historySize = findPreference("history_size");
+            if (historySize != null) {
+                setSummary(historySize);
+                historySize.setOnPreferenceChangeListener((preference, o) -> {
+                    setSummary(historySize, o);
+                    HistoryStore.getInstance(requireActivity()).setMaxItems(Integer.parseInt((String) o));
+                    return true;
+                });
+            }
+
             final ATEColorPreference primaryColorPref = (ATEColorPreference) findPreference("primary_color");
             if(primaryColorPref != null) {
                 final int primaryColor = ThemeStore.primaryColor(requireActivity());
@@ -349,6 +360,14 @@ public class SettingsActivity extends AbsBaseActivity implements ColorChooserDia
                 });
             }
 
+            final Preference playbackLatency = findPreference("playback_latency");
+            if (playbackLatency != null) {
+                playbackLatency.setOnPreferenceClickListener(preference -> {
+                    startActivity(new Intent(requireActivity(), PlaybackLatencyActivity.class));
+                    return true;
+                });
+            }
+
             updateNowPlayingScreenSummary();
         }
 
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.os.Bundle;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.loader.app.LoaderManager;
 import androidx.loader.content.Loader;
 import androidx.recyclerview.widget.GridLayoutManager;
@@ -11,7 +12,8 @@ import androidx.recyclerview.widget.GridLayoutManager;
 import com.kabouzeid.gramophone.adapter.song.ShuffleButtonSongAdapter;
 import com.kabouzeid.gramophone.adapter.song.SongAdapter;
 import com.kabouzeid.gramophone.interfaces.LoaderIds;
-import com.kabouzeid.gramophone.loader.SongLoader;
+import com.kabouzeid.gramophone.loader.LibraryChangeSet;
+import com.kabouzeid.gramophone.loader.LibrarySnapshot;
 import com.kabouzeid.gramophone.misc.WrappedAsyncTaskLoader;
 import com.kabouzeid.gramophone.model.Song;
 import com.kabouzeid.gramophone.util.PreferenceUtil;
@@ -28,6 +30,9 @@ public class SongsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFrag
 
     private static final int LOADER_ID = LoaderIds.SONGS_FRAGMENT;
 
+    // library generation the adapter currently shows, -1 if the next data set can't be animated into it
+    private int shownGeneration = -1;
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
@@ -86,6 +91,7 @@ public class SongsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFrag
 
     @Override
     protected void setSortOrder(String sortOrder) {
+        shownGeneration = -1;
         getLoaderManager().restartLoader(LOADER_ID, null, this);
     }
 
@@ -137,22 +143,37 @@ public class SongsFragment extends AbsLibraryPagerRecyclerViewCustomGridSizeFrag
 
     @Override
     public void onLoadFinished(Loader<List<Song>> loader, List<Song> data) {
-        getAdapter().swapDataSet(data);
+        AsyncSongLoader songLoader = (AsyncSongLoader) loader;
+        LibraryChangeSet changes = songLoader.generation == shownGeneration ? LibraryChangeSet.none(shownGeneration) : songLoader.changes;
+        if (changes != null && changes.fromGeneration == shownGeneration) {
+            getAdapter().swapDataSet(data, changes);
+        } else {
+            getAdapter().swapDataSet(data);
+        }
+        shownGeneration = songLoader.generation;
     }
 
     @Override
     public void onLoaderReset(Loader<List<Song>> loader) {
+        shownGeneration = -1;
         getAdapter().swapDataSet(new ArrayList<>());
     }
 
     private static class AsyncSongLoader extends WrappedAsyncTaskLoader<List<Song>> {
+        private int generation = -1;
+        @Nullable
+        private LibraryChangeSet changes;
+
         public AsyncSongLoader(Context context) {
             super(context);
         }
 
         @Override
         public List<Song> loadInBackground() {
-            return SongLoader.getAllSongs(getContext());
+            LibrarySnapshot snapshot = LibrarySnapshot.getInstance(getContext());
+            generation = snapshot.generation;
+            changes = snapshot.getChanges();
+            return new ArrayList<>(snapshot.getSongs(PreferenceUtil.getInstance(getContext()).getSongSortOrder()));
         }
     }
 }
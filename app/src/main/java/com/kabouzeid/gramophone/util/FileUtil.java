@@ -8,9 +8,11 @@ import android.webkit.MimeTypeMap;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.kabouzeid.gramophone.helper.PathPrefixTrie;
 import com.kabouzeid.gramophone.loader.SongLoader;
 import com.kabouzeid.gramophone.loader.SortedCursor;
 import com.kabouzeid.gramophone.model.Song;
+import com.kabouzeid.gramophone.provider.BlacklistStore;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -19,6 +21,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -42,10 +45,12 @@ public final class FileUtil {
         String[] paths = null;
 
         if (files != null) {
-            paths = toPathArray(files);
+            paths = withoutBlacklistedPaths(context, toPathArray(files));
+            // every file is blacklisted, without a selection the whole library would be queried just to be filtered out
+            if (paths.length == 0 && !files.isEmpty()) return null;
 
-            if (files.size() > 0 && files.size() < 999) { // 999 is the max amount Androids SQL implementation can handle.
-                selection = MediaStore.Audio.AudioColumns.DATA + " IN (" + makePlaceholders(files.size()) + ")";
+            if (paths.length > 0 && paths.length < 999) { // 999 is the max amount Androids SQL implementation can handle.
+                selection = MediaStore.Audio.AudioColumns.DATA + " IN (" + makePlaceholders(paths.length) + ")";
             }
         }
 
@@ -54,6 +59,23 @@ public final class FileUtil {
         return songCursor == null ? null : new SortedCursor(songCursor, paths, MediaStore.Audio.AudioColumns.DATA);
     }
 
+    /**
+     * Blacklisted files would be filtered out by the query anyway, dropping them up front keeps the selection short.
+     */
+    @NonNull
+    private static String[] withoutBlacklistedPaths(@NonNull final Context context, @NonNull final String[] paths) {
+        PathPrefixTrie blacklist = BlacklistStore.getInstance(context).getPathTrie();
+        if (blacklist.isEmpty()) return paths;
+
+        List<String> filtered = new ArrayList<>(paths.length);
+        for (String path : paths) {
+            if (!blacklist.matchesPrefixOf(path)) {
+                filtered.add(path);
+            }
+        }
+        return filtered.size() == paths.length ? paths : filtered.toArray(new String[0]);
+    }
+
     private static String makePlaceholders(int len) {
         StringBuilder sb = new StringBuilder(len * 2 - 1);
         sb.append("?");
@@ -360,6 +360,17 @@ public class MusicUtil {
 
     @NonNull
     public static String getSectionName(@Nullable String musicMediaTitle) {
+        musicMediaTitle = getSortableText(musicMediaTitle);
+        if (musicMediaTitle.isEmpty()) return "";
+        return String.valueOf(musicMediaTitle.charAt(0)).toUpperCase();
+    }
+
+    /**
+     * The text titles are sorted by: trimmed, lower case and without a leading article.
+     * Sorting by it keeps the list in the same order as the section names from {@link #getSectionName(String)}.
+     */
+    @NonNull
+    public static String getSortableText(@Nullable String musicMediaTitle) {
         if (TextUtils.isEmpty(musicMediaTitle)) return "";
         musicMediaTitle = musicMediaTitle.trim().toLowerCase();
         if (musicMediaTitle.startsWith("the ")) {
@@ -367,8 +378,7 @@ public class MusicUtil {
         } else if (musicMediaTitle.startsWith("a ")) {
             musicMediaTitle = musicMediaTitle.substring(2);
         }
-        if (musicMediaTitle.isEmpty()) return "";
-        return String.valueOf(musicMediaTitle.charAt(0)).toUpperCase();
+        return musicMediaTitle;
     }
 
     @Nullable
@@ -16,6 +16,7 @@ import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
 import com.kabouzeid.gramophone.helper.SortOrder;
 import com.kabouzeid.gramophone.model.CategoryInfo;
+import com.kabouzeid.gramophone.provider.HistoryStore;
 import com.kabouzeid.gramophone.ui.fragments.mainactivity.folders.FoldersFragment;
 import com.kabouzeid.gramophone.ui.fragments.player.NowPlayingScreen;
 
@@ -66,8 +67,10 @@ public final class PreferenceUtil {
 
     public static final String AUDIO_DUCKING = "audio_ducking";
     public static final String GAPLESS_PLAYBACK = "gapless_playback";
+    public static final String AUDIO_TRACK_PLAYBACK = "audio_track_playback";
 
     public static final String LAST_ADDED_CUTOFF = "last_added_interval";
+    public static final String HISTORY_SIZE = "history_size";
 
     public static final String ALBUM_ART_ON_LOCKSCREEN = "album_art_on_lockscreen";
     public static final String BLURRED_ALBUM_ART = "blurred_album_art";
@@ -249,6 +252,10 @@ public final class PreferenceUtil {
         return mPreferences.getBoolean(GAPLESS_PLAYBACK, false);
     }
 
+    public final boolean audioTrackPlayback() {
+        return mPreferences.getBoolean(AUDIO_TRACK_PLAYBACK, false);
+    }
+
     public final boolean audioDucking() {
         return mPreferences.getBoolean(AUDIO_DUCKING, true);
     }
@@ -345,6 +352,17 @@ public final class PreferenceUtil {
         return (System.currentTimeMillis() - interval) / 1000;
     }
 
+    /**
+     * @return how many songs the history keeps
+     */
+    public int getHistorySize() {
+        try {
+            return Integer.parseInt(mPreferences.getString(HISTORY_SIZE, String.valueOf(HistoryStore.DEFAULT_MAX_ITEMS_IN_DB)));
+        } catch (NumberFormatException e) {
+            return HistoryStore.DEFAULT_MAX_ITEMS_IN_DB;
+        }
+    }
+
     public int getLastSleepTimerValue() {
         return mPreferences.getInt(LAST_SLEEP_TIMER_VALUE, 30);
     }
@@ -0,0 +1,182 @@
+package com.kabouzeid.gramophone.helper;
+
+import com.kabouzeid.gramophone.model.Song;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs random edits on an {@link IndexedSongList} and an {@link ArrayList} side by side and compares them after each.
+ */
+public class IndexedSongListTest {
+    private static final int IDS = 12;
+
+    @Test
+    public void behavesLikeAnArrayList() {
+        for (long seed = 0; seed < 20; seed++) {
+            runRandomEdits(seed, 400);
+        }
+    }
+
+    @Test
+    public void copiesTheSongsItIsCreatedWith() {
+        final Random random = new Random(42);
+        final List<Song> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            expected.add(randomSong(random));
+        }
+        final IndexedSongList list = new IndexedSongList(expected);
+        assertSameAs(expected, list);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void add_rejectsAnIndexPastTheEnd() {
+        new IndexedSongList().add(1, song(1, "a"));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void get_rejectsAnIndexPastTheEnd() {
+        final IndexedSongList list = new IndexedSongList();
+        list.add(song(1, "a"));
+        list.get(1);
+    }
+
+    @Test
+    public void staysBalancedThroughFiftyThousandEdits() {
+        final int count = 50000;
+        final Random random = new Random(7);
+        final IndexedSongList list = new IndexedSongList(songs(count));
+        assertBalanced(list);
+
+        for (int i = 0; i < count; i++) {
+            list.add(random.nextInt(list.size() + 1), song(count + i, "Added " + i));
+        }
+        assertBalanced(list);
+        for (int i = 0; i < count; i++) {
+            list.remove(random.nextInt(list.size()));
+        }
+        assertBalanced(list);
+        Collections.shuffle(list, random);
+        assertBalanced(list);
+        assertEquals(count, list.size());
+    }
+
+    @Test
+    public void findsEverySongOfFiftyThousand() {
+        final int count = 50000;
+        final List<Song> songs = songs(count);
+        final IndexedSongList list = new IndexedSongList(songs);
+
+        for (Song song : songs) {
+            assertEquals(song.id, list.indexOf(song));
+            assertArrayEquals(new int[]{(int) song.id}, list.indexesOf(song.id));
+        }
+        // a song is found from its node up to the root, no scan
+        assertBalanced(list);
+    }
+
+    /**
+     * Finding a song or a position walks one path of the tree, it has to stay logarithmic in the size of the list.
+     */
+    private static void assertBalanced(IndexedSongList list) {
+        final int log2 = 32 - Integer.numberOfLeadingZeros(Math.max(list.size(), 1));
+        // the height of a treap is about 2.5 log2(n) and very rarely more than 3 log2(n)
+        assertTrue("height " + list.height() + " for " + list.size() + " songs", list.height() <= 4 * log2);
+    }
+
+    private static void runRandomEdits(long seed, int steps) {
+        final Random random = new Random(seed);
+        final IndexedSongList list = new IndexedSongList();
+        final List<Song> expected = new ArrayList<>();
+        for (int step = 0; step < steps; step++) {
+            final String at = "seed " + seed + ", step " + step;
+            final int operation = random.nextInt(100);
+            if (operation < 35) {
+                final int index = random.nextInt(expected.size() + 1);
+                final Song song = randomSong(random);
+                list.add(index, song);
+                expected.add(index, song);
+            } else if (operation < 50) {
+                final List<Song> songs = new ArrayList<>();
+                for (int i = random.nextInt(8); i > 0; i--) {
+                    songs.add(randomSong(random));
+                }
+                final int index = random.nextInt(expected.size() + 1);
+                assertEquals(at, expected.addAll(index, songs), list.addAll(index, songs));
+            } else if (operation < 75) {
+                if (expected.isEmpty()) continue;
+                final int index = random.nextInt(expected.size());
+                assertEquals(at, expected.remove(index), list.remove(index));
+            } else if (operation < 92) {
+                if (expected.isEmpty()) continue;
+                final int index = random.nextInt(expected.size());
+                final Song song = randomSong(random);
+                assertEquals(at, expected.set(index, song), list.set(index, song));
+            } else if (operation < 97) {
+                final long shuffleSeed = random.nextLong();
+                Collections.shuffle(expected, new Random(shuffleSeed));
+                Collections.shuffle(list, new Random(shuffleSeed));
+            } else {
+                list.clear();
+                expected.clear();
+            }
+            assertSameAs(expected, list);
+        }
+    }
+
+    private static void assertSameAs(List<Song> expected, IndexedSongList list) {
+        assertEquals(expected.size(), list.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), list.get(i));
+        }
+        assertEquals(expected, list);
+
+        for (long id = 0; id < IDS; id++) {
+            for (Song song : new Song[]{song(id, "a"), song(id, "b")}) {
+                assertEquals(expected.indexOf(song), list.indexOf(song));
+                assertEquals(expected.lastIndexOf(song), list.lastIndexOf(song));
+                assertEquals(expected.contains(song), list.contains(song));
+            }
+            assertArrayEquals(indexesOf(expected, id), list.indexesOf(id));
+        }
+    }
+
+    private static List<Song> songs(int count) {
+        final List<Song> songs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            songs.add(song(i, "Song " + i));
+        }
+        return songs;
+    }
+
+    private static int[] indexesOf(List<Song> songs, long id) {
+        final List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < songs.size(); i++) {
+            if (songs.get(i).id == id) indexes.add(i);
+        }
+        final int[] result = new int[indexes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = indexes.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return one of a few songs, with equal and with unequal songs sharing an id
+     */
+    private static Song randomSong(Random random) {
+        return song(random.nextInt(IDS), random.nextBoolean() ? "a" : "b");
+    }
+
+    private static Song song(long id, String title) {
+        return new Song(id, title, 1, 2000, 180000, "/music/" + id + ".mp3", 0, id / 10, "Album", id / 100, "Artist");
+    }
+}
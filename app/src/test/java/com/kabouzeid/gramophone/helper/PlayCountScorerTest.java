@@ -0,0 +1,129 @@
+package com.kabouzeid.gramophone.helper;
+
+import org.junit.Test;
+
+import static com.kabouzeid.gramophone.helper.PlayCountScorer.HALF_LIFE_MILLIS;
+import static com.kabouzeid.gramophone.helper.PlayCountScorer.ONE_WEEK_MILLIS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PlayCountScorerTest {
+    private static final double DELTA = 1e-9;
+    // 2020-01-01T00:00:00Z, the epoch of the stored scores
+    private static final long EPOCH_MILLIS = 1577836800000L;
+    // 2026-10-17T00:00:00Z
+    private static final long NOW_MILLIS = 1792195200000L;
+
+    @Test
+    public void aPlayIsWorthOneWhenItHappens() {
+        final double stored = PlayCountScorer.getPlayWeight(NOW_MILLIS);
+        assertEquals(1, PlayCountScorer.getScore(stored, NOW_MILLIS), DELTA);
+    }
+
+    @Test
+    public void aPlayLosesHalfItsValueEveryHalfLife() {
+        final double stored = PlayCountScorer.getPlayWeight(NOW_MILLIS);
+        assertEquals(0.5, PlayCountScorer.getScore(stored, NOW_MILLIS + HALF_LIFE_MILLIS), DELTA);
+        assertEquals(0.25, PlayCountScorer.getScore(stored, NOW_MILLIS + 2 * HALF_LIFE_MILLIS), DELTA);
+        assertEquals(Math.pow(2, -0.25), PlayCountScorer.getScore(stored, NOW_MILLIS + HALF_LIFE_MILLIS / 4), DELTA);
+    }
+
+    @Test
+    public void playsAddUp() {
+        final double stored = PlayCountScorer.getPlayWeight(NOW_MILLIS - HALF_LIFE_MILLIS)
+                + 2 * PlayCountScorer.getPlayWeight(NOW_MILLIS);
+        assertEquals(2.5, PlayCountScorer.getScore(stored, NOW_MILLIS), DELTA);
+    }
+
+    @Test
+    public void playsFromAboutAYearAgoCountAThird() {
+        final double stored = PlayCountScorer.getPlayWeight(NOW_MILLIS - 52 * ONE_WEEK_MILLIS);
+        final double score = PlayCountScorer.getScore(stored, NOW_MILLIS);
+        assertTrue(String.valueOf(score), score > 0.3 && score < 0.35);
+        assertTrue(score > PlayCountScorer.MIN_SCORE);
+
+        final double olderStored = PlayCountScorer.getPlayWeight(NOW_MILLIS - 78 * ONE_WEEK_MILLIS);
+        assertTrue(PlayCountScorer.getScore(olderStored, NOW_MILLIS) < PlayCountScorer.MIN_SCORE);
+    }
+
+    @Test
+    public void playWeight_isRelativeToTheEpoch() {
+        assertEquals(1, PlayCountScorer.getPlayWeight(EPOCH_MILLIS), DELTA);
+        assertEquals(2, PlayCountScorer.getPlayWeight(EPOCH_MILLIS + HALF_LIFE_MILLIS), DELTA);
+        assertEquals(0.5, PlayCountScorer.getPlayWeight(EPOCH_MILLIS - HALF_LIFE_MILLIS), DELTA);
+        // a play before the epoch still has a positive weight
+        assertTrue(PlayCountScorer.getPlayWeight(0) > 0);
+    }
+
+    @Test
+    public void playWeight_ratioOnlyDependsOnTheTimeBetweenPlays() {
+        for (long time : new long[]{0, EPOCH_MILLIS, NOW_MILLIS, NOW_MILLIS + 100 * HALF_LIFE_MILLIS}) {
+            final double ratio = PlayCountScorer.getPlayWeight(time + 3 * ONE_WEEK_MILLIS) / PlayCountScorer.getPlayWeight(time);
+            assertEquals(Math.pow(2, 3 * ONE_WEEK_MILLIS / (double) HALF_LIFE_MILLIS), ratio, 1e-9);
+        }
+    }
+
+    @Test
+    public void rebasing_storedScoresConvertToAndFromCurrentScores() {
+        for (long now : new long[]{EPOCH_MILLIS, NOW_MILLIS, NOW_MILLIS + 1000 * HALF_LIFE_MILLIS}) {
+            for (double score : new double[]{PlayCountScorer.MIN_SCORE, 1, 123.5}) {
+                final double stored = PlayCountScorer.toStoredScore(score, now);
+                assertEquals(score, PlayCountScorer.getScore(stored, now), score * 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void rebasing_keepsTheOrderOfScoresAtAnyTime() {
+        // three plays half a year ago against one play today
+        final double older = 3 * PlayCountScorer.getPlayWeight(NOW_MILLIS - 26 * ONE_WEEK_MILLIS);
+        final double newer = PlayCountScorer.getPlayWeight(NOW_MILLIS);
+        assertTrue(older > newer);
+        for (long later = NOW_MILLIS; later < NOW_MILLIS + 10 * HALF_LIFE_MILLIS; later += ONE_WEEK_MILLIS) {
+            assertTrue(PlayCountScorer.getScore(older, later) > PlayCountScorer.getScore(newer, later));
+        }
+    }
+
+    @Test
+    public void rebasing_staysFiniteForCenturies() {
+        final long farFuture = EPOCH_MILLIS + 500 * 365L * 24 * 60 * 60 * 1000;
+        final double stored = PlayCountScorer.getPlayWeight(farFuture);
+        assertTrue(!Double.isInfinite(stored) && !Double.isNaN(stored));
+        assertEquals(1, PlayCountScorer.getScore(stored, farFuture), 1e-9);
+    }
+
+    @Test
+    public void weeklyPlayCounts_countEachPlayInTheMiddleOfItsWeek() {
+        final int lastUpdatedWeek = (int) (NOW_MILLIS / ONE_WEEK_MILLIS);
+        final int[] playCounts = new int[52];
+        playCounts[0] = 2;
+        playCounts[32] = 1;
+        playCounts[51] = 4;
+
+        final double stored = PlayCountScorer.fromWeeklyPlayCounts(playCounts, lastUpdatedWeek);
+
+        final long middleOfLastWeek = lastUpdatedWeek * ONE_WEEK_MILLIS + ONE_WEEK_MILLIS / 2;
+        final double expected = 2 + 0.5 + 4 * Math.pow(2, -51.0 / 32);
+        assertEquals(expected, PlayCountScorer.getScore(stored, middleOfLastWeek), 1e-9);
+    }
+
+    @Test
+    public void weeklyPlayCounts_withoutPlaysScoreNothing() {
+        assertEquals(0, PlayCountScorer.fromWeeklyPlayCounts(new int[52], 2700), 0);
+        assertEquals(0, PlayCountScorer.fromWeeklyPlayCounts(new int[0], 2700), 0);
+    }
+
+    @Test
+    public void weeklyPlayCounts_matchPlaysRecordedOneByOne() {
+        final int lastUpdatedWeek = (int) (NOW_MILLIS / ONE_WEEK_MILLIS);
+        final int[] playCounts = new int[52];
+        double recorded = 0;
+        for (int week = 0; week < playCounts.length; week += 5) {
+            playCounts[week] = week % 3 + 1;
+            for (int play = 0; play < playCounts[week]; play++) {
+                recorded += PlayCountScorer.getPlayWeight((lastUpdatedWeek - week) * ONE_WEEK_MILLIS + ONE_WEEK_MILLIS / 2);
+            }
+        }
+        assertEquals(recorded, PlayCountScorer.fromWeeklyPlayCounts(playCounts, lastUpdatedWeek), recorded * 1e-12);
+    }
+}
@@ -0,0 +1,206 @@
+package com.kabouzeid.gramophone.helper;
+
+import com.kabouzeid.gramophone.loader.SongLoader;
+import com.kabouzeid.gramophone.model.Song;
+
+import org.junit.Test;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SearchQueryHelperTest {
+    private static final Song YELLOW = song(1, "Yellow", "Parachutes", "Coldplay");
+    private static final Song SHIVER = song(2, "Shiver", "Parachutes", "Coldplay");
+    private static final Song YELLOW_COVER = song(3, "Yellow", "Yellow Submarine", "The Beatles");
+    private static final Song CLOCKS = song(4, "Clocks", "A Rush of Blood to the Head", "Coldplay");
+    private static final Song HELLO = song(5, "Hello", "25", "Adele");
+
+    private static final List<Song> LIBRARY = Arrays.asList(YELLOW, SHIVER, YELLOW_COVER, CLOCKS, HELLO);
+
+    @Test
+    public void artistAlbumAndTitle() {
+        assertSongs(search(null, "Coldplay", "Parachutes", "Yellow"), YELLOW);
+    }
+
+    @Test
+    public void artistAndTitle_beforeAlbumAndTitle() {
+        // YELLOW_COVER matches the artist and the title, YELLOW only the album and the title
+        assertSongs(search(null, "The Beatles", "Parachutes", "Yellow"), YELLOW_COVER);
+    }
+
+    @Test
+    public void albumAndTitle() {
+        assertSongs(search(null, "Nobody", "Parachutes", "Yellow"), YELLOW);
+    }
+
+    @Test
+    public void artistAndTitle_beforeArtistAndAlbum() {
+        // there is no tier for artist and album, so they only count as the artist
+        assertSongs(search(null, "Coldplay", "Parachutes", "Clocks"), CLOCKS);
+    }
+
+    @Test
+    public void artistOnly() {
+        assertSongs(search(null, "coldplay", null, null), YELLOW, SHIVER, CLOCKS);
+    }
+
+    @Test
+    public void albumOnly() {
+        assertSongs(search(null, null, "PARACHUTES", null), YELLOW, SHIVER);
+    }
+
+    @Test
+    public void titleOnly() {
+        assertSongs(search(null, null, null, "yellow"), YELLOW, YELLOW_COVER);
+    }
+
+    @Test
+    public void singles_beforeTheRawQuery() {
+        assertSongs(search("Clocks", "Adele", null, null), HELLO);
+    }
+
+    @Test
+    public void queryAsArtist() {
+        assertSongs(search("Coldplay", null, null, null), YELLOW, SHIVER, CLOCKS);
+    }
+
+    @Test
+    public void queryAsAlbum() {
+        assertSongs(search("Yellow Submarine", null, null, null), YELLOW_COVER);
+    }
+
+    @Test
+    public void queryAsTitle() {
+        assertSongs(search("yellow", null, null, null), YELLOW, YELLOW_COVER);
+    }
+
+    @Test
+    public void queryInTitle() {
+        assertSongs(search("ell", null, null, null), YELLOW, YELLOW_COVER, HELLO);
+    }
+
+    @Test
+    public void nothingMatches() {
+        assertSongs(search("Nothing", "Nobody", "Nowhere", "Never"));
+        assertSongs(search(null, null, null, null));
+    }
+
+    @Test
+    public void sameAsSequentialLookups() {
+        final String[] values = {null, "Coldplay", "coldplay", "The Beatles", "Parachutes", "Yellow Submarine",
+                "Yellow", "YELLOW", "Clocks", "ell", "Nobody"};
+        for (String query : values) {
+            for (String artist : values) {
+                for (String album : values) {
+                    for (String title : values) {
+                        assertEquals(query + " / " + artist + " / " + album + " / " + title,
+                                sequentialLookups(LIBRARY, query, artist, album, title), search(query, artist, album, title));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void worstCase_noMatchOnAnyTier_readsEverySongOnce() {
+        final CountingList library = new CountingList(syntheticLibrary(10_000));
+
+        assertTrue(SearchQueryHelper.getSongs(library, "zzz", "zzz", "zzz", "zzz").isEmpty());
+        assertEquals(library.size(), library.reads);
+
+        // the lookups it replaced went through the whole library once per tier
+        library.reads = 0;
+        assertTrue(sequentialLookups(library, "zzz", "zzz", "zzz", "zzz").isEmpty());
+        assertEquals(10 * library.size(), library.reads);
+    }
+
+    private static List<Song> search(String query, String artist, String album, String title) {
+        return SearchQueryHelper.getSongs(LIBRARY, query, artist, album, title);
+    }
+
+    private static void assertSongs(List<Song> actual, Song... expected) {
+        assertEquals(Arrays.asList(expected), actual);
+    }
+
+    /**
+     * The lookups as they were made before, one filter over the whole library per tier until one finds songs.
+     */
+    private static List<Song> sequentialLookups(List<Song> library, String query, String artist, String album, String title) {
+        final List<Filter> filters = new ArrayList<>();
+        if (artist != null && album != null && title != null) {
+            filters.add(s -> eq(s.artistName, artist) && eq(s.albumName, album) && eq(s.title, title));
+        }
+        if (artist != null && title != null) {
+            filters.add(s -> eq(s.artistName, artist) && eq(s.title, title));
+        }
+        if (album != null && title != null) {
+            filters.add(s -> eq(s.albumName, album) && eq(s.title, title));
+        }
+        if (artist != null) filters.add(s -> eq(s.artistName, artist));
+        if (album != null) filters.add(s -> eq(s.albumName, album));
+        if (title != null) filters.add(s -> eq(s.title, title));
+        if (query != null) {
+            filters.add(s -> eq(s.artistName, query));
+            filters.add(s -> eq(s.albumName, query));
+            filters.add(s -> eq(s.title, query));
+            filters.add(s -> SongLoader.containsIgnoreCase(s.title, query));
+        }
+        for (Filter filter : filters) {
+            final List<Song> songs = new ArrayList<>();
+            for (Song song : library) {
+                if (filter.matches(song)) songs.add(song);
+            }
+            if (!songs.isEmpty()) return songs;
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Counts how many songs were read from it.
+     */
+    private static final class CountingList extends AbstractList<Song> {
+        private final List<Song> songs;
+        int reads;
+
+        CountingList(List<Song> songs) {
+            this.songs = songs;
+        }
+
+        @Override
+        public Song get(int index) {
+            reads++;
+            return songs.get(index);
+        }
+
+        @Override
+        public int size() {
+            return songs.size();
+        }
+    }
+
+    private interface Filter {
+        boolean matches(Song song);
+    }
+
+    private static boolean eq(String text, String value) {
+        return text != null && text.equalsIgnoreCase(value);
+    }
+
+    private static List<Song> syntheticLibrary(int count) {
+        final List<Song> songs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            songs.add(song(i, "Title " + i, "Album " + i / 10, "Artist " + i / 100));
+        }
+        return songs;
+    }
+
+    private static Song song(long id, String title, String albumName, String artistName) {
+        return new Song(id, title, 1, 2000, 180000, "/music/" + id + ".mp3", 0, id / 10, albumName, id / 100, artistName);
+    }
+}
@@ -0,0 +1,89 @@
+package com.kabouzeid.gramophone.loader;
+
+import com.kabouzeid.gramophone.model.Album;
+import com.kabouzeid.gramophone.model.Song;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AlbumLoaderTest {
+    static final int SONGS_PER_ALBUM = 10;
+
+    /**
+     * Songs of {@code count / 10} albums, interleaved like in a list that isn't sorted by album.
+     */
+    static List<Song> makeSongs(int count) {
+        final int albumCount = Math.max(count / SONGS_PER_ALBUM, 1);
+        final List<Song> songs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final long albumId = i % albumCount * 1000 + 7;
+            songs.add(new Song(i, "Song " + i, SONGS_PER_ALBUM - i % SONGS_PER_ALBUM, 2000, 180000, "/music/" + i + ".mp3", 0,
+                    albumId, "Album " + albumId, albumId % 97, "Artist " + albumId % 97));
+        }
+        return songs;
+    }
+
+    @Test
+    public void splitIntoAlbums_groupsInOrderOfFirstAppearance() {
+        final List<Song> songs = Arrays.asList(
+                song(1, 10, 2), song(2, 20, 1), song(3, 10, 1), song(4, 30, 1), song(5, 20, 2));
+
+        final List<Album> albums = AlbumLoader.splitIntoAlbums(songs);
+
+        assertEquals(3, albums.size());
+        assertEquals(10, albums.get(0).getId());
+        assertEquals(20, albums.get(1).getId());
+        assertEquals(30, albums.get(2).getId());
+        // sorted by track number within the album
+        assertEquals(3, albums.get(0).songs.get(0).id);
+        assertEquals(1, albums.get(0).songs.get(1).id);
+        assertEquals(2, albums.get(1).songs.get(0).id);
+        assertEquals(5, albums.get(1).songs.get(1).id);
+        assertEquals(1, albums.get(2).songs.size());
+    }
+
+    @Test
+    public void splitIntoAlbums_handlesNullAndEmpty() {
+        assertTrue(AlbumLoader.splitIntoAlbums(null).isEmpty());
+        assertTrue(AlbumLoader.splitIntoAlbums(new ArrayList<>()).isEmpty());
+    }
+
+    @Test
+    public void splitIntoAlbums_keepsEverySong() {
+        final List<Song> songs = makeSongs(100_000);
+        final List<Album> albums = AlbumLoader.splitIntoAlbums(songs);
+
+        assertEquals(100_000 / SONGS_PER_ALBUM, albums.size());
+        int total = 0;
+        for (Album album : albums) {
+            assertEquals(SONGS_PER_ALBUM, album.songs.size());
+            for (Song song : album.songs) {
+                assertEquals(album.getId(), song.albumId);
+            }
+            total += album.songs.size();
+        }
+        assertEquals(songs.size(), total);
+    }
+
+    @Test
+    public void splitIntoAlbums_scalesLinearly() {
+        final List<Song> small = makeSongs(10_000);
+        final List<Song> large = makeSongs(100_000);
+
+        final long smallNanos = ScalingBenchmark.bestOf(() -> AlbumLoader.splitIntoAlbums(small));
+        final long largeNanos = ScalingBenchmark.bestOf(() -> AlbumLoader.splitIntoAlbums(large));
+
+        ScalingBenchmark.assertLinear("splitIntoAlbums", smallNanos, largeNanos, 10);
+    }
+
+    static Song song(long id, long albumId, int trackNumber) {
+        return new Song(id, "Song " + id, trackNumber, 2000, 180000, "/music/" + id + ".mp3", 0,
+                albumId, "Album " + albumId, 1, "Artist");
+    }
+}
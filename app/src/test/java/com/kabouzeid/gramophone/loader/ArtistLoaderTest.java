@@ -0,0 +1,76 @@
+package com.kabouzeid.gramophone.loader;
+
+import com.kabouzeid.gramophone.model.Album;
+import com.kabouzeid.gramophone.model.Artist;
+import com.kabouzeid.gramophone.model.Song;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ArtistLoaderTest {
+
+    @Test
+    public void splitIntoArtists_groupsInOrderOfFirstAppearance() {
+        final List<Album> albums = Arrays.asList(album(10, 1), album(20, 2), album(30, 1), album(40, 3));
+
+        final List<Artist> artists = ArtistLoader.splitIntoArtists(albums);
+
+        assertEquals(3, artists.size());
+        assertEquals(1, artists.get(0).getId());
+        assertEquals(2, artists.get(1).getId());
+        assertEquals(3, artists.get(2).getId());
+        assertEquals(2, artists.get(0).albums.size());
+        assertEquals(10, artists.get(0).albums.get(0).getId());
+        assertEquals(30, artists.get(0).albums.get(1).getId());
+    }
+
+    @Test
+    public void splitIntoArtists_handlesNullAndEmpty() {
+        assertTrue(ArtistLoader.splitIntoArtists(null).isEmpty());
+        assertTrue(ArtistLoader.splitIntoArtists(new ArrayList<>()).isEmpty());
+    }
+
+    @Test
+    public void splitIntoArtists_scalesLinearly() {
+        // 10k and 100k songs, 10 per album and 97 artists, as the library snapshot would pass them
+        final List<Album> small = AlbumLoader.splitIntoAlbums(AlbumLoaderTest.makeSongs(10_000));
+        final List<Album> large = AlbumLoader.splitIntoAlbums(AlbumLoaderTest.makeSongs(100_000));
+
+        final long smallNanos = ScalingBenchmark.bestOf(() -> ArtistLoader.splitIntoArtists(small));
+        final long largeNanos = ScalingBenchmark.bestOf(() -> ArtistLoader.splitIntoArtists(large));
+
+        ScalingBenchmark.assertLinear("splitIntoArtists", smallNanos, largeNanos, 10);
+    }
+
+    @Test
+    public void splitIntoArtists_scalesLinearlyWithManyArtists() {
+        final List<Album> small = albumsOfDistinctArtists(1_000);
+        final List<Album> large = albumsOfDistinctArtists(10_000);
+
+        final long smallNanos = ScalingBenchmark.bestOf(() -> ArtistLoader.splitIntoArtists(small));
+        final long largeNanos = ScalingBenchmark.bestOf(() -> ArtistLoader.splitIntoArtists(large));
+
+        ScalingBenchmark.assertLinear("splitIntoArtists, one artist per album", smallNanos, largeNanos, 10);
+    }
+
+    private static List<Album> albumsOfDistinctArtists(int count) {
+        final List<Album> albums = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            albums.add(album(i, i));
+        }
+        return albums;
+    }
+
+    private static Album album(long albumId, long artistId) {
+        final List<Song> songs = new ArrayList<>();
+        songs.add(new Song(albumId * 100, "Song", 1, 2000, 180000, "/music/" + albumId + ".mp3", 0,
+                albumId, "Album " + albumId, artistId, "Artist " + artistId));
+        return new Album(songs);
+    }
+}
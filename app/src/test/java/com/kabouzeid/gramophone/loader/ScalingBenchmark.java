@@ -0,0 +1,47 @@
+package com.kabouzeid.gramophone.loader;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Timing helpers for tests that check how an operation scales, not how fast it is on a given machine.
+ * <p/>
+ * Timings are too noisy on shared build machines to fail a build with, so the tests using these are skipped unless
+ * they are asked for with {@code ./gradlew test -Pbenchmarks}.
+ */
+public final class ScalingBenchmark {
+    private static final String ENABLED_PROPERTY = "benchmarks";
+
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 7;
+    // a linear operation stays far below this, a quadratic one is about the size factor above it
+    private static final int TOLERANCE = 3;
+
+    private ScalingBenchmark() {
+    }
+
+    /**
+     * Skips the calling test unless benchmarks are enabled.
+     *
+     * @return the fastest of a few runs after warming up, the least disturbed by the JIT and the garbage collector
+     */
+    public static long bestOf(Runnable operation) {
+        assumeTrue("benchmarks only run with -P" + ENABLED_PROPERTY, Boolean.getBoolean(ENABLED_PROPERTY));
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            operation.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            final long start = System.nanoTime();
+            operation.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    public static void assertLinear(String name, long smallNanos, long largeNanos, int sizeFactor) {
+        final double ratio = (double) largeNanos / Math.max(smallNanos, 1);
+        assertTrue(name + " grew " + ratio + "x for " + sizeFactor + "x the input, "
+                + smallNanos / 1000 + " us -> " + largeNanos / 1000 + " us", ratio < sizeFactor * TOLERANCE);
+    }
+}
@@ -0,0 +1,59 @@
+package com.kabouzeid.gramophone.loader;
+
+import com.kabouzeid.gramophone.model.Album;
+import com.kabouzeid.gramophone.model.Artist;
+import com.kabouzeid.gramophone.model.Song;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SearchIndexTest {
+
+    @Test
+    public void search_findsWordsContainingTheTermAfterTheOnesItStarts() {
+        final SearchIndex index = index(song(1, "Football Anthem"), song(2, "Ball Game"), song(3, "Balloons"), song(4, "Bal"));
+
+        final List<Song> songs = index.search("ball").songs;
+
+        assertEquals(3, songs.size());
+        // a whole word, then the start of one, then the inside of one
+        assertEquals(2, songs.get(0).id);
+        assertEquals(3, songs.get(1).id);
+        assertEquals(1, songs.get(2).id);
+    }
+
+    @Test
+    public void search_findsTermsOnlyInsideOfWords() {
+        final SearchIndex index = index(song(1, "Football Anthem"), song(2, "Anthems"));
+
+        assertEquals(Collections.singletonList(1L), ids(index.search("ball anth").songs));
+    }
+
+    @Test
+    public void search_needsEveryTerm() {
+        final SearchIndex index = index(song(1, "Football Anthem"), song(2, "Basketball"));
+
+        assertEquals(Collections.singletonList(1L), ids(index.search("ball them").songs));
+    }
+
+    private static SearchIndex index(Song... songs) {
+        return SearchIndex.build(Arrays.asList(songs), Collections.<Album>emptyList(), Collections.<Artist>emptyList());
+    }
+
+    private static Song song(long id, String title) {
+        return new Song(id, title, 1, 2000, 180000, "/music/" + id + ".mp3", 0, 7, "Album", 9, "Artist");
+    }
+
+    private static List<Long> ids(List<Song> songs) {
+        final Long[] ids = new Long[songs.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = songs.get(i).id;
+        }
+        return Arrays.asList(ids);
+    }
+}
@@ -0,0 +1,412 @@
+package com.kabouzeid.gramophone.service;
+
+import android.content.ContextWrapper;
+import android.media.AudioTrack;
+
+import com.kabouzeid.gramophone.service.playback.PcmDecoder;
+import com.kabouzeid.gramophone.service.playback.Playback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plays WAV files through the whole engine, with an audio track that records what it is given.
+ */
+public class AudioTrackPlayerGaplessTest {
+    private static final int SAMPLE_RATE = 44100;
+
+    // read while the player is constructed, before the fields of a subclass are set
+    private static final List<FakeAudioTrack> sTracks = Collections.synchronizedList(new ArrayList<>());
+
+    private final List<File> files = new ArrayList<>();
+    private final List<String> openedPaths = Collections.synchronizedList(new ArrayList<>());
+    private AudioTrackPlayer player;
+    private RecordingCallbacks callbacks;
+
+    @Before
+    public void setUp() {
+        sTracks.clear();
+        player = new AudioTrackPlayer(new ContextWrapper(null)) {
+            @Override
+            AudioTrack buildAudioTrack(int sampleRate, int channelCount, int audioSessionId) {
+                final FakeAudioTrack track = new FakeAudioTrack(channelCount);
+                sTracks.add(track);
+                return track;
+            }
+
+            @Override
+            PcmDecoder openDecoder(String path) {
+                final PcmDecoder decoder = super.openDecoder(path);
+                openedPaths.add(path);
+                return decoder;
+            }
+
+            @Override
+            void runOnMainThread(Runnable action) {
+                action.run();
+            }
+
+            @Override
+            boolean isGaplessPlayback() {
+                return true;
+            }
+        };
+        callbacks = new RecordingCallbacks();
+        player.setCallbacks(callbacks);
+    }
+
+    @After
+    public void tearDown() {
+        player.release();
+        for (File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void nextTrack_followsWithoutAGap() throws IOException, InterruptedException {
+        final short[] first = samples(2, 30000, 1);
+        final short[] second = samples(2, 20000, -1);
+        callbacks.expect(3);
+
+        // everything is requested before the first track is even open
+        assertTrue(player.setDataSource(wav(2, first)));
+        player.setNextDataSource(wav(2, second));
+        assertTrue(player.start());
+        assertTrue(player.isPlaying());
+
+        assertTrue(callbacks.await());
+        assertEquals(Arrays.asList("prepared", "wentToNext", "ended"), callbacks.events);
+        final short[] played = lastTrack().playedSamples();
+        // the first sample of the second track comes right after the last one of the first track
+        assertArrayEquals(concat(first, second), Arrays.copyOf(played, first.length + second.length));
+        assertSilentFrom(played, first.length + second.length);
+        assertEquals(20000 * 1000 / SAMPLE_RATE, player.duration());
+    }
+
+    @Test
+    public void nextTrackSetAfterTheCurrentOneWasDecoded_followsWithoutAGap() throws IOException, InterruptedException {
+        final short[] first = samples(2, 10000, 1);
+        final short[] second = samples(2, 10000, -1);
+        final String secondPath = wav(2, second);
+        // nothing is heard until the next track is stitched on
+        lastTrack().closeGate();
+        callbacks.expect(1);
+        assertTrue(player.setDataSource(wav(2, first)));
+        assertTrue(player.start());
+        assertTrue(callbacks.await());
+        // the whole track fits into the buffer, the decoder waits at its end
+        awaitDecoderWaiting();
+
+        callbacks.expect(2);
+        player.setNextDataSource(secondPath);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!openedPaths.contains(secondPath) && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(openedPaths.contains(secondPath));
+        // the decoder only waits again at the end of the next track
+        awaitDecoderWaiting();
+        lastTrack().openGate();
+
+        assertTrue(callbacks.await());
+        assertEquals(Arrays.asList("prepared", "wentToNext", "ended"), callbacks.events);
+        final short[] played = lastTrack().playedSamples();
+        assertArrayEquals(concat(first, second), Arrays.copyOf(played, first.length + second.length));
+    }
+
+    @Test
+    public void nextTrackInAnotherFormat_endsTheCurrentTrack() throws IOException, InterruptedException {
+        final short[] first = samples(2, 10000, 1);
+        callbacks.expect(2);
+        assertTrue(player.setDataSource(wav(2, first)));
+        // can't share the stereo audio track
+        player.setNextDataSource(wav(1, samples(1, 10000, -1)));
+        player.start();
+
+        assertTrue(callbacks.await());
+        assertEquals(Arrays.asList("prepared", "ended"), callbacks.events);
+        final short[] played = lastTrack().playedSamples();
+        assertArrayEquals(first, Arrays.copyOf(played, first.length));
+        assertSilentFrom(played, first.length);
+        assertEquals(10000 * 1000 / SAMPLE_RATE, player.duration());
+    }
+
+    @Test
+    public void lastTrack_endsAfterItsLastSample() throws IOException, InterruptedException {
+        final short[] only = samples(2, 5000, 1);
+        callbacks.expect(2);
+        player.setDataSource(wav(2, only));
+        player.start();
+
+        assertTrue(callbacks.await());
+        assertEquals(Arrays.asList("prepared", "ended"), callbacks.events);
+        assertFalse(player.isPlaying());
+        final short[] played = lastTrack().playedSamples();
+        assertArrayEquals(only, Arrays.copyOf(played, only.length));
+        assertSilentFrom(played, only.length);
+    }
+
+    @Test
+    public void workers_sleepUntilWokenUpOnceTheTrackEnded() throws IOException, InterruptedException {
+        callbacks.expect(2);
+        player.setDataSource(wav(2, samples(2, 5000, 1)));
+        player.start();
+        assertTrue(callbacks.await());
+
+        // parked without a timeout, not polling
+        assertEquals(Arrays.asList(Thread.State.WAITING, Thread.State.WAITING),
+                awaitWorkerStates("AudioTrackDecoder", "AudioTrackOutput"));
+    }
+
+    @Test
+    public void seekBeforePrepared_startsThere() throws IOException, InterruptedException {
+        final short[] track = samples(2, 44100, 1);
+        callbacks.expect(2);
+        player.setDataSource(wav(2, track));
+        player.seek(500);
+        assertEquals(500, player.position());
+        player.start();
+
+        assertTrue(callbacks.await());
+        final short[] played = lastTrack().playedSamples();
+        final int from = 2 * SAMPLE_RATE / 2;
+        assertArrayEquals(Arrays.copyOfRange(track, from, track.length), Arrays.copyOf(played, track.length - from));
+    }
+
+    @Test
+    public void setDataSource_opensOffTheCallingThread() throws IOException, InterruptedException {
+        callbacks.expect(1);
+        assertTrue(player.setDataSource(wav(2, samples(2, 1000, 1))));
+        assertTrue(callbacks.await());
+        assertNotSame(Thread.currentThread(), callbacks.preparedThread);
+        assertEquals(Collections.singletonList("prepared"), callbacks.events);
+    }
+
+    @Test
+    public void missingFile_isReportedAsNotPrepared() throws InterruptedException {
+        callbacks.expect(1);
+        assertTrue(player.setDataSource(new File("does-not-exist.wav").getAbsolutePath()));
+        player.start();
+
+        assertTrue(callbacks.await());
+        assertEquals(Collections.singletonList("failed"), callbacks.events);
+        assertFalse(player.isInitialized());
+        assertFalse(player.isPlaying());
+    }
+
+    private static void awaitDecoderWaiting() throws InterruptedException {
+        assertEquals(Collections.singletonList(Thread.State.WAITING), awaitWorkerStates("AudioTrackDecoder"));
+    }
+
+    /**
+     * @return the states of the worker threads once all of them are waiting, or after a while
+     */
+    private static List<Thread.State> awaitWorkerStates(String... names) throws InterruptedException {
+        final List<String> workerNames = Arrays.asList(names);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        List<Thread.State> states;
+        boolean waiting;
+        do {
+            Thread.sleep(1);
+            states = new ArrayList<>();
+            waiting = true;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (workerNames.contains(thread.getName())) {
+                    states.add(thread.getState());
+                    waiting &= thread.getState() == Thread.State.WAITING;
+                }
+            }
+        } while ((!waiting || states.size() != names.length) && System.nanoTime() < deadline);
+        return states;
+    }
+
+    private FakeAudioTrack lastTrack() {
+        return sTracks.get(sTracks.size() - 1);
+    }
+
+    private static void assertSilentFrom(short[] samples, int from) {
+        for (int i = from; i < samples.length; i++) {
+            assertEquals("sample " + i, 0, samples[i]);
+        }
+    }
+
+    /**
+     * @return samples that are never silent, positive or negative depending on {@code sign}
+     */
+    private static short[] samples(int channelCount, int frames, int sign) {
+        final short[] samples = new short[frames * channelCount];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (sign * (1 + i % 30000));
+        }
+        return samples;
+    }
+
+    private static short[] concat(short[] first, short[] second) {
+        final short[] samples = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, samples, first.length, second.length);
+        return samples;
+    }
+
+    /**
+     * @return the path of a 16 bit WAV file of the samples
+     */
+    private String wav(int channelCount, short[] samples) throws IOException {
+        final ByteBuffer bytes = ByteBuffer.allocate(44 + samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.put(new byte[]{'R', 'I', 'F', 'F'}).putInt(36 + samples.length * 2).put(new byte[]{'W', 'A', 'V', 'E'});
+        bytes.put(new byte[]{'f', 'm', 't', ' '}).putInt(16);
+        bytes.putShort((short) 1).putShort((short) channelCount).putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * channelCount * 2);
+        bytes.putShort((short) (channelCount * 2)).putShort((short) 16);
+        bytes.put(new byte[]{'d', 'a', 't', 'a'}).putInt(samples.length * 2);
+        for (short sample : samples) {
+            bytes.putShort(sample);
+        }
+
+        final File file = File.createTempFile("AudioTrackPlayerGaplessTest", ".wav");
+        files.add(file);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes.array());
+        }
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Plays every sample the moment it is written, unless its gate is closed.
+     */
+    private static final class FakeAudioTrack extends AudioTrack {
+        private final int channelCount;
+        private short[] played = new short[1 << 16];
+        private int playedLength;
+        private int headFrames;
+        private boolean gateClosed;
+
+        FakeAudioTrack(int channelCount) {
+            super(null, null, 0, AudioTrack.MODE_STREAM, 0);
+            this.channelCount = channelCount;
+        }
+
+        synchronized short[] playedSamples() {
+            return Arrays.copyOf(played, playedLength);
+        }
+
+        synchronized void closeGate() {
+            gateClosed = true;
+        }
+
+        synchronized void openGate() {
+            gateClosed = false;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int write(short[] audioData, int offsetInShorts, int sizeInShorts) {
+            // like a full buffer of a real track
+            while (gateClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return 0;
+                }
+            }
+            if (playedLength + sizeInShorts > played.length) {
+                played = Arrays.copyOf(played, Math.max(played.length * 2, playedLength + sizeInShorts));
+            }
+            System.arraycopy(audioData, offsetInShorts, played, playedLength, sizeInShorts);
+            playedLength += sizeInShorts;
+            headFrames += sizeInShorts / channelCount;
+            return sizeInShorts;
+        }
+
+        @Override
+        public synchronized int getPlaybackHeadPosition() {
+            return headFrames;
+        }
+
+        @Override
+        public synchronized void flush() {
+            headFrames = 0;
+        }
+
+        @Override
+        public int getState() {
+            return AudioTrack.STATE_INITIALIZED;
+        }
+
+        @Override
+        public int getAudioSessionId() {
+            return 1;
+        }
+
+        @Override
+        public int setVolume(float gain) {
+            return AudioTrack.SUCCESS;
+        }
+
+        @Override
+        public void play() {
+        }
+
+        @Override
+        public void pause() {
+            // a blocking write returns once the track is paused
+            openGate();
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    private static final class RecordingCallbacks implements Playback.PlaybackCallbacks {
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+        volatile Thread preparedThread;
+        private volatile CountDownLatch latch = new CountDownLatch(0);
+
+        void expect(int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(10, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void onTrackWentToNext() {
+            events.add("wentToNext");
+            latch.countDown();
+        }
+
+        @Override
+        public void onTrackEnded() {
+            events.add("ended");
+            latch.countDown();
+        }
+
+        @Override
+        public void onTrackPrepared(boolean prepared) {
+            preparedThread = Thread.currentThread();
+            events.add(prepared ? "prepared" : "failed");
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.kabouzeid.gramophone.service;
+
+import android.content.ContextWrapper;
+import android.media.MediaPlayer;
+
+import com.kabouzeid.gramophone.service.playback.Playback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Skips to tracks that aren't the prepared next one, with a fake decoder that only finishes preparing a track when the
+ * test lets it.
+ */
+public class MultiPlayerSkipLatencyTest {
+    private static final int SKIPS = 10;
+
+    // read while the player is constructed, before the fields of a subclass are set
+    private static volatile boolean sFailPreparing;
+    private static final List<FakeMediaPlayer> sPlayers = Collections.synchronizedList(new ArrayList<>());
+
+    private MultiPlayer player;
+    private RecordingCallbacks callbacks;
+
+    @Before
+    public void setUp() {
+        sFailPreparing = false;
+        sPlayers.clear();
+        player = new MultiPlayer(new ContextWrapper(null)) {
+            @Override
+            MediaPlayer createMediaPlayer() {
+                final FakeMediaPlayer mediaPlayer = new FakeMediaPlayer();
+                sPlayers.add(mediaPlayer);
+                return mediaPlayer;
+            }
+        };
+        callbacks = new RecordingCallbacks();
+        player.setCallbacks(callbacks);
+    }
+
+    @After
+    public void tearDown() {
+        player.release();
+        synchronized (sPlayers) {
+            for (FakeMediaPlayer mediaPlayer : sPlayers) {
+                mediaPlayer.finishPreparing();
+            }
+        }
+    }
+
+    @Test
+    public void skip_returnsWhileTheTrackIsStillPreparing() {
+        for (int i = 0; i < SKIPS; i++) {
+            final String path = "/music/track" + i + ".mp3";
+            assertTrue(player.setDataSource(path));
+            player.start();
+
+            // back from the skip while the decoder is still busy
+            final FakeMediaPlayer preparing = preparing(path);
+            assertFalse(preparing.prepared);
+            assertEquals(i, callbacks.results.size());
+            assertTrue(player.isPlaying());
+
+            preparing.finishPreparing();
+            assertTrue(preparing.started);
+        }
+        assertEquals(Collections.nCopies(SKIPS, true), callbacks.results);
+        // prepared by the decoder, reported from there, and only once the track was playing
+        for (int i = 0; i < SKIPS; i++) {
+            assertNotSame(Thread.currentThread(), callbacks.threads.get(i));
+            assertTrue(callbacks.startedWhenReported.get(i));
+        }
+    }
+
+    @Test
+    public void controlsBeforePrepared_areAppliedOncePrepared() {
+        assertTrue(player.setDataSource("/music/track.mp3"));
+        player.seek(42000);
+        player.setVolume(0.2f);
+        player.start();
+
+        assertTrue(player.isInitialized());
+        assertTrue(player.isPlaying());
+        assertEquals(42000, player.position());
+        assertEquals(-1, player.duration());
+
+        final FakeMediaPlayer current = preparing("/music/track.mp3");
+        current.finishPreparing();
+        assertEquals(Collections.singletonList(true), callbacks.results);
+        assertTrue(current.started);
+        assertEquals(42000, current.seekedTo);
+        assertEquals(0.2f, current.volume, 0);
+    }
+
+    @Test
+    public void pauseBeforePrepared_doesNotStart() {
+        player.setDataSource("/music/track.mp3");
+        player.start();
+        player.pause();
+        assertFalse(player.isPlaying());
+
+        final FakeMediaPlayer current = preparing("/music/track.mp3");
+        current.finishPreparing();
+        assertEquals(Collections.singletonList(true), callbacks.results);
+        assertFalse(current.started);
+    }
+
+    @Test
+    public void skipWhilePreparing_dropsTheEarlierTrack() {
+        player.setDataSource("/music/first.mp3");
+        player.start();
+        player.setDataSource("/music/second.mp3");
+
+        final FakeMediaPlayer first = preparing("/music/first.mp3");
+        final FakeMediaPlayer second = preparing("/music/second.mp3");
+        assertTrue(first.released);
+        first.finishPreparing();
+        second.finishPreparing();
+
+        // only the second track is reported, the first one's player was released while preparing
+        assertEquals(Collections.singletonList(true), callbacks.results);
+        assertFalse(first.started);
+        assertFalse(second.started);
+    }
+
+    @Test
+    public void failedPreparation_isReported() {
+        sFailPreparing = true;
+        assertTrue(player.setDataSource("/music/broken.mp3"));
+        player.start();
+
+        preparing("/music/broken.mp3").finishPreparing();
+        assertEquals(Collections.singletonList(false), callbacks.results);
+        assertFalse(player.isInitialized());
+        assertFalse(player.isPlaying());
+    }
+
+    /**
+     * @return the player that was asked to prepare {@code path}
+     */
+    private static FakeMediaPlayer preparing(String path) {
+        synchronized (sPlayers) {
+            for (int i = sPlayers.size() - 1; i >= 0; i--) {
+                final FakeMediaPlayer mediaPlayer = sPlayers.get(i);
+                if (mediaPlayer.preparer != null && path.equals(mediaPlayer.path)) return mediaPlayer;
+            }
+        }
+        throw new AssertionError("nothing prepared " + path);
+    }
+
+    private static final class RecordingCallbacks implements Playback.PlaybackCallbacks {
+        final List<Boolean> results = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+        // whether the track was already started when it was reported as prepared
+        final List<Boolean> startedWhenReported = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onTrackWentToNext() {
+        }
+
+        @Override
+        public void onTrackEnded() {
+        }
+
+        @Override
+        public void onTrackPrepared(boolean prepared) {
+            results.add(prepared);
+            threads.add(Thread.currentThread());
+            boolean started = false;
+            synchronized (sPlayers) {
+                for (FakeMediaPlayer mediaPlayer : sPlayers) {
+                    started |= mediaPlayer.prepared && mediaPlayer.started;
+                }
+            }
+            startedWhenReported.add(started);
+        }
+    }
+
+    /**
+     * Prepares asynchronously on its own thread, once {@link #finishPreparing()} is called. A synchronous
+     * {@link #prepare()} fails the test.
+     */
+    private static final class FakeMediaPlayer extends MediaPlayer {
+        // a player is prepared again after a reset, each time waits for its own call of finishPreparing()
+        private volatile CountDownLatch gate = new CountDownLatch(1);
+        volatile Thread preparer;
+        volatile String path;
+        volatile boolean prepared;
+        volatile boolean started;
+        volatile boolean released;
+        volatile int seekedTo = -1;
+        volatile float volume = 1;
+        private volatile OnPreparedListener onPreparedListener;
+        private volatile OnErrorListener onErrorListener;
+
+        @Override
+        public void setDataSource(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void prepare() {
+            throw new AssertionError("prepared on the calling thread");
+        }
+
+        @Override
+        public void prepareAsync() {
+            final CountDownLatch gate = new CountDownLatch(1);
+            this.gate = gate;
+            preparer = new Thread(() -> {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (released) return;
+                if (sFailPreparing) {
+                    final OnErrorListener listener = onErrorListener;
+                    if (listener != null) listener.onError(this, MEDIA_ERROR_UNKNOWN, 0);
+                } else {
+                    prepared = true;
+                    final OnPreparedListener listener = onPreparedListener;
+                    if (listener != null) listener.onPrepared(this);
+                }
+            });
+            preparer.start();
+        }
+
+        /**
+         * Lets the decoder finish and waits until the player was told about it.
+         */
+        void finishPreparing() {
+            gate.countDown();
+            final Thread thread = preparer;
+            if (thread != null) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void setOnPreparedListener(OnPreparedListener listener) {
+            onPreparedListener = listener;
+        }
+
+        @Override
+        public void setOnErrorListener(OnErrorListener listener) {
+            onErrorListener = listener;
+        }
+
+        @Override
+        public void start() {
+            if (!prepared) throw new IllegalStateException();
+            started = true;
+        }
+
+        @Override
+        public void pause() {
+            started = false;
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return started;
+        }
+
+        @Override
+        public void seekTo(int msec) {
+            if (!prepared) throw new IllegalStateException();
+            seekedTo = msec;
+        }
+
+        @Override
+        public int getCurrentPosition() {
+            return Math.max(seekedTo, 0);
+        }
+
+        @Override
+        public void setVolume(float leftVolume, float rightVolume) {
+            if (!prepared) throw new IllegalStateException();
+            volume = leftVolume;
+        }
+
+        @Override
+        public void reset() {
+            path = null;
+            prepared = false;
+            started = false;
+            seekedTo = -1;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.kabouzeid.gramophone.service.playback;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PcmRingBufferTest {
+    @Test
+    public void capacity_isRoundedUpToAPowerOfTwo() {
+        assertEquals(2, new PcmRingBuffer(1).capacity());
+        assertEquals(8, new PcmRingBuffer(5).capacity());
+        assertEquals(8, new PcmRingBuffer(8).capacity());
+        assertEquals(16384, new PcmRingBuffer(10000).capacity());
+    }
+
+    @Test
+    public void readsWhatWasWrittenAcrossTheEnd() {
+        final PcmRingBuffer buffer = new PcmRingBuffer(8);
+        final short[] read = new short[6];
+        assertEquals(6, buffer.write(samples(0, 6), 0, 6));
+        assertEquals(6, buffer.read(read, 0, 6));
+        // starts at slot 6 and wraps around to slot 3
+        assertEquals(6, buffer.write(samples(6, 6), 0, 6));
+        assertEquals(6, buffer.available());
+        assertEquals(6, buffer.read(read, 0, 6));
+        assertArrayEquals(samples(6, 6), read);
+        assertEquals(12, buffer.getWritePosition());
+        assertEquals(12, buffer.getReadPosition());
+    }
+
+    @Test
+    public void readsAndWritesAtTheOffsets() {
+        final PcmRingBuffer buffer = new PcmRingBuffer(8);
+        final short[] source = samples(0, 10);
+        assertEquals(4, buffer.write(source, 3, 4));
+        final short[] read = new short[10];
+        assertEquals(4, buffer.read(read, 5, 5));
+        assertArrayEquals(new short[]{0, 0, 0, 0, 0, 3, 4, 5, 6, 0}, read);
+    }
+
+    @Test
+    public void write_stopsWhenFull() {
+        final PcmRingBuffer buffer = new PcmRingBuffer(8);
+        assertEquals(5, buffer.write(samples(0, 5), 0, 5));
+        assertEquals(3, buffer.free());
+        assertEquals(3, buffer.write(samples(5, 5), 0, 5));
+        assertEquals(0, buffer.free());
+        assertEquals(0, buffer.write(samples(8, 1), 0, 1));
+        final short[] read = new short[8];
+        assertEquals(8, buffer.read(read, 0, 8));
+        assertArrayEquals(samples(0, 8), read);
+    }
+
+    @Test
+    public void read_stopsWhenEmpty() {
+        final PcmRingBuffer buffer = new PcmRingBuffer(8);
+        final short[] read = new short[8];
+        assertEquals(0, buffer.read(read, 0, 8));
+        buffer.write(samples(0, 3), 0, 3);
+        assertEquals(3, buffer.read(read, 0, 8));
+        assertEquals(0, buffer.read(read, 0, 8));
+        assertEquals(0, buffer.available());
+    }
+
+    @Test
+    public void skipTo_acceptsOnlyPositionsBetweenReadAndWrite() {
+        final PcmRingBuffer buffer = new PcmRingBuffer(8);
+        buffer.write(samples(0, 6), 0, 6);
+        buffer.read(new short[2], 0, 2);
+
+        assertFalse(buffer.skipTo(1));
+        assertFalse(buffer.skipTo(7));
+        assertEquals(2, buffer.getReadPosition());
+
+        assertTrue(buffer.skipTo(2));
+        assertEquals(2, buffer.getReadPosition());
+        assertTrue(buffer.skipTo(4));
+        assertEquals(2, buffer.available());
+        final short[] read = new short[2];
+        assertEquals(2, buffer.read(read, 0, 2));
+        assertArrayEquals(samples(4, 2), read);
+
+        buffer.write(samples(6, 4), 0, 4);
+        assertTrue(buffer.skipTo(10));
+        assertEquals(0, buffer.available());
+        assertEquals(8, buffer.free());
+    }
+
+    @Test
+    public void skipTo_dropsSamplesAcrossTheEnd() {
+        final PcmRingBuffer buffer = new PcmRingBuffer(8);
+        buffer.write(samples(0, 8), 0, 8);
+        buffer.read(new short[7], 0, 7);
+        buffer.write(samples(8, 7), 0, 7);
+        assertTrue(buffer.skipTo(12));
+        final short[] read = new short[3];
+        assertEquals(3, buffer.read(read, 0, 3));
+        assertArrayEquals(samples(12, 3), read);
+    }
+
+    @Test
+    public void reset_startsAtZero() {
+        final PcmRingBuffer buffer = new PcmRingBuffer(8);
+        buffer.write(samples(0, 5), 0, 5);
+        buffer.read(new short[2], 0, 2);
+        buffer.reset();
+        assertEquals(0, buffer.getWritePosition());
+        assertEquals(0, buffer.getReadPosition());
+        assertEquals(0, buffer.available());
+        assertFalse(buffer.skipTo(1));
+    }
+
+    @Test
+    public void keepsTheOrderBetweenOneWriterAndOneReader() throws InterruptedException {
+        final int total = 1 << 21;
+        final PcmRingBuffer buffer = new PcmRingBuffer(256);
+        final AtomicReference<String> error = new AtomicReference<>();
+
+        final Thread writer = new Thread(() -> {
+            final Random random = new Random(1);
+            final short[] chunk = new short[300];
+            int written = 0;
+            while (written < total) {
+                final int length = Math.min(1 + random.nextInt(chunk.length), total - written);
+                for (int i = 0; i < length; i++) {
+                    chunk[i] = (short) (written + i);
+                }
+                int offset = 0;
+                while (offset < length) {
+                    offset += buffer.write(chunk, offset, length - offset);
+                    if (buffer.free() == 0) Thread.yield();
+                }
+                written += length;
+            }
+        });
+        final Thread reader = new Thread(() -> {
+            final Random random = new Random(2);
+            final short[] chunk = new short[300];
+            int read = 0;
+            while (read < total && error.get() == null) {
+                final int count = buffer.read(chunk, 0, 1 + random.nextInt(chunk.length));
+                for (int i = 0; i < count; i++) {
+                    if (chunk[i] != (short) (read + i)) {
+                        error.set("sample " + (read + i) + " is " + chunk[i]);
+                        break;
+                    }
+                }
+                read += count;
+                if (count == 0) Thread.yield();
+            }
+        });
+        writer.start();
+        reader.start();
+        writer.join(30000);
+        reader.join(30000);
+
+        assertNull(error.get());
+        assertFalse(writer.isAlive());
+        assertFalse(reader.isAlive());
+        assertEquals(total, buffer.getReadPosition());
+        assertEquals(total, buffer.getWritePosition());
+    }
+
+    private static short[] samples(int from, int count) {
+        final short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) (from + i);
+        }
+        return samples;
+    }
+}
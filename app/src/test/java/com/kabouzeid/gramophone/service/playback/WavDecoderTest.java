@@ -0,0 +1,342 @@
+package com.kabouzeid.gramophone.service.playback;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WavDecoderTest {
+    private final List<File> files = new ArrayList<>();
+    private final List<WavDecoder> decoders = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (WavDecoder decoder : decoders) {
+            decoder.close();
+        }
+        for (File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void reads8BitMono() throws IOException {
+        assertDecodes(8, 1, 3000);
+    }
+
+    @Test
+    public void reads16BitStereo() throws IOException {
+        assertDecodes(16, 2, 3000);
+    }
+
+    @Test
+    public void reads24BitStereo() throws IOException {
+        assertDecodes(24, 2, 3000);
+    }
+
+    @Test
+    public void reads32BitMono() throws IOException {
+        assertDecodes(32, 1, 3000);
+    }
+
+    @Test
+    public void readsTheFirstTwoOfMoreChannels() throws IOException {
+        for (int bits : new int[]{8, 16, 24, 32}) {
+            assertDecodes(bits, 6, 1500);
+        }
+    }
+
+    @Test
+    public void readsExtensibleFormat() throws IOException {
+        final WavDecoder decoder = open(new Wav(24, 4, 48000, 2000).extensible());
+        assertEquals(48000, decoder.getSampleRate());
+        assertEquals(2, decoder.getChannelCount());
+        assertArrayEquals(expectedSamples(24, 4, 0, 2000), readAll(decoder, 4096));
+    }
+
+    @Test
+    public void skipsOddSizedChunksAndTheirPadding() throws IOException {
+        final Wav wav = new Wav(16, 2, 44100, 500);
+        wav.chunkBeforeFormat = new byte[]{1, 2, 3};
+        wav.chunkBeforeData = new byte[]{4, 5, 6, 7, 8};
+        assertArrayEquals(expectedSamples(16, 2, 0, 500), readAll(open(wav), 1000));
+    }
+
+    @Test
+    public void readsOddSizedDataChunk() throws IOException {
+        // 8 bit mono makes a data chunk of 5 bytes, followed by a pad byte and another chunk
+        final Wav wav = new Wav(8, 1, 8000, 5);
+        wav.chunkAfterData = new byte[]{9, 9};
+        final WavDecoder decoder = open(wav);
+        assertArrayEquals(expectedSamples(8, 1, 0, 5), readAll(decoder, 64));
+    }
+
+    @Test
+    public void readsTruncatedData() throws IOException {
+        // the data chunk claims more than the file has, e.g. a recording that was cut off
+        final Wav wav = new Wav(16, 2, 44100, 100);
+        wav.claimedDataSize = 1000 * 4;
+        final WavDecoder decoder = open(wav);
+        assertEquals(100 * 1000 / 44100, decoder.getDurationMillis());
+        assertArrayEquals(expectedSamples(16, 2, 0, 100), readAll(decoder, 256));
+    }
+
+    @Test
+    public void reportsTheDuration() throws IOException {
+        assertEquals(2500, open(new Wav(16, 2, 8000, 20000)).getDurationMillis());
+    }
+
+    @Test
+    public void seekTo_isFrameAccurate() throws IOException {
+        final int sampleRate = 44100;
+        final WavDecoder decoder = open(new Wav(16, 2, sampleRate, sampleRate * 3));
+        for (int millis : new int[]{0, 1, 333, 1000, 1500, 2999}) {
+            decoder.seekTo(millis);
+            final int frame = (int) ((long) millis * sampleRate / 1000);
+            final short[] read = new short[8];
+            assertEquals(8, decoder.read(read, 0, read.length));
+            assertArrayEquals("at " + millis + " ms", expectedSamples(16, 2, frame, frame + 4), read);
+        }
+    }
+
+    @Test
+    public void seekTo_clampsToTheTrack() throws IOException {
+        final WavDecoder decoder = open(new Wav(16, 1, 8000, 8000));
+        decoder.seekTo(1000);
+        assertEquals(-1, decoder.read(new short[16], 0, 16));
+        decoder.seekTo(5000);
+        assertEquals(-1, decoder.read(new short[16], 0, 16));
+        decoder.seekTo(-10);
+        final short[] read = new short[2];
+        assertEquals(2, decoder.read(read, 0, 2));
+        assertArrayEquals(expectedSamples(16, 1, 0, 2), read);
+    }
+
+    @Test
+    public void read_writesAtTheOffsetInWholeFrames() throws IOException {
+        final WavDecoder decoder = open(new Wav(16, 2, 44100, 10));
+        final short[] buffer = new short[12];
+        // 7 samples are 3 whole stereo frames
+        assertEquals(6, decoder.read(buffer, 5, 7));
+        final short[] expected = new short[12];
+        System.arraycopy(expectedSamples(16, 2, 0, 3), 0, expected, 5, 6);
+        assertArrayEquals(expected, buffer);
+    }
+
+    @Test
+    public void isWav_leavesThePositionUnchanged() throws IOException {
+        final File file = write(new Wav(16, 2, 44100, 10).toBytes());
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            channel.position(3);
+            assertTrue(WavDecoder.isWav(channel));
+            assertEquals(3, channel.position());
+        }
+        final File other = write(new byte[]{'I', 'D', '3', 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+        try (FileChannel channel = new RandomAccessFile(other, "r").getChannel()) {
+            assertFalse(WavDecoder.isWav(channel));
+        }
+    }
+
+    @Test
+    public void rejectsCompressedFormats() throws IOException {
+        final Wav wav = new Wav(16, 2, 44100, 10);
+        wav.formatTag = 3; // IEEE float
+        try {
+            open(wav);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private void assertDecodes(int bits, int channels, int frames) throws IOException {
+        final int sampleRate = 44100;
+        final WavDecoder decoder = open(new Wav(bits, channels, sampleRate, frames));
+        assertEquals(sampleRate, decoder.getSampleRate());
+        assertEquals(Math.min(channels, 2), decoder.getChannelCount());
+        final short[] expected = expectedSamples(bits, channels, 0, frames);
+        // a small odd buffer, and one larger than a single read of the decoder
+        for (int bufferSize : new int[]{7, 5000}) {
+            decoder.seekTo(0);
+            assertArrayEquals(bits + " bit, " + channels + " channels", expected, readAll(decoder, bufferSize));
+        }
+    }
+
+    private WavDecoder open(Wav wav) throws IOException {
+        final WavDecoder decoder = new WavDecoder(new RandomAccessFile(write(wav.toBytes()), "r").getChannel());
+        decoders.add(decoder);
+        return decoder;
+    }
+
+    private File write(byte[] bytes) throws IOException {
+        final File file = File.createTempFile("WavDecoderTest", ".wav");
+        files.add(file);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        return file;
+    }
+
+    private static short[] readAll(WavDecoder decoder, int bufferSize) throws IOException {
+        final short[] buffer = new short[bufferSize];
+        short[] samples = new short[0];
+        int read;
+        while ((read = decoder.read(buffer, 0, bufferSize)) >= 0) {
+            assertTrue(read > 0);
+            final short[] grown = new short[samples.length + read];
+            System.arraycopy(samples, 0, grown, 0, samples.length);
+            System.arraycopy(buffer, 0, grown, samples.length, read);
+            samples = grown;
+        }
+        return samples;
+    }
+
+    /**
+     * @return the samples the decoder plays, of the first two channels of the frames in {@code from <= frame < to}
+     */
+    private static short[] expectedSamples(int bits, int channels, int from, int to) {
+        final int outChannels = Math.min(channels, 2);
+        final short[] samples = new short[(to - from) * outChannels];
+        for (int frame = from; frame < to; frame++) {
+            for (int c = 0; c < outChannels; c++) {
+                samples[(frame - from) * outChannels + c] = sample(bits, frame, c);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * @return the sample as the decoder plays it, 8 bit samples only keep the high byte
+     */
+    private static short sample(int bits, int frame, int channel) {
+        final short value = (short) (frame * 31 + channel * 1000 - 20000);
+        return bits == 8 ? (short) (value & 0xFF00) : value;
+    }
+
+    /**
+     * Writes a WAV file, every sample below 16 bit has low bytes that the decoder has to drop.
+     */
+    private static final class Wav {
+        final int bits;
+        final int channels;
+        final int sampleRate;
+        final int frames;
+        int formatTag = 1;
+        boolean extensible;
+        long claimedDataSize = -1;
+        byte[] chunkBeforeFormat;
+        byte[] chunkBeforeData;
+        byte[] chunkAfterData;
+
+        Wav(int bits, int channels, int sampleRate, int frames) {
+            this.bits = bits;
+            this.channels = channels;
+            this.sampleRate = sampleRate;
+            this.frames = frames;
+        }
+
+        Wav extensible() {
+            extensible = true;
+            return this;
+        }
+
+        byte[] toBytes() {
+            final int bytesPerSample = bits / 8;
+            final int blockAlign = channels * bytesPerSample;
+
+            final ByteBuffer format = ByteBuffer.allocate(extensible ? 40 : 16).order(ByteOrder.LITTLE_ENDIAN);
+            format.putShort((short) (extensible ? 0xFFFE : formatTag));
+            format.putShort((short) channels);
+            format.putInt(sampleRate);
+            format.putInt(sampleRate * blockAlign);
+            format.putShort((short) blockAlign);
+            format.putShort((short) bits);
+            if (extensible) {
+                format.putShort((short) 22);
+                format.putShort((short) bits);
+                format.putInt(0);
+                // the sub format GUID starts with the format tag
+                format.putShort((short) formatTag);
+            }
+
+            final ByteBuffer data = ByteBuffer.allocate(frames * blockAlign).order(ByteOrder.LITTLE_ENDIAN);
+            for (int frame = 0; frame < frames; frame++) {
+                for (int c = 0; c < channels; c++) {
+                    // the channels past the second one get other values, they must not show up
+                    final short value = c < 2 ? sample(bits, frame, c) : (short) 0x7777;
+                    switch (bits) {
+                        case 8:
+                            data.put((byte) ((value >> 8) + 128));
+                            break;
+                        case 16:
+                            data.putShort(value);
+                            break;
+                        case 24:
+                            data.put((byte) 0x5A);
+                            data.putShort(value);
+                            break;
+                        case 32:
+                            data.putShort((short) 0x1234);
+                            data.putShort(value);
+                            break;
+                    }
+                }
+            }
+
+            final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            chunks.write('W');
+            chunks.write('A');
+            chunks.write('V');
+            chunks.write('E');
+            writeChunk(chunks, "junk", chunkBeforeFormat, -1);
+            writeChunk(chunks, "fmt ", format.array(), -1);
+            writeChunk(chunks, "LIST", chunkBeforeData, -1);
+            writeChunk(chunks, "data", data.array(), claimedDataSize);
+            writeChunk(chunks, "id3 ", chunkAfterData, -1);
+
+            final ByteArrayOutputStream file = new ByteArrayOutputStream();
+            file.write('R');
+            file.write('I');
+            file.write('F');
+            file.write('F');
+            writeInt(file, chunks.size());
+            final byte[] body = chunks.toByteArray();
+            file.write(body, 0, body.length);
+            return file.toByteArray();
+        }
+
+        private static void writeChunk(ByteArrayOutputStream out, String id, byte[] content, long claimedSize) {
+            if (content == null) return;
+            for (int i = 0; i < 4; i++) {
+                out.write(id.charAt(i));
+            }
+            writeInt(out, (int) (claimedSize >= 0 ? claimedSize : content.length));
+            out.write(content, 0, content.length);
+            if ((content.length & 1) != 0) {
+                out.write(0);
+            }
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int value) {
+            out.write(value);
+            out.write(value >> 8);
+            out.write(value >> 16);
+            out.write(value >> 24);
+        }
+    }
+}
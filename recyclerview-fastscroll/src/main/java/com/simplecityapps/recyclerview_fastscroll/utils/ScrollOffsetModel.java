@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2016 Tim Malseed
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.simplecityapps.recyclerview_fastscroll.utils;
+
+import java.util.Random;
+
+/**
+ * Keeps the vertical offset of every adapter position, so the fast scroller can map between positions and
+ * pixel offsets without walking the adapter on every touch.
+ * <p>
+ * Items are laid out in rows of {@code spanCount} items, the way a grid with one span per item lays them out
+ * (one item per row for linear lists), a row is as high as its highest item. The item heights are kept in a treap
+ * ordered by position. Every subtree knows the height of the rows it covers for each column it could start in, so
+ * inserting, removing, moving and re-measuring items costs O(log n) plus the items involved, and only those are
+ * measured. Position to offset queries are O(log n), offset to position queries O(log^2 n).
+ */
+public class ScrollOffsetModel {
+
+    public interface ItemMeasurer {
+        /**
+         * @return the height of the item at {@code position} in pixels
+         */
+        int getItemHeight(int position);
+    }
+
+    private final Random mRandom = new Random();
+
+    private boolean mValid;
+    private int mSpanCount = 1;
+    private Node mRoot;
+
+    // the results of split(), to avoid allocating a pair each time
+    private Node mSplitLeft;
+    private Node mSplitRight;
+
+    // the run of items appended so far, see append()
+    private int mRunColumn;
+    private int mRunLength;
+    private int mRunHead;
+    private int mRunRows;
+    private int mRunTail;
+
+    /**
+     * Rebuilds the model if it isn't valid for {@code itemCount} items laid out in {@code spanCount} spans.
+     */
+    public void ensure(int itemCount, int spanCount, ItemMeasurer measurer) {
+        spanCount = Math.max(1, spanCount);
+        if (mValid && count(mRoot) == itemCount && mSpanCount == spanCount) {
+            return;
+        }
+        mSpanCount = spanCount;
+        mRoot = build(measurer, 0, itemCount);
+        mValid = true;
+    }
+
+    /**
+     * Forgets everything, the next {@link #ensure(int, int, ItemMeasurer)} measures all items again.
+     */
+    public void invalidate() {
+        mValid = false;
+        mRoot = null;
+    }
+
+    /**
+     * @return whether the model was built and kept up to date since, so querying it doesn't measure all items
+     */
+    public boolean isValid() {
+        return mValid;
+    }
+
+    public void onItemsChanged(int positionStart, int itemCount, ItemMeasurer measurer) {
+        if (!mValid || itemCount <= 0) return;
+        if (positionStart < 0 || positionStart + itemCount > count(mRoot)) {
+            invalidate();
+            return;
+        }
+        split(mRoot, positionStart);
+        Node left = mSplitLeft;
+        split(mSplitRight, itemCount);
+        mRoot = merge(merge(left, build(measurer, positionStart, positionStart + itemCount)), mSplitRight);
+    }
+
+    public void onItemsInserted(int positionStart, int itemCount, ItemMeasurer measurer) {
+        if (!mValid || itemCount <= 0) return;
+        if (positionStart < 0 || positionStart > count(mRoot)) {
+            invalidate();
+            return;
+        }
+        split(mRoot, positionStart);
+        Node right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, build(measurer, positionStart, positionStart + itemCount)), right);
+    }
+
+    public void onItemsRemoved(int positionStart, int itemCount) {
+        if (!mValid || itemCount <= 0) return;
+        if (positionStart < 0 || positionStart + itemCount > count(mRoot)) {
+            invalidate();
+            return;
+        }
+        split(mRoot, positionStart);
+        Node left = mSplitLeft;
+        split(mSplitRight, itemCount);
+        mRoot = merge(left, mSplitRight);
+    }
+
+    /**
+     * Moves the items with their heights, {@code toPosition} is where the first of them ends up.
+     */
+    public void onItemsMoved(int fromPosition, int toPosition, int itemCount) {
+        if (!mValid || itemCount <= 0 || fromPosition == toPosition) return;
+        int count = count(mRoot);
+        if (fromPosition < 0 || fromPosition + itemCount > count || toPosition < 0 || toPosition + itemCount > count) {
+            invalidate();
+            return;
+        }
+        split(mRoot, fromPosition);
+        Node left = mSplitLeft;
+        split(mSplitRight, itemCount);
+        Node moved = mSplitLeft;
+        split(merge(left, mSplitRight), toPosition);
+        Node right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, moved), right);
+    }
+
+    public int getItemCount() {
+        return count(mRoot);
+    }
+
+    public int getRowCount() {
+        return (count(mRoot) + mSpanCount - 1) / mSpanCount;
+    }
+
+    /**
+     * @return the total height of all rows
+     */
+    public int getTotalHeight() {
+        if (mRoot == null) return 0;
+        return mRoot.summary[1] + mRoot.summary[2];
+    }
+
+    /**
+     * @return the offset of the top of the row that contains {@code position}, or the total height
+     * for {@code position == getItemCount()}
+     */
+    public int getOffsetOfPosition(int position) {
+        if (position <= 0) return 0;
+        if (position >= count(mRoot)) return getTotalHeight();
+        return getOffsetOfRow(position / mSpanCount);
+    }
+
+    /**
+     * @return the first position of the row that covers {@code offset}
+     */
+    public int getPositionAtOffset(int offset) {
+        return getRowAtOffset(offset) * mSpanCount;
+    }
+
+    /**
+     * @return the row that covers {@code offset}, offsets past the end map to the last row
+     */
+    public int getRowAtOffset(int offset) {
+        int rowCount = getRowCount();
+        if (rowCount == 0 || offset < 0) return 0;
+        // the last row whose top is at or above the offset
+        int low = 0;
+        int high = rowCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (getOffsetOfRow(middle) <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the summed height of the first {@code rows} rows
+     */
+    private int getOffsetOfRow(int rows) {
+        int remaining = rows * mSpanCount;
+        startRun();
+        Node node = mRoot;
+        while (node != null && remaining > 0) {
+            int leftCount = count(node.left);
+            if (remaining <= leftCount) {
+                node = node.left;
+                continue;
+            }
+            appendTree(node.left);
+            appendItem(node.height);
+            remaining -= leftCount + 1;
+            node = node.right;
+        }
+        // whole rows from the first column on, so there is neither a head nor a tail
+        return mRunRows;
+    }
+
+    private Node build(ItemMeasurer measurer, int from, int to) {
+        // the right spine of the tree so far, from the top down
+        Node[] spine = new Node[Math.max(to - from, 0)];
+        int depth = 0;
+        for (int i = from; i < to; i++) {
+            Node node = new Node(measurer.getItemHeight(i), mRandom.nextInt(), mSpanCount);
+            Node below = null;
+            while (depth > 0 && spine[depth - 1].priority < node.priority) {
+                below = spine[--depth];
+                update(below);
+            }
+            node.left = below;
+            if (depth > 0) spine[depth - 1].right = node;
+            spine[depth++] = node;
+        }
+        if (depth == 0) return null;
+        while (depth > 0) {
+            update(spine[--depth]);
+        }
+        return spine[0];
+    }
+
+    /**
+     * Splits the tree of {@code node} into {@link #mSplitLeft} with its first {@code count} items and
+     * {@link #mSplitRight} with the rest.
+     */
+    private void split(Node node, int count) {
+        if (node == null) {
+            mSplitLeft = null;
+            mSplitRight = null;
+        } else if (count(node.left) < count) {
+            split(node.right, count - count(node.left) - 1);
+            node.right = mSplitLeft;
+            update(node);
+            mSplitLeft = node;
+        } else {
+            split(node.left, count);
+            node.left = mSplitRight;
+            update(node);
+            mSplitRight = node;
+        }
+    }
+
+    private Node merge(Node left, Node right) {
+        if (left == null) return right;
+        if (right == null) return left;
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        } else {
+            right.left = merge(left, right.left);
+            update(right);
+            return right;
+        }
+    }
+
+    private static int count(Node node) {
+        return node == null ? 0 : node.count;
+    }
+
+    /**
+     * Recomputes the summary of {@code node} from its children, for every column the node's items could start in.
+     */
+    private void update(Node node) {
+        node.count = 1 + count(node.left) + count(node.right);
+        for (int column = 0; column < mSpanCount; column++) {
+            startRun();
+            mRunColumn = column;
+            appendTree(node.left);
+            appendItem(node.height);
+            appendTree(node.right);
+            node.summary[3 * column] = mRunHead;
+            node.summary[3 * column + 1] = mRunRows;
+            node.summary[3 * column + 2] = mRunTail;
+        }
+    }
+
+    // A run of items starting in some column of the grid is summarized as three heights:
+    // the head, the items that finish a row begun before the run, the rows begun and finished within the run, and
+    // the tail, the items of the last row if the run doesn't finish it.
+
+    private void startRun() {
+        mRunColumn = 0;
+        mRunLength = 0;
+        mRunHead = 0;
+        mRunRows = 0;
+        mRunTail = 0;
+    }
+
+    private void appendTree(Node node) {
+        if (node == null) return;
+        int column = (mRunColumn + mRunLength) % mSpanCount;
+        append(node.count, node.summary[3 * column], node.summary[3 * column + 1], node.summary[3 * column + 2]);
+    }
+
+    private void appendItem(int height) {
+        int column = (mRunColumn + mRunLength) % mSpanCount;
+        if (column != 0) {
+            append(1, height, 0, 0);
+        } else if (mSpanCount == 1) {
+            append(1, 0, height, 0);
+        } else {
+            append(1, 0, 0, height);
+        }
+    }
+
+    /**
+     * Appends a run of {@code length} items, summarized for the column the current run ends in.
+     */
+    private void append(int length, int head, int rows, int tail) {
+        int column = (mRunColumn + mRunLength) % mSpanCount;
+        if (mRunLength == 0) {
+            mRunHead = head;
+            mRunRows = rows;
+            mRunTail = tail;
+        } else if (isAllHead(mRunColumn, mRunLength)) {
+            // the run so far didn't finish the row begun before it, the appended items go on in that row
+            if (column != 0) mRunHead = Math.max(mRunHead, head);
+            mRunRows = rows;
+            mRunTail = tail;
+        } else if (column == 0) {
+            mRunRows += rows;
+            mRunTail = tail;
+        } else if (isAllHead(column, length)) {
+            // still in the last row, which the appended items may just finish
+            if (column + length == mSpanCount) {
+                mRunRows += Math.max(mRunTail, head);
+                mRunTail = 0;
+            } else {
+                mRunTail = Math.max(mRunTail, head);
+            }
+        } else {
+            mRunRows += Math.max(mRunTail, head) + rows;
+            mRunTail = tail;
+        }
+        mRunLength += length;
+    }
+
+    /**
+     * @return true if a run of {@code length} items starting in {@code column} stays in the row begun before it
+     */
+    private boolean isAllHead(int column, int length) {
+        return column != 0 && length <= mSpanCount - column;
+    }
+
+    private static final class Node {
+        final int height;
+        final int priority;
+        int count = 1;
+        Node left;
+        Node right;
+        // head, rows and tail height of the subtree's items for every column they could start in
+        final int[] summary;
+
+        Node(int height, int priority, int spanCount) {
+            this.height = height;
+            this.priority = priority;
+            this.summary = new int[3 * spanCount];
+        }
+    }
+}
@@ -31,6 +31,7 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.simplecityapps.recyclerview_fastscroll.interfaces.OnFastScrollStateChangeListener;
+import com.simplecityapps.recyclerview_fastscroll.utils.ScrollOffsetModel;
 import com.simplecityapps.recyclerview_fastscroll.utils.Utils;
 
 public class FastScrollRecyclerView extends RecyclerView implements RecyclerView.OnItemTouchListener {
@@ -46,6 +47,8 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
     public static class ScrollPositionState {
         // The index of the first visible row
         public int rowIndex;
+        // The adapter position of the first visible item
+        public int itemPosition;
         // The offset of the first visible row
         public int rowTopOffset;
         // The height of a given row (they are currently all the same height)
@@ -58,7 +61,11 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
     private int mDownY;
     private int mLastY;
 
-    private final SparseIntArray mScrollOffsets;
+    private final ScrollOffsetModel mScrollOffsets;
+    private final ItemMeasurer mItemMeasurer;
+    // the heights of the view types laid out so far, for adapters that can't measure their items
+    private final SparseIntArray mViewTypeHeights = new SparseIntArray();
+    private int mDefaultItemHeight;
 
     private final ScrollOffsetInvalidator mScrollOffsetInvalidator;
     private OnFastScrollStateChangeListener mStateChangeListener;
@@ -75,7 +82,8 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
         super(context, attrs, defStyleAttr);
         mScrollbar = new FastScroller(context, this, attrs);
         mScrollOffsetInvalidator = new ScrollOffsetInvalidator();
-        mScrollOffsets = new SparseIntArray();
+        mScrollOffsets = new ScrollOffsetModel();
+        mItemMeasurer = new ItemMeasurer();
     }
 
     public int getScrollBarWidth() {
@@ -101,6 +109,9 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
         if (adapter != null) {
             adapter.registerAdapterDataObserver(mScrollOffsetInvalidator);
         }
+        mScrollOffsets.invalidate();
+        mViewTypeHeights.clear();
+        mDefaultItemHeight = 0;
 
         super.setAdapter(adapter);
     }
@@ -195,7 +206,7 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
      *                       all rows are the same height)
      * @param yOffset        the offset to start tracking in the recycler view (only used for all apps)
      * @see #updateThumbPositionWithMeasurableAdapter(ScrollPositionState, int) If a
-     *                       {@link MeasurableAdapter} is attached.
+     *                       {@link MeasurableAdapter} is attached, or the thumb was dragged.
      */
     protected void updateThumbPosition(ScrollPositionState scrollPosState, int rowCount, int yOffset) {
         int availableScrollHeight = getAvailableScrollHeight(rowCount, scrollPosState.rowHeight, yOffset);
@@ -228,7 +239,8 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
      * this by mapping the available scroll area of the recycler view to the available space for the
      * scroll bar.
      * <p>
-     * The height of the adapter is calculated using the attached {@link MeasurableAdapter}.
+     * The height of the adapter is calculated from the heights of the items, as the attached
+     * {@link MeasurableAdapter} reports them or as the items of the same view types were laid out.
      *
      * @param scrollPosState the current scroll position
      * @param yOffset        the offset to start tracking in the recycler view (only used for all apps)
@@ -248,7 +260,7 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
         // Calculate the current scroll position, the scrollY of the recycler view accounts for the
         // view padding, while the scrollBarY is drawn right up to the background padding (ignoring
         // padding)
-        int scrolledPastHeight = calculateScrollDistanceToPosition(scrollPosState.rowIndex);
+        int scrolledPastHeight = calculateScrollDistanceToPosition(scrollPosState.itemPosition);
         int scrollY = getPaddingTop() + yOffset + scrolledPastHeight - scrollPosState.rowTopOffset;
         int scrollBarY = (int) (((float) scrollY / availableScrollHeight) * availableScrollBarHeight);
 
@@ -282,6 +294,10 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
 
         getCurScrollState(mScrollPosState);
 
+        if (canUseScrollOffsets()) {
+            return scrollToPositionAtProgressWithScrollOffsets(touchFraction);
+        }
+
         float itemPos = itemCount * touchFraction;
 
         int availableScrollHeight = getAvailableScrollHeight(rowCount, mScrollPosState.rowHeight, 0);
@@ -306,6 +322,29 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
         return sectionedAdapter.getSectionName(posInt);
     }
 
+    /**
+     * Maps the touch (from 0..1) to the adapter position that should be visible, using the heights of
+     * the items.
+     */
+    private String scrollToPositionAtProgressWithScrollOffsets(float touchFraction) {
+        int availableScrollHeight = getAvailableScrollHeight(calculateAdapterHeight(), 0);
+
+        //The exact offset we want to scroll to, and the row that covers it
+        int exactOffset = (int) (Math.max(availableScrollHeight, 0) * touchFraction);
+        int position = mScrollOffsets.getPositionAtOffset(exactOffset);
+
+        LinearLayoutManager layoutManager = ((LinearLayoutManager) getLayoutManager());
+        layoutManager.scrollToPositionWithOffset(position,
+                -(exactOffset - mScrollOffsets.getOffsetOfPosition(position)));
+
+        if (!(getAdapter() instanceof SectionedAdapter)) {
+            return "";
+        }
+
+        SectionedAdapter sectionedAdapter = (SectionedAdapter) getAdapter();
+        return sectionedAdapter.getSectionName(touchFraction == 1 ? getAdapter().getItemCount() - 1 : position);
+    }
+
     /**
      * Updates the bounds for the scrollbar.
      */
@@ -333,7 +372,7 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
             return;
         }
 
-        if (getAdapter() instanceof MeasurableAdapter) {
+        if (canUseScrollOffsets()) {
             updateThumbPositionWithMeasurableAdapter(mScrollPosState, 0);
         } else {
             updateThumbPosition(mScrollPosState, rowCount, 0);
@@ -341,39 +380,54 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
     }
 
     /**
-     * Calculates the total height of the recycler view. This method should only be called when the
-     * attached adapter implements {@link MeasurableAdapter}.
+     * Calculates the total height of the recycler view. This method should only be called when
+     * {@link #canUseScrollOffsets()}.
      * @return The total height of all rows in the RecyclerView
      */
     private int calculateAdapterHeight() {
-        return calculateScrollDistanceToPosition(getAdapter().getItemCount());
+        return ensureScrollOffsets().getTotalHeight();
     }
 
     /**
-     * Calculates the total height of all views above a position in the recycler view. This method
-     * should only be called when the attached adapter implements {@link MeasurableAdapter}.
+     * Calculates the total height of all rows above a position in the recycler view. This method
+     * should only be called when {@link #canUseScrollOffsets()}.
      * @param adapterIndex The index in the adapter to find the total height above the
      *                     corresponding view
-     * @return The total height of all views above {@code adapterIndex} in pixels
+     * @return The total height of all rows above the row of {@code adapterIndex} in pixels
      */
     private int calculateScrollDistanceToPosition(int adapterIndex) {
-        if (mScrollOffsets.indexOfKey(adapterIndex) >= 0) {
-            return mScrollOffsets.get(adapterIndex);
-        }
-
-        int totalHeight = 0;
-        MeasurableAdapter measurer = (MeasurableAdapter) getAdapter();
+        return ensureScrollOffsets().getOffsetOfPosition(adapterIndex);
+    }
 
-        // TODO Take grid layouts into account
+    /**
+     * Measures all items, unless the offsets are still up to date. Changes to the adapter are applied
+     * incrementally by {@link ScrollOffsetInvalidator}, so this only walks the adapter after a full
+     * data set change or when the span count changed.
+     */
+    private ScrollOffsetModel ensureScrollOffsets() {
+        mScrollOffsets.ensure(getAdapter().getItemCount(), getSpanCount(), mItemMeasurer);
+        return mScrollOffsets;
+    }
 
-        for (int i = 0; i < adapterIndex; i++) {
-            mScrollOffsets.put(i, totalHeight);
-            int viewType = getAdapter().getItemViewType(i);
-            totalHeight += measurer.getViewTypeHeight(this, viewType);
+    /**
+     * @return true if the scroll offsets should be used instead of assuming rows of the same height.
+     * Adapters that can't measure their items only build them once the thumb is dragged, and use them
+     * until the whole data set changes, so updating the thumb stays O(1) for them otherwise. The
+     * offsets only know rows of one item per span, grids with their own span sizes never use them.
+     */
+    private boolean canUseScrollOffsets() {
+        if (getLayoutManager() instanceof GridLayoutManager
+                && !(((GridLayoutManager) getLayoutManager()).getSpanSizeLookup() instanceof GridLayoutManager.DefaultSpanSizeLookup)) {
+            return false;
         }
+        return getAdapter() instanceof MeasurableAdapter || mScrollbar.isDragging() || mScrollOffsets.isValid();
+    }
 
-        mScrollOffsets.put(adapterIndex, totalHeight);
-        return totalHeight;
+    private int getSpanCount() {
+        if (getLayoutManager() instanceof GridLayoutManager) {
+            return ((GridLayoutManager) getLayoutManager()).getSpanCount();
+        }
+        return 1;
     }
 
     /**
@@ -381,6 +435,7 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
      */
     private void getCurScrollState(ScrollPositionState stateOut) {
         stateOut.rowIndex = -1;
+        stateOut.itemPosition = -1;
         stateOut.rowTopOffset = -1;
         stateOut.rowHeight = -1;
 
@@ -394,12 +449,45 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
         View child = getChildAt(0);
 
         stateOut.rowIndex = getChildAdapterPosition(child);
+        stateOut.itemPosition = stateOut.rowIndex;
         if (getLayoutManager() instanceof GridLayoutManager) {
             stateOut.rowIndex = stateOut.rowIndex / ((GridLayoutManager) getLayoutManager()).getSpanCount();
         }
         stateOut.rowTopOffset = getLayoutManager().getDecoratedTop(child);
         stateOut.rowHeight = child.getHeight() + getLayoutManager().getTopDecorationHeight(child)
                 + getLayoutManager().getBottomDecorationHeight(child);
+
+        if (!(getAdapter() instanceof MeasurableAdapter) && canUseScrollOffsets()) {
+            learnViewTypeHeights();
+        }
+    }
+
+    /**
+     * Remembers the height of every view type when its first child is laid out, and then measures all
+     * items again. The heights are kept for the adapter, so items of one type that differ a bit don't
+     * measure all items again on every frame.
+     */
+    private void learnViewTypeHeights() {
+        boolean changed = false;
+        for (int i = 0; i < getChildCount(); i++) {
+            View child = getChildAt(i);
+            ViewHolder holder = getChildViewHolder(child);
+            if (holder == null || holder.getAdapterPosition() == NO_POSITION) continue;
+            int height = child.getHeight() + getLayoutManager().getTopDecorationHeight(child)
+                    + getLayoutManager().getBottomDecorationHeight(child);
+            if (height <= 0) continue;
+            if (mDefaultItemHeight == 0) {
+                mDefaultItemHeight = height;
+            }
+            int viewType = holder.getItemViewType();
+            if (mViewTypeHeights.indexOfKey(viewType) < 0) {
+                mViewTypeHeights.put(viewType, height);
+                changed = true;
+            }
+        }
+        if (changed) {
+            mScrollOffsets.invalidate();
+        }
     }
 
     public void setThumbColor(@ColorInt int color) {
@@ -447,39 +535,51 @@ public class FastScrollRecyclerView extends RecyclerView implements RecyclerView
         mScrollbar.setPopupPosition(popupPosition);
     }
 
-    private class ScrollOffsetInvalidator extends AdapterDataObserver {
-        private void invalidateAllScrollOffsets() {
-            mScrollOffsets.clear();
+    private class ItemMeasurer implements ScrollOffsetModel.ItemMeasurer {
+        @Override
+        public int getItemHeight(int position) {
+            int viewType = getAdapter().getItemViewType(position);
+            if (getAdapter() instanceof MeasurableAdapter) {
+                return ((MeasurableAdapter) getAdapter()).getViewTypeHeight(FastScrollRecyclerView.this, viewType);
+            }
+            // view types that weren't laid out yet are assumed to be as high as the first item that was
+            return mViewTypeHeights.get(viewType, mDefaultItemHeight);
         }
+    }
 
+    /**
+     * Keeps the scroll offsets in sync with the adapter. Ranges are applied to the offsets directly,
+     * only a change of the whole data set drops them, to be measured again when they are needed next.
+     */
+    private class ScrollOffsetInvalidator extends AdapterDataObserver {
         @Override
         public void onChanged() {
-            invalidateAllScrollOffsets();
+            mScrollOffsets.invalidate();
         }
 
         @Override
         public void onItemRangeChanged(int positionStart, int itemCount) {
-            invalidateAllScrollOffsets();
+            mScrollOffsets.onItemsChanged(positionStart, itemCount, mItemMeasurer);
         }
 
         @Override
         public void onItemRangeChanged(int positionStart, int itemCount, Object payload) {
-            invalidateAllScrollOffsets();
+            onItemRangeChanged(positionStart, itemCount);
         }
 
         @Override
         public void onItemRangeInserted(int positionStart, int itemCount) {
-            invalidateAllScrollOffsets();
+            mScrollOffsets.onItemsInserted(positionStart, itemCount, mItemMeasurer);
         }
 
         @Override
         public void onItemRangeRemoved(int positionStart, int itemCount) {
-            invalidateAllScrollOffsets();
+            mScrollOffsets.onItemsRemoved(positionStart, itemCount);
         }
 
         @Override
         public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
-            invalidateAllScrollOffsets();
+            mScrollOffsets.onItemsMoved(fromPosition, toPosition, itemCount);
         }
     }
 
@@ -0,0 +1,146 @@
+package com.simplecityapps.recyclerview_fastscroll.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScrollOffsetModelTest {
+
+    @Test
+    public void linearList_sumsItemHeights() {
+        final List<Integer> heights = list(10, 20, 30, 40);
+        final ScrollOffsetModel model = new ScrollOffsetModel();
+        model.ensure(heights.size(), 1, heights::get);
+
+        assertEquals(100, model.getTotalHeight());
+        assertEquals(4, model.getRowCount());
+        assertEquals(0, model.getOffsetOfPosition(0));
+        assertEquals(30, model.getOffsetOfPosition(2));
+        assertEquals(100, model.getOffsetOfPosition(4));
+        assertEquals(0, model.getPositionAtOffset(9));
+        assertEquals(1, model.getPositionAtOffset(10));
+        assertEquals(2, model.getPositionAtOffset(59));
+        assertEquals(3, model.getPositionAtOffset(1000));
+    }
+
+    @Test
+    public void grid_rowsAreAsHighAsTheirHighestItem() {
+        final List<Integer> heights = list(50, 10, 10, 10, 10, 70, 20);
+        final ScrollOffsetModel model = new ScrollOffsetModel();
+        model.ensure(heights.size(), 3, heights::get);
+
+        assertEquals(3, model.getRowCount());
+        assertEquals(50 + 70 + 20, model.getTotalHeight());
+        assertEquals(0, model.getOffsetOfPosition(2));
+        assertEquals(50, model.getOffsetOfPosition(3));
+        assertEquals(120, model.getOffsetOfPosition(6));
+        assertEquals(3, model.getPositionAtOffset(50));
+        assertEquals(6, model.getPositionAtOffset(125));
+    }
+
+    @Test
+    public void incrementalUpdates_matchAFullLayout() {
+        final Random random = new Random(42);
+        for (int spanCount = 1; spanCount <= 5; spanCount++) {
+            final List<Integer> heights = new ArrayList<>();
+            final ScrollOffsetModel model = new ScrollOffsetModel();
+            model.ensure(0, spanCount, heights::get);
+            for (int step = 0; step < 3000; step++) {
+                final int size = heights.size();
+                final int operation = random.nextInt(4);
+                if (operation == 0 || size == 0) {
+                    final int start = random.nextInt(size + 1);
+                    final int count = 1 + random.nextInt(8);
+                    for (int i = 0; i < count; i++) {
+                        heights.add(start, randomHeight(random));
+                    }
+                    model.onItemsInserted(start, count, heights::get);
+                } else if (operation == 1) {
+                    final int start = random.nextInt(size);
+                    final int count = 1 + random.nextInt(Math.min(size - start, 8));
+                    heights.subList(start, start + count).clear();
+                    model.onItemsRemoved(start, count);
+                } else if (operation == 2) {
+                    final int start = random.nextInt(size);
+                    final int count = 1 + random.nextInt(Math.min(size - start, 8));
+                    for (int i = start; i < start + count; i++) {
+                        heights.set(i, randomHeight(random));
+                    }
+                    model.onItemsChanged(start, count, heights::get);
+                } else {
+                    final int from = random.nextInt(size);
+                    final int to = random.nextInt(size);
+                    heights.add(to, heights.remove(from));
+                    model.onItemsMoved(from, to, 1);
+                }
+                assertMatchesLayout(model, heights, spanCount);
+            }
+        }
+    }
+
+    @Test
+    public void updates_stayFastOnLargeLists() {
+        final int size = 100_000;
+        final List<Integer> heights = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            heights.add(i % 7 == 0 ? 120 : 72);
+        }
+        final ScrollOffsetModel model = new ScrollOffsetModel();
+        model.ensure(size, 3, heights::get);
+
+        final Random random = new Random(7);
+        final long start = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            final int position = random.nextInt(size);
+            model.onItemsRemoved(position, 1);
+            model.onItemsInserted(random.nextInt(size), 1, p -> 72);
+            model.getPositionAtOffset(random.nextInt(model.getTotalHeight()));
+        }
+        final long millis = (System.nanoTime() - start) / 1_000_000;
+        // repacking or rebuilding on every change would be 10k passes over 100k items
+        assertTrue("10k updates took " + millis + " ms", millis < 2000);
+        assertEquals(size, model.getItemCount());
+    }
+
+    private static void assertMatchesLayout(ScrollOffsetModel model, List<Integer> heights, int spanCount) {
+        final int rowCount = (heights.size() + spanCount - 1) / spanCount;
+        final int[] rowTops = new int[rowCount + 1];
+        for (int row = 0; row < rowCount; row++) {
+            int height = 0;
+            for (int i = row * spanCount; i < Math.min(heights.size(), (row + 1) * spanCount); i++) {
+                height = Math.max(height, heights.get(i));
+            }
+            rowTops[row + 1] = rowTops[row] + height;
+        }
+        assertEquals(heights.size(), model.getItemCount());
+        assertEquals(rowCount, model.getRowCount());
+        assertEquals(rowTops[rowCount], model.getTotalHeight());
+        for (int position = 0; position < heights.size(); position++) {
+            assertEquals(rowTops[position / spanCount], model.getOffsetOfPosition(position));
+        }
+        for (int row = 0; row < rowCount; row++) {
+            // the first and last pixel of a row map to the row, empty rows never cover an offset
+            if (rowTops[row + 1] > rowTops[row]) {
+                assertEquals(row * spanCount, model.getPositionAtOffset(rowTops[row]));
+                assertEquals(row * spanCount, model.getPositionAtOffset(rowTops[row + 1] - 1));
+            }
+        }
+    }
+
+    private static int randomHeight(Random random) {
+        return random.nextInt(4) == 0 ? 0 : 20 + random.nextInt(100);
+    }
+
+    private static List<Integer> list(Integer... heights) {
+        final List<Integer> list = new ArrayList<>();
+        for (Integer height : heights) {
+            list.add(height);
+        }
+        return list;
+    }
+}